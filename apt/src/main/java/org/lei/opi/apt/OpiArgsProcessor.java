@@ -0,0 +1,629 @@
+package org.lei.opi.apt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+import org.lei.opi.core.DefaultValue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+
+/**
+ * Generates a record of the arguments of each OPI command method from its @Parameter annotations
+ * (and those of the methods it overrides, subclass first, as {@code OpiMachine.getAllAnnotations}).
+ *
+ * For {@code Jovp.present} it writes {@code JovpPresentArgs} in the same package: a record with one
+ * typed component per parameter (double, int, String, an enum or a JsonElement, or arrays of them
+ * for lists), plus
+ * <ul>
+ *   <li>{@code read(JsonReader)} and a reusable {@code Reader} that stream a JSON object into the record, checking
+ *       each value as it is read and filling in defaults (expanded to stim.length) for optional parameters that are absent,</li>
+ *   <li>{@code write(JsonWriter, command)} that writes it back with 'command' first (and the id next,
+ *       for {@code ArgsCodec.Args}), and</li>
+ *   <li>{@code validate()} that checks a record made some other way.</li>
+ * </ul>
+ * The generated code uses org.lei.opi.core.ArgsCodec for the work on single values.
+ *
+ * Defaults are parsed here with {@link DefaultValue#tree} (the parse ValidationPlan uses), so a bad default
+ * of an optional parameter (eg an enum name that is not in the enum) is a compile error rather than a
+ * failure when a machine is first used.
+ * The annotations are found by name, so this module depends only on protocol, not on core.
+ *
+ * @since 0.3.0
+ */
+@SupportedAnnotationTypes({OpiArgsProcessor.PARAMETER, OpiArgsProcessor.PARAMETERS})
+public class OpiArgsProcessor extends AbstractProcessor {
+
+    /** {@value PARAMETER} */
+    static final String PARAMETER = "org.lei.opi.core.definitions.Parameter";
+    /** {@value PARAMETERS} */
+    static final String PARAMETERS = "org.lei.opi.core.definitions.Parameters";
+    /** {@value CODEC} */
+    static final String CODEC = "org.lei.opi.core.ArgsCodec";
+    /** Parameter giving the length of list defaults: {@value STIM_LENGTH} */
+    static final String STIM_LENGTH = "stim.length";
+    /** Most parameters a method can have (one bit each in a long): {@value MAX_PARAMETERS} */
+    static final int MAX_PARAMETERS = 64;
+
+    /** {@value BAD_CLASS} */
+    static final String BAD_CLASS = "@Parameter '%s' has className %s which is not Double, Integer, String, Object or an enum.";
+    /** {@value BAD_DEFAULT} */
+    static final String BAD_DEFAULT = "@Parameter '%s' is optional but its defaultValue '%s' is not a valid %s. %s";
+    /** {@value NOT_SUPPORTED} */
+    static final String NOT_SUPPORTED = "@Parameter '%s' is a list of lists of %s, which is not supported.";
+    /** {@value TOO_MANY} */
+    static final String TOO_MANY = "Method %s has more than %d @Parameters.";
+    /** {@value CANNOT_WRITE} */
+    static final String CANNOT_WRITE = "Cannot write %s: %s";
+
+    /** What each element of a parameter is */
+    enum Kind { DOUBLE, INTEGER, STRING, ENUM, ANY }
+
+    /** List shape of a parameter */
+    enum Shape { SCALAR, LIST, LIST_OF_LIST }
+
+    /**
+     * One @Parameter, ready to generate code for
+     *
+     * @param name Its name
+     * @param field The record component for it (name as a Java identifier)
+     * @param kind What its elements are
+     * @param shape Scalar, list or list of lists
+     * @param element Java type of an element
+     * @param optional True if it can be left out
+     * @param min Smallest allowed number (the Spec rounds it)
+     * @param max Largest allowed number
+     * @param dflt Java expression for the default if optional, otherwise null
+     * @param desc Its description
+     */
+    record Param(String name, String field, Kind kind, Shape shape, String element,
+                 boolean optional, double min, double max, String dflt, String desc) {
+
+        /** @return The Java type of the record component */
+        String type() {
+            return element + (shape == Shape.LIST ? "[]" : shape == Shape.LIST_OF_LIST ? "[][]" : "");
+        }
+
+        /** @return Name of the ArgsCodec.Spec constant */
+        String spec() { return "P_" + constant(field); }
+    }
+
+    /** Classes written so far (each only once, whatever round sees it) */
+    private final HashSet<String> written = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() { return SourceVersion.latestSupported(); }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        LinkedHashSet<ExecutableElement> methods = new LinkedHashSet<ExecutableElement>();
+        for (TypeElement a : annotations)
+            for (Element e : round.getElementsAnnotatedWith(a))
+                if (e.getKind() == ElementKind.METHOD)
+                    methods.add((ExecutableElement) e);
+        for (ExecutableElement m : methods)
+            generate(m);
+        return false;   // others may want @Parameter too
+    }
+
+    /** Write the record for method m, unless its parameters have errors */
+    private void generate(ExecutableElement m) {
+        TypeElement type = (TypeElement) m.getEnclosingElement();
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String name = m.getSimpleName().toString();
+        String simple = type.getSimpleName().toString() + Character.toUpperCase(name.charAt(0)) + name.substring(1) + "Args";
+        String qualified = pkg.isEmpty() ? simple : pkg + "." + simple;
+        if (!written.add(qualified))
+            return;
+
+        List<Param> params = parameters(type, m);
+        if (params == null)
+            return;
+        if (params.size() > MAX_PARAMETERS) {
+            error(String.format(TOO_MANY, name, MAX_PARAMETERS), m, null);
+            return;
+        }
+
+        try (Writer w = processingEnv.getFiler().createSourceFile(qualified, type).openWriter()) {
+            w.write(new Source(pkg, simple, type.getQualifiedName().toString(), name, params).toString());
+        } catch (IOException e) {
+            error(String.format(CANNOT_WRITE, qualified, e.getMessage()), m, null);
+        }
+    }
+
+    /**
+     * The @Parameters of m and of the methods of the same name in superclasses, unique by name, subclass first.
+     * @return The parameters or null if any have errors (which have been reported)
+     */
+    private List<Param> parameters(TypeElement type, ExecutableElement m) {
+        LinkedHashMap<String, Param> params = new LinkedHashMap<String, Param>();
+        boolean ok = true;
+        for (TypeElement c = type ; c != null ; c = superclass(c))
+            for (Element e : c.getEnclosedElements())
+                if (e.getKind() == ElementKind.METHOD && e.getSimpleName().contentEquals(m.getSimpleName()))
+                    for (AnnotationMirror a : parameterMirrors(e)) {
+                        Param p = param(a, e);
+                        if (p == null)
+                            ok = false;
+                        else
+                            params.putIfAbsent(p.name, p);
+                    }
+        return ok ? new ArrayList<Param>(params.values()) : null;
+    }
+
+    /** @return The superclass of c, or null for Object */
+    private static TypeElement superclass(TypeElement c) {
+        TypeMirror s = c.getSuperclass();
+        return s.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) s).asElement() : null;
+    }
+
+    /** @return The @Parameter annotations on e, whether or not they are in a @Parameters container */
+    private List<AnnotationMirror> parameterMirrors(Element e) {
+        ArrayList<AnnotationMirror> mirrors = new ArrayList<AnnotationMirror>();
+        for (AnnotationMirror a : e.getAnnotationMirrors()) {
+            String name = ((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().toString();
+            if (name.equals(PARAMETER))
+                mirrors.add(a);
+            else if (name.equals(PARAMETERS))
+                for (Object v : (List<?>) value(a, "value"))
+                    mirrors.add((AnnotationMirror) ((AnnotationValue) v).getValue());
+        }
+        return mirrors;
+    }
+
+    /** @return The value of element key of a, or its default */
+    private Object value(AnnotationMirror a, String key) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : processingEnv.getElementUtils().getElementValuesWithDefaults(a).entrySet())
+            if (e.getKey().getSimpleName().contentEquals(key))
+                return e.getValue().getValue();
+        return null;
+    }
+
+    /** @return The Param for @Parameter a on method m, or null if it has an error (which is reported) */
+    private Param param(AnnotationMirror a, Element m) {
+        String name = (String) value(a, "name");
+        TypeMirror cls = (TypeMirror) value(a, "className");
+        Shape shape = (Boolean) value(a, "isListList") ? Shape.LIST_OF_LIST : (Boolean) value(a, "isList") ? Shape.LIST : Shape.SCALAR;
+        boolean optional = (Boolean) value(a, "optional");
+
+        TypeElement t = cls.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) cls).asElement() : null;
+        String qualified = t == null ? cls.toString() : t.getQualifiedName().toString();
+        Kind kind;
+        String element;
+        switch (qualified) {
+            case "java.lang.Double" -> { kind = Kind.DOUBLE; element = "double"; }
+            case "java.lang.Integer" -> { kind = Kind.INTEGER; element = "int"; }
+            case "java.lang.String" -> { kind = Kind.STRING; element = "String"; }
+            case "java.lang.Object" -> { kind = Kind.ANY; element = "com.google.gson.JsonElement"; }
+            default -> {
+                if (t == null || t.getKind() != ElementKind.ENUM) {
+                    error(String.format(BAD_CLASS, name, qualified), m, a);
+                    return null;
+                }
+                kind = Kind.ENUM;
+                element = qualified;
+            }
+        }
+        if (shape == Shape.LIST_OF_LIST && (kind == Kind.ENUM || kind == Kind.ANY)) {
+            error(String.format(NOT_SUPPORTED, name, t.getSimpleName()), m, a);
+            return null;
+        }
+
+        String dflt = null;
+        String defaultValue = (String) value(a, "defaultValue");
+        if (optional)
+            try {
+                dflt = defaultExpression(defaultValue, kind, shape, element, t);
+            } catch (IllegalArgumentException e) {
+                String what = t.getSimpleName() + (shape == Shape.LIST_OF_LIST ? " list of lists" : shape == Shape.LIST ? " list" : "");
+                error(String.format(BAD_DEFAULT, name, defaultValue, what, e.getMessage()), m, a);
+                return null;
+            }
+
+        return new Param(name, field(name), kind, shape, element, optional,
+            (Double) value(a, "min"), (Double) value(a, "max"), dflt, (String) value(a, "desc"));
+    }
+
+    private void error(String message, Element e, AnnotationMirror a) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e, a);
+    }
+
+    // ------------------------------------------------------------------ defaults
+
+    /**
+     * The Java expression for the default of an optional parameter. The text is parsed by
+     * {@link DefaultValue#tree}, as for ValidationPlan, and its elements are taken as Gson takes them.
+     * @throws IllegalArgumentException If it is not valid for the kind and shape
+     */
+    static String defaultExpression(String defaultValue, Kind kind, Shape shape, String element, TypeElement enumType) {
+        if (kind == Kind.STRING && shape == Shape.SCALAR && defaultValue.isEmpty())
+            return "\"\"";   // allowed, as DefaultValue
+
+        JsonElement v;
+        try {
+            v = DefaultValue.tree(defaultValue, shape == Shape.LIST, shape == Shape.LIST_OF_LIST, kind == Kind.ANY);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        if (shape == Shape.SCALAR && kind == Kind.ANY) {
+            if (v.isJsonNull())
+                throw new IllegalArgumentException("It cannot be null.");
+            return any(defaultValue);
+        }
+        if (shape == Shape.SCALAR)
+            return element(v, kind, element, enumType);
+
+        StringBuilder sb = new StringBuilder("new ").append(element).append(shape == Shape.LIST ? "[] {" : "[][] {");
+        JsonArray list = v.getAsJsonArray();
+        for (int i = 0 ; i < list.size() ; i++) {
+            sb.append(i == 0 ? "" : ", ");
+            if (shape == Shape.LIST)
+                sb.append(kind == Kind.ANY ? any(list.get(i).toString()) : element(list.get(i), kind, element, enumType));
+            else {
+                JsonArray row = list.get(i).getAsJsonArray();
+                sb.append("{");
+                for (int j = 0 ; j < row.size() ; j++)
+                    sb.append(j == 0 ? "" : ", ").append(element(row.get(j), kind, element, enumType));
+                sb.append("}");
+            }
+        }
+        return sb.append("}").toString();
+    }
+
+    /** @return The Java expression for a JsonElement */
+    private static String any(String json) {
+        return "com.google.gson.JsonParser.parseString(" + javaString(json) + ")";
+    }
+
+    /** @return The Java expression for a single value (a JsonPrimitive or JsonNull) */
+    private static String element(JsonElement e, Kind kind, String element, TypeElement enumType) {
+        if (e.isJsonNull())
+            throw new IllegalArgumentException("It cannot be null.");
+        String text = e.getAsString();
+        switch (kind) {
+            case DOUBLE, INTEGER: {
+                double d;
+                try {
+                    d = Double.parseDouble(text);
+                } catch (NumberFormatException x) {
+                    throw new IllegalArgumentException("'" + text + "' is not a number.");
+                }
+                if (Double.isNaN(d) || Double.isInfinite(d))
+                    throw new IllegalArgumentException("'" + text + "' is not a finite number.");
+                if (kind == Kind.DOUBLE)
+                    return Double.toString(d);
+                if (d != (int) d)
+                    throw new IllegalArgumentException("'" + text + "' is not an integer.");
+                return Integer.toString((int) d);
+            }
+            case STRING:
+                return javaString(text);
+            default:    // ENUM, by exact name as Gson
+                for (Element c : enumType.getEnclosedElements())
+                    if (c.getKind() == ElementKind.ENUM_CONSTANT && c.getSimpleName().contentEquals(text))
+                        return element + "." + text;
+                throw new IllegalArgumentException("'" + text + "' is not one of " + enumType.getSimpleName() + ".");
+        }
+    }
+
+    // ------------------------------------------------------------------ names
+
+    /** @return name as a Java identifier in lower camel case, eg stimLength for stim.length */
+    static String field(String name) {
+        StringBuilder sb = new StringBuilder();
+        boolean upper = false;
+        for (char c : name.toCharArray())
+            if (!Character.isJavaIdentifierPart(c))
+                upper = sb.length() > 0;
+            else {
+                sb.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0)))
+            sb.insert(0, '_');
+        String f = sb.toString();
+        return SourceVersion.isKeyword(f) ? f + "_" : f;
+    }
+
+    /** @return A lower camel case identifier as a constant name, eg STIM_LENGTH for stimLength */
+    static String constant(String field) {
+        return field.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+    }
+
+    /** @return s as a Java string literal */
+    static String javaString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray())
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < ' ' || c > '~')
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+                }
+            }
+        return sb.append('"').toString();
+    }
+
+    /** @return s safe to put in a javadoc comment */
+    static String javadoc(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("*/", "*&#47;").replace("@", "&#64;");
+    }
+
+    /** @return A double as a Java literal */
+    static String literal(double d) {
+        return Double.isInfinite(d) ? (d > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY") : Double.toString(d);
+    }
+
+    // ------------------------------------------------------------------ source
+
+    /** The source of one generated record */
+    static final class Source {
+        private final StringBuilder sb = new StringBuilder();
+
+        Source(String pkg, String simple, String machine, String method, List<Param> params) {
+            Param stimLength = null;
+            for (Param p : params)
+                if (p.name.equals(STIM_LENGTH) && p.shape == Shape.SCALAR && (p.kind == Kind.INTEGER || p.kind == Kind.DOUBLE))
+                    stimLength = p;
+            LinkedHashMap<String, String> enums = new LinkedHashMap<String, String>();  // enum type : constant of its values
+            for (Param p : params)
+                if (p.kind == Kind.ENUM && !enums.containsKey(p.element)) {
+                    String c = constant(p.element.substring(p.element.lastIndexOf('.') + 1)) + "_VALUES";
+                    enums.put(p.element, enums.containsValue(c) ? c + "_" + enums.size() : c);
+                }
+                // mandatory parameters are checked by name, as ValidationPlan, so the error is the same
+            ArrayList<Param> mandatory = new ArrayList<Param>();
+            for (Param p : params)
+                if (!p.optional)
+                    mandatory.add(p);
+            mandatory.sort(Comparator.comparing(Param::name));
+
+            if (!pkg.isEmpty())
+                line("package %s;", pkg).line("");
+            line("import java.io.IOException;")
+            .line("import java.util.List;")
+            .line("")
+            .line("import com.google.gson.stream.JsonReader;")
+            .line("import com.google.gson.stream.JsonWriter;")
+            .line("")
+            .line("/**")
+            .line(" * The arguments of {@link %s#%s}, from its @Parameter annotations.", machine, method)
+            .line(" * Generated by %s: do not edit.", OpiArgsProcessor.class.getName())
+            .line(" *")
+            .line(" * {@link #read} streams them from a JSON object and checks them, filling in defaults,")
+            .line(" * {@link #write} writes them with 'command' first and {@link #validate} checks a record made some other way.")
+            .line(" * Array components are not copied, so do not change them.")
+            .line(" *");
+            for (Param p : params)
+                line(" * @param %s %s%s", p.field, p.field.equals(p.name) ? "" : p.name + ": ", javadoc(p.desc));
+            line(" */")
+            .line("@javax.annotation.processing.Generated(\"%s\")", OpiArgsProcessor.class.getName());
+            sb.append("public record ").append(simple).append("(");
+            for (int i = 0 ; i < params.size() ; i++)
+                sb.append(i == 0 ? "\n        " : ",\n        ").append(params.get(i).type()).append(' ').append(params.get(i).field);
+            line(") implements %s.Args {", CODEC)
+            .line("")
+            .line("    /** The method the arguments are for: {@value METHOD} */")
+            .line("    public static final String METHOD = %s;", javaString(method));
+            sb.append("    /** The parameter names, in the order of the components */\n    public static final List<String> NAMES = List.of(");
+            for (int i = 0 ; i < params.size() ; i++)
+                sb.append(i == 0 ? "" : ", ").append(javaString(params.get(i).name));
+            line(");")
+            .line("");
+            for (Param p : params)
+                line("    private static final %s.Spec %s = new %s.Spec(%s, METHOD, %s, %s.Kind.%s, %s.class, %s, %s);",
+                    CODEC, p.spec(), CODEC, javaString(p.name), javaString("class " + machine), CODEC, p.kind,
+                    p.kind == Kind.ANY ? "Object" : p.kind == Kind.ENUM ? p.element : p.kind == Kind.STRING ? "String" : p.kind == Kind.INTEGER ? "Integer" : "Double",
+                    literal(p.min), literal(p.max));
+            for (Map.Entry<String, String> e : enums.entrySet())
+                line("    private static final %s[] %s = %s.values();", e.getKey(), e.getValue(), e.getKey());
+            for (Param p : params)
+                if (p.optional && p.shape != Shape.SCALAR)
+                    line("    private static final %s D_%s = %s;", p.type(), constant(p.field), p.dflt);
+
+                // read
+            line("")
+            .line("    /**")
+            .line("     * Read a JSON object of the arguments. Fields that are not parameters (eg 'command') are skipped.")
+            .line("     *")
+            .line("     * @param in Positioned at the start of the object")
+            .line("     * @return The arguments, with defaults for optional parameters that are absent")
+            .line("     * @throws IOException If the JSON is malformed")
+            .line("     * @throws IllegalArgumentException If a mandatory parameter is missing or a value is not valid")
+            .line("     */")
+            .line("    public static %s read(JsonReader in) throws IOException {", simple)
+            .line("        return new Reader().readObject(in);")
+            .line("    }")
+            .line("");
+
+                // validate
+            line("    /**")
+            .line("     * Check the arguments as {@link #read} does.")
+            .line("     *")
+            .line("     * @return this")
+            .line("     * @throws IllegalArgumentException If a value is missing or not valid")
+            .line("     */")
+            .line("    public %s validate() {", simple);
+            for (Param p : params)
+                if (p.shape == Shape.SCALAR && (p.kind == Kind.STRING || p.kind == Kind.ENUM || p.kind == Kind.ANY))
+                    line("        %s.need(%s, %s);", CODEC, p.field, p.spec());
+                else
+                    line("        %s.check(%s, %s);", CODEC, p.field, p.spec());
+            line("        return this;")
+            .line("    }")
+            .line("");
+
+                // write
+            line("    /**")
+            .line("     * Write the arguments as a JSON object.")
+            .line("     *")
+            .line("     * @param out Where to write")
+            .line("     * @param command If not null, written first as the value of 'command'")
+            .line("     * @throws IOException If out cannot be written")
+            .line("     */")
+            .line("    public void write(JsonWriter out, String command) throws IOException {")
+            .line("        write(out, null, command);")
+            .line("    }")
+            .line("")
+            .line("    @Override")
+            .line("    public void write(JsonWriter out, String id, String command) throws IOException {")
+            .line("        out.beginObject();")
+            .line("        if (command != null)")
+            .line("            out.name(\"command\").value(command);")
+            .line("        if (id != null)")
+            .line("            out.name(\"id\").value(id);");
+            for (Param p : params)
+                line("        %s.write(out, %s, %s);", CODEC, javaString(p.name), p.field);
+            line("        out.endObject();")
+            .line("    }")
+            .line("");
+
+                // Reader
+            line("    /**")
+            .line("     * Reads the arguments field by field, for callers that stream an object holding other fields too.")
+            .line("     * Call {@link #clear}, then {@link #field} for each field and then {@link #build}.")
+            .line("     * It can be reused but only by one thread at a time.")
+            .line("     */")
+            .line("    public static final class Reader {")
+            .line("        /** Bit i is set if parameter i has been read */")
+            .line("        private long seen = 0;");
+            for (Param p : params)
+                line("        private %s %s;", p.type(), p.field);
+            line("")
+            .line("        /** Forget the fields read so far */")
+            .line("        public void clear() {")
+            .line("            seen = 0;");
+            for (Param p : params)
+                if (!p.type().equals("double") && !p.type().equals("int"))
+                    line("            this.%s = null;", p.field);
+            line("        }")
+            .line("")
+            .line("        /**")
+            .line("         * Read the value of a field if it is a parameter.")
+            .line("         *")
+            .line("         * @param name The field name")
+            .line("         * @param in Positioned at its value")
+            .line("         * @return True if the value was read, false if name is not a parameter (and the value is still to be read)")
+            .line("         * @throws IOException If the JSON is malformed")
+            .line("         * @throws IllegalArgumentException If the value is not valid")
+            .line("         */")
+            .line("        public boolean field(String name, JsonReader in) throws IOException {")
+            .line("            switch (name) {");
+            for (int i = 0 ; i < params.size() ; i++) {
+                Param p = params.get(i);
+                line("                case %s -> { this.%s = %s.%s(in, %s%s); seen |= 1L << %d; }", javaString(p.name), p.field, CODEC,
+                    reader(p), p.spec(), p.kind == Kind.ENUM ? ", " + enums.get(p.element) : "", i);
+            }
+            line("                default -> { return false; }")
+            .line("            }")
+            .line("            return true;")
+            .line("        }")
+            .line("")
+            .line("        /**")
+            .line("         * Read a whole JSON object, skipping fields that are not parameters.")
+            .line("         *")
+            .line("         * @param in Positioned at the start of the object")
+            .line("         * @return The arguments (see {@link #build})")
+            .line("         * @throws IOException If the JSON is malformed")
+            .line("         * @throws IllegalArgumentException If a mandatory parameter is missing or a value is not valid")
+            .line("         */")
+            .line("        public %s readObject(JsonReader in) throws IOException {", simple)
+            .line("            clear();")
+            .line("            in.beginObject();")
+            .line("            while (in.hasNext())")
+            .line("                if (!field(in.nextName(), in))")
+            .line("                    in.skipValue();")
+            .line("            in.endObject();")
+            .line("            return build();")
+            .line("        }")
+            .line("")
+            .line("        /**")
+            .line("         * The arguments read since {@link #clear}, with defaults for optional parameters that were not read.")
+            .line("         * Lists of defaults are as long as %s (if it was read).", STIM_LENGTH)
+            .line("         *")
+            .line("         * @return The arguments")
+            .line("         * @throws IllegalArgumentException If a mandatory parameter has not been read")
+            .line("         */")
+            .line("        public %s build() {", simple);
+            for (Param p : mandatory)
+                line("            if ((seen & (1L << %d)) == 0)", params.indexOf(p))
+                .line("                throw %s.missing(%s);", CODEC, p.spec());
+            boolean lists = false;
+            for (Param p : params)
+                lists |= p.optional && p.shape != Shape.SCALAR;
+            if (lists)
+                if (stimLength == null)
+                    line("            int n = 1;");
+                else
+                    line("            int n = (seen & (1L << %d)) != 0 ? %s : 1;", params.indexOf(stimLength),
+                        stimLength.kind == Kind.INTEGER ? "this." + stimLength.field : "(int) Math.round(this." + stimLength.field + ")");
+            for (int i = 0 ; i < params.size() ; i++) {
+                Param p = params.get(i);
+                if (!p.optional)
+                    continue;
+                line("            if ((seen & (1L << %d)) == 0)", i);
+                if (p.shape == Shape.SCALAR)
+                    line("                this.%s = %s;", p.field, p.dflt);
+                else
+                    line("                this.%s = %s.fill(D_%s, n);", p.field, CODEC, constant(p.field));
+            }
+            sb.append("            return new ").append(simple).append("(");
+            for (int i = 0 ; i < params.size() ; i++)
+                sb.append(i == 0 ? "" : ", ").append("this.").append(params.get(i).field);
+            line(");")
+            .line("        }")
+            .line("    }")
+            .line("}");
+        }
+
+        /** @return The ArgsCodec method that reads p */
+        private static String reader(Param p) {
+            String k = switch (p.kind) {
+                case DOUBLE -> "Double";
+                case INTEGER -> "Int";
+                case STRING -> "String";
+                case ENUM -> "Enum";
+                default -> "Json";
+            };
+            return "read" + k + (p.shape == Shape.LIST ? "s" : p.shape == Shape.LIST_OF_LIST ? "Lists" : "");
+        }
+
+        private Source line(String format, Object... args) {
+            sb.append(args.length == 0 ? format : String.format(format, args)).append('\n');
+            return this;
+        }
+
+        public String toString() { return sb.toString(); }
+    }
+}
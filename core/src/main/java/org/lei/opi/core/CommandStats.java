@@ -0,0 +1,118 @@
+package org.lei.opi.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of the calls to one OPI command of an {@link OpiMachine} and a histogram of how
+ * long they took, for monitoring. Recorded by {@link OpiMachine#processPairs} when
+ * {@link OpiMachine#setCommandStats(boolean)} is on.
+ *
+ * Bucket i of the histogram counts calls that took less than 2^i microseconds
+ * (and at least 2^(i-1)), with the last of the {@value BUCKETS} buckets taking anything longer.
+ * Recording is lock free so calls from several sessions can record at once.
+ *
+ * @since 0.3.0
+ */
+public class CommandStats {
+
+    /** Number of histogram buckets: {@value BUCKETS} (the last is over 2^30 us, about 18 minutes) */
+    public static final int BUCKETS = 32;
+
+    /** The command (method name) */
+    private final String name;
+    /** Calls recorded */
+    private final LongAdder calls = new LongAdder();
+    /** Calls that returned an error Packet */
+    private final LongAdder errors = new LongAdder();
+    /** Total time of all calls (ns) */
+    private final LongAdder totalNanos = new LongAdder();
+    /** Calls by log2 of their time in microseconds */
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param name The command that is counted
+     */
+    public CommandStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record one call.
+     *
+     * @param nanos How long it took (ns)
+     * @param error True if it returned an error
+     *
+     * @since 0.3.0
+     */
+    public void record(long nanos, boolean error) {
+        calls.increment();
+        if (error)
+            errors.increment();
+        totalNanos.add(nanos);
+        histogram.incrementAndGet(bucket(nanos));
+    }
+
+    /** @return The histogram bucket for a call that took nanos */
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    public String getName() { return name; }
+    public long getCalls() { return calls.sum(); }
+    public long getErrors() { return errors.sum(); }
+
+    /** @return Mean time of a call (ms), 0 if there have been none */
+    public double getMeanMillis() {
+        long n = calls.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+    }
+
+    /** @return A copy of the histogram counts, bucket i for times under 2^i us */
+    public long[] getHistogram() {
+        long[] h = new long[BUCKETS];
+        for (int i = 0 ; i < BUCKETS ; i++)
+            h[i] = histogram.get(i);
+        return h;
+    }
+
+    /**
+     * An upper bound on the q quantile of call times, to within a factor of 2.
+     *
+     * @param q Quantile in [0, 1], eg 0.99
+     * @return The upper edge (ms) of the bucket holding the q quantile, 0 if there have been no calls
+     *
+     * @since 0.3.0
+     */
+    public double quantileMillis(double q) {
+        long[] h = getHistogram();
+        long n = 0;
+        for (long c : h)
+            n += c;
+        if (n == 0)
+            return 0;
+        long target = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int i = 0 ; i < BUCKETS ; i++) {
+            seen += h[i];
+            if (seen >= Math.max(1, target))
+                return (1L << i) / 1000.0;
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+
+    /** Forget everything recorded */
+    public void reset() {
+        calls.reset();
+        errors.reset();
+        totalNanos.reset();
+        for (int i = 0 ; i < BUCKETS ; i++)
+            histogram.set(i, 0);
+    }
+
+    public String toString() {
+        return String.format("%s: %d calls, %d errors, mean %.3f ms, p50 < %.3f ms, p99 < %.3f ms",
+            name, getCalls(), getErrors(), getMeanMillis(), quantileMillis(0.5), quantileMillis(0.99));
+    }
+}
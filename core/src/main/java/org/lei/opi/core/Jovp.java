@@ -1,22 +1,55 @@
 package org.lei.opi.core;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.IOException;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.lei.opi.core.OpiListener.Command;
 import org.lei.opi.core.definitions.Packet;
 import org.lei.opi.core.definitions.Parameter;
+import org.lei.opi.core.definitions.ReturnMsg;
 
+import com.google.gson.JsonElement;
+
+import es.optocom.jovp.definitions.ViewEye;
 import es.optocom.jovp.definitions.ViewMode;
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
 
 /**
  * JOVP client - will send messages to JOVP server...
+ * Each command is sent with an 'id' and its reply is matched by that id (see {@link #sendAsync}), 
+ * so commands from several threads can be in flight at once.
+ * While connected it also PINGs the server every {@value PING_INTERVAL} ms to keep a
+ * rolling estimate of the latency of that hop (see {@link #getLatency()}).
+ * If the connection drops after INITIALIZE it reconnects and sends RESUME with the session 
+ * token INITIALIZE gave, so the server carries on with its engine, calibration and cameras
+ * as they were and commands that were waiting get their replies (see {@link #reattach()}).
  *
  * @since 0.0.1
  */
 public abstract class Jovp extends OpiMachine {
 
+    /** Time between PINGs to the server: {@value PING_INTERVAL} ms */
+    public static final long PING_INTERVAL = 1000;
+    /** Number of attempts to reconnect after the connection drops: {@value RESUME_TRIES} */
+    public static final int RESUME_TRIES = 20;
+    /** Pause before each attempt to reconnect: {@value RESUME_WAIT} ms */
+    public static final long RESUME_WAIT = 500;
+    /** Longest wait for the reply to CLOSE before closing the socket anyway: {@value CLOSE_WAIT} ms */
+    public static final long CLOSE_WAIT = 1000;
+
     public static class Settings extends OpiMachine.Settings {
         public String command;    // this is not read from the config file, used internally
         public String machine;    // this is not read from the config file, used internally
@@ -32,6 +65,9 @@ public abstract class Jovp extends OpiMachine {
         public String deviceNumberCameraLeft;   // for eye tracking if present
         public String deviceNumberCameraRight;  // for eye tracking if present
         public int eyeStreamPort; // Port on which eye images will be streamed (if any, -1 if none)
+        public boolean framing;   // true to use length-prefixed frames rather than lines on the JOVP socket
+        public int presentGrace;  // ms the server waits for a response after the stimuli and w are over (0 for its default)
+        public double buttonLag = 30;  // ms from a button press to the server seeing it, taken off response times
 
         public void setScreen(int screen) { this.screen = screen; }
         public void setPhysicalSize(int[] psize) { this.physicalSize = psize; }
@@ -40,6 +76,10 @@ public abstract class Jovp extends OpiMachine {
 
     /** Settings */
     protected Settings settings;
+    /** Connection to the eye image stream of the server (null if not connected) */
+    private volatile Socket eyeSocket = null;
+    /** Token from the server's INITIALIZE reply for RESUME (null if not initialised or closed) */
+    private volatile String sessionToken = null;
     public Settings getSettings() { return this.settings; }
 
     /**
@@ -60,8 +100,45 @@ public abstract class Jovp extends OpiMachine {
     // create instance AND open connection to settings-> ip port
     public Jovp(javafx.scene.Scene parentScene, boolean createConnection) throws InstantiationException {
         this(parentScene);
-        if (!this.connect(settings.ip, settings.port))
+        if (!this.connect(settings.ip, settings.port, settings.framing))
             throw new InstantiationException(String.format("Cannot connect to %s:%s", settings.ip, settings.port));
+        tasks.submit(this::keepProbing);
+    }
+
+    /** PING the server every {@value PING_INTERVAL} ms until cancelled or the server cannot answer */
+    private void keepProbing() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    probeLatency().get(PING_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    ;  // late replies are still added when they come
+                }
+                Thread.sleep(PING_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            ;  // cancelled
+        } catch (IOException | ExecutionException e) {
+            System.out.println("Stopped measuring latency to the JOVP server: " + e);
+        }
+    }
+
+    /**
+     * opiPing: as {@link OpiMachine#ping()} with the estimate for the hop from here to the JOVP server added,
+     * so a client sees both hops in one reply.
+     *
+     * @return A Packet with the timestamps and {@value OpiListener#PING_SERVER}
+     *
+     * @since 0.3.0
+     */
+    @Override
+    @ReturnMsg(name = OpiListener.PING_SERVER, className = Object.class, desc = "Estimate for the hop to the JOVP server: samples, minRtt, meanRtt, lastRtt and offset (ns).")
+    public Packet ping() {
+        long received = OpiSession.receivedAt();
+        LatencyProbe.Estimate server = latency.estimate();
+        HashMap<String, Object> msg = OpiListener.pingStamps(received);
+        msg.put(OpiListener.PING_SERVER, server);
+        return new Packet(msg);
     }
 
     /**
@@ -77,9 +154,13 @@ public abstract class Jovp extends OpiMachine {
     public Packet initialize(HashMap<String, Object> args) {
         try {
             settings.command = Command.INITIALIZE.toString();
-            this.send(OpiListener.gson.toJson(settings));
-            Packet p = this.receive();
-            return Packet.checkReturnElements(p, this.opiMethods, "initialize");
+            Packet p = this.request(OpiListener.gson.toJson(settings));
+            if (!p.getError()) {
+                JsonElement msg = p.getMsgTree();
+                if (msg.isJsonObject() && msg.getAsJsonObject().has(OpiListener.SESSION_TOKEN))
+                    sessionToken = msg.getAsJsonObject().get(OpiListener.SESSION_TOKEN).getAsString();
+            }
+            return checkReturnElements(p, this.opiMethods, "initialize");
         } catch (IOException e) {
             return Packet.error(COULD_NOT_INITIALIZE, e);
         }
@@ -96,9 +177,8 @@ public abstract class Jovp extends OpiMachine {
         if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
         try {
             String q = toJson(Command.QUERY);
-            this.send(q);
-            Packet rec = this.receive();
-            return Packet.checkReturnElements(rec, this.opiMethods, "query");
+            Packet rec = this.request(q);
+            return checkReturnElements(rec, this.opiMethods, "query");
         } catch (ClassCastException | IllegalArgumentException | IOException e) {
             return Packet.error(COULD_NOT_QUERY, e);
         }
@@ -132,11 +212,10 @@ public abstract class Jovp extends OpiMachine {
     public Packet setup(HashMap<String, Object> args) {
         if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
         try {
-            Packet p = validateArgs(args, this.opiMethods.get("setup").parameters(), "setup");
-                if (p.getError()) 
-                    return(p);
-            this.send(p.getMsg());
-            return Packet.checkReturnElements(this.receive(), this.opiMethods, "setup");
+            JovpSetupArgs a = JovpSetupArgs.read(ArgsCodec.reader(args));   // checked, with defaults, by the generated record
+            return checkReturnElements(this.request(a, Command.SETUP), this.opiMethods, "setup");
+        } catch (IllegalArgumentException e) {
+            return Packet.error(e.getMessage());
         } catch (IOException e) {
           return Packet.error(COULD_NOT_SETUP, e);
         }
@@ -178,16 +257,134 @@ public abstract class Jovp extends OpiMachine {
     @Parameter(name = "imageFilename", className = String.class, desc = "If type == IMAGE, the filename on the local filesystem of the machine running JOVP of the image to use", isList = true, optional = true, defaultValue = "[\"x.jpg\"]")
     @Parameter(name = "fullFoV", className = Double.class, desc = "If !0 fullFoV scales image to full field of view and sx/sy are ignored.", isList = true, optional = true, defaultValue = "[0]")
     @Parameter(name = "optotype", className = es.optocom.jovp.definitions.Optotype.class, desc = "If shape == OPTOTYPE, the letter A to Z to use", isList = true, optional = true, defaultValue = "[E]")
+    @ReturnMsg(name = "plannedOnsetFrame", className = Double.class, desc = "Frame (counted from the start of the JOVP engine) on which the stimulus should have come on.")
+    @ReturnMsg(name = "onsetFrame", className = Double.class, desc = "Frame on which the stimulus came on.")
+    @ReturnMsg(name = "plannedOffsetFrame", className = Double.class, desc = "Frame on which the stimulus should go off: onsetFrame plus the sum of t in frames.")
+    @ReturnMsg(name = "offsetFrame", className = Double.class, desc = "Frame on which the stimulus went off (earlier than plannedOffsetFrame if the button was pressed first).")
+    @ReturnMsg(name = "plannedOnsetTime", className = Double.class, desc = "Time of plannedOnsetFrame if every frame were on time (ms from the start of the JOVP engine).")
+    @ReturnMsg(name = "onsetTime", className = Double.class, desc = "Time the stimulus came on (ms from the start of the JOVP engine).")
+    @ReturnMsg(name = "plannedOffsetTime", className = Double.class, desc = "Time of plannedOffsetFrame if every frame were on time (ms from the start of the JOVP engine).")
+    @ReturnMsg(name = "offsetTime", className = Double.class, desc = "Time the stimulus went off (ms from the start of the JOVP engine).")
     public Packet present(HashMap<String, Object> args) {
         if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
         try {
-            Packet p = validateArgs(args, this.opiMethods.get("present").parameters(), "present");
+            if (args.containsKey(OpiListener.PROGRAM))   // checked by fromTemplate()
+                return checkReturnElements(this.request(new ValidArgs(templateCommand(args))), this.opiMethods, "present");
+            JovpPresentArgs a = JovpPresentArgs.read(ArgsCodec.reader(args));
+            return checkReturnElements(this.request(a, Command.PRESENT), this.opiMethods, "present");
+        } catch (IllegalArgumentException e) {
+            return Packet.error(e.getMessage());
+        } catch (IOException e) {
+            return Packet.error(COULD_NOT_PRESENT, e);
+        }
+    }
+
+    /**
+     * The PRESENT command for a template that JOVP already has (see {@link #defineProgram}):
+     * just the program, the template and the values that can change.
+     *
+     * @param args The parameters of the present(), from {@link #fromTemplate} (so already checked)
+     * @return The command, with 'command' first for the JOVP decoder
+     */
+    private static LinkedHashMap<String, Object> templateCommand(HashMap<String, Object> args) {
+        LinkedHashMap<String, Object> command = new LinkedHashMap<String, Object>();
+        command.put("command", Command.PRESENT.toString());
+        command.put(OpiListener.PROGRAM, args.get(OpiListener.PROGRAM));
+        command.put(OpiListener.TEMPLATE, args.get(OpiListener.TEMPLATE));
+        for (String name : OVERRIDABLE)
+            command.put(name, args.get(name));
+        return command;
+    }
+
+    /**
+     * opiDefineProgram: Check the templates as for {@link #present} and send them to JOVP as one
+     * DEFINE_PROGRAM command, so JOVP checks them and builds their stimuli once. 
+     * A present() of a template then sends only the template and its lum and w.
+     *
+     * @param args pairs of argument name and value
+     * 
+     * @return A JSON object with return messages
+     *
+     * @since 0.3.0
+     */
+    @Override
+    public Packet defineProgram(HashMap<String, Object> args) {
+        if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
+        Packet p = super.defineProgram(args);
+        if (p.getError())
+            return p;
+        String name = (String) args.get(OpiListener.PROGRAM);
+        try {
+            LinkedHashMap<String, Object> program = new LinkedHashMap<String, Object>();  // command first for the JOVP decoder
+            program.put("command", Command.DEFINE_PROGRAM.toString());
+            program.put(OpiListener.PROGRAM, name);
+            program.put(OpiListener.TEMPLATES, programs.get(name));
+            Packet reply = checkReturnElements(this.request(new ValidArgs(program)), this.opiMethods, "defineProgram");
+            if (reply.getError())
+                programs.remove(name);   // JOVP does not have it, so do not send presentations of it
+            return reply;
+        } catch (IOException e) {
+            programs.remove(name);
+            return Packet.error(COULD_NOT_PRESENT, e);
+        }
+    }
+
+    /**
+     * opiPresentBatch: Validate each presentation as for {@link #present} and send the whole 
+     * batch to JOVP as one PRESENT_BATCH command, so JOVP runs them back to back on its render 
+     * thread with the inter-stimulus intervals. If streaming, each result that JOVP sends early
+     * is passed straight on to our own client.
+     *
+     * @param args pairs of argument name and value
+     * 
+     * @return A JSON object with return messages
+     *
+     * @since 0.3.0
+     */
+    @Override
+    public Packet presentBatch(HashMap<String, Object> args) {
+        if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
+        try {
+            Packet p = validateArgs(args, this.opiMethods.get("presentBatch").parameters(), "presentBatch");
             if (p.getError()) 
                 return(p);
-            //this.send(OpiListener.gson.toJson(args));
-            this.send(p.getMsg());
-            return Packet.checkReturnElements(this.receive(), this.opiMethods, "present");
-        } catch (IOException e) {
+
+            List<?> given = (List<?>) args.get("presentations");
+            ArrayList<HashMap<String, Object>> presentations = new ArrayList<HashMap<String, Object>>(given.size());
+            for (int i = 0 ; i < given.size() ; i++) {
+                if (!(given.get(i) instanceof Map))
+                    return Packet.error(String.format(NOT_A_PRESENTATION, i));
+                HashMap<String, Object> pairs = new HashMap<String, Object>((Map<String, Object>) given.get(i));
+                if (pairs.containsKey(OpiListener.PROGRAM)) {   // JOVP takes whole presentations in a batch
+                    p = fromTemplate(pairs);
+                    if (p.getError()) 
+                        return Packet.error(String.format(BATCH_FAILED, i, p.getMsg()));
+                    pairs = ((ValidArgs) p.getPayload()).pairs();
+                    pairs.remove(OpiListener.PROGRAM);
+                    pairs.remove(OpiListener.TEMPLATE);
+                }
+                pairs.remove("command");
+                p = validateArgs(pairs, this.opiMethods.get("present").parameters(), "present");
+                if (p.getError()) 
+                    return Packet.error(String.format(BATCH_FAILED, i, p.getMsg()));
+                updateGUIOnPresent(pairs);
+                presentations.add(pairs);
+            }
+
+            LinkedHashMap<String, Object> batch = new LinkedHashMap<String, Object>();  // command first for the JOVP decoder
+            batch.put("command", Command.PRESENT_BATCH.toString());
+            batch.put("isi", args.get("isi"));
+            batch.put("stream", args.get("stream"));
+            batch.put("presentations", presentations);
+
+            OpiSession session = OpiSession.current();
+            JsonElement id = OpiSession.currentId();
+            Packet reply = await(this.sendAsync(new ValidArgs(batch), (Packet streamed) -> {
+                if (session != null)
+                    session.send(streamed.withId(id));
+            }));
+            return checkReturnElements(reply, this.opiMethods, "presentBatch");
+        } catch (IOException | ClassCastException e) {
             return Packet.error(COULD_NOT_PRESENT, e);
         }
     }
@@ -204,8 +401,20 @@ public abstract class Jovp extends OpiMachine {
     public Packet close() {
         if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
        
+        sessionToken = null;   // do not RESUME when the server goes
         try {
-            this.send(toJson(Command.CLOSE));   // this will close the server, so no messages coming back
+                // With an id and under the send lock, so it cannot split a PING frame and its reply is not taken for a PING's.
+                // The server closes as it replies, so do not wait long.
+            CompletableFuture<Packet> closed = this.sendAsync(toJson(Command.CLOSE));
+            try {
+                closed.get(CLOSE_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                ;  // gone before it replied
+            }
+            if (eyeSocket != null)
+                eyeSocket.close();   // unblocks the image viewer
             this.closeSocket();
         } catch (IOException e) {
             return Packet.error(COULD_NOT_CLOSE, e);
@@ -213,6 +422,114 @@ public abstract class Jovp extends OpiMachine {
         return new Packet(true, DISCONNECTED_FROM_HOST);
     }
 
+    /**
+     * Reconnect to the server and send RESUME with the session token (if INITIALIZE gave one),
+     * trying {@value RESUME_TRIES} times {@value RESUME_WAIT} ms apart. 
+     * The server first sends the replies it kept for commands that finished while we were gone
+     * (which are delivered as normal), then the RESUME reply listing which of our waiting
+     * commands it never received, and those are sent again.
+     *
+     * @return true if resumed
+     *
+     * @since 0.3.0
+     */
+    @Override
+    protected boolean reattach() {
+        for (int i = 0 ; i < RESUME_TRIES && sessionToken != null ; i++) {
+            try {
+                Thread.sleep(RESUME_WAIT);
+            } catch (InterruptedException e) {
+                return false;   // cancelled by closeSocket()
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) { ; }
+            if (!connect(settings.ip, settings.port, settings.framing))
+                continue;
+
+            HashMap<String, Object> resume = new LinkedHashMap<String, Object>();
+            resume.put("command", Command.RESUME.name());
+            resume.put(OpiListener.SESSION_TOKEN, sessionToken);
+            resume.put(OpiListener.RESUME_PENDING, pendingIds());
+            try {
+                send(OpiListener.gson.toJson(resume));
+                Packet p = receive();
+                while (p.getId() != null) {   // replies kept for us, then the RESUME reply (which has no id)
+                    deliver(p);
+                    p = receive();
+                }
+                if (p.getError()) {
+                    System.out.println("Server would not RESUME: " + p.getMsg());
+                    return false;
+                }
+                for (JsonElement id : p.getMsgTree().getAsJsonObject().getAsJsonArray(OpiListener.RESUME_UNKNOWN))
+                    resend(id.getAsString());
+                System.out.println(String.format("Resumed session with %s:%s", settings.ip, settings.port));
+                return true;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("RESUME failed, trying again: " + e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Show the eye images streamed by the server in imageViewLeft/Right until 
+     * cancelled (by {@link #close()}). Run it as a task, eg tasks.submit(() -> streamEyeImages(1000, 100)).
+     * Does nothing if settings.eyeStreamPort is -1.
+     *
+     * @param connectRetry Pause (ms) between attempts to connect (the server opens the port on opiInitialise)
+     * @param noImageRetry Pause (ms) before trying again when no image could be read
+     *
+     * @since 0.3.0
+     */
+    protected void streamEyeImages(long connectRetry, long noImageRetry) {
+        int port = settings.eyeStreamPort;
+        if (port == -1)
+            return;
+        
+        CameraStreamerImo csImo = new CameraStreamerImo(); // just for readBytes()
+        try {
+                // Wait for the server to be initialised
+            while (eyeSocket == null) {
+                Thread.sleep(connectRetry);
+                try {
+                    eyeSocket = new Socket(settings.ip, port);
+                } catch (IOException e) {
+                    System.out.println("Monitor is waiting for opiInitialise to open up eye camera socket on server on port: " + port);
+                }
+            }
+
+            BufferedImage im = new BufferedImage(640, 480, BufferedImage.TYPE_3BYTE_BGR);
+            byte[] im_array = ((DataBufferByte) im.getRaster().getDataBuffer()).getData();
+            while (!eyeSocket.isClosed()) {
+                Thread.sleep(20);
+                ViewEye eye = csImo.readBytes(eyeSocket, im_array);
+
+                if (eye == ViewEye.NONE) {
+                    Thread.sleep(noImageRetry);  // try again soon
+                    continue;
+                }
+
+                Image img = SwingFXUtils.toFXImage(im, null);
+
+                Platform.runLater(() -> {
+                    if (eye == ViewEye.LEFT)           // TODO need to allow for mono
+                        imageViewLeft.setImage(img);
+                    else 
+                        imageViewRight.setImage(img);
+                });
+            }
+        } catch (InterruptedException e) {
+            ;  // cancelled
+        } finally {
+            try {
+                if (eyeSocket != null)
+                    eyeSocket.close();
+            } catch (IOException ignored) { ; }
+        }
+    }
+
     /**
     * Get an array of double values from a suitable list
     * 
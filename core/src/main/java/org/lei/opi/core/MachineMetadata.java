@@ -0,0 +1,113 @@
+package org.lei.opi.core;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiMachine.MethodData;
+import org.lei.opi.core.definitions.Parameter;
+import org.lei.opi.core.definitions.ReturnMsg;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * What an {@link OpiMachine} class declares through annotations: the {@link MethodData} of each
+ * of its OPI command methods, the names of the enums its @Parameters use and a
+ * {@link ValidationPlan} for each method.
+ *
+ * It only depends on the class, so it is worked out the first time a class is asked for
+ * (by reflection over the class and its superclasses) and then shared by every machine of that
+ * class, and by rgen which documents the same methods. {@link ClassValue} keeps one per class,
+ * is thread safe, and does not stop a class from being unloaded.
+ *
+ * The defaults of optional @Parameters are parsed here too, so a class with a bad one
+ * cannot be used at all (an IllegalArgumentException from its constructor) rather than failing
+ * on the first PRESENT that leaves it out.
+ *
+ * The maps are shared, so they must not be changed.
+ *
+ * @since 0.3.0
+ */
+public final class MachineMetadata {
+
+    /** {@value BAD_DEFAULT} */
+    static final String BAD_DEFAULT = "Method '%s' of %s has an optional @Parameter with a bad default. %s";
+
+    /** Class : its metadata, computed on first use */
+    private static final ClassValue<MachineMetadata> REGISTRY = new ClassValue<MachineMetadata>() {
+        @Override
+        protected MachineMetadata computeValue(Class<?> c) { return new MachineMetadata(c); }
+    };
+
+    /** Method name : its MethodData, for each OPI command the class implements */
+    private final HashMap<String, MethodData> methods = new HashMap<String, MethodData>();
+    /** Enum class name : lower case names of its values, for the enums used by @Parameters */
+    private final HashMap<String, List<String>> enums = new HashMap<String, List<String>>();
+    /** The parameters of each method in methods : their plan */
+    private final IdentityHashMap<HashSet<Parameter>, ValidationPlan> plans = new IdentityHashMap<HashSet<Parameter>, ValidationPlan>();
+
+    /**
+     * The metadata of a machine class.
+     *
+     * @param c The class, eg Echo.class
+     * @return Its metadata (the same object for every call with c)
+     *
+     * @since 0.3.0
+     */
+    public static MachineMetadata of(Class<?> c) { return REGISTRY.get(c); }
+
+    private MachineMetadata(Class<?> c) {
+            // OPI commands are the public methods named for a Command
+        HashSet<String> commands = new HashSet<String>();
+        for (Command command : Command.values())
+            commands.add(command.methodName());
+
+        for (Method method : c.getMethods()) {
+            if (!commands.contains(method.getName()))
+                continue;
+            @SuppressWarnings("unchecked")
+            HashSet<Parameter> ps = (HashSet<Parameter>) OpiMachine.getAllAnnotations(c, method, Parameter.class);
+            @SuppressWarnings("unchecked")
+            HashSet<ReturnMsg> rms = (HashSet<ReturnMsg>) OpiMachine.getAllAnnotations(c, method, ReturnMsg.class);
+            MethodData md = new MethodData(method, ps, rms, OpiMachine.bind(method));
+            methods.put(method.getName(), md);
+            try {
+                plans.put(ps, new ValidationPlan(ps));
+            } catch (JsonSyntaxException e) {
+                throw new IllegalArgumentException(String.format(BAD_DEFAULT, method.getName(), c.getName(), e.getMessage()), e);
+            }
+
+            for (Parameter p : ps)
+                if (p.className().isEnum() && !enums.containsKey(p.className().getName())) {
+                    ArrayList<String> names = new ArrayList<String>();
+                    for (Object e : p.className().getEnumConstants())
+                        names.add(((Enum<?>) e).name().toLowerCase());
+                    enums.put(p.className().getName(), List.copyOf(names));
+                }
+        }
+    }
+
+    /** @return Method name : MethodData for each OPI command of the class (do not change) */
+    public HashMap<String, MethodData> methods() { return methods; }
+
+    /** @return Enum class name : lower case names of its values (do not change) */
+    public HashMap<String, List<String>> enums() { return enums; }
+
+    /**
+     * The plan for a set of parameters, if it is the parameters of one of the methods.
+     *
+     * @param parameters The parameters field of one of the methods' MethodData
+     * @return The plan, or null if parameters is not from a MethodData of this class
+     *
+     * @since 0.3.0
+     */
+    public ValidationPlan plan(HashSet<Parameter> parameters) { return plans.get(parameters); }
+
+    public String toString() {
+        return "MachineMetadata: " + methods.keySet() + " enums " + enums.keySet();
+    }
+}
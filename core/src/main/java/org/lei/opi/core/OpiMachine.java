@@ -1,26 +1,34 @@
 package org.lei.opi.core;
 
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.DataInputStream;
-import java.io.PrintWriter;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import java.lang.annotation.Annotation;
 
@@ -32,9 +40,9 @@ import org.lei.opi.core.definitions.VFCanvas;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
-import java.lang.reflect.Type;
 
 import javafx.scene.Scene;
 import javafx.scene.Node;
@@ -51,8 +59,8 @@ import javafx.scene.text.Font;
 
 /**
  * The OPI machine standard for communication with perimeters.
- * It implements the process() function of Listener to
- * dispatch the 5 standard methods (Initialize, Setup, Query, Present, Close)
+ * It is the {@link OpiListener.Handler} of a Listener: its processPairs() function
+ * dispatches the 5 standard methods (Initialize, Setup, Query, Present, Close)
  * to the appropriate abstract method which is then implemented in 
  * a machine specific way by the implementing classes.
  * 
@@ -61,12 +69,12 @@ import javafx.scene.text.Font;
  *
  * @since 0.0.1
  */
-public abstract class OpiMachine {
+public abstract class OpiMachine implements OpiListener.Handler {
 
     /** {@value BAD_COMMAND} */
     static final String BAD_COMMAND = "Cannot find command '%s' in %s.";
     /** {@value MISSING_PARAMETER} */
-    static final String MISSING_PARAMETER = "Parameter '%s' is missing for function '%s' in %s.";
+    static final String MISSING_PARAMETER = ArgsCodec.MISSING_PARAMETER;
     /** {@value BAD_DEFAULT} */
     static final String BAD_DEFAULT = "Default value for '%s' in %s is not valid JSON for the parameter type.";
     /** {@value BAD_TYPE} */
@@ -74,23 +82,25 @@ public abstract class OpiMachine {
     /** {@value BAD_TYPE2} */
     static final String BAD_TYPE2 = "I cannot convert the value for parameter '%s' in %s to the class %s in %s.";
     /** {@value NOT_LIST} */
-    static final String NOT_LIST = "Parameter '%s' should be a non-empty list but it is not for function '%s' in %s.";
+    static final String NOT_LIST = ArgsCodec.NOT_LIST;
     /** {@value NOT_LIST_OF_LIST} */
-    static final String NOT_LIST_OF_LIST = "Parameter '%s' should be a non-empty list of non-empty lists but it is not for function '%s' in %s.";
+    static final String NOT_LIST_OF_LIST = ArgsCodec.NOT_LIST_OF_LIST;
     /** {@value YES_LIST} */
-    static final String YES_LIST = "Parameter '%s' should not be a list but it is for function '%s' in %s.";
+    static final String YES_LIST = ArgsCodec.YES_LIST;
     /** {@value NOT_IN_ENUM} */
-    static final String NOT_IN_ENUM = "I cannot find the value you gave for '%s' in enum type '%s' in function '%s' in %s.";
+    static final String NOT_IN_ENUM = ArgsCodec.NOT_IN_ENUM;
     /** {@value NOT_DOUBLE} */
-    static final String NOT_A_DOUBLE = "Parameter '%s' in function '%s' of '%s' is not double.";
+    static final String NOT_A_DOUBLE = ArgsCodec.NOT_A_DOUBLE;
     /** {@value NOT_AN_INTEGER} */
-    static final String NOT_AN_INTEGER = "Parameter '%s' in function '%s' of '%s' is not integer.";
+    static final String NOT_AN_INTEGER = ArgsCodec.NOT_AN_INTEGER;
     /** {@value NOT_A_STRING} */
-    static final String NOT_A_STRING = "Parameter '%s' in function '%s' of '%s' should be a String.";
+    static final String NOT_A_STRING = ArgsCodec.NOT_A_STRING;
+    /** {@value CANNOT_BIND} */
+    static final String CANNOT_BIND = "Cannot make a handle for the OPI command method %s.";
     /** {@value INVOCATION_FAILED} */
     static final String INVOCATION_FAILED = "Cannot invoke '%s' in '%s'. Either the annotation with parameters is incorrect or the method failed";
     /** {@value NOT_DOUBLE} */
-    static final String OUT_OF_RANGE = "Parameter '%s' in function '%s' of '%s' is not in range [%s, %s]. It is %s.";
+    static final String OUT_OF_RANGE = ArgsCodec.OUT_OF_RANGE;
     /** {@value NOT_INITIALIZED} */
     static final String NOT_INITIALIZED = "OPI machine has not yet been initialized";
     /** {@value COULD_NOT_INITIALIZE} */
@@ -113,6 +123,22 @@ public abstract class OpiMachine {
     static final String CONNECTED_TO_HOST = "Connected to host at %s:%s";
     /** {@value DISCONNECTED_FROM_HOST} */
     static final String DISCONNECTED_FROM_HOST = "Disconnected from Machine";
+    /** {@value NOT_A_PRESENTATION} */
+    static final String NOT_A_PRESENTATION = "Element %s of 'presentations' is not a list of present() parameters.";
+    /** {@value BATCH_FAILED} */
+    static final String BATCH_FAILED = "Presentation %s of the batch failed: %s";
+    /** {@value NOT_A_TEMPLATE} */
+    static final String NOT_A_TEMPLATE = "Element %s of 'templates' is not a list of present() parameters.";
+    /** {@value TEMPLATE_FAILED} */
+    static final String TEMPLATE_FAILED = "Template %s of the program is not valid for present(): %s";
+    /** {@value UNKNOWN_PROGRAM} */
+    static final String UNKNOWN_PROGRAM = "There is no program '%s'. Call opiDefineProgram first.";
+    /** {@value NO_TEMPLATE} */
+    static final String NO_TEMPLATE = "Program '%s' has no template %s.";
+    /** {@value NOT_OVERRIDABLE} */
+    static final String NOT_OVERRIDABLE = "Only %s can be given with a template, not '%s'.";
+    /** Parameters of present() that may be given with a template to change them for one presentation */
+    static final List<String> OVERRIDABLE = List.of("lum", "w");
   
     /** {@value SETTINGS_FILE} located in System.getProperty("user.dir") */
     static final String SETTINGS_FILE = "opi_settings.json";
@@ -139,8 +165,38 @@ public abstract class OpiMachine {
 
     /** Connection to the real machine */
     protected Socket socket;
-    protected DataInputStream incoming;
-    protected PrintWriter outgoing;
+    /** Replies from the real machine, buffered */
+    protected MessageReader incoming;
+    /** Commands to the real machine, as UTF-8 lines or frames, buffered */
+    protected DataOutputStream outgoing;
+    /** True if the connection uses length-prefixed {@link Framing} rather than \n terminated lines */
+    protected boolean framed = false;
+    /** Reused for every frame received */
+    private final Framing.Frame frame = new Framing.Frame();
+
+    /** 
+     * A command sent with {@link #sendAsync} that is waiting for its reply.
+     * @param message The command as sent (UTF-8 JSON with its id), in case it has to be sent again after {@link #reattach()}
+     * @param future Completed with the reply
+     * @param partial Given any streamed results (see {@link #isStreamedResult}) before the reply, or null
+     */
+    private record PendingReply(byte[] message, CompletableFuture<Packet> future, Consumer<Packet> partial) { ; }
+    /** Commands waiting for replies, keyed by the id sent with them. Also the lock for sending. */
+    private final ConcurrentHashMap<String, PendingReply> pending = new ConcurrentHashMap<String, PendingReply>();
+    /** Ids in pending in the order they were sent, for servers that reply in order without ids */
+    private final ConcurrentLinkedQueue<String> pendingOrder = new ConcurrentLinkedQueue<String>();
+    /** Source of ids for {@link #sendAsync} */
+    private final AtomicLong nextId = new AtomicLong();
+    /** Task that reads all replies once {@link #sendAsync} has been used (null if not running) */
+    private Future<?> replyReader = null;
+    /** Background work of this machine (reading replies, eye image viewers). Cancelled by {@link #closeSocket()} */
+    protected final OpiExecutor tasks = new OpiExecutor(getClass().getSimpleName());
+    /** Rolling RTT and clock offset to the server, from {@link #probeLatency()} */
+    protected final LatencyProbe latency = new LatencyProbe();
+    /** Programs from {@link #defineProgram}: name : its templates, each the validated parameters of a present() */
+    protected final ConcurrentHashMap<String, List<HashMap<String, Object>>> programs = new ConcurrentHashMap<String, List<HashMap<String, Object>>>();
+    /** Checks of the parameters of present() that a template can change (made on first use by {@link #fromTemplate}) */
+    private volatile ValidationPlan overridePlan = null;
 
     /** 
      * The beginnings of machine specific settings. 
@@ -163,32 +219,22 @@ public abstract class OpiMachine {
 
   /**
    * Read in whole settings Json to a HashMap keyed by machine name.
+   * The file is read once and then whenever it changes (see {@link SettingsCache}), so this does no disk I/O.
    *
-   * @return HashMap keyed by machine name with Settings Objects as values.
+   * @return HashMap keyed by machine name with Settings Objects as values (a new map, its values must not be changed)
    */
     public static HashMap<String, Object> readSettingsFile() throws FileNotFoundException {
-        String fp = System.getProperty("user.dir") + File.separator + SETTINGS_FILE;
-        try {
-            // Get default settings
-            String s = Files.readString(Path.of(fp), StandardCharsets.UTF_8);
-            return settings_gson.fromJson(s, new TypeToken<HashMap<String, Object>>() {}.getType());
-        } catch (IOException | AssertionError e) {
-            System.out.println("Could not read settings file " + fp);
-        }
-        return new HashMap<String, Object>();  // empty HashMap on error
+        return new HashMap<String, Object>(SettingsCache.shared().snapshot().map());
     }
 
     /**
-     * Write the HashMap keyed by machine name as Json to {@link SETTINGS_FILE}.
+     * Write the HashMap keyed by machine name as Json to {@link SETTINGS_FILE}, atomically (see {@link SettingsCache#save}).
      *
      * @param map HashMap keyed by machine name with Settings Objects as values.
      */
       public static void writeSettingsFile( HashMap<String, Object> map) {
-          String fp = System.getProperty("user.dir") + "/" + SETTINGS_FILE;
           try {
-              FileWriter fw = new FileWriter(fp);
-              fw.write(settings_gson.toJson(map));
-              fw.close();
+              SettingsCache.shared().save(map);
           } catch (IOException e) {
               System.out.println("Could not write settings file.");
               e.printStackTrace();
@@ -196,25 +242,19 @@ public abstract class OpiMachine {
       }
   
     /**
-     * Create a {@link Settings} class cls with values from the {@value SETTINGS_FILE}.
+     * Create a {@link Settings} class cls with values from the {@value SETTINGS_FILE}
+     * (as it is in the {@link SettingsCache}, so without reading the file).
      * 
      * @param machineName Short name of an OpiMachine subclass which has a {@link Settings} inner class
      * @return A {@link Settings} object of type cls with values from {@value SETTINGS_FILE}.
       Class<? extends Settings> cls) {
      */
     public static Object fillSettings(String machineName) {
-        HashMap<String, Object> settingsMap = null;
-        try {
-          settingsMap = OpiMachine.readSettingsFile();
-        } catch (FileNotFoundException e) {
-          System.out.println("Cannot open settings file");
-          return null;
-        }
-        if (settingsMap.containsKey(machineName)) {
-            String j = settings_gson.toJson(settingsMap.get(machineName));
+        SettingsCache.Snapshot settings = SettingsCache.shared().snapshot();
+        if (settings.contains(machineName)) {
             try {
                 Class<?> cls = Class.forName("org.lei.opi.core."  + machineName + "$Settings");
-                return settings_gson.fromJson(j, cls);
+                return settings.get(machineName, cls);
             } catch (ClassNotFoundException e) {
                 System.out.println("Cannot find class " + "org.lei.opi.core."  + machineName + "$Settings");
                 return null;
@@ -226,45 +266,161 @@ public abstract class OpiMachine {
   
     /**
      * Class to hold information of the 5 key OPI methods ready for use.
-     * Should be set in the constructor
+     * Worked out once per machine class by {@link MachineMetadata}
      * 
      * @param method An invokable method for one of the 5 OPI commands
      * @param parameters The @Parameter notations for that method (including all superclasses)
+     * @param returnMsgs The @ReturnMsg notations for that method (including all superclasses)
+     * @param handle method as (OpiMachine, HashMap) -> Packet, whether or not it takes the HashMap (see {@link #bind})
      */
-    public record MethodData(Method method, HashSet<Parameter> parameters, HashSet<ReturnMsg> returnMsgs) {};
+    public record MethodData(Method method, HashSet<Parameter> parameters, HashSet<ReturnMsg> returnMsgs, MethodHandle handle) {};
         /** The methods of the OpiMachine */
     public HashMap<String, MethodData> opiMethods;
 
+    /**
+     * Create a Packet containing msg if it contains all of the ReturnMsg keys 
+     * for `commandName` of `machineClass`.
+     *
+     * @param msg A valid JSON string representing an Object (presumably a OpiMachine subclass that gave rise to `methods`  )
+     * @param methods The opiMethods hashmap from the OpiMachine class that is creating the packet
+     *
+     * @return New packet that either has error=false and contains msg, or 
+     *         error-true and msg has missing ReturnMsgs.
+     */
+    public static Packet checkReturnElements(String msg, HashMap<String, MethodData> methods, String commandName) {
+        String missing = missingReturnElement(OpiListener.gson.fromJson(msg, JsonElement.class), methods, commandName);
+        if (missing != null)
+            return new Packet(true, false, missing);
+        return new Packet(false, false, msg);
+    }
+
+    /** @return null if je has all of the ReturnMsg keys of commandName, otherwise a description of the missing one */
+    private static String missingReturnElement(JsonElement je, HashMap<String, MethodData> methods, String commandName) {
+        assert(methods.containsKey(commandName));
+        HashSet<ReturnMsg> rms = methods.get(commandName).returnMsgs();
+
+        if (je.isJsonPrimitive() && rms.size() == 0)
+            return null;
+
+        assert(je.isJsonObject());
+        JsonObject jo = je.getAsJsonObject();
+        for (ReturnMsg rm : rms) {
+            if (!jo.has(rm.name()))
+                return "Missing return field: " + rm.name() + " for command " + commandName;
+        }
+        return null;
+    }
+
+    public static Packet checkReturnElements(Object obj, HashMap<String, MethodData> methods, String commandName) {
+        return checkReturnElements(OpiListener.gson.toJson(obj), methods, commandName);
+    }
+
+    /**
+     * Create if packet.msg contains all of the ReturnMsg keys 
+     * for `commandName` of `machineClass`.
+     *
+     * @param packet A packet to check
+     * @param methods The opiMethods hashmap from the OpiMachine class that is creating the packet
+     *
+     * @return New packet that either has error=false and contains msg, or 
+     *         error-true and msg has missing ReturnMsgs.
+     */
+    public static Packet checkReturnElements(Packet packet, HashMap<String, MethodData> methods, String commandName) {
+        if (packet.getError())
+            return packet;
+
+        String missing = missingReturnElement(packet.getMsgTree(), methods, commandName);   // no need to encode and parse msg again
+        if (missing == null)
+            return packet;
+        else 
+            return new Packet(true, false, missing);
+    }
+
     /**
      * Return all @Parameter or @ReturnMsg annotations for method `method` in the 
      * chain of classes from c, c.super(), c.super.super.... up to Object.
-     * I think...elements in the returned set will not be unique by parameter.name.
-     *    (So subclass @Parameters do not overwrite super class @Parameters).
+     * Elements are unique by name, and a subclass comes first so
+     * its @Parameters overwrite super class @Parameters of the same name.
      * 
      * @param c Class at which to begin looking for @Parameter annotations on method
      * @param method Method to look for in c and all superclasses of c
      * @param annotation Type of annotation to get (ParameterType or ReturnMsg)
-     * @return HashSet of all @Parameter and @ReturnMsg annotations (unique by name)
+     * @return HashSet of all @Parameter and @ReturnMsg annotations (unique by name, subclass first)
      */
     public static HashSet<? extends Annotation> getAllAnnotations(Class<?> c, final Method method, final Class<? extends Annotation> annotation) {
-        HashSet<Annotation> annotations = new HashSet<Annotation>();
+        LinkedHashMap<Object, Annotation> annotations = new LinkedHashMap<Object, Annotation>();
         while (c != null) {
             for (Method m : c.getMethods()) {
-                if (m.getName() == method.getName()) {
-                    for (Annotation p : m.getAnnotationsByType(annotation))
-                        annotations.add(p);
+                if (m.getName().equals(method.getName())) {
+                    for (Annotation a : m.getAnnotationsByType(annotation))
+                        annotations.putIfAbsent(a instanceof Parameter p ? p.name() : a instanceof ReturnMsg r ? r.name() : a, a);
                 }
             }
             c = c.getSuperclass();  // go up to parent
         }
-        return(annotations);
+        return new LinkedHashSet<Annotation>(annotations.values());
     }   
 
         /** Enum class : enum values defined in the implementing class */
     public HashMap<String, List<String>> enums; 
+
+        /** The annotations of this class (shared by all machines of the class) */
+    private final MachineMetadata metadata;
   
+        /** Method name : calls and timings of that command, recorded if {@link #recordStats} */
+    private final HashMap<String, CommandStats> commandStats = new HashMap<String, CommandStats>();
+        /** True to record calls of each command in commandStats */
+    private volatile boolean recordStats = false;
+
     /**
-     * Set the information about the 5 OPI methods in opiMethods
+     * Make a handle that calls an OPI command method as (OpiMachine, HashMap) -> Packet,
+     * dropping the HashMap if the method does not take one, so that every command is
+     * called the same way with invokeExact (which the JIT can inline, unlike Method.invoke).
+     *
+     * @param method The public method of an OpiMachine that implements a command
+     * @return The handle
+     * @throws IllegalArgumentException If method cannot be called like that
+     *
+     * @since 0.3.0
+     */
+    static MethodHandle bind(Method method) {
+        MethodHandle h;
+        try {
+            h = MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException e) {  // eg a public method of a class that is not
+            method.setAccessible(true);
+            try {
+                h = MethodHandles.lookup().unreflect(method);
+            } catch (IllegalAccessException e2) {
+                throw new IllegalArgumentException(String.format(CANNOT_BIND, method), e2);
+            }
+        }
+        if (method.getParameterCount() == 0)
+            h = MethodHandles.dropArguments(h, 1, HashMap.class);
+        return h.asType(MethodType.methodType(Packet.class, OpiMachine.class, HashMap.class));
+    }
+
+    /**
+     * Turn recording of calls to each command (see {@link #getCommandStats()}) on or off.
+     *
+     * @param on True to record
+     *
+     * @since 0.3.0
+     */
+    public void setCommandStats(boolean on) { recordStats = on; }
+
+    /**
+     * Calls and timings of each command made through {@link #processPairs}, 
+     * while {@link #setCommandStats(boolean)} is on.
+     *
+     * @return Method name : its stats
+     *
+     * @since 0.3.0
+     */
+    public Map<String, CommandStats> getCommandStats() { return Collections.unmodifiableMap(commandStats); }
+
+    /**
+     * Set the information about the OPI methods in opiMethods (from {@link MachineMetadata})
      * 
      * @param parentScene the parent Scene to which the GUI will return when this machine is closed.
      *
@@ -277,33 +433,12 @@ public abstract class OpiMachine {
         this.parentScene = parentScene;
         this.socket = null;
       
-        // Select the OPI commands which must also be the method names in the implementing class.
-        String[] commands = Arrays.stream(OpiListener.Command.values())
-          .map(Enum::name).map(String::toLowerCase).toArray(String[]::new);
-      
-        Method[] methods = Arrays.stream(this.getClass().getMethods())
-          .filter((Method m) -> Arrays.stream(commands).anyMatch(m.getName()::equals)).toArray(Method[]::new);
-      
-        // Get OpiMachine and machine-dependent parameters through annotations
-        opiMethods = new HashMap<String, MethodData>();
-        for (Method method : methods) {
-            HashSet<Parameter> ps = (HashSet<Parameter>)getAllAnnotations(this.getClass(), method, Parameter.class);
-            HashSet<ReturnMsg> rms = (HashSet<ReturnMsg>)getAllAnnotations(this.getClass(), method, ReturnMsg.class);
-
-            //HashSet<Parameter> params = getAllParameterAnnotations(this.getClass(), method, Parameter.getAnnotationsByType(Parameter.class));
-            opiMethods.put(method.getName(), new MethodData(method, ps, rms));
-        }
-
-            // gather all the ENUMS used in Parameter annotations for all methods in this class
-        enums = new HashMap<String, List<String>>();    
-        HashSet<Class<?>> enumClasses = new HashSet<Class<?>>();
-        for (String methodName : opiMethods.keySet())
-            for (Parameter p : opiMethods.get(methodName).parameters())
-                if (p.className().isEnum())
-                    enumClasses.add(p.className());
-
-        for (Class<?> e : enumClasses)
-            enums.put(e.getName(), Stream.of(e.getEnumConstants()).map(Enum.class::cast).map(c -> c.name().toLowerCase()).toList());
+        // The OPI command methods, their annotations and the enums they use, shared by all machines of this class
+        metadata = MachineMetadata.of(this.getClass());
+        opiMethods = metadata.methods();
+        enums = metadata.enums();
+        for (String name : opiMethods.keySet())
+            commandStats.put(name, new CommandStats(name));
     }
 
     /*
@@ -315,37 +450,313 @@ public abstract class OpiMachine {
     public boolean connect(String ip, int port) {
         try {
             this.socket = new Socket(ip, port);
-            this.incoming = new DataInputStream(socket.getInputStream());
-            this.outgoing = new PrintWriter(socket.getOutputStream());
+            this.incoming = new MessageReader(socket.getInputStream());
+            this.outgoing = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.framed = false;
         } catch (IOException e) {
             System.out.println(e.getStackTrace());
             return false;
         }
         return true;
     }
+
+    /*
+     * Establish socket connection to ip:port and, if useFrames, ask the server to
+     * switch to length-prefixed frames (see {@link Framing}). If the server does not 
+     * understand frames the connection stays with \n terminated lines.
+     * @param ip String TCP/IP address
+     * @param port integer TCP/IP port number
+     * @param useFrames true to ask for frames
+     * @return true if successful false otherwise
+     */
+    public boolean connect(String ip, int port, boolean useFrames) {
+        if (!connect(ip, port))
+            return false;
+        if (useFrames) {
+            try {
+                send(Framing.PREAMBLE);
+                this.framed = Framing.PREAMBLE.equals(readline());
+                if (!this.framed)
+                    System.out.println("Server at " + ip + ":" + port + " does not use frames, staying with lines.");
+            } catch (IOException e) {
+                System.out.println(e);
+                return false;
+            }
+        }
+        return true;
+    }
       
     /**
      * Send JSON message to socket
      * Strip any internal \n in the string as a \n terminates the message.
+     * If the connection is framed, send it unaltered as one frame.
      *
      * @param message The message to send
      * @throws IOException If socket cannot be accessed
      * @since 0.2.0
      */
     void send(String message) throws IOException {
-        String m = message.replace("\n", "") + "\n";
-        outgoing.write(m);
+        send((framed ? message : message.replace("\n", "")).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send an encoded JSON message (UTF-8, without \n) to socket as a line, or as one frame if the connection is framed.
+     *
+     * @param message The message to send
+     * @throws IOException If socket cannot be accessed
+     * @since 0.3.0
+     */
+    void send(byte[] message) throws IOException {
+        if (framed) {
+            Framing.write(outgoing, message, message.length, Framing.TYPE_JSON, Framing.NO_FLAGS);
+            return;
+        }
+        outgoing.write(message);
+        outgoing.write('\n');
         outgoing.flush();
     }
      
     /**
-    * Receive Packet as a UTF-8 \n terminated JSON string from server
+     * Send a JSON command with a fresh 'id' and return at once. The reply, matched by id, 
+     * completes the future, so several commands can be in flight and their replies can come 
+     * back in any order. A reply without an id (from a server that does not use ids) is 
+     * taken to be for the oldest command still waiting.
+     *
+     * Once this has been used all replies are read by a background thread, so do not
+     * mix it with {@link #receive()}; use {@link #request} for synchronous commands.
+     *
+     * @param message A JSON object (without an 'id')
+     * @return Completes with the reply, or exceptionally if the connection fails first
+     * @throws IOException If the command cannot be sent
+     *
+     * @since 0.3.0
+     */
+    public CompletableFuture<Packet> sendAsync(String message) throws IOException {
+        return sendAsync(message, null);
+    }
+
+    /**
+     * As {@link #sendAsync(String)} but results streamed before the reply (eg from 
+     * {@link #presentBatch} with stream = 1) are given to `partial` as they arrive.
+     *
+     * @param message A JSON object (without an 'id')
+     * @param partial Receives each streamed result, or null to treat the first packet as the reply
+     * @return Completes with the reply, or exceptionally if the connection fails first
+     * @throws IOException If the command cannot be sent
+     *
+     * @since 0.3.0
+     */
+    public CompletableFuture<Packet> sendAsync(String message, Consumer<Packet> partial) throws IOException {
+        return sendAsync((String id) -> withId(message, id).getBytes(StandardCharsets.UTF_8), partial);
+    }
+
+    /**
+     * As {@link #sendAsync(String, Consumer)} for validated arguments, which are encoded
+     * once, with 'command' first and the id, straight into the bytes that are sent.
+     *
+     * @param args The arguments (including 'command') from {@link #validateArgs}
+     * @param partial Receives each streamed result, or null to treat the first packet as the reply
+     * @return Completes with the reply, or exceptionally if the connection fails first
+     * @throws IOException If the command cannot be sent
+     *
+     * @since 0.3.0
+     */
+    public CompletableFuture<Packet> sendAsync(ValidArgs args, Consumer<Packet> partial) throws IOException {
+        return sendAsync(args::encode, partial);
+    }
+
+    /** Send the command that encoder makes for a fresh id, recording it as pending */
+    private CompletableFuture<Packet> sendAsync(Function<String, byte[]> encoder, Consumer<Packet> partial) throws IOException {
+        String id = Long.toString(nextId.incrementAndGet());
+        PendingReply reply = new PendingReply(encoder.apply(id), new CompletableFuture<Packet>(), partial);
+        synchronized (pending) {
+            pending.put(id, reply);
+            pendingOrder.add(id);
+            if (replyReader == null)
+                replyReader = tasks.submit(this::readReplies);
+            try {
+                send(reply.message());
+            } catch (IOException e) {
+                pending.remove(id);
+                pendingOrder.remove(id);
+                throw e;
+            }
+        }
+        return reply.future();
+    }
+
+    /**
+     * Send a JSON command and wait for its reply (via {@link #sendAsync}).
+     *
+     * @param message A JSON object (without an 'id')
+     * @return The reply
+     * @throws IOException If the command cannot be sent or the connection fails before the reply
+     *
+     * @since 0.3.0
+     */
+    Packet request(String message) throws IOException {
+        return await(sendAsync(message));
+    }
+
+    /**
+     * Send validated arguments as a command and wait for its reply (via {@link #sendAsync(ValidArgs, Consumer)}).
+     *
+     * @param args The arguments (including 'command') from {@link #validateArgs}
+     * @return The reply
+     * @throws IOException If the command cannot be sent or the connection fails before the reply
+     *
+     * @since 0.3.0
+     */
+    Packet request(ValidArgs args) throws IOException {
+        return await(sendAsync(args, null));
+    }
+
+    /**
+     * Send an argument record as a command and wait for its reply, encoding it straight into
+     * the bytes that are sent (see {@link ArgsCodec#encode}).
+     *
+     * @param args The arguments, eg read by {@link JovpSetupArgs#read}
+     * @param command The command
+     * @return The reply
+     * @throws IOException If the command cannot be sent or the connection fails before the reply
+     *
+     * @since 0.3.0
+     */
+    Packet request(ArgsCodec.Args args, Command command) throws IOException {
+        return await(sendAsync((String id) -> ArgsCodec.encode(args, id, command.toString()), null));
+    }
+
+    /**
+     * Wait for a reply from {@link #sendAsync}.
+     *
+     * @param future As returned by sendAsync
+     * @return The reply
+     * @throws IOException If the connection failed before the reply or we were interrupted
+     *
+     * @since 0.3.0
+     */
+    static Packet await(CompletableFuture<Packet> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    /** @return message (a JSON object) with "id":"id" added as its first field, where the listener looks for it */
+    private static String withId(String message, String id) {
+        String rest = message.substring(message.indexOf('{') + 1).trim();
+        return "{\"id\":\"" + id + "\"" + (rest.startsWith("}") ? "" : ",") + rest;
+    }
+
+    /** 
+     * Read replies and complete the matching futures until the connection fails and 
+     * cannot be reattached (see {@link #reattach()}), then fail anything still waiting. 
+     * Runs as the replyReader task.
+     */
+    private void readReplies() {
+        for (;;) {
+            try {
+                for (;;)
+                    deliver(receive());
+            } catch (IOException | RuntimeException e) {
+                synchronized (pending) {
+                    if (e instanceof IOException && !Thread.currentThread().isInterrupted() && reattach())
+                        continue;
+                    for (PendingReply reply : pending.values())
+                        reply.future().completeExceptionally(e);
+                    pending.clear();
+                    pendingOrder.clear();
+                    replyReader = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Complete the future of the command that p is the reply to (matched by id, or the oldest 
+     * waiting command if p has no id), or give p to its partial consumer if it is a streamed result.
+     *
+     * @param p A packet received from the server
+     *
+     * @since 0.3.0
+     */
+    protected void deliver(Packet p) {
+        String id = p.getId() != null ? p.getId().getAsString() : pendingOrder.peek();
+        PendingReply reply = id == null ? null : pending.get(id);
+        if (reply == null) {
+            System.out.println(getClass().getSimpleName() + " dropping reply to no command: " + p);
+            return;
+        }
+        if (reply.partial() != null && isStreamedResult(p)) {
+            reply.partial().accept(p);
+            return;
+        }
+        pending.remove(id);
+        pendingOrder.remove(id);
+        reply.future().complete(p);
+    }
+
+    /**
+     * Called on the reply reader, holding the send lock, when the connection to the server fails.
+     * A machine whose server can take a new connection in place of the old one (see RESUME)
+     * overrides this to reconnect, {@link #deliver} any replies the server kept for it
+     * and {@link #resend} the commands the server never got. 
+     * This default gives up, so every command still waiting fails.
+     *
+     * @return true if reconnected, in which case the waiting commands keep waiting
+     *
+     * @since 0.3.0
+     */
+    protected boolean reattach() { return false; }
+
+    /** @return The ids of the commands sent with {@link #sendAsync} that are still waiting, oldest first */
+    protected List<String> pendingIds() { return new ArrayList<String>(pendingOrder); }
+
+    /**
+     * Send a waiting command again, with the same id (eg after {@link #reattach()}).
+     *
+     * @param id The id from {@link #pendingIds()}
+     * @throws IOException If it cannot be sent
+     *
+     * @since 0.3.0
+     */
+    protected void resend(String id) throws IOException {
+        PendingReply reply = pending.get(id);
+        if (reply != null)
+            send(reply.message());
+    }
+
+    /**
+     * @param p A packet received from a server
+     * @return true if p is one streamed presentBatch() result rather than a final reply
+     *
+     * @since 0.3.0
+     */
+    public static boolean isStreamedResult(Packet p) {
+        if (p.getError())
+            return false;
+        JsonElement msg = p.getMsgTree();
+        return msg != null && msg.isJsonObject() && msg.getAsJsonObject().has(OpiListener.BATCH_INDEX);
+    }
+
+    /**
+    * Receive Packet as a UTF-8 \n terminated JSON string (or one frame) from server
     * @return The message received in a Packet
     * @throws IOException If socket cannot be accessed
     * @since 0.2.0
     */
     Packet receive() throws IOException {
-        String str = this.readline();
+        String str;
+        if (framed) {
+            incoming.readFrame(frame);
+            str = frame.text(StandardCharsets.UTF_8);
+        } else
+            str = this.readline();
         return OpiListener.gson.fromJson(str, Packet.class);
     }
 
@@ -356,39 +767,20 @@ public abstract class OpiMachine {
     * @since 3.0.0
     */
     String readline() throws IOException {
-        byte bs[] = new byte[4];
-        StringBuffer str = new StringBuffer(128);
-        bs[0] = incoming.readByte();
-        while (bs[0] != '\n') {
-            if (bs[0] < 128)
-                str.append((char)bs[0]);
-            else if (bs[0] < 2048) {
-                bs[1] = incoming.readByte();
-                str.append(new String(Arrays.copyOfRange(bs, 0, 2), "UTF-8"));
-            } else if (bs[0] < 65535) {
-                bs[1] = incoming.readByte();
-                bs[2] = incoming.readByte();
-                str.append(new String(Arrays.copyOfRange(bs, 0, 3), "UTF-8"));
-            } else {
-                bs[1] = incoming.readByte();
-                bs[2] = incoming.readByte();
-                bs[3] = incoming.readByte();
-                str.append(new String(Arrays.copyOfRange(bs, 0, 4), "UTF-8"));
-            }
-            bs[0] = incoming.readByte();
-        }
-        return(str.toString());
+        return incoming.readLine();
     }
      
     /**
-    * Close socket
+    * Close socket and cancel the background tasks of this machine
     * @throws IOException If client cannot be closed
     * @since 0.2.0
     */
     void closeSocket() throws IOException {
+        tasks.cancelAll();   // first, so the reply reader knows not to reattach() when the socket goes
         incoming.close();
         outgoing.close();
         socket.close();
+        framed = false;
     }
   
     /*
@@ -420,6 +812,7 @@ public abstract class OpiMachine {
      * 
      * @since 0.0.1
      */
+    @Override
     public Packet processPairs(HashMap<String, Object> pairs) {
         /*
          * Processing consist of the following four steps:
@@ -428,60 +821,57 @@ public abstract class OpiMachine {
          *    (3) Then execute corresponding method
          */
 
-        // (1) find the command function
+        // (1) find the command function (eg "present_batch" is the method presentBatch)
         String funcName = (String) pairs.get("command");
-        MethodData methodData = opiMethods.get(funcName);
+        Command command = Command.find(funcName);
+        pairs.remove("id");   // belongs to the listener, not the method
+        MethodData methodData = opiMethods.get(command == null ? funcName : command.methodName());
         if (methodData == null)
             return Packet.error(String.format(BAD_COMMAND, funcName, this.getClass()));
 
         // (2) Check and add optional-default params
-        if (methodData.parameters != null) {
+        //     (leaving values as they would be read from JSON, without writing and reading them)
+        //     A present() of a template is the template's parameters, checked when it was defined, 
+        //     with only the values that change checked now
+        if (command == Command.PRESENT && pairs.containsKey(OpiListener.PROGRAM)) {
+            Packet p = fromTemplate(pairs);
+            if (p.getError())
+                return p;
+            pairs = ((ValidArgs) p.getPayload()).pairs();
+        } else if (methodData.parameters != null) {
             Packet p = validateArgs(pairs, methodData.parameters(), funcName);
             if (!p.getError())
-                pairs = (HashMap<String, Object>)gson.fromJson(p.getMsg(), new TypeToken<HashMap<String, Object>>() {}.getType());
+                pairs = ((ValidArgs) p.getPayload()).toJsonValues();
             else    
                 return(p);
         }
 
         // (3) execute method
+        boolean record = recordStats;
+        long start = record ? System.nanoTime() : 0;
+        Packet result;
         try {
-            Packet result = methodData.parameters().size() == 0
-              ? (Packet) methodData.method.invoke(this)
-              : (Packet) methodData.method.invoke(this, pairs);
-            return result;
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-            return Packet.error(String.format(INVOCATION_FAILED, funcName, this.getClass()), e);
+            result = (Packet) methodData.handle().invokeExact(this, pairs);
+        } catch (Exception e) {
+            result = Packet.error(String.format(INVOCATION_FAILED, funcName, this.getClass()), e);
+        } catch (Throwable t) {
+            result = Packet.error(String.format(INVOCATION_FAILED, funcName, this.getClass()), new InvocationTargetException(t));
         }
+        if (record)
+            commandStats.get(methodData.method().getName()).record(System.nanoTime() - start, result == null || result.getError());
+        return result;
     }
     
     /**
     * Build a java object from the default JSON string param
     * If the object is a list and it is shorter than `length`, add element 0 to the end until it is long enough.
+    * The JSON is only parsed the first time (see {@link DefaultValue}).
     *
     * @param param Parameter for which to get the default
     * @param length The length of a List or ListList that should be created, replicating the single default if necessary.
     */
     public static Object buildDefault(Parameter param, int length) throws ClassNotFoundException {
-        Type t = TypeToken.get(param.className()).getType();
-        if (param.isList()) {
-            t = TypeToken.getParameterized(ArrayList.class, param.className()).getType();
-        } else if (param.isListList()) {
-            t = TypeToken.getParameterized(ArrayList.class, ArrayList.class, param.className()).getType();
-        }
-
-        Object singleValue;
-        if (param.className() == String.class && param.defaultValue().length() == 0) // allow empty string as a default
-            singleValue = new String();
-        else
-            singleValue = OpiListener.gson.fromJson(param.defaultValue(), t);
-
-        if (param.isList() || param.isListList()) {
-            ArrayList<Object> a = (ArrayList<Object>)singleValue;
-            while (a.size() < length) 
-                a.add(a.get(0));
-            return a;
-        } else 
-            return singleValue;
+        return DefaultValue.of(param).build(length);
     }
 
     /** 
@@ -492,95 +882,28 @@ public abstract class OpiMachine {
     *      (3.1) Check p is of the right type (return error if not)
     *      (3.2) Check p is in range (return error if not)
     *
+    * The checks for the parameters of each method of this class are worked out once,
+    * in a {@link ValidationPlan}, so a call only walks the values in pairs.
+    *
     * @param pairs Hashmap with parameter names as keys and values as Objects. 
     * @param params @Parameter annotations for the method that is using pairs
     * @param funcName Function name for errors
     *
-    * @return Either a packet with error=false, msg=updated pairs object, or an error packet
+    * @return Either a packet with error=false, msg=updated pairs as {@link ValidArgs}, or an error packet
     *
     * @since 0.2.0
     */
     public Packet validateArgs(HashMap<String, Object> pairs, HashSet<Parameter> parameters, String funcName) {
-        for (Parameter param : parameters) {
-                // mandatory parameter not received
-            if (!pairs.containsKey(param.name()) && !param.optional())
-              return Packet.error(String.format(MISSING_PARAMETER, param.name(), funcName, this.getClass()));
-                // Optional parameter not here, add it in and go to next param
-                // (Note stim.length gets turned into a double by fromJSON)
-            if (!pairs.containsKey(param.name()) && param.optional()) {
-                try {
-                    Object defaultVal = OpiMachine.buildDefault(param, 
-                        pairs.containsKey("stim.length") ?  (int)Math.round((Double)pairs.get("stim.length")) : 1);
-                    pairs.put(param.name(), defaultVal);
-                } catch (JsonSyntaxException e){
-                    return Packet.error(String.format(BAD_DEFAULT, param.name(), funcName, this.getClass()));
-                } catch (ClassNotFoundException e) {
-                    return Packet.error(String.format(BAD_TYPE, param.name(), funcName, this.getClass()));
-                }
-                continue;
-            }
-
-                // Ok we've got a value; let's validate it
-            Object valueObj = pairs.get(param.name());
-
-                // things are lists when they should be check length of lists and list of lists
-            if ((param.isListList() || param.isList()) && (!(valueObj instanceof ArrayList) || ((ArrayList<?>) valueObj).size() == 0))
-                return Packet.error(String.format(NOT_LIST, param.name(), funcName, this.getClass()));
-            if (!(param.isListList() || param.isList()) && (valueObj instanceof ArrayList))
-                return Packet.error(String.format(YES_LIST, param.name(), funcName, this.getClass()));
-            if (param.isListList() &&
-                ((ArrayList<?>) valueObj).stream().anyMatch(val -> !(val instanceof ArrayList) || ((ArrayList<?>) val).size() == 0))
-                    return Packet.error(String.format(NOT_LIST_OF_LIST, param.name(), funcName, this.getClass()));
-
-                // For convenience, let's stick all types (list, listlist, not) into a simple list.
-                // so we can just iterate over it to check each element.
-            List<Object> pList;
-            if (param.isListList())
-                pList = (((ArrayList<?>) valueObj).stream().map(Object.class::cast)
-                                                           .toList()).stream()
-                                                                .map(vector -> (ArrayList<?>) vector)
-                                                                .flatMap(List::stream)
-                                                                .map(Object.class::cast)
-                                                                .toList();
-            else if (param.isList()) 
-                pList = ((ArrayList<?>) valueObj).stream().map(Object.class::cast).toList();
-            else
-                pList = Arrays.asList(valueObj);
-
-                // if param is an enum type, check all are valid
-                // Note added default params are already Enums so just need to check supplied strings
-            if (enums.containsKey(param.className().getName())) { // validate enums
-                List<String> enumVals = enums.get(param.className().getName());
-                Optional<Object> badOnes = pList.stream()
-                                           .filter(p -> !(p.getClass().isEnum()))
-                                           .filter(p -> !(p instanceof String) || !enumVals.stream().anyMatch(ss -> ss.contains(((String) p).toLowerCase())))
-                                           .findAny();
-                if (badOnes.isPresent())
-                    return Packet.error(String.format(NOT_IN_ENUM, param.name(), param.className(), funcName, this.getClass()));
-            } else if (param.className() == Double.class ||  param.className() == Integer.class) { // validate numbers
-                try {
-                    double minVal = Math.round(1e10 * param.min()) / 1e10; // avoid weird rounding problems
-                    double maxVal = Math.round(1e10 * param.max()) / 1e10;
-                    Optional<Double> result = pList.stream()
-                        .map((Object o) -> (Double)(((Number.class.cast(o)).doubleValue())))
-                        .filter((Double v) -> v.doubleValue() < minVal || v.doubleValue() > maxVal)
-                        .findAny();
-                    if (result.isPresent())
-                        return Packet.error(String.format(OUT_OF_RANGE, param.name(), funcName, this.getClass(), minVal, maxVal, result.get()));
-                } catch (ClassCastException e) {
-                    if (param.className() == Double.class)
-                        return Packet.error(String.format(NOT_A_DOUBLE, param.name(), funcName, this.getClass()));
-                    else
-                        return Packet.error(String.format(NOT_AN_INTEGER, param.name(), funcName, this.getClass()));
-                }
-            } else { // assume param is a String, then validate
-              Optional<Object> result = pList.stream().filter(v -> !(v instanceof String)).findAny();
-              if (result.isPresent())
-                return Packet.error(String.format(NOT_A_STRING, param.name(), funcName, this.getClass()));
+        ValidationPlan plan = metadata.plan(parameters);
+        if (plan == null) {   // not the parameters of one of our methods, so no plan yet
+            try {
+                plan = new ValidationPlan(parameters);
+            } catch (JsonSyntaxException e) {
+                return Packet.error(e.getMessage());
             }
-          }
-          return new Packet(pairs);
         }
+        return plan.validate(pairs, funcName, this.getClass());
+    }
   
     /**
      * opiInitialise: initialize OPI.
@@ -630,6 +953,185 @@ public abstract class OpiMachine {
     @ReturnMsg(name = "time", className = Double.class, desc = "Response time from stimulus onset if button pressed (ms).", min = 0)
     public abstract Packet present(HashMap<String, Object> args);
   
+    /**
+     * opiPresentBatch: Present a list of OPI stimuli back to back. 
+     * Each element of presentations is the name:value pairs for one call of {@link #present}, 
+     * and after each presentation (except the last) there is a pause of isi ms.
+     *
+     * This default runs the presentations one at a time through {@link #processPairs} so it works 
+     * for any machine. Machines that can run the whole batch themselves (eg {@link Jovp}) should 
+     * override it so the batch costs only one round trip.
+     *
+     * If stream is 1 and the command came from a client of an {@link OpiListener}, each result is 
+     * also sent to the client as soon as it is available as a Packet with msg 
+     * {"{@value OpiListener#BATCH_INDEX}": i, "{@value OpiListener#BATCH_RESULT}": result}, before the final reply.
+     *
+     * @param args pairs of argument name and value
+     *
+     * @return A Packet with msg {"{@value OpiListener#BATCH_RESULTS}": [result, ...]} or the first error
+     *
+     * @since 0.3.0
+     */
+    @Parameter(name = "presentations", className = Object.class, desc = "List of presentations, each a list of the parameters for opiPresent.", isList = true)
+    @Parameter(name = "isi", className = Double.class, desc = "List of inter-stimulus intervals (ms) after each presentation. The last value is used for any presentations beyond the end of the list.", isList = true, optional = true, min = 0, defaultValue = "[0]")
+    @Parameter(name = "stream", className = Integer.class, desc = "If 1, send each result as it completes as well as all of them at the end.", optional = true, min = 0, max = 1, defaultValue = "0")
+    @ReturnMsg(name = OpiListener.BATCH_RESULTS, className = Object.class, desc = "List of the results of opiPresent, one per presentation.", isList = true)
+    public Packet presentBatch(HashMap<String, Object> args) {
+        List<?> presentations = (List<?>) args.get("presentations");
+        double[] isi = ((List<?>) args.get("isi")).stream().mapToDouble(o -> ((Number) o).doubleValue()).toArray();
+        boolean stream = ((Number) args.get("stream")).intValue() == 1;
+        OpiSession session = OpiSession.current();
+
+        ArrayList<JsonElement> results = new ArrayList<JsonElement>(presentations.size());
+        for (int i = 0 ; i < presentations.size() ; i++) {
+            if (!(presentations.get(i) instanceof Map))
+                return Packet.error(String.format(NOT_A_PRESENTATION, i));
+            HashMap<String, Object> pairs = new HashMap<String, Object>((Map<String, Object>) presentations.get(i));
+            pairs.put("command", Command.PRESENT.methodName());
+
+            Packet p = processPairs(pairs);
+            if (p.getError())
+                return Packet.error(String.format(BATCH_FAILED, i, p.getMsg()));
+            JsonElement result = p.getMsgTree();
+            results.add(result);
+
+            if (stream && session != null)
+                session.send(new Packet(OpiListener.streamedResult(i, result)).withId(OpiSession.currentId()));
+
+            if (i < presentations.size() - 1)
+                try {
+                    Thread.sleep(Math.round(isi[Math.min(i, isi.length - 1)]));
+                } catch (InterruptedException e) {
+                    return Packet.error(String.format(BATCH_FAILED, i, "interrupted"), e);
+                }
+        }
+        HashMap<String, Object> msg = new HashMap<String, Object>();
+        msg.put(OpiListener.BATCH_RESULTS, results);
+        return new Packet(msg);
+    }
+
+    /**
+     * opiDefineProgram: Keep a named list of templates, each the parameters of a call of {@link #present},
+     * checked now so that later presentations of a template need not be. Defining a program again replaces it.
+     *
+     * A present() with the parameters {"{@value OpiListener#PROGRAM}": name, "{@value OpiListener#TEMPLATE}": i}
+     * then presents template i (from 0), with any of {@link #OVERRIDABLE} that it gives in place of the template's
+     * (see {@link #fromTemplate}). Machines that can keep the program themselves (eg {@link Jovp}) should override
+     * this to send it on as well, so a presentation need only send the template and the values that change.
+     *
+     * @param args pairs of argument name and value
+     *
+     * @return A Packet with msg {"{@value OpiListener#PROGRAM}": name, "{@value OpiListener#TEMPLATES}": number of templates} or the first error
+     *
+     * @since 0.3.0
+     */
+    @Parameter(name = OpiListener.PROGRAM, className = String.class, desc = "Name of the program.")
+    @Parameter(name = OpiListener.TEMPLATES, className = Object.class, desc = "List of templates, each a list of the parameters for opiPresent.", isList = true)
+    @ReturnMsg(name = OpiListener.PROGRAM, className = String.class, desc = "Name of the program.")
+    @ReturnMsg(name = OpiListener.TEMPLATES, className = Integer.class, desc = "Number of templates in the program.")
+    public Packet defineProgram(HashMap<String, Object> args) {
+        List<?> given = (List<?>) args.get(OpiListener.TEMPLATES);
+        ArrayList<HashMap<String, Object>> templates = new ArrayList<HashMap<String, Object>>(given.size());
+        for (int i = 0 ; i < given.size() ; i++) {
+            if (!(given.get(i) instanceof Map))
+                return Packet.error(String.format(NOT_A_TEMPLATE, i));
+            HashMap<String, Object> pairs = new HashMap<String, Object>((Map<String, Object>) given.get(i));
+            pairs.remove("command");
+            Packet p = validateArgs(pairs, opiMethods.get("present").parameters(), "present");
+            if (p.getError())
+                return Packet.error(String.format(TEMPLATE_FAILED, i, p.getMsg()));
+            templates.add(((ValidArgs) p.getPayload()).toJsonValues());
+        }
+        String name = (String) args.get(OpiListener.PROGRAM);
+        programs.put(name, Collections.unmodifiableList(templates));
+
+        HashMap<String, Object> msg = new LinkedHashMap<String, Object>();
+        msg.put(OpiListener.PROGRAM, name);
+        msg.put(OpiListener.TEMPLATES, templates.size());
+        return new Packet(msg);
+    }
+
+    /**
+     * The parameters of a present() of a template from {@link #defineProgram}: a copy of the template's
+     * with those of pairs that are in {@link #OVERRIDABLE} put in their place. 
+     * The template was checked when it was defined, so only the values of {@link #OVERRIDABLE} are checked, 
+     * against their own @Parameters of present().
+     * The command, program and template are kept so the machine can tell it is a template.
+     *
+     * @param pairs The parameters of the present(), with at least {@value OpiListener#PROGRAM} and {@value OpiListener#TEMPLATE}
+     *
+     * @return Either a packet with error=false, msg=the parameters for present() as {@link ValidArgs}, or an error packet
+     *
+     * @since 0.3.0
+     */
+    protected Packet fromTemplate(HashMap<String, Object> pairs) {
+        Object name = pairs.get(OpiListener.PROGRAM);
+        List<HashMap<String, Object>> templates = programs.get(String.valueOf(name));
+        if (templates == null)
+            return Packet.error(String.format(UNKNOWN_PROGRAM, name));
+        Object t = pairs.get(OpiListener.TEMPLATE);
+        int i = t instanceof Number n ? (int) Math.round(n.doubleValue()) : -1;
+        if (i < 0 || i >= templates.size() || (double) i != ((Number) t).doubleValue())
+            return Packet.error(String.format(NO_TEMPLATE, name, t));
+
+        HashMap<String, Object> result = new HashMap<String, Object>(templates.get(i));
+        for (Map.Entry<String, Object> e : pairs.entrySet()) {
+            String field = e.getKey();
+            if (!OVERRIDABLE.contains(field) && !field.equals("command") && !field.equals(OpiListener.PROGRAM) && !field.equals(OpiListener.TEMPLATE))
+                return Packet.error(String.format(NOT_OVERRIDABLE, OVERRIDABLE, field));
+            result.put(field, e.getValue());
+        }
+
+        HashMap<String, Object> changed = new HashMap<String, Object>(OVERRIDABLE.size());
+        for (String field : OVERRIDABLE)
+            if (result.containsKey(field))
+                changed.put(field, result.get(field));
+        ValidationPlan plan = overridePlan;
+        if (plan == null)
+            overridePlan = plan = new ValidationPlan(opiMethods.get("present").parameters().stream()
+                .filter(p -> OVERRIDABLE.contains(p.name())).toList());
+        Packet p = plan.validate(changed, "present", this.getClass());
+        return p.getError() ? p : new Packet(new ValidArgs(result));
+    }
+
+    /**
+     * opiPing: answered at once, without going near the real machine, with the System.nanoTime()
+     * of when the command was read and of when the reply was made, so the client can
+     * separate transport latency from everything else (see {@link LatencyProbe}).
+     *
+     * @return A Packet with msg {"{@value OpiListener#PING_RECEIVED}": t1, "{@value OpiListener#PING_SENT}": t2}
+     *
+     * @since 0.3.0
+     */
+    @ReturnMsg(name = OpiListener.PING_RECEIVED, className = Double.class, desc = "System.nanoTime() on the machine when the command was read (ns).")
+    @ReturnMsg(name = OpiListener.PING_SENT, className = Double.class, desc = "System.nanoTime() on the machine when the reply was made (ns).")
+    public Packet ping() {
+        return new Packet(OpiListener.pingStamps(OpiSession.receivedAt()));
+    }
+
+    /**
+     * Send PING to the server and add the timestamps to {@link #latency} when the reply arrives.
+     * The reply is matched by id so this can be used while another command is waiting.
+     *
+     * @return Completes with the new sample, or exceptionally if the server replied with an error
+     * @throws IOException If the PING cannot be sent
+     *
+     * @since 0.3.0
+     */
+    public CompletableFuture<LatencyProbe.Sample> probeLatency() throws IOException {
+        long t0 = System.nanoTime();
+        return sendAsync(toJson(Command.PING)).thenApply(p -> {
+            long t3 = System.nanoTime();
+            if (p.getError())
+                throw new IllegalStateException(p.getMsg());
+            JsonObject m = p.getMsgTree().getAsJsonObject();  // not via Double, nanoTime needs all 64 bits
+            return latency.add(t0, m.get(OpiListener.PING_RECEIVED).getAsLong(), m.get(OpiListener.PING_SENT).getAsLong(), t3);
+        });
+    }
+
+    /** @return The rolling estimate of RTT and clock offset to the server (no samples if never probed) */
+    public LatencyProbe getLatency() { return latency; }
+
     /**
      * opiClose: Send "close" to the real machine and then close the connection to the real machine.
      * 
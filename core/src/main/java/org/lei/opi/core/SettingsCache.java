@@ -0,0 +1,300 @@
+package org.lei.opi.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * The settings file ({@value OpiMachine#SETTINGS_FILE}) held in memory.
+ *
+ * The file is read once into an immutable {@link Snapshot}, so making a machine or walking the
+ * Settings classes in the Monitor does not touch the disk. A {@link WatchService} on its directory
+ * reloads it when it is changed by anything else (eg an editor), swapping the new snapshot in
+ * atomically: readers see either the old settings or the new, never a mix. If the new contents
+ * are empty or cannot be parsed (eg part way through being written), or the file is deleted, the
+ * old snapshot is kept. A file that does not exist when it is first read gives empty settings.
+ *
+ * {@link #save} writes to a temporary file in the same directory and renames it over the settings
+ * file, so neither the watcher nor another program can see a half-written file.
+ *
+ * @since 0.3.0
+ */
+public final class SettingsCache implements Closeable {
+
+    /** {@value COULD_NOT_READ} */
+    static final String COULD_NOT_READ = "Could not read settings file %s";
+    /** {@value COULD_NOT_PARSE} */
+    static final String COULD_NOT_PARSE = "Could not parse settings file %s, keeping the settings it had before. %s";
+    /** {@value COULD_NOT_WATCH} */
+    static final String COULD_NOT_WATCH = "Cannot watch settings file %s for changes. %s";
+
+    /** Settings file : its cache */
+    private static final ConcurrentHashMap<Path, SettingsCache> CACHES = new ConcurrentHashMap<Path, SettingsCache>();
+
+    /**
+     * The settings of one version of the file.
+     * It cannot be changed (nor can the maps and lists in it).
+     *
+     * @since 0.3.0
+     */
+    public static final class Snapshot {
+        /** The file as JSON (not shared outside) */
+        private final JsonObject json;
+        /** The file as a map keyed by machine name */
+        private final Map<String, Object> map;
+        /** Counts the snapshots of a cache, first is 1 */
+        private final long version;
+
+        private Snapshot(JsonObject json, long version) {
+            this.json = json;
+            this.version = version;
+            @SuppressWarnings("unchecked")
+            Map<String, Object> m = (Map<String, Object>) frozen(OpiMachine.settings_gson.fromJson(json, HashMap.class));
+            this.map = m;
+        }
+
+        /** @return Settings keyed by machine name; each value a map of setting name to value (do not change) */
+        public Map<String, Object> map() { return map; }
+
+        /** @return Which version of the file this is: 1 for the first read, one more for each reload or save */
+        public long version() { return version; }
+
+        /** @return True if there are settings for machineName */
+        public boolean contains(String machineName) { return json.has(machineName); }
+
+        /**
+         * The settings of a machine as a new object (so the caller is free to change it).
+         *
+         * @param machineName Key in the file, eg Display
+         * @param cls The Settings class to make, eg Display.Settings.class
+         * @return A new cls with the values from the file, or null if there are none for machineName
+         *
+         * @since 0.3.0
+         */
+        public <T> T get(String machineName, Class<T> cls) {
+            JsonElement e = json.get(machineName);
+            return e == null ? null : OpiMachine.settings_gson.fromJson(e, cls);
+        }
+
+        /** @return o with its maps and lists copied into ones that cannot be changed */
+        private static Object frozen(Object o) {
+            if (o instanceof Map<?, ?> m) {
+                LinkedHashMap<Object, Object> copy = new LinkedHashMap<Object, Object>();
+                for (Map.Entry<?, ?> e : m.entrySet())
+                    copy.put(e.getKey(), frozen(e.getValue()));
+                return Collections.unmodifiableMap(copy);
+            }
+            if (o instanceof List<?> l) {
+                ArrayList<Object> copy = new ArrayList<Object>(l.size());
+                for (Object e : l)
+                    copy.add(frozen(e));
+                return Collections.unmodifiableList(copy);
+            }
+            return o;
+        }
+    }
+
+    /** The settings file */
+    private final Path file;
+    /** The settings now */
+    private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>();
+    /** Numbers the snapshots */
+    private final AtomicLong versions = new AtomicLong();
+    /** Told of each new snapshot */
+    private final CopyOnWriteArrayList<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<Consumer<Snapshot>>();
+    /** Watches the directory of file, null if it cannot be watched */
+    private final WatchService watcher;
+    /** The {@link #watch} loop on {@link OpiExecutor#shared()}, null if the file cannot be watched */
+    private final Future<?> watching;
+
+    /**
+     * The cache of the settings file in the working directory (System property user.dir), as used by
+     * {@link OpiMachine#fillSettings} and the Monitor.
+     *
+     * @return The cache, read the first time it is asked for
+     *
+     * @since 0.3.0
+     */
+    public static SettingsCache shared() {
+        return of(Path.of(System.getProperty("user.dir"), OpiMachine.SETTINGS_FILE));
+    }
+
+    /**
+     * The cache of a settings file, which is read and starts being watched the first time it is asked for.
+     *
+     * @param file The settings file (need not exist)
+     * @return Its cache (the same one each time until it is closed)
+     *
+     * @since 0.3.0
+     */
+    public static SettingsCache of(Path file) {
+        return CACHES.computeIfAbsent(file.toAbsolutePath().normalize(), SettingsCache::new);
+    }
+
+    private SettingsCache(Path file) {
+        this.file = file;
+        current.set(new Snapshot(read(), versions.incrementAndGet()));
+
+        WatchService ws = null;
+        Future<?> task = null;
+        try {
+            ws = file.getFileSystem().newWatchService();
+            file.getParent().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            final WatchService w = ws;
+            task = OpiExecutor.shared().submit(() -> watch(w));
+        } catch (IOException | UnsupportedOperationException | RejectedExecutionException e) {
+            System.out.println(String.format(COULD_NOT_WATCH, file, e.getMessage()));
+            if (ws != null)
+                try { ws.close(); } catch (IOException ignored) { ; }
+            ws = null;
+        }
+        watcher = ws;
+        watching = task;
+    }
+
+    /** @return The file */
+    public Path file() { return file; }
+
+    /** @return The settings as they are now (no disk I/O) */
+    public Snapshot snapshot() { return current.get(); }
+
+    /**
+     * Call listener with each new snapshot (after an external change or a save), from the thread that made it.
+     *
+     * @param listener Told of new settings
+     *
+     * @since 0.3.0
+     */
+    public void addListener(Consumer<Snapshot> listener) { listeners.add(listener); }
+
+    /** @param listener A listener added by {@link #addListener} to forget */
+    public void removeListener(Consumer<Snapshot> listener) { listeners.remove(listener); }
+
+    /** @return The file as JSON, or null if it cannot be read, is empty or cannot be parsed (an empty object if nothing has been read yet) */
+    private JsonObject read() {
+        String s;
+        try {
+            s = Files.readString(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println(String.format(COULD_NOT_READ, file));
+            return current.get() == null ? new JsonObject() : null;
+        }
+        if (s.isBlank())    // new, or emptied part way through being written
+            return current.get() == null ? new JsonObject() : null;
+        try {
+            JsonElement e = JsonParser.parseString(s);
+            if (e.isJsonObject())
+                return e.getAsJsonObject();
+            throw new JsonParseException("It is not a JSON object.");
+        } catch (JsonParseException e) {
+            System.out.println(String.format(COULD_NOT_PARSE, file, e.getMessage()));
+            return current.get() == null ? new JsonObject() : null;
+        }
+    }
+
+    /**
+     * Read the file again now rather than waiting for the watcher (eg if it cannot watch).
+     *
+     * @return The settings now: new ones, or the old ones if the file could not be read or parsed
+     *
+     * @since 0.3.0
+     */
+    public Snapshot reload() {
+        JsonObject json = read();
+        return json == null ? current.get() : swap(json);
+    }
+
+    /** Make json the current settings and tell the listeners */
+    private synchronized Snapshot swap(JsonObject json) {
+        Snapshot s = new Snapshot(json, versions.incrementAndGet());
+        current.set(s);
+        for (Consumer<Snapshot> l : listeners)
+            l.accept(s);
+        return s;
+    }
+
+    /**
+     * Write settings to the file atomically (to a temporary file that is renamed over it) and make them the current settings.
+     *
+     * @param map Settings keyed by machine name; values are maps or Settings objects
+     * @return The new settings
+     * @throws IOException If the file cannot be written, in which case it is as it was
+     *
+     * @since 0.3.0
+     */
+    public Snapshot save(Map<String, Object> map) throws IOException {
+        String s = OpiMachine.settings_gson.toJson(map);
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tmp, s, StandardCharsets.UTF_8);
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return swap(JsonParser.parseString(s).getAsJsonObject());
+    }
+
+    /** Reload whenever the file is changed, until the watcher is closed */
+    private void watch(WatchService ws) {
+        try {
+            while (true) {
+                WatchKey key = ws.take();
+                boolean changed = false;
+                for (WatchEvent<?> e : key.pollEvents())
+                    changed |= e.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(e.context());
+                if (changed)
+                    reload();
+                if (!key.reset())
+                    return;
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            ;   // closed
+        }
+    }
+
+    /** Stop watching the file and forget this cache (the next {@link #of} reads the file again) */
+    @Override
+    public void close() throws IOException {
+        CACHES.remove(file, this);
+        if (watching != null)
+            watching.cancel(true);
+        if (watcher != null)
+            watcher.close();
+    }
+
+    public String toString() {
+        return "SettingsCache " + file + " version " + current.get().version();
+    }
+}
@@ -0,0 +1,135 @@
+package org.lei.opi.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.lei.opi.core.definitions.Packet;
+import org.lei.opi.core.definitions.Parameter;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * The checks of {@link OpiMachine#validateArgs} for one command, worked out once from its
+ * {@link Parameter} annotations rather than on every SETUP and PRESENT.
+ *
+ * Each parameter becomes a {@link Field} holding its list shape and the {@link ArgsCodec.Spec}
+ * of its elements, which are checked with {@link ArgsCodec#allowed} so that the rules and messages
+ * are the same as for the generated argument records.
+ * Fields are checked mandatory first and then by name, so the error reported for bad
+ * arguments does not depend on HashSet order and defaults are added after everything
+ * supplied has been checked. Checking walks the (nested) lists directly, without streams
+ * or copying them into a flattened list. Defaults are parsed here too, once (see {@link DefaultValue}),
+ * and only copied for each call.
+ *
+ * A plan holds no machine state so it is shared by all machines of a class.
+ *
+ * @since 0.3.0
+ */
+public final class ValidationPlan {
+
+    /** Parameter giving the length of list defaults: {@value STIM_LENGTH} */
+    static final String STIM_LENGTH = "stim.length";
+
+    /** List shape of a parameter */
+    enum Shape { SCALAR, LIST, LIST_OF_LIST }
+
+    /**
+     * One parameter, ready to check
+     *
+     * @param name Its name
+     * @param optional True if it can be left out
+     * @param shape Scalar, list or list of lists
+     * @param spec Kind, type and range of its elements (with no function or machine)
+     * @param dflt The parsed default if optional, otherwise null
+     */
+    record Field(String name, boolean optional, Shape shape, ArgsCodec.Spec spec, DefaultValue dflt) {
+
+        static Field of(Parameter p) {
+            Shape shape = p.isListList() ? Shape.LIST_OF_LIST : p.isList() ? Shape.LIST : Shape.SCALAR;
+            return new Field(p.name(), p.optional(), shape,
+                new ArgsCodec.Spec(p.name(), null, null, ArgsCodec.kind(p.className()), p.className(), p.min(), p.max()),
+                p.optional() ? DefaultValue.required(p) : null);
+        }
+    }
+
+    /** The parameters, mandatory first and then by name */
+    private final Field[] fields;
+
+    /**
+     * Work out the checks for a command, including parsing the defaults of its optional parameters.
+     *
+     * @param parameters The @Parameter annotations of the command's method
+     * @throws JsonSyntaxException If the default of an optional parameter is not valid (see {@link DefaultValue#required})
+     *
+     * @since 0.3.0
+     */
+    public ValidationPlan(Collection<Parameter> parameters) {
+        fields = parameters.stream()
+            .map(Field::of)
+            .sorted(Comparator.comparing(Field::optional).thenComparing(Field::name))
+            .toArray(Field[]::new);
+    }
+
+    /** @return The number of parameters checked */
+    public int size() { return fields.length; }
+
+    /**
+     * Check pairs against the plan, adding defaults for optional parameters that are absent.
+     * See {@link OpiMachine#validateArgs} for the rules.
+     *
+     * @param pairs Parameter names and values (defaults are added to it)
+     * @param funcName Function name for errors
+     * @param machine Class of the machine for errors
+     *
+     * @return Either a packet with error=false, msg=updated pairs as {@link ValidArgs}, or an error packet
+     *
+     * @since 0.3.0
+     */
+    public Packet validate(HashMap<String, Object> pairs, String funcName, Class<?> machine) {
+        for (Field f : fields) {
+            Object value = pairs.get(f.name);
+            if (value == null && !pairs.containsKey(f.name)) {
+                if (!f.optional)
+                    return Packet.error(String.format(OpiMachine.MISSING_PARAMETER, f.name, funcName, machine));
+                    // (Note stim.length gets turned into a double by fromJSON)
+                Object length = pairs.get(STIM_LENGTH);
+                pairs.put(f.name, f.dflt.build(length instanceof Number n ? (int) Math.round(n.doubleValue()) : 1));
+                continue;
+            }
+
+            boolean ok = true;
+            Object bad = null;
+            switch (f.shape) {
+                case SCALAR -> {
+                    if (value instanceof ArrayList)
+                        return Packet.error(String.format(OpiMachine.YES_LIST, f.name, funcName, machine));
+                    ok = ArgsCodec.allowed(bad = value, f.spec);
+                }
+                case LIST -> {
+                    if (!(value instanceof ArrayList<?> list) || list.isEmpty())
+                        return Packet.error(String.format(OpiMachine.NOT_LIST, f.name, funcName, machine));
+                    for (int i = 0; i < list.size() && ok; i++)
+                        ok = ArgsCodec.allowed(bad = list.get(i), f.spec);
+                }
+                case LIST_OF_LIST -> {
+                    if (!(value instanceof ArrayList<?> list) || list.isEmpty())
+                        return Packet.error(String.format(OpiMachine.NOT_LIST, f.name, funcName, machine));
+                    for (int i = 0; i < list.size(); i++)
+                        if (!(list.get(i) instanceof ArrayList<?> inner) || inner.isEmpty())
+                            return Packet.error(String.format(OpiMachine.NOT_LIST_OF_LIST, f.name, funcName, machine));
+                    for (int i = 0; i < list.size() && ok; i++) {
+                        List<?> inner = (List<?>) list.get(i);
+                        for (int j = 0; j < inner.size() && ok; j++)
+                            ok = ArgsCodec.allowed(bad = inner.get(j), f.spec);
+                    }
+                }
+            }
+            if (!ok)
+                return Packet.error(ArgsCodec.notAllowed(bad, f.spec.of(funcName, String.valueOf(machine))).getMessage());
+        }
+        return new Packet(new ValidArgs(pairs));
+    }
+}
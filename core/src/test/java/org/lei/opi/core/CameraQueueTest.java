@@ -1,11 +1,14 @@
 package org.lei.opi.core;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.jupiter.api.Test;
 import org.lei.opi.core.definitions.FrameInfo;
-import org.lei.opi.core.definitions.PupilRequest;
 import org.lei.opi.core.definitions.PupilResponse;
 
 import es.optocom.jovp.definitions.ViewEye;
@@ -19,29 +22,26 @@ public class CameraQueueTest {
     * @since 0.3.0
     */
     class Consumer extends Thread {
-        CameraStreamer<? extends FrameInfo> server;
+        LinkedBlockingQueue<CompletableFuture<PupilResponse>> requests;
         
-        Consumer(CameraStreamer<? extends FrameInfo> server) { this.server = server; }
+        Consumer(LinkedBlockingQueue<CompletableFuture<PupilResponse>> requests) { this.requests = requests; }
 
         @Override
         public void run() {
             System.out.println("[sendAndReceive1]...Consume starting");
             
             try {
-                int tries = 20;
                 while (!isInterrupted()) {
                     PupilResponse resp = null;
-                    int count = 0;
-                    while (resp == null && count < tries) {
-                        resp = server.responseQueue.poll(50, TimeUnit.MILLISECONDS);
-                        count++;
-                    }
-                    if (count == tries)
-                        System.out.println("[sendAndReceive1]...Consumer tried too many times.");
+                    try {
+                        resp = requests.take().get(1000, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException | ExecutionException e) { ; }
+                    if (resp == null)
+                        System.out.println("[sendAndReceive1]...Consumer got no response.");
                     else
-                        System.out.println(String.format("[sendAndReceive1]...Consumer got %s. Time delta %4s. (%6.2f,%6.2f) %4.2f mm",
+                        System.out.println(String.format("[sendAndReceive1]...Consumer got %s. Time delta %7.2f ms. (%6.2f,%6.2f) %4.2f mm",
                             resp.requestTimeStamp(),
-                            resp.acquisitionTimeStamp() - resp.requestTimeStamp(),
+                            OpiClock.toMillis(resp.acquisitionTimeStamp() - resp.requestTimeStamp()),
                             resp.x(), resp.y(), resp.diameter()));
                 }
             } catch (InterruptedException e) { ; }
@@ -50,7 +50,11 @@ public class CameraQueueTest {
 
     class Producer extends Thread {
         CameraStreamer<? extends FrameInfo> server;
-        Producer(CameraStreamer<? extends FrameInfo> server) { this.server = server; }
+        LinkedBlockingQueue<CompletableFuture<PupilResponse>> requests;
+        Producer(CameraStreamer<? extends FrameInfo> server, LinkedBlockingQueue<CompletableFuture<PupilResponse>> requests) { 
+            this.server = server; 
+            this.requests = requests;
+        }
 
         @Override
         public void run() {
@@ -58,9 +62,9 @@ public class CameraQueueTest {
             
             try {
                 while (!isInterrupted()) {
-                    PupilRequest req = new PupilRequest(System.currentTimeMillis(), ViewEye.LEFT);
-                    server.requestQueue.put(req);
-                    System.out.println(String.format("[sendAndReceive1]...Producer issued request: %s.", req.timeStamp()));
+                    long now = OpiClock.now();
+                    requests.put(server.request(ViewEye.LEFT, now));
+                    System.out.println(String.format("[sendAndReceive1]...Producer issued request: %s.", now));
                     Thread.sleep(1000);
                 }
             } catch (InterruptedException e) { ; }
@@ -79,8 +83,9 @@ public class CameraQueueTest {
             return;
         }
 
-        Producer p = new Producer(server);
-        Consumer c = new Consumer(server);
+        LinkedBlockingQueue<CompletableFuture<PupilResponse>> requests = new LinkedBlockingQueue<CompletableFuture<PupilResponse>>();
+        Producer p = new Producer(server, requests);
+        Consumer c = new Consumer(requests);
 
         p.start();
         c.start();
@@ -5,6 +5,7 @@ import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
@@ -17,7 +18,6 @@ import es.optocom.jovp.definitions.ViewEye;
 import org.junit.jupiter.api.Test;
 import org.lei.opi.core.definitions.CircularBuffer;
 import org.lei.opi.core.definitions.FrameInfoImo;
-import org.lei.opi.core.definitions.PupilRequest;
 import org.lei.opi.core.definitions.PupilResponse;
 
 public class ImoImageTest {
@@ -107,7 +107,7 @@ public class ImoImageTest {
                 frame.put(0, 0, im_array);
 
                 System.out.print("\nProcessFrame: " + eye);
-                FrameInfoImo f = new FrameInfoImo(frame, System.currentTimeMillis());
+                FrameInfoImo f = new FrameInfoImo(frame, OpiClock.now());
 
                 long mem1 = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
                 f.findPupil();
@@ -160,8 +160,7 @@ public class ImoImageTest {
         for (int i = 0 ; i < 30 ; i++) {
             System.out.println("Request " + i);
             try {
-                cameraStreamer.requestQueue.add(new PupilRequest(System.currentTimeMillis(), ViewEye.LEFT));
-                PupilResponse resp = cameraStreamer.responseQueue.poll();
+                PupilResponse resp = cameraStreamer.request(ViewEye.LEFT, OpiClock.now()).get(300, TimeUnit.MILLISECONDS);
                 System.out.println(resp);
                 Thread.sleep(300); 
             } catch (InterruptedException e) { break; }
@@ -1,8 +1,18 @@
 package org.lei.opi.core;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.lei.opi.core.definitions.Packet;
+import org.lei.opi.core.definitions.Parameter;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 class TestEcho {
     
@@ -30,5 +40,353 @@ public void testPresent() {
     System.out.println(machine.processPairs(hmap));
 }
 
+@Test
+public void testPresentBatch() {
+    Echo machine = new Echo(null);
+
+    HashMap<String, Object> hmap = new HashMap<String, Object>();
+    HashMap<String, Object> pres = new HashMap<String, Object>();
+    pres.put("ignored", "first");
+    
+    hmap.put("command", "present_batch");
+    hmap.put("presentations", new ArrayList<Object>(List.of(pres, pres)));
+    hmap.put("isi", new ArrayList<Object>(List.of(10.0)));
+
+    Packet p = machine.processPairs(hmap);
+    System.out.println(p);
+    Assertions.assertFalse(p.getError());
+    Assertions.assertEquals(2, OpiListener.gson.fromJson(p.getMsg(), JsonObject.class).getAsJsonArray(OpiListener.BATCH_RESULTS).size());
+
+    hmap.put("presentations", new ArrayList<Object>(List.of(pres, "not a presentation")));
+    Assertions.assertTrue(machine.processPairs(hmap).getError());
+}
+
+@Test
+public void testProgram() {
+    Echo machine = new Echo(null);
+
+    HashMap<String, Object> first = new HashMap<String, Object>();
+    first.put("ignored", "first");
+    HashMap<String, Object> hmap = new HashMap<String, Object>();
+    hmap.put("command", "define_program");
+    hmap.put(OpiListener.PROGRAM, "p");
+    hmap.put(OpiListener.TEMPLATES, new ArrayList<Object>(List.of(first, new HashMap<String, Object>())));
+
+    Packet p = machine.processPairs(hmap);
+    System.out.println(p);
+    Assertions.assertFalse(p.getError());
+    Assertions.assertEquals(2, OpiListener.gson.fromJson(p.getMsg(), JsonObject.class).get(OpiListener.TEMPLATES).getAsInt());
+
+        // present a template, changing lum
+    HashMap<String, Object> present = new HashMap<String, Object>();
+    present.put("command", "present");
+    present.put(OpiListener.PROGRAM, "p");
+    present.put(OpiListener.TEMPLATE, 0.0);
+    present.put("lum", new ArrayList<Object>(List.of(25.0)));
+    p = machine.processPairs(new HashMap<String, Object>(present));
+    System.out.println(p);
+    Assertions.assertFalse(p.getError());
+    JsonObject msg = OpiListener.gson.fromJson(p.getMsg(), JsonObject.class);
+    Assertions.assertEquals("first", msg.get("ignored").getAsString());
+    Assertions.assertEquals(25.0, msg.getAsJsonArray("lum").get(0).getAsDouble());
+
+    present.put(OpiListener.TEMPLATE, 1.0);
+    p = machine.processPairs(new HashMap<String, Object>(present));
+    Assertions.assertEquals("irrelevant", OpiListener.gson.fromJson(p.getMsg(), JsonObject.class).get("ignored").getAsString());
+
+    present.put(OpiListener.TEMPLATE, 2.0);
+    Assertions.assertTrue(machine.processPairs(new HashMap<String, Object>(present)).getError());
+    present.put(OpiListener.TEMPLATE, 0.0);
+    present.put("x", new ArrayList<Object>(List.of(3.0)));   // only lum and w can change
+    p = machine.processPairs(new HashMap<String, Object>(present));
+    System.out.println(p);
+    Assertions.assertTrue(p.getError());
+    present.remove("x");
+    present.put(OpiListener.PROGRAM, "q");
+    Assertions.assertTrue(machine.processPairs(new HashMap<String, Object>(present)).getError());
+
+    hmap.put(OpiListener.TEMPLATES, new ArrayList<Object>(List.of(first, "not a template")));
+    Assertions.assertTrue(machine.processPairs(hmap).getError());
+}
+
+enum Shade { LIGHT, DARK }
+
+@Parameter(name = "shade", className = Shade.class, desc = "An enum.", isList = true)
+@Parameter(name = "grid", className = Double.class, desc = "A list of lists.", isListList = true, min = 0, max = 0.3)
+@Parameter(name = "note", desc = "An optional string.", optional = true, defaultValue = "none")
+public void planned() { ; }
+
+@Test
+public void testValidationPlan() throws NoSuchMethodException {
+    HashSet<Parameter> params = new HashSet<Parameter>(Arrays.asList(TestEcho.class.getMethod("planned").getAnnotationsByType(Parameter.class)));
+    ValidationPlan plan = new ValidationPlan(params);
+    Assertions.assertEquals(3, plan.size());
+
+    HashMap<String, Object> pairs = new HashMap<String, Object>();
+    pairs.put("shade", new ArrayList<Object>(List.of("Dark", Shade.LIGHT, "light")));
+    pairs.put("grid", new ArrayList<Object>(List.of(new ArrayList<Object>(List.of(0.1, 0.3)), new ArrayList<Object>(List.of(0)))));
+    Packet p = plan.validate(pairs, "planned", TestEcho.class);
+    System.out.println(p);
+    Assertions.assertFalse(p.getError());
+    Assertions.assertEquals("none", pairs.get("note"));     // default added
+
+    pairs.put("shade", new ArrayList<Object>(List.of("dar")));   // names match whole, not in part
+    p = plan.validate(pairs, "planned", TestEcho.class);
+    System.out.println(p);
+    Assertions.assertTrue(p.getError());
+
+    pairs.put("shade", new ArrayList<Object>(List.of("DARK")));
+    pairs.put("grid", new ArrayList<Object>(List.of(new ArrayList<Object>(List.of(0.1)), new ArrayList<Object>(List.of(0.2, 0.30000000001)))));
+    p = plan.validate(pairs, "planned", TestEcho.class);
+    System.out.println(p);
+    Assertions.assertTrue(p.getError());
+    Assertions.assertTrue(p.getMsg().contains("not in range"));
+
+    pairs.put("grid", new ArrayList<Object>(List.of(new ArrayList<Object>(List.of(0.1)), new ArrayList<Object>())));
+    p = plan.validate(pairs, "planned", TestEcho.class);
+    System.out.println(p);
+    Assertions.assertTrue(p.getError());
+    Assertions.assertTrue(p.getMsg().contains("list of non-empty lists"));
+
+    pairs.remove("grid");
+    p = plan.validate(pairs, "planned", TestEcho.class);
+    System.out.println(p);
+    Assertions.assertTrue(p.getMsg().contains("missing"));
+
+        // and through a machine
+    Echo machine = new Echo(null);
+    HashMap<String, Object> hmap = new HashMap<String, Object>();
+    hmap.put("command", "initialize");
+    hmap.put("ip", "localhost");
+    hmap.put("port", 70000);
+    p = machine.processPairs(hmap);
+    System.out.println(p);
+    Assertions.assertTrue(p.getMsg().contains("[0.0, 65535.0]"));
+    hmap.put("port", "50001");
+    p = machine.processPairs(hmap);
+    System.out.println(p);
+    Assertions.assertTrue(p.getMsg().contains("not integer"));
+}
+
+@Test
+public void testCommandStats() {
+    Echo machine = new Echo(null);
+    HashMap<String, Object> hmap = new HashMap<String, Object>();
+    hmap.put("command", "present");
+
+    machine.processPairs(hmap);
+    Assertions.assertEquals(0, machine.getCommandStats().get("present").getCalls());  // off by default
+
+    machine.setCommandStats(true);
+    for (int i = 0 ; i < 10 ; i++)
+        machine.processPairs(hmap);
+    hmap.put("command", "query");
+    machine.processPairs(hmap);
+    hmap.put("command", "initialize");   // missing ip: fails validation so is not a call
+    machine.processPairs(hmap);
+
+    CommandStats present = machine.getCommandStats().get("present");
+    System.out.println(present);
+    System.out.println(machine.getCommandStats().get("query"));
+    Assertions.assertEquals(10, present.getCalls());
+    Assertions.assertEquals(0, present.getErrors());
+    Assertions.assertEquals(10, Arrays.stream(present.getHistogram()).sum());
+    Assertions.assertEquals(1, machine.getCommandStats().get("query").getCalls());
+    Assertions.assertEquals(0, machine.getCommandStats().get("initialize").getCalls());
+    Assertions.assertTrue(present.quantileMillis(0.99) >= present.quantileMillis(0.5));
+
+    Assertions.assertEquals(0, CommandStats.bucket(999));
+    Assertions.assertEquals(1, CommandStats.bucket(1000));
+    Assertions.assertEquals(11, CommandStats.bucket(1_500_000));
+    Assertions.assertEquals(CommandStats.BUCKETS - 1, CommandStats.bucket(Long.MAX_VALUE));
+}
+
+@Test
+public void testMetadataShared() {
+    Echo a = new Echo(null);
+    Echo b = new Echo(null);
+    MachineMetadata m = MachineMetadata.of(Echo.class);
+    System.out.println(m);
+    Assertions.assertSame(m, MachineMetadata.of(a.getClass()));
+    Assertions.assertSame(a.opiMethods, b.opiMethods);
+    Assertions.assertSame(a.enums, b.enums);
+    Assertions.assertTrue(a.opiMethods.containsKey("presentBatch"));
+    Assertions.assertNotNull(m.plan(a.opiMethods.get("present").parameters()));
+    Assertions.assertNull(m.plan(new HashSet<Parameter>(a.opiMethods.get("present").parameters())));   // only the shared sets have plans
+
+        // initialize's @Parameters come from OpiMachine, once each
+    Assertions.assertEquals(2, a.opiMethods.get("initialize").parameters().size());
+    Assertions.assertNotSame(a.getCommandStats(), b.getCommandStats());
+}
+
+@Parameter(name = "col", className = Double.class, desc = "A list of lists default.", isListList = true, optional = true, defaultValue = "[[1,0.5,0]]")
+@Parameter(name = "sx", className = Double.class, desc = "A list default.", isList = true, optional = true, defaultValue = "[1.72, 2]")
+@Parameter(name = "shade", className = Shade.class, desc = "An enum default.", optional = true, defaultValue = "DARK")
+@Parameter(name = "bad", className = Shade.class, desc = "Not one of the enum.", optional = true, defaultValue = "GREY")
+@Parameter(name = "worse", className = Double.class, desc = "Not JSON for a list.", isList = true, optional = true, defaultValue = "[1,")
+public void defaults() { ; }
+
+@Test
+public void testDefaultValues() throws Exception {
+    HashMap<String, Parameter> ps = new HashMap<String, Parameter>();
+    for (Parameter p : TestEcho.class.getMethod("defaults").getAnnotationsByType(Parameter.class))
+        ps.put(p.name(), p);
+
+    DefaultValue sx = DefaultValue.required(ps.get("sx"));
+    System.out.println(sx.build(4));
+    Assertions.assertEquals(List.of(1.72, 2.0, 1.72, 1.72), sx.build(4));
+    Assertions.assertEquals(List.of(1.72, 2.0), sx.build(1));
+    Assertions.assertNotSame(sx.build(1), sx.build(1));    // a new list each time
+
+    Object col = OpiMachine.buildDefault(ps.get("col"), 3);
+    System.out.println(col);
+    Assertions.assertEquals(List.of(List.of(1.0, 0.5, 0.0), List.of(1.0, 0.5, 0.0), List.of(1.0, 0.5, 0.0)), col);
+    ((ArrayList<ArrayList<Object>>) col).get(1).set(0, 0.0);
+    Assertions.assertEquals(1.0, ((ArrayList<ArrayList<Object>>) col).get(2).get(0));  // rows are not shared
+    Assertions.assertSame(DefaultValue.of(ps.get("col")), DefaultValue.of(ps.get("col")));
+
+    Assertions.assertSame(Shade.DARK, DefaultValue.required(ps.get("shade")).build(1));
+    Assertions.assertThrows(JsonSyntaxException.class, () -> DefaultValue.required(ps.get("bad")));
+    Assertions.assertThrows(JsonSyntaxException.class, () -> DefaultValue.required(ps.get("worse")));
+    try {
+        DefaultValue.required(ps.get("worse"));
+    } catch (JsonSyntaxException e) {
+        System.out.println(e.getMessage());
+    }
+}
+
+@Test
+public void testValidArgs() throws NoSuchMethodException {
+    HashSet<Parameter> params = new HashSet<Parameter>(Arrays.asList(TestEcho.class.getMethod("planned").getAnnotationsByType(Parameter.class)));
+    HashMap<String, Object> pairs = new HashMap<String, Object>();
+    ArrayList<Object> shades = new ArrayList<Object>(List.of("dark", Shade.LIGHT));
+    pairs.put("grid", new ArrayList<Object>(List.of(new ArrayList<Object>(List.of(0, 0.25)))));
+    pairs.put("shade", shades);
+    pairs.put("command", "planned");
+    Packet p = new ValidationPlan(params).validate(pairs, "planned", TestEcho.class);
+    Assertions.assertFalse(p.getError());
+
+        // encoded once, command first and id next, where the listener looks for it
+    ValidArgs args = (ValidArgs) p.getPayload();
+    String sent = new String(args.encode("7"), java.nio.charset.StandardCharsets.UTF_8);
+    System.out.println(sent);
+    Assertions.assertTrue(sent.startsWith("{\"command\":\"planned\",\"id\":\"7\","));
+    Assertions.assertEquals(new com.google.gson.JsonPrimitive("7"), OpiListener.commandId(sent));
+    Assertions.assertEquals(OpiListener.gson.fromJson(p.getMsg(), JsonObject.class), 
+                            OpiListener.gson.fromJson(sent.replace(",\"id\":\"7\"", ""), JsonObject.class));
+
+        // only the first names are looked at for the id, and not inside values
+    Assertions.assertNull(OpiListener.commandId("{\"command\":\"planned\",\"note\":\"\\\"id\\\"\",\"grid\":[],\"id\":\"7\"}"));
+    Assertions.assertNull(OpiListener.commandId("{\"grid\":[{\"id\":\"7\"}],\"id\":\"7\"}"));
+
+        // values as they would be after a trip through JSON, without changing the caller's lists
+    HashMap<String, Object> json = args.toJsonValues();
+    Assertions.assertEquals(List.of("dark", "LIGHT"), json.get("shade"));
+    Assertions.assertEquals(List.of(List.of(0.0, 0.25)), json.get("grid"));
+    Assertions.assertSame(Shade.LIGHT, shades.get(1));
+    Assertions.assertEquals(OpiListener.gson.fromJson(p.getMsg(), HashMap.class), json);
+
+        // and through a machine
+    Echo machine = new Echo(null);
+    HashMap<String, Object> hmap = new HashMap<String, Object>();
+    hmap.put("command", "present");
+    p = machine.processPairs(hmap);
+    System.out.println(p);
+    Assertions.assertEquals("irrelevant", ((HashMap<?, ?>) p.getPayload()).get("ignored"));
+}
+
+@Test
+public void testGeneratedArgs() throws java.io.IOException {
+        // the generated record has the same parameters as the annotations the machines use
+    HashSet<String> names = new HashSet<String>();
+    for (Parameter p : MachineMetadata.of(Display.class).methods().get("present").parameters())
+        names.add(p.name());
+    Assertions.assertEquals(names, new HashSet<String>(JovpPresentArgs.NAMES));
+
+        // defaults are filled to stim.length, enums are matched ignoring case and unknown fields are skipped
+    String json = "{\"command\":\"present\",\"stim.length\":2,\"eye\":[\"left\",\"RIGHT\"],\"x\":[1,2],\"y\":[0,0],"
+        + "\"sx\":[1,1],\"sy\":[1,1],\"t\":[200,0],\"w\":1500,\"lum\":[10,20],\"color1\":[[1,1,1],[0,0,0]],\"id\":\"x\"}";
+    JovpPresentArgs args = JovpPresentArgs.read(new com.google.gson.stream.JsonReader(new java.io.StringReader(json)));
+    System.out.println(args.stimLength() + " " + Arrays.toString(args.eye()) + " " + Arrays.toString(args.shape()) + " " + Arrays.toString(args.envRotation()));
+    Assertions.assertEquals(2, args.shape().length);
+    Assertions.assertEquals(90.0, args.envRotation()[1]);
+    Assertions.assertEquals("RIGHT", args.eye()[1].name());
+    Assertions.assertNotSame(args.rotation(), JovpPresentArgs.read(new com.google.gson.stream.JsonReader(new java.io.StringReader(json))).rotation());
+
+        // written back with command first and read again
+    java.io.StringWriter sw = new java.io.StringWriter();
+    args.validate().write(new com.google.gson.stream.JsonWriter(sw), "present");
+    System.out.println(sw);
+    Assertions.assertTrue(sw.toString().startsWith("{\"command\":\"present\","));
+    JovpPresentArgs again = JovpPresentArgs.read(new com.google.gson.stream.JsonReader(new java.io.StringReader(sw.toString())));
+    Assertions.assertArrayEquals(args.color1(), again.color1());
+    Assertions.assertArrayEquals(args.optotype(), again.optotype());
+
+        // same errors as validateArgs
+    for (String bad : new String[] {json.replace("\"x\":[1,2]", "\"x\":[1,200]"), json.replace("\"left\"", "\"middle\""),
+                                      json.replace("\"w\":1500,", ""), json.replace("[[1,1,1],[0,0,0]]", "[]")})
+        try {
+            JovpPresentArgs.read(new com.google.gson.stream.JsonReader(new java.io.StringReader(bad)));
+            Assertions.fail("Should not read " + bad);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+}
+
+@Test
+public void testSettingsCache() throws Exception {
+    java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("opi");
+    java.nio.file.Path file = dir.resolve("opi_settings.json");
+    java.nio.file.Files.writeString(file, "{\"Echo\": {\"ip\": \"localhost\", \"port\": 50002}}");
+    try (SettingsCache cache = SettingsCache.of(file)) {
+        Assertions.assertSame(cache, SettingsCache.of(file));
+        SettingsCache.Snapshot first = cache.snapshot();
+        Echo.Settings s = first.get("Echo", Echo.Settings.class);
+        System.out.println(cache + " " + first.map());
+        Assertions.assertEquals(50002, s.port);
+        Assertions.assertNotSame(s, first.get("Echo", Echo.Settings.class));     // a new object each time
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> first.map().put("Display", null));
+
+            // saved through a temporary file, and in the cache straight away
+        HashMap<String, Object> map = new HashMap<String, Object>(first.map());
+        s.port = 50003;
+        map.put("Echo", s);
+        cache.save(map);
+        Assertions.assertEquals(50003, cache.snapshot().get("Echo", Echo.Settings.class).port);
+        Assertions.assertEquals(1, java.nio.file.Files.list(dir).count());
+        Assertions.assertEquals(50002, first.get("Echo", Echo.Settings.class).port);   // old snapshots do not change
+
+            // an external edit is picked up by the watcher, a broken one is ignored
+        long version = cache.snapshot().version();
+        java.nio.file.Files.writeString(file, "{\"Echo\": {\"ip\": \"localhost\", \"port\": 50004}}");
+        for (int i = 0 ; i < 100 && cache.snapshot().get("Echo", Echo.Settings.class).port != 50004 ; i++)
+            Thread.sleep(50);
+        System.out.println(cache);
+        Assertions.assertTrue(cache.snapshot().version() > version);
+        Assertions.assertEquals(50004, cache.snapshot().get("Echo", Echo.Settings.class).port);
+        java.nio.file.Files.writeString(file, "{\"Echo\": {\"ip\": ");
+        Assertions.assertEquals(50004, cache.reload().get("Echo", Echo.Settings.class).port);
+    } finally {
+        java.nio.file.Files.deleteIfExists(file);
+        java.nio.file.Files.deleteIfExists(dir);
+    }
+}
+
+@Test
+public void testStartupTimeline() {
+    Startup.mark("test phase 1");
+    Startup.mark("test phase 2");
+    String report = Startup.report();
+    System.out.print(report);
+    Assertions.assertTrue(report.indexOf("test phase 1") > 0);
+    Assertions.assertTrue(report.indexOf("test phase 2") > report.indexOf("test phase 1"));
+    java.util.List<Startup.Phase> phases = Startup.phases();
+    for (int i = 1 ; i < phases.size() ; i++)
+        Assertions.assertTrue(phases.get(i).at() >= phases.get(i - 1).at());
 
-}
\ No newline at end of file
+        // errors about arguments name the machine as before, without loading it
+    IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class, () -> new JovpPresentArgs.Reader().build());
+    System.out.println(e.getMessage());
+    Assertions.assertTrue(e.getMessage().contains(Jovp.class.toString()));
+}
+}
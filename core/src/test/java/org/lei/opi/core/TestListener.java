@@ -0,0 +1,331 @@
+package org.lei.opi.core;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.lei.opi.core.definitions.Packet;
+
+/**
+ * Check the OpiListener serves several clients at once.
+ * Uses a listener whose process() just echoes the message with the session id
+ * so that no OpiMachine is needed.
+ */
+public class TestListener {
+
+    /** A listener that replies with "session id: message" (after a pause if message contains "slow") */
+    class EchoListener extends OpiListener {
+        EchoListener(boolean multiClient) { super(0, null, multiClient); }
+
+        @Override
+        public Packet process(String jsonStr) {
+            if (jsonStr.contains("close"))
+                return new Packet(true, "bye");
+            if (jsonStr.contains("slow"))
+                try { Thread.sleep(500); } catch (InterruptedException ignored) { ; }
+            return new Packet(OpiSession.current().getId() + ": " + jsonStr);
+        }
+    }
+
+    /** A client that sends lines and reads one reply per line */
+    class Client {
+        Socket socket;
+        Writer out;
+        BufferedReader in;
+
+        Client(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        Packet ask(String message) throws IOException {
+            out.write(message + "\n");
+            out.flush();
+            return OpiListener.gson.fromJson(in.readLine(), Packet.class);
+        }
+    }
+
+    @Test
+    public void twoClients() throws IOException {
+        EchoListener listener = new EchoListener(true);
+        Client a = new Client(listener.getPort());
+        Client b = new Client(listener.getPort());
+
+        for (int i = 0 ; i < 5 ; i++) {
+            Packet pa = a.ask("a" + i);
+            Packet pb = b.ask("b" + i + " \u00b0");  // include a multibyte character
+            System.out.println(pa.getMsg() + " " + pb.getMsg());
+            Assertions.assertTrue(pa.getMsg().endsWith("a" + i + "\""));
+            Assertions.assertTrue(pb.getMsg().endsWith("b" + i + " \u00b0\""));
+            Assertions.assertFalse(pa.getMsg().equals(pb.getMsg()));
+        }
+        Assertions.assertEquals(2, listener.getSessions().size());
+
+            // closing one session leaves the other running
+        Assertions.assertTrue(a.ask("close").getClose());
+        Assertions.assertTrue(b.ask("still here").getMsg().contains("still here"));
+
+        listener.closeListener();
+        Assertions.assertFalse(listener.isAlive());
+    }
+
+    @Test
+    public void singleClient() throws IOException, InterruptedException {
+        EchoListener listener = new EchoListener(false);
+        Client a = new Client(listener.getPort());
+        Assertions.assertTrue(a.ask("hello").getMsg().contains("hello"));
+        Assertions.assertTrue(a.ask("close").getClose());
+
+        listener.join(5000);  // dies after its one client closes
+        Assertions.assertFalse(listener.isAlive());
+    }
+
+    @Test
+    public void repliesMatchedById() throws Exception {
+        EchoListener listener = new EchoListener(true);
+        Echo machine = new Echo(null);
+        Assertions.assertTrue(machine.connect(InetAddress.getLoopbackAddress().getHostAddress(), listener.getPort()));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CompletableFuture<Packet> slow = machine.sendAsync("{\"command\":\"slow\"}");
+        CompletableFuture<Packet> fast = machine.sendAsync("{\"command\":\"fast\"}");
+        slow.thenRun(() -> order.add("slow"));
+        fast.thenRun(() -> order.add("fast"));
+
+        Packet pSlow = slow.get(5, TimeUnit.SECONDS);
+        Packet pFast = fast.get(5, TimeUnit.SECONDS);
+        System.out.println(order + "\n" + pSlow + pFast);
+        Assertions.assertEquals(List.of("fast", "slow"), order);   // the fast reply overtook the slow one
+        Assertions.assertTrue(pSlow.getMsg().contains("slow"));
+        Assertions.assertTrue(pFast.getMsg().contains("fast"));
+        Assertions.assertNotEquals(pSlow.getId(), pFast.getId());
+
+            // without ids replies stay in order
+        Client a = new Client(listener.getPort());
+        Assertions.assertTrue(a.ask("{\"command\":\"slow\"}").getMsg().contains("slow"));
+        Packet p = a.ask("{\"command\":\"fast\"}");
+        Assertions.assertTrue(p.getMsg().contains("fast"));
+        Assertions.assertNull(p.getId());
+
+        machine.closeSocket();
+        listener.closeListener();
+    }
+
+    @Test
+    public void pingThroughMachine() throws Exception {
+        OpiListener listener = new OpiListener(0, () -> new Echo(null), true);
+        Echo machine = new Echo(null);
+        Assertions.assertTrue(machine.connect(InetAddress.getLoopbackAddress().getHostAddress(), listener.getPort()));
+
+        for (int i = 0 ; i < 5 ; i++) {
+            LatencyProbe.Sample s = machine.probeLatency().get(5, TimeUnit.SECONDS);
+            System.out.println("[pingThroughMachine] " + s);
+            Assertions.assertTrue(s.rtt() >= 0);
+            Assertions.assertTrue(Math.abs(s.offset()) <= s.rtt() / 2 + 1);  // same clock, so offset is within the rtt error bound
+        }
+        LatencyProbe.Estimate e = machine.getLatency().estimate();
+        System.out.println(machine.getLatency());
+        Assertions.assertEquals(5, e.samples());
+        Assertions.assertTrue(e.minRtt() <= e.meanRtt());
+
+        machine.closeSocket();
+        listener.closeListener();
+    }
+
+    /** Commands without a session all go to one machine from the factory, made when first needed */
+    @Test
+    public void sessionlessMachineKept() {
+        int[] made = {0};
+        OpiListener listener = new OpiListener(0, () -> { made[0]++; return new Echo(null); }, true);
+        Assertions.assertEquals(0, made[0]);
+        for (int i = 0 ; i < 3 ; i++) {
+            Packet p = listener.process("{\"command\":\"ping\"}");
+            System.out.println("[sessionlessMachineKept] " + p);
+            Assertions.assertFalse(p.getError());
+        }
+        Assertions.assertEquals(1, made[0]);
+        listener.closeListener();
+    }
+
+    /** An Echo machine that, when its connection drops, connects again and sends its waiting commands again */
+    class ReattachingEcho extends Echo {
+        private final int port;
+        int reattached = 0;
+        ReattachingEcho(int port) { super(null); this.port = port; }
+
+        @Override
+        protected boolean reattach() {
+            if (!connect(InetAddress.getLoopbackAddress().getHostAddress(), port))
+                return false;
+            reattached++;
+            try {
+                for (String id : pendingIds())
+                    resend(id);
+            } catch (IOException e) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void waitingCommandsSurviveReconnect() throws Exception {
+        EchoListener listener = new EchoListener(true);
+        ReattachingEcho machine = new ReattachingEcho(listener.getPort());
+        Assertions.assertTrue(machine.connect(InetAddress.getLoopbackAddress().getHostAddress(), listener.getPort()));
+
+        CompletableFuture<Packet> slow = machine.sendAsync("{\"command\":\"slow\"}");
+        Thread.sleep(100);
+        machine.socket.close();    // drop the connection while slow is being processed
+
+        Packet p = slow.get(5, TimeUnit.SECONDS);
+        System.out.println("[waitingCommandsSurviveReconnect] " + p);
+        Assertions.assertTrue(p.getMsg().contains("slow"));
+        Assertions.assertEquals(1, machine.reattached);
+        Assertions.assertTrue(machine.sendAsync("{\"command\":\"fast\"}").get(5, TimeUnit.SECONDS).getMsg().contains("fast"));
+
+        machine.closeSocket();
+        listener.closeListener();
+    }
+
+    @Test
+    public void framedClient() throws IOException {
+        EchoListener listener = new EchoListener(true);
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getPort());
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // negotiate frames with the preamble line
+        out.write((Framing.PREAMBLE + "\n").getBytes(StandardCharsets.UTF_8));
+        StringBuilder ack = new StringBuilder();
+        for (int c = in.read() ; c != '\n' ; c = in.read())
+            ack.append((char)c);
+        Assertions.assertEquals(Framing.PREAMBLE, ack.toString());
+
+        Framing.Frame frame = new Framing.Frame();
+        for (String m : new String[] {"one", "two\nlines", "x".repeat(20000)}) {
+            byte[] b = m.getBytes(StandardCharsets.UTF_8);
+            Framing.write(out, b, b.length, Framing.TYPE_JSON, Framing.NO_FLAGS);
+            frame.read(in);
+            Packet p = OpiListener.gson.fromJson(frame.text(StandardCharsets.UTF_8), Packet.class);
+            frame.reset();
+            System.out.println(p.getMsg().length() + " " + p.getMsg().substring(0, Math.min(20, p.getMsg().length())));
+            Assertions.assertTrue(p.getMsg().contains(m.replace("\n", "\\n")));
+        }
+
+            // a frame of unknown type is answered with an error, not run
+        byte[] u = "{\"command\":\"close\"}".getBytes(StandardCharsets.UTF_8);
+        Framing.write(out, u, u.length, (short)99, Framing.NO_FLAGS);
+        frame.read(in);
+        Packet bad = OpiListener.gson.fromJson(frame.text(StandardCharsets.UTF_8), Packet.class);
+        frame.reset();
+        System.out.println(bad.getMsg());
+        Assertions.assertTrue(bad.getError());
+        Assertions.assertEquals(Framing.NO_FLAGS, frame.flags());
+
+        byte[] b = "close".getBytes(StandardCharsets.UTF_8);
+        Framing.write(out, b, b.length, Framing.TYPE_JSON, Framing.NO_FLAGS);
+        frame.read(in);
+        Assertions.assertEquals(Framing.FLAG_CLOSE, frame.flags());
+
+        socket.close();
+        listener.closeListener();
+    }
+
+    @Test
+    public void frameSplitAcrossReads() throws IOException {
+        byte[] payload = "{\"command\":\"query\"}".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer all = Framing.encode(payload, Framing.TYPE_JSON, Framing.NO_FLAGS);
+        Framing.Frame frame = new Framing.Frame();
+            // feed it 3 bytes at a time, as a slow network might
+        boolean done = false;
+        while (all.hasRemaining()) {
+            ByteBuffer part = all.slice(all.position(), Math.min(3, all.remaining()));
+            all.position(all.position() + part.remaining());
+            Assertions.assertFalse(done);
+            done = frame.feed(part);
+        }
+        Assertions.assertTrue(done);
+        Assertions.assertEquals("{\"command\":\"query\"}", frame.text(StandardCharsets.UTF_8));
+        Assertions.assertEquals(Framing.TYPE_JSON, frame.type());
+    }
+
+    @Test
+    public void executorCancelsAndCloses() throws Exception {
+        OpiExecutor tasks = new OpiExecutor("test");
+        System.out.println("[executorCancelsAndCloses] " + tasks);
+
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch stopped = new CountDownLatch(3);
+        for (int i = 0 ; i < 3 ; i++)
+            tasks.submit(() -> {
+                started.countDown();
+                try {
+                    Thread.sleep(60_000);
+                } catch (InterruptedException e) {
+                    stopped.countDown();
+                }
+            });
+        Assertions.assertTrue(started.await(2, TimeUnit.SECONDS));
+        Assertions.assertEquals(3, tasks.running());
+
+        tasks.cancelAll();
+        Assertions.assertTrue(stopped.await(2, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, tasks.running());
+
+        Assertions.assertNull(tasks.submit(() -> { ; }).get(2, TimeUnit.SECONDS));  // still usable after cancelAll()
+        tasks.close();
+        Assertions.assertThrows(RejectedExecutionException.class, () -> tasks.submit(() -> { ; }));
+    }
+
+    @Test
+    public void messageReaderAcrossReads() throws IOException {
+        String first = "h\u00e9llo \u20ac";
+        String second = "{\"a\":\"\ud83d\ude00\"}";
+        byte[] text = (first + "\r\n" + second + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = Framing.encode(second.getBytes(StandardCharsets.UTF_8), Framing.TYPE_JSON, Framing.NO_FLAGS);
+        ByteBuffer all = ByteBuffer.allocate(text.length + frame.remaining()).put(text).put(frame).flip();
+
+            // a channel that gives 3 bytes at a time, splitting the multi-byte characters
+        ReadableByteChannel slow = new ReadableByteChannel() {
+            public boolean isOpen() { return true; }
+            public void close() { ; }
+            public int read(ByteBuffer dst) {
+                if (!all.hasRemaining())
+                    return -1;
+                int n = Math.min(3, Math.min(dst.remaining(), all.remaining()));
+                dst.put(all.slice(all.position(), n));
+                all.position(all.position() + n);
+                return n;
+            }
+        };
+        MessageReader reader = new MessageReader(slow, StandardCharsets.UTF_8);
+        Assertions.assertEquals(first, reader.readLine());
+        Assertions.assertEquals(second, reader.readLine());
+        Framing.Frame f = new Framing.Frame();
+        reader.readFrame(f);
+        Assertions.assertEquals(second, f.text(StandardCharsets.UTF_8));
+        System.out.println("[messageReaderAcrossReads] " + first + " " + f.text(StandardCharsets.UTF_8));
+        Assertions.assertThrows(EOFException.class, () -> reader.readLine());
+    }
+}
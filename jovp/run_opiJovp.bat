@@ -1,3 +1,7 @@
 @echo off
 
-java @..\jopts.txt org.lei.opi.jovp.OpiJovp 51234 
+:: Use the class data sharing archive made by train_opiJovp.bat if there is one (starts faster)
+set CDS=
+if exist opiJovp.jsa set CDS=-XX:SharedArchiveFile=opiJovp.jsa
+
+java %CDS% @..\jopts.txt org.lei.opi.jovp.OpiJovp 51234 
@@ -1,5 +1,7 @@
 #!/bin/bash
 
+PROT="$M2_HOME/repository/org/lei/opi/protocol/0.2.0/protocol-0.2.0.jar"
+VIS="$M2_HOME/repository/org/lei/opi/vision/0.2.0/vision-0.2.0.jar"
 CORE="$M2_HOME/repository/org/lei/opi/core/0.2.0/core-0.2.0.jar"
 OPIJ="$M2_HOME/repository/org/lei/opi/opiJovp/0.2.0/opiJovp-0.2.0.jar"
 JOVP="$M2_HOME/repository/es/optocom/jovp/jovp/0.1.0-SNAPSHOT/jovp-0.1.0-SNAPSHOT.jar"
@@ -15,19 +17,14 @@ JOVP="$M2_HOME/repository/es/optocom/jovp/jovp/0.1.0-SNAPSHOT/jovp-0.1.0-SNAPSHO
 j="/Library/Java/JavaVirtualMachines/jdk-17.0.5.jdk/Contents/Home/bin/java"
 
 
-CP="$CORE:
+# the server needs protocol and vision; core only for the Jovp argument records and calibration files (no JavaFX)
+CP="$PROT:
+    $VIS:
+    $CORE:
     $OPIJ:
     $JOVP:
     $M2_HOME/repository/org/reflections/reflections/0.9.12/reflections-0.9.12.jar:
     $M2_HOME/repository/org/javassist/javassist/3.26.0-GA/javassist-3.26.0-GA.jar:
-    $M2_HOME/repository/org/openjfx/javafx-controls/18.0.2/javafx-controls-18.0.2.jar:
-    $M2_HOME/repository/org/openjfx/javafx-controls/18.0.2/javafx-controls-18.0.2-mac-aarch64.jar:
-    $M2_HOME/repository/org/openjfx/javafx-graphics/18.0.2/javafx-graphics-18.0.2.jar:
-    $M2_HOME/repository/org/openjfx/javafx-graphics/18.0.2/javafx-graphics-18.0.2-mac-aarch64.jar:
-    $M2_HOME/repository/org/openjfx/javafx-base/18.0.2/javafx-base-18.0.2.jar:
-    $M2_HOME/repository/org/openjfx/javafx-base/18.0.2/javafx-base-18.0.2-mac-aarch64.jar:
-    $M2_HOME/repository/org/openjfx/javafx-fxml/18.0.2/javafx-fxml-18.0.2.jar:
-    $M2_HOME/repository/org/openjfx/javafx-fxml/18.0.2/javafx-fxml-18.0.2-mac-aarch64.jar:
     $M2_HOME/repository/com/google/code/gson/gson/2.9.0/gson-2.9.0.jar:
     $M2_HOME/repository/commons-io/commons-io/2.11.0/commons-io-2.11.0.jar:
     $M2_HOME/repository/org/apache/commons/commons-lang3/3.12.0/commons-lang3-3.12.0.jar:
@@ -61,6 +58,13 @@ CP=$(echo $CP | tr -d '\n' | tr -d ' ')
 
 ARGS="-Dorg.lwjgl.vulkan.libname=$VULKAN_SDK/lib/libvulkan.dylib -XstartOnFirstThread"
 
+    # Training run to make a class data sharing archive (starts faster), run again after new jars or JDK:
+    #   $j -XX:ArchiveClassesAtExit=$JSA $ARGS -cp $CP org.lei.opi.jovp.OpiJovp --train 51234
+JSA="$PWD/opiJovp.jsa"
+if [ -f "$JSA" ]; then
+    ARGS="$ARGS -XX:SharedArchiveFile=$JSA"
+fi
+
 echo "$j $ARGS -cp $CP org.lei.opi.jovp.OpiJovp 51234"
 (cd .. ;
 $j $ARGS -cp $CP org.lei.opi.jovp.OpiJovp 51234 
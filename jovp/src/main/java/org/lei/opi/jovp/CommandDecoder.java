@@ -0,0 +1,339 @@
+package org.lei.opi.jovp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.lei.opi.core.JovpPresentArgs;
+import org.lei.opi.core.JovpSetupArgs;
+import org.lei.opi.core.OpiListener;
+import org.lei.opi.core.OpiListener.Command;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming decoder for the commands that arrive at OpiJovp.
+ *
+ * PRESENT, PRESENT_BATCH and SETUP are read field by field with a {@link JsonReader} straight into
+ * primitive arrays and then into {@link Stimulus} and {@link Setup} records, so there is
+ * no HashMap of boxed Doubles and ArrayLists in between. PRESENT and SETUP fields are read by the
+ * readers generated from the @Parameters of Jovp.present and Jovp.setup ({@link JovpPresentArgs}
+ * and {@link JovpSetupArgs}), so they are checked just as the client checked them and optional
+ * fields that are left out get the same defaults. Other commands (and any fields that
+ * arrive before the 'command' field) are read into name:value pairs just like
+ * {@link OpiListener#jsonToPairs}. Senders should therefore put 'command' first.
+ *
+ * DEFINE_PROGRAM reads its templates like the presentations of a PRESENT_BATCH. A PRESENT of one of 
+ * them gives 'program' (straight after 'command'), 'template' and perhaps lum and w, and only those
+ * are read: the Stimulus records were made when the program was defined.
+ *
+ * An instance reuses its scratch arrays, so only one thread may use it at a time.
+ *
+ * @since 0.3.0
+ */
+public class CommandDecoder {
+
+    /** {@value MISSING_FIELD} */
+    static final String MISSING_FIELD = "Field '%s' is missing for %s.";
+    /** {@value SHORT_LIST} */
+    static final String SHORT_LIST = "A list for %s is shorter than stim.length (%s).";
+    /** {@value NOT_AN_OBJECT} */
+    static final String NOT_AN_OBJECT = "Command is not a JSON object.";
+
+    /** Reads any JSON value the same way as {@link OpiListener#jsonToPairs} */
+    private static final TypeAdapter<Object> GENERIC = OpiListener.gson.getAdapter(Object.class);
+
+    /**
+     * The result of decoding one command.
+     * For PRESENT `stimuli` is set (or `template` for a template of a program), for PRESENT_BATCH `batch` is set, 
+     * for SETUP `setup` is set, for DEFINE_PROGRAM `program` is set, otherwise `pairs` holds all fields.
+     *
+     * @param command The OPI command, or null if the command field is missing or not a Command
+     * @param name The value of the command field as sent (null if missing)
+     * @param pairs Name:value pairs of fields not decoded into records
+     * @param setup The Setup record for SETUP
+     * @param stimuli The Stimulus records for PRESENT
+     * @param batch The presentations for PRESENT_BATCH
+     * @param program The templates for DEFINE_PROGRAM
+     * @param template The template for a PRESENT of a template
+     *
+     * @since 0.3.0
+     */
+    public record Decoded(Command command, String name, HashMap<String, Object> pairs, Setup setup, Stimulus[] stimuli, Batch batch,
+                          Program program, Template template) { ; }
+
+    /**
+     * The templates of a DEFINE_PROGRAM command.
+     *
+     * @param name The name of the program
+     * @param templates The Stimulus records of each template
+     *
+     * @since 0.3.0
+     */
+    public record Program(String name, Stimulus[][] templates) { ; }
+
+    /**
+     * A PRESENT of a template of a program.
+     *
+     * @param program The name of the program
+     * @param index Which of its templates (from 0)
+     * @param lum Luminance (cd/m^2) of each stimulus of the template, or null to keep the template's
+     * @param w Response window (ms), or NaN to keep the template's
+     *
+     * @since 0.3.0
+     */
+    public record Template(String program, int index, double[] lum, double w) { ; }
+
+    /**
+     * The presentations of a PRESENT_BATCH command.
+     *
+     * @param presentations The Stimulus records of each presentation
+     * @param isi Inter-stimulus interval (ms) after each presentation; the last is reused if there are more presentations
+     * @param stream True if each Response should be sent as soon as it is available
+     *
+     * @since 0.3.0
+     */
+    public record Batch(Stimulus[][] presentations, double[] isi, boolean stream) {
+        /** @return The pause (ms) after presentation i */
+        public double isiAfter(int i) { return isi[Math.min(i, isi.length - 1)]; }
+    }
+
+    /** Scratch space for reading lists of numbers */
+    private double[] doubles = new double[64];
+
+    /** Reads PRESENT fields, and those of each presentation of a PRESENT_BATCH */
+    private final JovpPresentArgs.Reader present = new JovpPresentArgs.Reader();
+    /** Reads SETUP fields */
+    private final JovpSetupArgs.Reader setup = new JovpSetupArgs.Reader();
+
+        // PRESENT_BATCH fields
+    private Stimulus[][] presentations;
+    private double[] isi;
+    private boolean stream;
+
+        // DEFINE_PROGRAM fields, and those of a PRESENT of a template (when program is set)
+    private String program;
+    private Stimulus[][] templates;
+    private int template;
+    private double[] lum;
+    private double w;
+
+    /**
+     * Decode one command.
+     *
+     * @param json A JSON object that should contain the name 'command'
+     * @return The decoded command
+     * @throws IOException If the JSON is malformed
+     * @throws IllegalArgumentException If a PRESENT, PRESENT_BATCH or SETUP field is missing or has a bad value
+     *
+     * @since 0.3.0
+     */
+    public Decoded decode(String json) throws IOException {
+        return decode(new StringReader(json));
+    }
+
+    /**
+     * Decode one command.
+     *
+     * @param source Characters of a JSON object that should contain the name 'command'
+     * @return The decoded command
+     * @throws IOException If the JSON is malformed
+     * @throws IllegalArgumentException If a PRESENT, PRESENT_BATCH or SETUP field is missing or has a bad value
+     *
+     * @since 0.3.0
+     */
+    public Decoded decode(Reader source) throws IOException {
+        clear();
+        HashMap<String, Object> pairs = new HashMap<String, Object>();
+        String name = null;
+        Command command = null;
+
+        JsonReader in = new JsonReader(source);
+        if (in.peek() != JsonToken.BEGIN_OBJECT)
+            throw new IOException(NOT_AN_OBJECT);
+        in.beginObject();
+        while (in.hasNext()) {
+            String field = in.nextName();
+            if (field.equals("command") && name == null && in.peek() == JsonToken.STRING) {
+                name = in.nextString();
+                command = Command.find(name);
+                pairs.put(field, name);
+            } else if (command == Command.PRESENT)
+                readPresentField(field, in);
+            else if (command == Command.SETUP)
+                readSetupField(field, in);
+            else if (command == Command.PRESENT_BATCH)
+                readBatchField(field, in);
+            else if (command == Command.DEFINE_PROGRAM)
+                readProgramField(field, in);
+            else
+                pairs.put(field, GENERIC.read(in));
+        }
+        in.endObject();
+
+        if (command == Command.PRESENT || command == Command.SETUP || command == Command.PRESENT_BATCH || command == Command.DEFINE_PROGRAM) {
+                // anything that came before the command field
+            for (String field : pairs.keySet())
+                if (!field.equals("command")) {
+                    JsonReader late = new JsonReader(new StringReader(OpiListener.gson.toJson(pairs.get(field))));
+                    switch (command) {
+                        case PRESENT -> readPresentField(field, late);
+                        case SETUP -> readSetupField(field, late);
+                        case DEFINE_PROGRAM -> readProgramField(field, late);
+                        default -> readBatchField(field, late);
+                    }
+                }
+            pairs.clear();
+            pairs.put("command", name);
+        }
+
+        return switch (command == null ? Command.QUERY : command) {
+            case PRESENT -> program != null
+                ? new Decoded(command, name, pairs, null, null, null, null, new Template(program, template, lum, w))
+                : new Decoded(command, name, pairs, null, buildStimuli(present.build()), null, null, null);
+            case SETUP -> new Decoded(command, name, pairs, buildSetup(setup.build()), null, null, null, null);
+            case PRESENT_BATCH -> new Decoded(command, name, pairs, null, null, buildBatch(), null, null);
+            case DEFINE_PROGRAM -> new Decoded(command, name, pairs, null, null, null, buildProgram(), null);
+            default -> new Decoded(command, name, pairs, null, null, null, null, null);
+        };
+    }
+
+    /** Forget the fields of the last command */
+    private void clear() {
+        present.clear();
+        setup.clear();
+        presentations = null; isi = null; stream = false;
+        program = null; templates = null; template = -1; lum = null; w = Double.NaN;
+    }
+
+    /** 
+     * Read one field of a PRESENT command, skipping fields that are not parameters of Jovp.present.
+     * Once 'program' has been read, only the fields of a PRESENT of a template are read.
+     */
+    private void readPresentField(String field, JsonReader in) throws IOException {
+        if (field.equals(OpiListener.PROGRAM))
+            program = in.nextString();
+        else if (program == null) {
+            if (!present.field(field, in))
+                in.skipValue();
+        } else switch (field) {
+            case OpiListener.TEMPLATE -> template = (int) readDouble(in);
+            case "lum" -> lum = readDoubles(in);
+            case "w" -> w = readDouble(in);
+            default -> in.skipValue();
+        }
+    }
+
+    /** Read one field of a DEFINE_PROGRAM command, skipping unknown fields */
+    private void readProgramField(String field, JsonReader in) throws IOException {
+        switch (field) {
+            case OpiListener.PROGRAM -> program = in.nextString();
+            case OpiListener.TEMPLATES -> templates = readPresentations(in);
+            default -> in.skipValue();
+        }
+    }
+
+    /** Read one field of a SETUP command, skipping fields that are not parameters of Jovp.setup */
+    private void readSetupField(String field, JsonReader in) throws IOException {
+        if (!setup.field(field, in))
+            in.skipValue();
+    }
+
+    /** Read one field of a PRESENT_BATCH command, skipping unknown fields */
+    private void readBatchField(String field, JsonReader in) throws IOException {
+        switch (field) {
+            case "presentations" -> presentations = readPresentations(in);
+            case "isi" -> isi = readDoubles(in);
+            case "stream" -> stream = in.peek() == JsonToken.BOOLEAN ? in.nextBoolean() : readDouble(in) != 0;
+            default -> in.skipValue();
+        }
+    }
+
+    /** Read a list of PRESENT objects (without 'command') into Stimulus records */
+    private Stimulus[][] readPresentations(JsonReader in) throws IOException {
+        Stimulus[][] result = new Stimulus[8][];
+        int n = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (n == result.length)
+                result = Arrays.copyOf(result, 2 * n);
+            result[n++] = buildStimuli(present.readObject(in));
+        }
+        in.endArray();
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /** Build the Batch record from the PRESENT_BATCH fields */
+    private Batch buildBatch() {
+        if (presentations == null)
+            throw new IllegalArgumentException(String.format(MISSING_FIELD, "presentations", Command.PRESENT_BATCH));
+        return new Batch(presentations, isi == null || isi.length == 0 ? new double[] {0} : isi, stream);
+    }
+
+    /** Build the Program record from the DEFINE_PROGRAM fields */
+    private Program buildProgram() {
+        if (program == null)
+            throw new IllegalArgumentException(String.format(MISSING_FIELD, OpiListener.PROGRAM, Command.DEFINE_PROGRAM));
+        if (templates == null)
+            throw new IllegalArgumentException(String.format(MISSING_FIELD, OpiListener.TEMPLATES, Command.DEFINE_PROGRAM));
+        return new Program(program, templates);
+    }
+
+    /** Build the Stimulus records from the arguments of a PRESENT, one for each of stim.length */
+    private static Stimulus[] buildStimuli(JovpPresentArgs a) {
+        Stimulus[] stimuli = new Stimulus[a.stimLength()];
+        try {
+            for (int i = 0 ; i < stimuli.length ; i++)
+                stimuli[i] = new Stimulus(a.eye()[i], a.shape()[i], a.type()[i],
+                    a.x()[i], a.y()[i], a.sx()[i], a.sy()[i], a.lum()[i], rgba(a.color1()[i]), rgba(a.color2()[i]),
+                    a.rotation()[i], a.contrast()[i], a.phase()[i], a.frequency()[i], a.defocus()[i], a.texRotation()[i],
+                    a.t()[i], a.w(), a.imageFilename()[i], a.fullFoV()[i], a.optotype()[i], a.envType()[i],
+                    a.envSdx()[i], a.envSdy()[i], a.envRotation()[i]);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException(String.format(SHORT_LIST, Command.PRESENT, a.stimLength()), e);
+        }
+        return stimuli;
+    }
+
+    /** Build the Setup record from the arguments of a SETUP */
+    private static Setup buildSetup(JovpSetupArgs a) {
+        return new Setup(a.eye(), a.bgCol(), a.bgLum(), a.fixShape(), a.fixType(), a.fixCol(), a.fixLum(),
+            a.fixCx(), a.fixCy(), a.fixSx(), a.fixSy(), a.fixImageFilename(), a.fixRotation(), a.tracking(), a.bgImageFilename());
+    }
+
+    /** @return [r, g, b, 1] from the first three values of c */
+    private static double[] rgba(double[] c) {
+        return new double[] {c[0], c[1], c[2], 1};
+    }
+
+    /** Read a number, or the first number of a list */
+    private static double readDouble(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY)
+            return in.nextDouble();
+        in.beginArray();
+        double d = in.nextDouble();
+        while (in.hasNext())
+            in.skipValue();
+        in.endArray();
+        return d;
+    }
+
+    /** Read a list of numbers (or a single number as a list of one) */
+    private double[] readDoubles(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY)
+            return new double[] {in.nextDouble()};
+        in.beginArray();
+        int n = 0;
+        while (in.hasNext()) {
+            if (n == doubles.length)
+                doubles = Arrays.copyOf(doubles, 2 * n);
+            doubles[n++] = in.nextDouble();
+        }
+        in.endArray();
+        return Arrays.copyOf(doubles, n);
+    }
+}
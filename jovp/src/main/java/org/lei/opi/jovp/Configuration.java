@@ -11,7 +11,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 
 import org.apache.commons.io.IOUtils;
-import org.lei.opi.core.Jovp;
+import org.lei.opi.core.OpiListener;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -34,12 +34,14 @@ import es.optocom.jovp.definitions.ViewMode;
  * @param invGammaFile path of the display-specific calibration file of R, G, B inv gamma functions
  * @param calibration the RGB calibration data
  * @param webcam Information about eye monitoring cameras and where they should be streamed 
+ * @param presentGrace How long (ms) to wait for the response to a presentation after its stimuli and response window are over
+ * @param buttonLag How long (ms) a button press takes to reach OpiLogic, taken off the time of each press
  *
  * @since 0.0.1
  */
 public record Configuration(Machine machine, int screen, int[] physicalSize, boolean pseudoGray, boolean fullScreen, int distance,
                            ViewMode viewMode, String input, boolean tracking, String invGammaFile, Calibration calibration,
-                           WebCamConfiguration webcam) {
+                           WebCamConfiguration webcam, long presentGrace, double buttonLag) {
 
     /** Implemented display-based machines */
     public enum Machine {IMOVIFA, PICOVR, PHONEHMD, DISPLAY}
@@ -50,6 +52,10 @@ public record Configuration(Machine machine, int screen, int[] physicalSize, boo
     static final boolean VALIDATION_LAYERS = false; // PsychoEngine.VALIDATION_LAYERS;
     /** {@value API_DUMP} */
     static final boolean API_DUMP = false;
+    /** Wait (ms) for a response after a presentation if the settings do not give presentGrace: {@value DEFAULT_PRESENT_GRACE} (longer than a PendingResponse waits for the cameras) */
+    static final long DEFAULT_PRESENT_GRACE = 10000;
+    /** Button lag (ms) if the settings do not give buttonLag: {@value DEFAULT_BUTTON_LAG} */
+    static final double DEFAULT_BUTTON_LAG = 30;
 
     /** {@value MISSING_MACHINE} */
     private static final String MISSING_MACHINE = "A machine name should be in the args HashMap passed to Configuration.set()";
@@ -101,10 +107,13 @@ public record Configuration(Machine machine, int screen, int[] physicalSize, boo
 
         String invGammaFile = args.get("gammaFile").toString();
 
+        long presentGrace = args.get("presentGrace") instanceof Number n && n.doubleValue() > 0 ? Math.round(n.doubleValue()) : DEFAULT_PRESENT_GRACE;
+        double buttonLag = args.get("buttonLag") instanceof Number n && n.doubleValue() >= 0 ? n.doubleValue() : DEFAULT_BUTTON_LAG;
+
         return new Configuration(machine, screen, physicalSize, (boolean) args.get("pseudoGray"), (boolean) args.get("fullScreen"),
                                  distance, viewMode, args.get("input").toString().toUpperCase(),
                                  (boolean) args.get("tracking"), invGammaFile, loadCalibration(invGammaFile), 
-                                 WebCamConfiguration.set(args));
+                                 WebCamConfiguration.set(args), presentGrace, buttonLag);
     }
 
     /**
@@ -162,7 +171,7 @@ public record Configuration(Machine machine, int screen, int[] physicalSize, boo
      * @since 0.0.1
      */
     private static String calibrationFromResources(String file) throws IOException {
-      InputStream inputStream = Jovp.class.getResourceAsStream(file);
+      InputStream inputStream = OpiListener.class.getResourceAsStream(file);   // same package as Jovp, without loading the machines
       return IOUtils.toString(inputStream, String.valueOf(StandardCharsets.UTF_8));
     }
 
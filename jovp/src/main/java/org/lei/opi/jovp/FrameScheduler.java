@@ -0,0 +1,107 @@
+package org.lei.opi.jovp;
+
+import org.lei.opi.core.OpiClock;
+
+/**
+ * Counts the frames drawn by the PsychoEngine and turns stimulus times (ms) into frames so that
+ * OpiLogic can switch stimuli on frame boundaries rather than whenever the wall clock says.
+ *
+ * OpiLogic calls {@link #tick(long)} at the start of each update (once per frame). Frame 0 is the
+ * first tick and frame n is due n refresh intervals after it. A tick that comes late enough to
+ * have missed a refresh is numbered by its time, so a dropped frame shows up as a skipped number
+ * and durations still end on the frame they were planned for.
+ *
+ * @since 0.3.0
+ */
+final class FrameScheduler {
+
+    /** Refresh rate (Hz) to assume if the monitor does not give one: {@value DEFAULT_REFRESH_RATE} */
+    static final double DEFAULT_REFRESH_RATE = 60;
+    /** A time (ns, from OpiClock) that is not known yet: {@value UNSET}. Not -1, as nanoTime can be negative. */
+    static final long UNSET = Long.MIN_VALUE;
+
+    /**
+     * When a presentation was planned to start and stop, and when it did.
+     * Frames are numbered from the engine's first frame, times are ms since then.
+     *
+     * @param plannedOnsetFrame Frame on which the stimulus should have come on (the PRESENT, or the end of the isi in a batch)
+     * @param onsetFrame Frame on which it came on
+     * @param plannedOffsetFrame Frame on which it should go off: the onset plus its t values in frames
+     * @param offsetFrame Frame on which it went off (early if the button was pressed first)
+     * @param plannedOnsetTime Time of plannedOnsetFrame if every frame were on time (ms)
+     * @param onsetTime Time of the onset frame (ms)
+     * @param plannedOffsetTime Time of plannedOffsetFrame if every frame were on time (ms)
+     * @param offsetTime Time of the offset frame (ms)
+     *
+     * @since 0.3.0
+     */
+    public record Timing(long plannedOnsetFrame, long onsetFrame, long plannedOffsetFrame, long offsetFrame,
+                         double plannedOnsetTime, double onsetTime, double plannedOffsetTime, double offsetTime) {
+        /** No frame information (eg for QUERY) */
+        static final Timing NONE = new Timing(-1, -1, -1, -1, -1, -1, -1, -1);
+    }
+
+    /** Length of a frame (ns) */
+    private final long frameNanos;
+    /** True once the first tick has set origin */
+    private boolean started = false;
+    /** Time of frame 0 (ns, from OpiClock) */
+    private long origin;
+    /** The current frame (-1 before the first tick) */
+    private long frame = -1;
+    /** Time of the current frame's tick (ns), or UNSET before the first tick */
+    private long frameTime = UNSET;
+
+    /**
+     * @param refreshRate Frames per second of the display (if not positive, {@value DEFAULT_REFRESH_RATE} is used)
+     *
+     * @since 0.3.0
+     */
+    FrameScheduler(double refreshRate) {
+        if (refreshRate <= 0) {
+            System.out.println(String.format("Unknown refresh rate. Assuming %s Hz", DEFAULT_REFRESH_RATE));
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        this.frameNanos = Math.round(1e9 / refreshRate);
+    }
+
+    /**
+     * Start a new frame.
+     *
+     * @param now The time now (ns, from OpiClock)
+     * @return The number of the new frame
+     *
+     * @since 0.3.0
+     */
+    long tick(long now) {
+        if (!started) {
+            started = true;
+            origin = now;
+            frame = 0;
+        } else
+            frame = Math.max(frame + 1, Math.round((double) (now - origin) / frameNanos));
+        frameTime = now;
+        return frame;
+    }
+
+    /** @return The current frame (-1 before the first tick) */
+    long frame() { return frame; }
+
+    /** @return Time of the current frame's tick (ns, from OpiClock), or {@link #UNSET} before the first tick */
+    long frameTime() { return frameTime; }
+
+    /** @return The length of a frame (ms) */
+    double frameMillis() { return OpiClock.toMillis(frameNanos); }
+
+    /**
+     * @param ms A duration, eg Stimulus.t()
+     * @return The nearest whole number of frames to ms
+     */
+    long frames(double ms) { return Math.round(OpiClock.fromMillis(ms) / (double) frameNanos); }
+
+    /** @return When frame n is due (ms since frame 0) */
+    double plannedMillis(long n) { return n < 0 ? -1 : OpiClock.toMillis(n * frameNanos); }
+
+    /** @return time (ns, from OpiClock) as ms since frame 0, or -1 if time is {@link #UNSET} or there has been no tick */
+    double millis(long time) { return time == UNSET || !started ? -1 : OpiClock.toMillis(time - origin); }
+}
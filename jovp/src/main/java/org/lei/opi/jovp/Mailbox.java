@@ -0,0 +1,145 @@
+package org.lei.opi.jovp;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A one slot mailbox that hands commands from one thread (the sender, eg the OpiListener thread
+ * running a command) to another (the receiver, eg the render thread in OpiLogic) and tells the
+ * sender when the receiver has carried each one out.
+ *
+ * The receiver looks at the box with {@link #peek()}, which never blocks so it can be called
+ * once per frame, and calls {@link #done()} when it has carried out what it found. That empties
+ * the box and wakes its sender. A sender waits (parked, not sleeping) for the box to be empty
+ * before putting a command in, so commands are never overwritten. Everything the sender wrote
+ * before putting a command in is visible to the receiver once it sees the command, and
+ * everything the receiver wrote before done() is visible to the sender once it wakes.
+ *
+ * There should be one receiver at a time, and senders should take turns (eg OpiJovp holds a
+ * lock while it runs a command) as only one can wait for the box at once.
+ *
+ * @param <T> What is sent
+ *
+ * @since 0.3.0
+ */
+final class Mailbox<T> {
+
+    /** One command in the box and who sent it */
+    private static final class Letter<T> {
+        final T item;
+        final Thread sender;
+        volatile boolean done = false;
+
+        Letter(T item, Thread sender) {
+            this.item = item;
+            this.sender = sender;
+        }
+    }
+
+    /** The command waiting to be carried out, or null if the box is empty */
+    private final AtomicReference<Letter<T>> box = new AtomicReference<Letter<T>>();
+    /** A sender parked until the box is empty (or null) */
+    private volatile Thread waitingSender = null;
+    /** The receiver parked in take() (or null) */
+    private volatile Thread waitingReceiver = null;
+
+    /**
+     * Put item in the box (waiting for it to be empty first) and return without waiting for it to be carried out.
+     *
+     * @param item The command
+     * @throws InterruptedException If interrupted while waiting for the box, in which case item was not sent
+     *
+     * @since 0.3.0
+     */
+    void send(T item) throws InterruptedException {
+        put(item);
+    }
+
+    /**
+     * Put item in the box (waiting for it to be empty first) and wait until the receiver has carried it out.
+     *
+     * @param item The command
+     * @throws InterruptedException If interrupted while waiting. The item may or may not have been sent.
+     *
+     * @since 0.3.0
+     */
+    void post(T item) throws InterruptedException {
+        Letter<T> letter = put(item);
+        while (!letter.done) {
+            LockSupport.park(this);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    /** @return The letter for item once it is in the box */
+    private Letter<T> put(T item) throws InterruptedException {
+        Letter<T> letter = new Letter<T>(item, Thread.currentThread());
+        while (!box.compareAndSet(null, letter)) {
+            waitingSender = letter.sender;
+            if (box.get() != null)    // look again now done() will see waitingSender
+                LockSupport.park(this);
+            waitingSender = null;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        Thread r = waitingReceiver;
+        if (r != null)
+            LockSupport.unpark(r);
+        return letter;
+    }
+
+    /**
+     * For the receiver: the command in the box, without taking it out or blocking.
+     * It stays in the box (and is returned again) until {@link #done()}.
+     *
+     * @return The command, or null if the box is empty
+     *
+     * @since 0.3.0
+     */
+    T peek() {
+        Letter<T> letter = box.get();
+        return letter == null ? null : letter.item;
+    }
+
+    /**
+     * For the receiver: wait until there is a command in the box.
+     * It stays in the box until {@link #done()}.
+     *
+     * @return The command
+     * @throws InterruptedException If interrupted while waiting
+     *
+     * @since 0.3.0
+     */
+    T take() throws InterruptedException {
+        waitingReceiver = Thread.currentThread();
+        try {
+            Letter<T> letter;
+            while ((letter = box.get()) == null) {
+                LockSupport.park(this);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return letter.item;
+        } finally {
+            waitingReceiver = null;
+        }
+    }
+
+    /**
+     * For the receiver: the command in the box has been carried out.
+     * Empty the box and wake its sender (and any sender waiting to put the next one in).
+     *
+     * @since 0.3.0
+     */
+    void done() {
+        Letter<T> letter = box.getAndSet(null);
+        if (letter == null)
+            return;
+        letter.done = true;
+        LockSupport.unpark(letter.sender);
+        Thread w = waitingSender;
+        if (w != null)
+            LockSupport.unpark(w);
+    }
+}
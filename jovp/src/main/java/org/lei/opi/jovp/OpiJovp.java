@@ -1,18 +1,36 @@
 package org.lei.opi.jovp;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
+import java.util.concurrent.TimeoutException;
 
+import org.lei.opi.core.OpiClock;
 import org.lei.opi.core.OpiListener;
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiSession;
+import org.lei.opi.core.Startup;
 import org.lei.opi.core.definitions.Packet;
-import org.lei.opi.core.definitions.PupilRequest;
 import org.lei.opi.core.definitions.PupilResponse;
 
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
 
 import es.optocom.jovp.PsychoEngine;
 import es.optocom.jovp.definitions.ViewEye;
@@ -27,15 +45,26 @@ import es.optocom.jovp.MonitorSerializer;
  * The OPI JOVP server.
  * Makes use of the OpiListener to get a SocketServer thread, but does not give it an OpiMachine, 
  * instead overriding the process() method here to not make use of an OpiMachine.
+ * The listener runs in multi-client mode so that several clients (eg a Monitor and a watchdog)
+ * can be connected at once. Their commands are run one at a time as they all drive the one PsychoEngine,
+ * except QUERY which only reads state and so can be answered (to a command with an 'id') 
+ * while a PRESENT is still waiting for its response, and PING which is answered at once
+ * with the server's timestamps (see OpiMachine.ping() in the core module).
  *
- * As the psychoEngine has to be kicked off in the main thread, we need to have 
- * this application 'busy-waiting' on the main thread. Actions are triggered by
- * changing the `action` variable to values of `Action`.
+ * A successful INITIALIZE gives the client a session token. If its connection drops, the client 
+ * can connect again and send RESUME with the token to carry on with the same Configuration, 
+ * backgrounds, psychoEngine and cameras. Replies that finished while it was gone are kept
+ * (up to {@value MAX_HELD}) and sent to it first.
+ *
+ * As the psychoEngine has to be kicked off in the main thread, the main thread waits (parked)
+ * for the first SHOW. After that, actions are posted to a {@link Mailbox} that OpiLogic looks in
+ * once per frame without blocking. The command that posted an action waits (parked) until OpiLogic
+ * has carried it out and calls {@link #actionDone()}.
  * 
                 OpiListener Thread                      |               Main thread
                     (this class)                        |              (OpiLogic class)
                                                         |
-Receive initialise --> action = SHOW                    |  SHOW----->  Create psychoEngine with OpiLogic
+Receive initialise --> post SHOW                        |  SHOW----->  Create psychoEngine with OpiLogic
                                                         |
 Receive query -------> if configuration & psychoengine  |  SETUP ----> Set backgrounds & fixations
                        exist, return data, else return  |
@@ -43,11 +72,14 @@ Receive query -------> if configuration & psychoengine  |  SETUP ----> Set backg
                        Have you called initialise?      |
                                                         |  CLOSE ----> Shut down everything
 Receive setup -------> Set some things                  |
-                       action = SETUP                   |   null       Check if we are presenting or
+                       post SETUP                       |   null       Check if we are presenting or
                                                         |              waiting for a response.
-Receive present------> action = PRESENT                 |              If we have a response, pass back
-                       busy-wait until response is set  |              to the server (OpiJovp).
-                       (ie do not change action)        |
+Receive present------> post PRESENT                     |              If we have a response, pass back
+                       wait for the response future     |              to the server (OpiJovp).
+                                                        |
+Receive present_batch> post PRESENT_BATCH               |  PRESENT_BATCH -> As for PRESENT, then after each
+                       take each response from the      |              response wait the isi and start the
+                       batch queue (streaming if asked) |              next presentation of the batch.
 
   
  * @since 0.0.1
@@ -60,8 +92,8 @@ public class OpiJovp extends OpiListener {
     private static final String INITIALIZED = "INITIALIZE successful";
     /** {@value INITIALIZE_FAILED =} */
     private static final String INITIALIZE_FAILED = "INITIALIZE failed";
-    /** {@value SETUP_FAILED} */
-    private static final String SETUP_FAILED = "SETUP failed";
+    /** {@value BAD_ARGUMENTS} */
+    private static final String BAD_ARGUMENTS = "Bad or missing arguments";
     /** {@value PRESENT_FAILED} */
     protected static final String PRESENT_FAILED = "An error occurred during PRESENT command";
     /** {@value NO_BOTH_IN_MONO} */
@@ -72,6 +104,45 @@ public class OpiJovp extends OpiListener {
     protected static final String NO_RIGHT_BACKGROUND = "You have asked to PRESENT in the right/both eye/s but you have not called `setup` on the right/both eye/s.";
     /** {@value CLOSED} */
     private static final String CLOSED = "CLOSE successful";
+    /** {@value EMPTY_BATCH} */
+    protected static final String EMPTY_BATCH = "PRESENT_BATCH needs at least one presentation.";
+    /** {@value BATCH_ELEMENT} */
+    protected static final String BATCH_ELEMENT = "Presentation %s of the batch: %s";
+    /** {@value EMPTY_TEMPLATE} */
+    protected static final String EMPTY_TEMPLATE = "A template needs at least one stimulus.";
+    /** {@value TEMPLATE_ELEMENT} */
+    protected static final String TEMPLATE_ELEMENT = "Template %s of the program: %s";
+    /** {@value UNKNOWN_PROGRAM} */
+    protected static final String UNKNOWN_PROGRAM = "There is no program '%s'. Send DEFINE_PROGRAM first.";
+    /** {@value NO_TEMPLATE} */
+    protected static final String NO_TEMPLATE = "Program '%s' has no template %s.";
+    /** {@value RESUMED} */
+    private static final String RESUMED = "RESUME successful";
+    /** {@value NOT_INITIALIZED} */
+    private static final String NOT_INITIALIZED = "Cannot RESUME as the server has not been initialised. Call opiInitialise()";
+    /** {@value BAD_TOKEN} */
+    private static final String BAD_TOKEN = "Cannot RESUME with that token. Has the server been restarted or initialised again?";
+    /** Name in the msg of the INITIALIZE and RESUME replies of the message: {@value MESSAGE} */
+    private static final String MESSAGE = "message";
+    /** Most replies kept for a disconnected client: {@value MAX_HELD} */
+    static final int MAX_HELD = 32;
+    /** One of each kind of command, decoded by a training run (see {@link #train()}) */
+    private static final String[] TRAINING_COMMANDS = {
+        "{\"command\":\"initialize\",\"screen\":0,\"physicalSize\":[],\"tracking\":false}",
+        "{\"command\":\"setup\",\"eye\":\"both\",\"bgLum\":10,\"bgCol\":[1,1,1],\"fixShape\":\"maltese\"}",
+        "{\"command\":\"present\",\"stim.length\":1,\"eye\":[\"left\"],\"x\":[0],\"y\":[0],\"sx\":[0.43],\"sy\":[0.43],"
+            + "\"t\":[200],\"w\":1500,\"lum\":[100],\"color1\":[[1,1,1]]}",
+        "{\"command\":\"present_batch\",\"isi\":[100],\"presentations\":[{\"stim.length\":1,\"eye\":[\"left\"],\"x\":[0],\"y\":[0],"
+            + "\"sx\":[0.43],\"sy\":[0.43],\"t\":[200],\"w\":1500,\"lum\":[100],\"color1\":[[1,1,1]]}]}",
+        "{\"command\":\"define_program\",\"program\":\"train\",\"templates\":[{\"stim.length\":1,\"eye\":[\"left\"],\"x\":[0],\"y\":[0],"
+            + "\"sx\":[0.43],\"sy\":[0.43],\"t\":[200],\"w\":1500,\"lum\":[100],\"color1\":[[1,1,1]]}]}",
+        "{\"command\":\"present\",\"program\":\"train\",\"template\":0,\"lum\":[50],\"w\":1500}",
+        "{\"command\":\"close\"}"
+    };
+    /** {@value NO_RESPONSE} */
+    protected static final String NO_RESPONSE = "No response to the presentation within %s ms";
+    /** {@value INTERRUPTED} */
+    private static final String INTERRUPTED = "Interrupted while waiting for the PsychoEngine to carry out %s";
     /** {@value UNIMPLEMENTED_FORMAT} */
     private static final String UNIMPLEMENTED_FORMAT = "%s: Parameter %s is not implemented for value %s in function %s.";
    
@@ -85,39 +156,146 @@ public class OpiJovp extends OpiListener {
     private Setup[] backgrounds;
     /** An array of stimulus records that sit here for OpiLogic to interrogate */
     private Stimulus[] stimuli;
-    /** A record to record the results after a stimulus presentation */
-    private Response response = null;
+    /** The template being presented (its program's prepared Items are shown), or null if `stimuli` is not a template */
+    private CommandDecoder.Template template = null;
+    /** The program that OpiLogic is to prepare for DEFINE_PROGRAM */
+    private CommandDecoder.Program defining = null;
+    /** Programs from DEFINE_PROGRAM: name : Stimulus records of its templates (only used holding commandLock) */
+    private final HashMap<String, Stimulus[][]> programs = new HashMap<String, Stimulus[][]>();
+    /** Completed with the response of the PRESENT being posted (set before it is posted, main thread takes it) */
+    private CompletableFuture<Response> posted = null;
+    /** Completed with the response of the PRESENT being shown, until its PendingResponse takes it (main thread only) */
+    private CompletableFuture<Response> showing = null;
+    /** The PRESENT_BATCH being run, or null if not running a batch */
+    private volatile CommandDecoder.Batch batch = null;
+    /** Index into batch.presentations() of the presentation in `stimuli` */
+    private int batchIndex;
+    /** Completed with the response of each presentation of the batch, by index (set before the batch is posted) */
+    private List<CompletableFuture<Response>> batchResults = null;
+
+    /**
+     * The client that holds the session token from an INITIALIZE, and what it needs to RESUME.
+     * Each INITIALIZE makes a new one, so nothing is carried from one token to the next.
+     * Ids are compared as JsonElements, so 3 in a command and 3.0 in a RESUME are the same id.
+     *
+     * @since 0.3.0
+     */
+    private static final class TokenHolder {
+        /** Token needed to RESUME */
+        final String token;
+        /** The session that did the INITIALIZE or the last RESUME */
+        volatile OpiSession session;
+        /** The session that held the token before the last RESUME (its late replies go on to session), or null */
+        volatile OpiSession previous = null;
+        /** Replies for the token's sessions that could not be delivered, oldest first */
+        final ConcurrentLinkedQueue<Packet> held = new ConcurrentLinkedQueue<Packet>();
+        /** Id : session of the commands from the token's session that are not yet answered */
+        final ConcurrentHashMap<JsonElement, OpiSession> inProgress = new ConcurrentHashMap<JsonElement, OpiSession>();
+
+        TokenHolder(String token, OpiSession session) {
+            this.token = token;
+            this.session = session;
+        }
+
+        /** Keep a reply until the next RESUME, dropping the oldest beyond {@value MAX_HELD} */
+        void hold(Packet reply) {
+            held.add(reply);
+            while (held.size() > MAX_HELD)
+                held.poll();
+        }
+    }
 
     /** Machine actions to trigger actions on the main thread. */
     public enum Action {
         SHOW,    // initialise obtained, configuration done, create psychoengine
         SETUP,   // psychoengine is up and running, execute setup 
         PRESENT, // begin a presentation
+        PRESENT_BATCH, // begin the first presentation of a batch
+        DEFINE_PROGRAM, // prepare the Items of a program's templates
         CLOSE};  // all done
 
-    private Action action;  // set by calls from the server OpiListener thread and acted upon on main thread (and reset to null there)
+    /** Commands from different clients are processed one at a time */
+    private final Object commandLock = new Object();
+    /** The client holding the token of the last successful INITIALIZE (null if not initialised) */
+    private volatile TokenHolder holder = null;
+    /** Idle decoders for incoming commands (they reuse buffers, and workers may be short-lived virtual threads, so pool them rather than one per thread) */
+    private final ConcurrentLinkedQueue<CommandDecoder> decoders = new ConcurrentLinkedQueue<CommandDecoder>();
+
+    /** Actions posted by commands on the OpiListener threads for the main thread to carry out */
+    private final Mailbox<Action> actions = new Mailbox<Action>();
 
     public Configuration getConfiguration() { return configuration; }
-    public Action getAction() { return action; }
+    /** @return The action waiting to be carried out on the main thread, or null if there is none (does not block) */
+    public Action getAction() { return actions.peek(); }
     public Setup[] getBackgrounds() { return backgrounds; }
     public Stimulus getStimulus(int i) throws ArrayIndexOutOfBoundsException { return stimuli[i]; }
     public int getStimuliLength() { return stimuli.length; }
+    /** @return The template being presented, or null if the stimuli are not a template */
+    public CommandDecoder.Template getTemplate() { return template; }
+    /** @return The program to prepare for the DEFINE_PROGRAM action */
+    public CommandDecoder.Program getDefining() { return defining; }
+
+    /**
+     * Called on the main thread as OpiLogic starts the presentation of a PRESENT or PRESENT_BATCH,
+     * so that the {@link PendingResponse} built when it ends completes this PRESENT and no other.
+     *
+     * @since 0.3.0
+     */
+    public void presentStarted() {
+        showing = posted;
+        posted = null;
+    }
+
+    /**
+     * How long to wait for the response to a presentation: until its stimuli and
+     * response window are over, and then some grace.
+     *
+     * @param stimuli The stimuli of the presentation
+     * @param grace Extra time (ms), eg {@link Configuration#presentGrace()}
+     * @return Time to wait in ms
+     *
+     * @since 0.3.0
+     */
+    static long responseTimeout(Stimulus[] stimuli, long grace) {
+        double t = 0;
+        for (Stimulus s : stimuli)
+            t += s.t();
+        return Math.round(Math.max(t, stimuli[stimuli.length - 1].w())) + grace;
+    }
 
-    public void setResponse(Response response) { this.response = response; }
+    /**
+     * Called by OpiLogic when a presentation of a batch has its response: 
+     * move `stimuli` along to the next presentation.
+     *
+     * @return The pause (ms) before the next presentation, or -1 if there is no batch or it is finished
+     *
+     * @since 0.3.0
+     */
+    public double nextInBatch() {
+        CommandDecoder.Batch b = batch;
+        if (b == null || batchIndex >= b.presentations().length - 1)
+            return -1;
+        double isi = b.isiAfter(batchIndex);
+        stimuli = b.presentations()[++batchIndex];
+        return isi;
+    }
 
-    // Don't interrupt another action. Wait until it is finished (ie action is set to null by OPILogic)
-    // TODO replace this pair of functions with a Semaphore or Condition
-    private void setAction(Action a) {
-      while (this.action != null) {
-        try { Thread.sleep(10); } catch (InterruptedException ignored) {; }
-      }
-      this.action = a;
+    /**
+     * Post an action for the main thread, after any action before it has finished, 
+     * and wait until the main thread has carried it out.
+     *
+     * @param a The action
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private void setAction(Action a) throws InterruptedException {
+        actions.post(a);
     }
-    public void setActionToNull() { action = null; }
+
+    /** Called on the main thread when the action from {@link #getAction()} has been carried out */
+    public void actionDone() { actions.done(); }
    
     public OpiJovp(int port) { 
-        super(port, null);   // do not give a machine to the OpiListener as we override the process() method here and the machine is not needed.
-        this.action = null;
+        super(port, null, true);   // do not give a machine to the OpiListener as we override the process() method here and the machine is not needed.
 
         gsonBuilder.registerTypeAdapter(Response.class, new Response());
         gsonBuilder.registerTypeAdapter(Query.class, new QuerySerializer());
@@ -136,39 +314,48 @@ public class OpiJovp extends OpiListener {
     public void startPsychoEngine() {
         // Have to start PsychoEngine on the main thread (as it uses GLFW)
         // so we cannot trigger it from the server OpiListener thread.
-        // So we will just spin here on the main thread until we can progress (action == SHOW)
-        // TODO replace this with a Semaphore or Condition
-        while (this.action != Action.SHOW) {
-          try { Thread.sleep(500);} catch(InterruptedException ignored) { ; }
-        }
-
-        if (configuration == null) {
-            System.out.println("Cannot start the psychoEngine with a null configuration");
+        // So we wait here on the main thread until INITIALIZE posts SHOW (or CLOSE comes first).
+        try {
+            for (Action a = actions.take() ; a != Action.SHOW ; a = actions.take()) {
+                actions.done();
+                if (a == Action.CLOSE)
+                    return;
+            }
+        } catch (InterruptedException e) {
             return;
         }
 
-        psychoEngine = new PsychoEngine(new OpiLogic(this), configuration.distance(), Configuration.VALIDATION_LAYERS, Configuration.API_DUMP);
+        try {
+            if (configuration == null) {
+                System.out.println("Cannot start the psychoEngine with a null configuration");
+                return;
+            }
 
-        psychoEngine.hide();
-        psychoEngine.setMonitor(configuration.screen());
+            psychoEngine = new PsychoEngine(new OpiLogic(this), configuration.distance(), Configuration.VALIDATION_LAYERS, Configuration.API_DUMP);
 
-        psychoEngine.setViewMode(configuration.viewMode());
+            psychoEngine.hide();
+            psychoEngine.setMonitor(configuration.screen());
 
-        if(configuration.physicalSize().length != 0)
-            psychoEngine.setPhysicalSize(configuration.physicalSize()[0], configuration.physicalSize()[1]);
+            psychoEngine.setViewMode(configuration.viewMode());
 
-        if (configuration.fullScreen()) psychoEngine.setFullScreen();
+            if(configuration.physicalSize().length != 0)
+                psychoEngine.setPhysicalSize(configuration.physicalSize()[0], configuration.physicalSize()[1]);
 
-        this.action = null; 
+            if (configuration.fullScreen()) psychoEngine.setFullScreen();
+
+            Startup.mark("psychoEngine created");
+            System.out.print(Startup.report());
+        } finally {
+            actions.done();   // SHOW is done: INITIALIZE can reply
+        }
         psychoEngine.start(configuration.input(), Paradigm.CLICKER);
 
         this.psychoEngine.cleanup();
     }
 
     /**
-    * Process incoming Json commands. If it is a 'choose' command, then
-    * set the private field machine to a new instance of that machine.
-    * If it is another command, then process it using the machine object.
+    * Process incoming Json commands. PRESENT and SETUP are decoded straight into 
+    * Stimulus and Setup records by a {@link CommandDecoder}; other commands get name:value pairs.
     *
     * @param jsonStr A JSON object that at least contains the name 'command'.
     * 
@@ -178,29 +365,128 @@ public class OpiJovp extends OpiListener {
     */
     @Override
     public Packet process(String jsonStr) {
-        HashMap<String, Object> pairs;
+        CommandDecoder.Decoded d;
+        CommandDecoder decoder = decoders.poll();
+        if (decoder == null)
+            decoder = new CommandDecoder();
         try {
-            pairs = OpiListener.jsonToPairs(jsonStr);
-        } catch (JsonSyntaxException e) {
+            d = decoder.decode(jsonStr);
+        } catch (IOException | IllegalStateException | JsonParseException e) {
             return Packet.error(prefix + "Bad JSON", e);
+        } catch (IllegalArgumentException e) {
+            return Packet.error(prefix + BAD_ARGUMENTS, e);
+        } finally {
+            decoders.offer(decoder);
         }
 
-        if (!pairs.containsKey("command")) // needs a command
+        if (d.name() == null) // needs a command
             return Packet.error(prefix + OpiListener.NO_COMMAND_FIELD);
-        String cmd = pairs.get("command").toString();
 
         // check it is a valid command from Command.*
-        if (!Stream.of(OpiListener.Command.values()).anyMatch((e) -> e.name().equalsIgnoreCase(cmd)))
+        if (d.command() == null)
             return Packet.error(prefix + OpiListener.BAD_COMMAND_FIELD);
 
-        return switch (OpiListener.Command.valueOf(cmd.toUpperCase())) {
-            case INITIALIZE -> initialize(pairs);
-            case QUERY -> query();
-            case SETUP -> setup(pairs);
-            case PRESENT -> present(pairs);
-            case CLOSE -> close();
-            default -> Packet.error(prefix + BAD_COMMAND + cmd.toUpperCase());
-        };
+        if (d.command() == Command.QUERY)
+            return query();
+        if (d.command() == Command.PING)
+            return new Packet(OpiListener.pingStamps(OpiSession.receivedAt()));
+        if (d.command() == Command.RESUME)
+            return resume(d.pairs());
+
+        TokenHolder h = holder;
+        OpiSession session = OpiSession.current();
+        JsonElement id = h != null && session != null && session == h.session ? OpiSession.currentId() : null;
+        if (id != null)
+            h.inProgress.put(id, session);
+        try {
+            synchronized (commandLock) {
+                return switch (d.command()) {
+                    case INITIALIZE -> initialize(d.pairs());
+                    case SETUP -> setup(d.setup());
+                    case PRESENT -> d.template() != null ? presentTemplate(d.template()) : present(d.stimuli(), null);
+                    case PRESENT_BATCH -> presentBatch(d.batch());
+                    case DEFINE_PROGRAM -> defineProgram(d.program());
+                    case CLOSE -> close();
+                    default -> Packet.error(prefix + BAD_COMMAND + d.name().toUpperCase());
+                };
+            }
+        } finally {
+            if (id != null)
+                h.inProgress.remove(id, session);
+        }
+    }
+
+    /**
+     * Keep a reply for the client that holds the session token if it is this one that went.
+     * A late reply for the session it held before its last RESUME is passed on to its new
+     * session (or kept if that has gone too). Replies for other clients are dropped.
+     *
+     * @since 0.3.0
+     */
+    @Override
+    protected void undelivered(OpiSession session, Packet reply) {
+        TokenHolder h = holder;
+        if (h == null || session == null)
+            super.undelivered(session, reply);
+        else if (session == h.session)
+            h.hold(reply);
+        else if (session == h.previous) {
+            OpiSession s = h.session;
+            if (s != null && s.isOpen())
+                s.send(reply);
+            else
+                h.hold(reply);
+        } else
+            super.undelivered(session, reply);
+    }
+
+    /**
+     * Attach the calling session to the running engine in place of the one that was initialised (or last resumed)
+     * and send it the replies kept for it. Does not touch the configuration, engine or cameras.
+     *
+     * @param args Has {@value OpiListener#SESSION_TOKEN} and optionally {@value OpiListener#RESUME_PENDING},
+     *             the ids the client is still waiting on
+     * @return {"message": RESUMED, "token": token, "unknown": [ids in pending that are neither running for the token's
+     *         session before this RESUME nor kept]}
+     *
+     * @since 0.3.0
+     */
+    private Packet resume(HashMap<String, Object> args) {
+        TokenHolder h = holder;
+        if (configuration == null || h == null)
+            return Packet.error(NOT_INITIALIZED);
+        if (!h.token.equals(args.get(OpiListener.SESSION_TOKEN)))
+            return Packet.error(BAD_TOKEN);
+
+        OpiSession session = OpiSession.current();
+        OpiSession before = h.session;
+        if (session != before) {
+            h.previous = before;    // set first, so a late reply of before is kept or passed on, never dropped
+            h.session = session;
+        }
+
+        HashSet<JsonElement> answered = new HashSet<JsonElement>();
+        for (Packet p = h.held.poll() ; p != null ; p = h.held.poll()) {
+            if (p.getId() != null)
+                answered.add(p.getId());
+            if (session != null)
+                session.send(p);
+        }
+
+        ArrayList<JsonElement> unknown = new ArrayList<JsonElement>();
+        if (args.get(OpiListener.RESUME_PENDING) instanceof List<?> pending)
+            for (Object o : pending) {
+                JsonElement id = gson.toJsonTree(o);
+                OpiSession from = h.inProgress.get(id);
+                if ((from == null || from != before) && !answered.contains(id))
+                    unknown.add(id);
+            }
+
+        HashMap<String, Object> msg = new LinkedHashMap<String, Object>();
+        msg.put(MESSAGE, RESUMED);
+        msg.put(OpiListener.SESSION_TOKEN, h.token);
+        msg.put(OpiListener.RESUME_UNKNOWN, unknown);
+        return new Packet(msg);
     }
 
     /**
@@ -231,9 +517,14 @@ public class OpiJovp extends OpiListener {
             }
 
             setAction(Action.SHOW);
-            
-            return new Packet(INITIALIZED);
-        } catch (IllegalArgumentException | ClassCastException | IOException | NullPointerException e) {
+
+            TokenHolder h = new TokenHolder(UUID.randomUUID().toString(), OpiSession.current());
+            holder = h;
+            HashMap<String, Object> msg = new LinkedHashMap<String, Object>();
+            msg.put(MESSAGE, INITIALIZED);
+            msg.put(OpiListener.SESSION_TOKEN, h.token);
+            return new Packet(msg);
+        } catch (IllegalArgumentException | ClassCastException | IOException | NullPointerException | InterruptedException e) {
             e.printStackTrace();
             return Packet.error(INITIALIZE_FAILED, e);
         }
@@ -248,17 +539,12 @@ public class OpiJovp extends OpiListener {
     if (configuration == null || psychoEngine == null)
         return Packet.error("JOVP is not ready yet. Try again or call opiInitialise()");
 
-    long now = System.currentTimeMillis(); 
-    requestEyePosition(ViewEye.LEFT, now);
-    requestEyePosition(ViewEye.RIGHT, now + 1);
-
-    buildResponse(false, now, -1);
-    Response leftEye = new Response(response);
-
-    buildResponse(false, now + 1, -1);
-    Response rightEye = new Response(response);
+    long now = OpiClock.now();   // not for a presentation, so nothing to complete
+    PendingResponse left = buildResponse(false, now, FrameScheduler.UNSET, requestEyePosition(ViewEye.LEFT, now), null, FrameScheduler.Timing.NONE, null);
+    PendingResponse right = buildResponse(false, now + 1, FrameScheduler.UNSET, requestEyePosition(ViewEye.RIGHT, now + 1), null, FrameScheduler.Timing.NONE, null);
 
-    response = null;
+    Response leftEye = left.await();
+    Response rightEye = right.await();
 
     Query q = new Query(configuration.distance(), psychoEngine.getFieldOfView(), configuration.viewMode(),
         configuration.input(), configuration.pseudoGray(), configuration.fullScreen(), configuration.tracking(),
@@ -276,83 +562,223 @@ public class OpiJovp extends OpiListener {
    * trigger the SETUP action
    * Check for unimplemented values of fixShape.
    * 
-   * @param args A map of name:value pairs for parameters. Should have all the fields for Setup class.
+   * @param setup The decoded Setup record for the eye/s in setup.eye()
    *
    * @since 0.1.0
    */
-  private Packet setup(HashMap<String, Object> args) {
+  private Packet setup(Setup setup) {
     if (configuration == null)
         return Packet.error("JOVP is not ready yet. Try again or call opiInitialise()");
-    try {
-        // Get eye for the instruction
-        ViewEye eye = ViewEye.valueOf(((String) args.get("eye")).toUpperCase());
-        if(configuration.viewMode() == ViewMode.MONO || eye == ViewEye.BOTH || eye == ViewEye.LEFT)
-            backgrounds[0] = Setup.create2(args);
-        if(configuration.viewMode() == ViewMode.STEREO && (eye == ViewEye.BOTH || eye == ViewEye.RIGHT))
-            backgrounds[1] = Setup.create2(args);
-       
-        if (args.containsKey("fixShape")) {
-            String fs = (String)args.get("fixShape");
-            if (List.of(new String[] {"HOLLOW_TRIANGLE", "HOLLOW_SQUARE", "HOLLOW_POLYGON", "ANNULUS", "OPTOTYPE", "TEXT", "MODEL"}).contains(fs.toUpperCase()))
-                return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "fixShape", fs, "setup()"));
-        }
+    // Get eye for the instruction
+    ViewEye eye = setup.eye();
+    if(configuration.viewMode() == ViewMode.MONO || eye == ViewEye.BOTH || eye == ViewEye.LEFT)
+        backgrounds[0] = setup;
+    if(configuration.viewMode() == ViewMode.STEREO && (eye == ViewEye.BOTH || eye == ViewEye.RIGHT))
+        backgrounds[1] = setup;
+   
+    String fs = setup.fixShape().name();
+    if (List.of(new String[] {"HOLLOW_TRIANGLE", "HOLLOW_SQUARE", "HOLLOW_POLYGON", "ANNULUS", "OPTOTYPE", "TEXT", "MODEL"}).contains(fs))
+        return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "fixShape", fs, "setup()"));
 
+    try {
         setAction(Action.SETUP);
-        return query();
-    } catch (ClassCastException | IllegalArgumentException e) {
-        return Packet.error(prefix + SETUP_FAILED, e);
+    } catch (InterruptedException e) {
+        return Packet.error(prefix + String.format(INTERRUPTED, Action.SETUP), e);
     }
+    return query();
   }
 
     /**
      * Present a stimulus by
-     *   (1) If 'eye' is specified, check the background relevant to that eye has been `setup`
-     *   (2) Build the array of Stimulus objects
-     *   (3) Check for unimplemented `type` and `shape`
-     *   (4) Trigger the PRESENT action in OpiLogic and spin waiting for a response.
+     *   (1) Check the background relevant to each stimulus' eye has been `setup`
+     *   (2) Check for unimplemented `type` and `shape`
+     *   (3) Trigger the PRESENT action in OpiLogic and wait for a response (see {@link #responseTimeout}).
+     * The stimuli of a template were checked for (2) when its program was defined.
      *
-     * @param args A map of name:value pairs for parameters
+     * @param stimuli The decoded Stimulus records, one per element of the presentation
+     * @param template The template the stimuli are from, or null if they are not
      *
      * @since 0.1.0
      */
-    private Packet present(HashMap<String, Object> args) {
-        if (args.containsKey("eye")) {
-            List<ViewEye> eyes = ((List<String>)args.get("eye"))
-                .stream()
-                .map((String s) -> ViewEye.valueOf((s).toUpperCase()))
-                .toList();
-            for (ViewEye eye : eyes) {
-                if (eye == ViewEye.BOTH && backgrounds.length == 1)
-                    return Packet.error(prefix + NO_BOTH_IN_MONO);
-                if ((eye == ViewEye.BOTH || eye == ViewEye.LEFT) && backgrounds[0] == null)
-                    return Packet.error(prefix + NO_LEFT_BACKGROUND);
-                if ((eye == ViewEye.BOTH || eye == ViewEye.RIGHT) && backgrounds[1] == null)
-                    return Packet.error(prefix + NO_RIGHT_BACKGROUND);
-            }
+    private Packet present(Stimulus[] stimuli, CommandDecoder.Template template) {
+        Packet bad = checkBackgrounds(stimuli);
+        if (bad == null && template == null)
+            bad = checkShapes(stimuli);
+        if (bad != null)
+            return bad;
+   
+        long timeout = responseTimeout(stimuli, configuration.presentGrace());
+        try {
+            CompletableFuture<Response> response = new CompletableFuture<Response>();
+            this.stimuli = stimuli;
+            this.template = template;
+            this.posted = response;
+            setAction(Action.PRESENT);
+            return new Packet(response.get(timeout, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            return Packet.error(prefix + String.format(NO_RESPONSE, timeout));
+        } catch (Exception e) {
+            return Packet.error(prefix + PRESENT_FAILED, e);
         }
+    }
 
-        if (args.containsKey("shape"))
-          for (String s : (List<String>)args.get("shape"))
-            if (List.of(new String[] {"HOLLOW_TRIANGLE", "HOLLOW_SQUARE", "HOLLOW_POLYGON", "ANNULUS", "TEXT", "MODEL"}).contains(s.toUpperCase()))
-                return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "shape", s, "present()"));
+    /**
+     * Present a template of a program from DEFINE_PROGRAM: its Stimulus records, with the lum and w of 
+     * the command if it has them, and its Items that OpiLogic prepared when the program was defined.
+     *
+     * @param t The decoded template and the values that change
+     *
+     * @since 0.3.0
+     */
+    private Packet presentTemplate(CommandDecoder.Template t) {
+        Stimulus[][] templates = programs.get(t.program());
+        if (templates == null)
+            return Packet.error(prefix + String.format(UNKNOWN_PROGRAM, t.program()));
+        if (t.index() < 0 || t.index() >= templates.length)
+            return Packet.error(prefix + String.format(NO_TEMPLATE, t.program(), t.index()));
+
+        Stimulus[] stimuli = templates[t.index()];
+        if (t.lum() != null || !Double.isNaN(t.w())) {
+            if (t.lum() != null && t.lum().length < stimuli.length)
+                return Packet.error(prefix + BAD_ARGUMENTS, new IllegalArgumentException(String.format(CommandDecoder.SHORT_LIST, Command.PRESENT, stimuli.length)));
+            stimuli = stimuli.clone();
+            for (int i = 0 ; i < stimuli.length ; i++)
+                stimuli[i] = stimuli[i].with(t.lum() == null ? stimuli[i].lum() : t.lum()[i], Double.isNaN(t.w()) ? stimuli[i].w() : t.w());
+        }
+        return present(stimuli, t);
+    }
+
+    /**
+     * Keep the templates of a program and have OpiLogic build the Items for them, so that presenting
+     * a template needs no decoding, checking or making of Models and Textures. 
+     * Defining a program again replaces it.
+     *
+     * @param program The decoded templates
+     * @return A Packet with msg {"program": name, "templates": number of templates}
+     *
+     * @since 0.3.0
+     */
+    private Packet defineProgram(CommandDecoder.Program program) {
+        if (configuration == null)
+            return Packet.error("JOVP is not ready yet. Try again or call opiInitialise()");
+        Stimulus[][] templates = program.templates();
+        for (int i = 0 ; i < templates.length ; i++) {
+            Packet bad = templates[i].length == 0 ? Packet.error(prefix + EMPTY_TEMPLATE) : checkShapes(templates[i]);
+            if (bad != null)
+                return Packet.error(String.format(TEMPLATE_ELEMENT, i, bad.getMsg()));
+        }
 
-        if (args.containsKey("type"))
-          for (String s : (List<String>)args.get("type"))
-              if (List.of(new String[] {"TEXT"}).contains(s.toUpperCase()))
-                return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "type", s, "present()"));
-   
         try {
-            stimuli = Stimulus.create(args);
-            setAction(Action.PRESENT);
-                // TODO replace this with a Semaphore or Condition
-            while (response == null) {
-                Thread.sleep(100);  // wait for response
+            this.defining = program;
+            setAction(Action.DEFINE_PROGRAM);
+        } catch (InterruptedException e) {
+            return Packet.error(prefix + String.format(INTERRUPTED, Action.DEFINE_PROGRAM), e);
+        } finally {
+            this.defining = null;
+        }
+        programs.put(program.name(), templates);
+
+        HashMap<String, Object> msg = new LinkedHashMap<String, Object>();
+        msg.put(OpiListener.PROGRAM, program.name());
+        msg.put(OpiListener.TEMPLATES, templates.length);
+        return new Packet(msg);
+    }
+
+    /**
+     * Check the stimuli of one presentation can be shown:
+     *   (1) Check the background relevant to each stimulus' eye has been `setup`
+     *   (2) Check for unimplemented `type` and `shape`
+     *
+     * @param stimuli The Stimulus records of one presentation
+     * @return An error Packet, or null if all is well
+     */
+    private Packet checkStimuli(Stimulus[] stimuli) {
+        Packet bad = checkBackgrounds(stimuli);
+        return bad != null ? bad : checkShapes(stimuli);
+    }
+
+    /** @return An error Packet if the background of a stimulus' eye has not been `setup`, or null if all is well */
+    private Packet checkBackgrounds(Stimulus[] stimuli) {
+        for (Stimulus stim : stimuli) {
+            ViewEye eye = stim.eye();
+            if (eye == ViewEye.BOTH && backgrounds.length == 1)
+                return Packet.error(prefix + NO_BOTH_IN_MONO);
+            if ((eye == ViewEye.BOTH || eye == ViewEye.LEFT) && backgrounds[0] == null)
+                return Packet.error(prefix + NO_LEFT_BACKGROUND);
+            if ((eye == ViewEye.BOTH || eye == ViewEye.RIGHT) && backgrounds[1] == null)
+                return Packet.error(prefix + NO_RIGHT_BACKGROUND);
+        }
+        return null;
+    }
+
+    /** @return An error Packet if a stimulus has an unimplemented `type` or `shape`, or null if all is well */
+    private Packet checkShapes(Stimulus[] stimuli) {
+        for (Stimulus stim : stimuli)
+            if (List.of(new String[] {"HOLLOW_TRIANGLE", "HOLLOW_SQUARE", "HOLLOW_POLYGON", "ANNULUS", "TEXT", "MODEL"}).contains(stim.shape().name()))
+                return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "shape", stim.shape().name(), "present()"));
+
+        for (Stimulus stim : stimuli)
+            if (List.of(new String[] {"TEXT"}).contains(stim.type().name()))
+                return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "type", stim.type().name(), "present()"));
+
+        return null;
+    }
+
+    /**
+     * Present a batch of stimuli back to back by
+     *   (1) Checking every presentation as for present()
+     *   (2) Triggering the PRESENT_BATCH action so that OpiLogic runs all the presentations,
+     *       pausing the isi after each, without waiting for a new command in between.
+     *   (3) Taking each Response as OpiLogic builds it and, if asked, sending it 
+     *       straight away to the client.
+     *
+     * @param batch The decoded presentations
+     *
+     * @return A Packet with msg {"results": [Response, ...]}
+     *
+     * @since 0.3.0
+     */
+    private Packet presentBatch(CommandDecoder.Batch batch) {
+        Stimulus[][] presentations = batch.presentations();
+        if (presentations.length == 0)
+            return Packet.error(prefix + EMPTY_BATCH);
+        for (int i = 0 ; i < presentations.length ; i++) {
+            Packet bad = checkStimuli(presentations[i]);
+            if (bad != null)
+                return Packet.error(String.format(BATCH_ELEMENT, i, bad.getMsg()));
+        }
+
+        OpiSession session = OpiSession.current();
+        try {
+            ArrayList<CompletableFuture<Response>> futures = new ArrayList<CompletableFuture<Response>>(presentations.length);
+            for (int i = 0 ; i < presentations.length ; i++)
+                futures.add(new CompletableFuture<Response>());
+            this.batchResults = futures;
+            this.stimuli = presentations[0];
+            this.template = null;
+            this.batchIndex = 0;
+            this.batch = batch;
+            setAction(Action.PRESENT_BATCH);
+
+            Response[] results = new Response[presentations.length];
+            for (int i = 0 ; i < results.length ; i++) {
+                long timeout = responseTimeout(presentations[i], configuration.presentGrace()) + (i == 0 ? 0 : Math.round(batch.isiAfter(i - 1)));
+                try {
+                    results[i] = futures.get(i).get(timeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    return Packet.error(prefix + String.format(BATCH_ELEMENT, i, String.format(NO_RESPONSE, timeout)));
+                }
+                if (batch.stream() && session != null)
+                    session.send(new Packet(OpiListener.streamedResult(i, results[i])).withId(OpiSession.currentId()));
             }
-            Packet p = new Packet(response);
-            response = null;
-            return p;
+
+            HashMap<String, Object> msg = new HashMap<String, Object>();
+            msg.put(OpiListener.BATCH_RESULTS, results);
+            return new Packet(msg);
         } catch (Exception e) {
             return Packet.error(prefix + PRESENT_FAILED, e);
+        } finally {
+            this.batch = null;
         }
     }
 
@@ -362,109 +788,118 @@ public class OpiJovp extends OpiListener {
      * @since 0.1.0
      */
     private Packet close() {
-        setAction(Action.CLOSE);
+        holder = null;
+        try {
+            actions.send(Action.CLOSE);   // not waiting for it, as the main thread exits
+        } catch (InterruptedException e) {
+            ;   // close the listener anyway
+        }
         this.closeListener();   // this kills the server thread, so set action first.
         return new Packet(true, CLOSED);
     }
 
-    /** 
-     * Request details of eye position from the camera(s)
-     * Response should end up on getConfiguration().webcam().cameraStreamer.responseQueue
+    /**
+     * Request details of eye position from the camera(s).
+     * Does not block: the camera streamer completes the returned future when it has the answer.
      * 
      * @param eye One of ViewEye.LEFT, ViewEye.RIGHT, or ViewEye.BOTH
-     * @param timestamp Stamp of the request like System.getCurrentTimeMillis()
+     * @param timestamp Time of interest from {@link OpiClock#now()}
+     * @return Completed with the eye position at timestamp (or null if it cannot be found), or null if there are no cameras
      */
-    public void requestEyePosition(ViewEye eye, long timestamp) {
+    public CompletableFuture<PupilResponse> requestEyePosition(ViewEye eye, long timestamp) {
         if (getConfiguration().webcam().cameraStreamer == null)
-            return;
+            return null;
 
-        PupilRequest req;
-        if (eye != ViewEye.RIGHT) // use left for BOTH eyes
-            req = new PupilRequest(timestamp, ViewEye.LEFT);
-        else 
-            req = new PupilRequest(timestamp, ViewEye.RIGHT);
-
-        try {
-            getConfiguration().webcam().cameraStreamer.requestQueue.add(req);
-        } catch (IllegalStateException e) {
-            System.out.println("CameraStreamer request queue is full. Dropping request.");
-        }
+            // use left for BOTH eyes
+        return getConfiguration().webcam().cameraStreamer.request(eye != ViewEye.RIGHT ? ViewEye.LEFT : ViewEye.RIGHT, timestamp);
     }
 
     /**
-     * Set the response after getting the relevant eye positions 
-     * from the camera(s) response queues.
+     * Start building the response from the eye positions requested from the camera(s)
+     * with {@link #requestEyePosition(ViewEye, long)}.
      * Only update end time for a seen response.
      * @param seen true if the stimulus was seen
-     * @param startTime time the stimulus was presented
-     * @param endTime time the button was pressed (ignored if !seen)
+     * @param startTime time the stimulus was presented (ns, from OpiClock)
+     * @param endTime time the button was pressed (ns, ignored if !seen)
+     * @param start Eye position requested at startTime (or null)
+     * @param end Eye position requested at endTime (or null, ignored if !seen)
+     * @param frames When the stimulus came on and went off (see {@link FrameScheduler})
+     * @return The response to the presentation that has just ended, to complete once the eye positions
+     *         are in (see {@link PendingResponse}). Called by OpiLogic on the main thread.
      */
-    public void buildResponse(boolean seen, long startTime, long endTime) {
-            // no eye tracking data at first
-        Response result = new Response(seen, seen ? endTime - startTime : 0); 
-
-        if (getConfiguration().webcam().cameraStreamer != null) {
-            int oneTryTime = 50;  // 50 ms
-            int totalTries = 5 * 1000 / oneTryTime / 2;  // 5 seconds
-
-//System.out.println("Start time: " + startTime);
-//System.out.println("End time: " + (endTime));
-//getConfiguration().webcam().cameraStreamer.responseQueue.forEach(r -> System.out.println("Resp " + r.requestTimeStamp()));
-                // Keep looking for start and end responses (if !seen) 
-                // If we don't get any data after `totalTries` then we give up
-                PupilResponse resp;
-                boolean gotStart = false;
-                boolean gotEnd = !seen;   // If !seen then we will not look for End data
-                while (!gotStart || !gotEnd) {
-                    resp = null;
-                    try {
-                        int count = 0;
-                        while (resp == null && count < totalTries) {
-                            resp = getConfiguration().webcam().cameraStreamer.responseQueue.poll(oneTryTime, TimeUnit.MILLISECONDS);
-                            count++;
-                            Thread.sleep(oneTryTime);
-                        }
-                    } catch (InterruptedException e) { ; }
-
-                    if (resp == null) {
-                        System.out.println(String.format("No response from camera queue after %s seconds", totalTries * oneTryTime * 2 / 1000));
-                        break;
-                    }
-
-                        // Check response's requestTimeStamp to see which fields to update
-                    if (resp.requestTimeStamp() == startTime) {
-                        result.updateEye(true, resp.x(), resp.y(), resp.diameter(), (int)(resp.acquisitionTimeStamp() - startTime));
-                        gotStart = true;
-                    } else if (seen && resp.requestTimeStamp() == endTime) {
-                        result.updateEye(false, resp.x(), resp.y(), resp.diameter(), (int)(resp.acquisitionTimeStamp() - startTime));
-                        gotEnd = true;
-                    } else 
-                        try {
-                            getConfiguration().webcam().cameraStreamer.responseQueue.put(resp);  // put it back for another time
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                }
+    PendingResponse buildResponse(boolean seen, long startTime, long endTime, 
+                                  CompletableFuture<PupilResponse> start, CompletableFuture<PupilResponse> end, FrameScheduler.Timing frames) {
+        CompletableFuture<Response> target;
+        if (batch != null)
+            target = batchResults.get(batchIndex);
+        else {
+            target = showing;   // each PRESENT has one response
+            showing = null;
         }
+        return buildResponse(seen, startTime, endTime, start, end, frames, target);
+    }
+
+    /** As {@link #buildResponse(boolean, long, long, CompletableFuture, CompletableFuture, FrameScheduler.Timing)} for the given target (or null) */
+    private PendingResponse buildResponse(boolean seen, long startTime, long endTime, CompletableFuture<PupilResponse> start,
+                                          CompletableFuture<PupilResponse> end, FrameScheduler.Timing frames, CompletableFuture<Response> target) {
+            // no eye tracking data at first
+        Response result = new Response(seen, seen ? OpiClock.toMillis(endTime - startTime) : 0); 
+        result.setFrames(frames);
+        return new PendingResponse(result, startTime, start, seen ? end : null, OpiClock.now(), target);
+    }
 
-        setResponse(result);  // TODO signal this with a Condition
+    /**
+     * A training run for a class data sharing archive (see {@link Startup}): go through what serving 
+     * a client needs (connect, QUERY and PING through the listener, decode each kind of command) 
+     * without starting the psychoEngine, then close the listener.
+     *
+     * @throws IOException If the listener cannot be reached
+     *
+     * @since 0.3.0
+     */
+    private void train() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), getPort());
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            for (String c : new String[] {"{\"command\":\"query\"}", "{\"command\":\"ping\"}"}) {
+                out.write(c + "\n");
+                out.flush();
+                in.readLine();
+            }
+        }
+        CommandDecoder decoder = new CommandDecoder();
+        for (String c : TRAINING_COMMANDS)
+            decoder.decode(c);
+        Startup.mark("training commands done");
+        closeListener();
     }
 
-    // args[0] = port number
+    // args[0] = port number (or --train, then port number, for a training run)
     // note opiJovp is `running` on a separate thread as a server
+    // OpenCV is loaded when cameras are first used (see Startup), not here
     public static void main(String args[]) {
-        nu.pattern.OpenCV.loadLocally();
+        Startup.mark("main");
+        boolean train = args.length > 0 && args[0].equals(Startup.TRAIN);
+        if (train)
+            args = Arrays.copyOfRange(args, 1, args.length);
 
         if (args.length != 1) {
-            System.out.println("Usage: java -jar opiJovp.jar [port number]");
+            System.out.println("Usage: java -jar opiJovp.jar [" + Startup.TRAIN + "] [port number]");
             System.exit(-1);
         }
 
         try {
             OpiJovp opiJovp = new OpiJovp(Integer.parseInt(args[0]));
+            Startup.mark("listener open");
             System.out.println("Machine address is " + opiJovp.getIP() + ":" + opiJovp.getPort());
+            if (train) {
+                opiJovp.train();
+                System.out.print(Startup.report());
+                System.exit(0);
+            }
+            System.out.print(Startup.report());
             opiJovp.startPsychoEngine();
-        } catch (NumberFormatException e) {
+        } catch (NumberFormatException | IOException e) {
             e.printStackTrace();
         }
     }
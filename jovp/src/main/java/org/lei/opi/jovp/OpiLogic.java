@@ -1,11 +1,13 @@
 package org.lei.opi.jovp;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
 
-import org.lei.opi.core.definitions.PupilRequest;
+import org.lei.opi.core.OpiClock;
 import org.lei.opi.core.definitions.PupilResponse;
 
 import es.optocom.jovp.PsychoEngine;
@@ -64,6 +66,19 @@ public class OpiLogic implements PsychoLogic {
     */
     private int stimIndex = -1;
 
+    /**
+     * The Items of one template of a program, built when the program was defined.
+     * @param items One Item for each Stimulus of the template
+     * @param lum The luminance each Item's colours are set for
+     */
+    private record Prepared(Item[] items, double[] lum) { ; }
+    /** Programs from DEFINE_PROGRAM: name : the Items of each of its templates */
+    private final HashMap<String, Prepared[]> programs = new HashMap<String, Prepared[]>();
+    /** Items of programs that were defined again, hidden, for later programs to reuse */
+    private final ArrayDeque<Item> spareItems = new ArrayDeque<Item>();
+    /** The template being presented, or null if the presentation uses currentItems */
+    private Prepared template;
+
     /** PsychoEngine field of view */
     private float[] fov;
 
@@ -71,16 +86,40 @@ public class OpiLogic implements PsychoLogic {
         PRESENTING,  // stimulus is active
         AWAITING,    // stim finished but response window still open
         RESPONDED,   // subject has clicked
+        ISI,         // between presentations of a batch
         NOT          // None of the above
     };
     /** True if showing stim or waiting for a response after a stim */
     private PresentingState presenting = PresentingState.NOT;
 
-    /** Accumulates presentation time: useful for dynamic stimulus */
-    private int presentationTime;
+    /** Accumulates presentation time (ms) up to the end of the current part of the stimulus: useful for dynamic stimulus */
+    private double presentationTime;
+
+    /** Counts frames and turns stimulus times into frames */
+    private FrameScheduler scheduler;
+
+    /** Frames on which the current presentation should start and did (see {@link FrameScheduler.Timing}) */
+    private long plannedOnsetFrame, onsetFrame;
+    /** Frames on which the current presentation should stop and did (-1 until it does) */
+    private long plannedOffsetFrame, offsetFrame;
+    /** Time (ns, from OpiClock) of offsetFrame, or FrameScheduler.UNSET until it is known */
+    private long offsetTimeStamp = FrameScheduler.UNSET;
+    /** Frame on which the current part of the stimulus ends */
+    private long partEndFrame;
+    /** Frame on which the response window ends */
+    private long windowEndFrame;
+
+    /** Keep the start and end times of presentation (ns, from OpiClock) for looking up camera information (FrameScheduler.UNSET if not pressed) */
+    private long startStimTimeStamp, buttonPressTimeStamp = FrameScheduler.UNSET;
+
+    /** Eye positions requested from the cameras at startStimTimeStamp and buttonPressTimeStamp (null if none) */
+    private CompletableFuture<PupilResponse> startEye, endEye;
+
+    /** Responses waiting for eye positions, oldest first. Handed to the driver in order as they are ready. */
+    private final ArrayDeque<PendingResponse> pendingResponses = new ArrayDeque<PendingResponse>();
 
-    /** Keep the start and end times of presentation for looking up camera information */
-    private long startStimTimeStamp, buttonPressTimeStamp;
+    /** When in a batch, the frame on which the next presentation should start */
+    private long nextOnsetFrame;
 
     OpiLogic(OpiJovp driver) {
         this.driver = driver;
@@ -112,6 +151,8 @@ public class OpiLogic implements PsychoLogic {
         // set size of the background to be the field of view
         this.fov = psychoEngine.getFieldOfView();
 
+        scheduler = new FrameScheduler(refreshRate(psychoEngine));
+
         // add perimetry items: background, fixation, and stimulus.
         for (int i = 0; i < backgrounds.length; i++) {
             fixations[i].position(0.0d, 0.0d);
@@ -126,8 +167,13 @@ public class OpiLogic implements PsychoLogic {
             view.add(fixations[i]);
             view.add(backgrounds[i]);
         }
+    }
 
-        driver.setActionToNull(); // Action is over  // TODO use a Condition
+    /** @return The refresh rate of the engine's monitor (0 if unknown) */
+    private static double refreshRate(PsychoEngine psychoEngine) {
+        if (psychoEngine.getWindow() == null || psychoEngine.getWindow().getMonitor() == null)
+            return 0;
+        return psychoEngine.getWindow().getMonitor().getRefreshRate();
     }
 
     /**
@@ -144,20 +190,19 @@ public class OpiLogic implements PsychoLogic {
         if (command != Command.YES) return;
 
             // input before anything has happened!
-        if (currentStims == null || currentStims.size() == 0) return;
+        if (stimIndex < 0) return;
 
         if (presenting == PresentingState.NOT) return;
+        if (presenting == PresentingState.ISI) return;
         if (presenting == PresentingState.RESPONDED) return;  // ignore any extra button presses
 
         presenting = PresentingState.RESPONDED;  
 
-            // Request the end eye position 30 ms before we got here from the camera
-        buttonPressTimeStamp = System.currentTimeMillis() - 30;
-        driver.requestEyePosition(currentStims.get(currentStims.size() - 1).eye(), buttonPressTimeStamp);
-
-        for (Item s : currentItems) 
-            s.show(ViewEye.NONE);
-        // Note: Do not build a response here in case it delays stimulus off
+            // Request the end eye position from the camera at the press, which was buttonLag ms before we got here
+        buttonPressTimeStamp = OpiClock.now() - OpiClock.fromMillis(driver.getConfiguration().buttonLag());
+        endEye = driver.requestEyePosition(driver.getStimulus(stimIndex).eye(), buttonPressTimeStamp);
+        // Note: Do not build a response here in case it delays stimulus off. 
+        // The stimulus goes off at the start of the next frame (see checkAction()).
     }
 
     /**
@@ -170,25 +215,35 @@ public class OpiLogic implements PsychoLogic {
     @Override
     public void update(PsychoEngine psychoEngine) {
         // Instructions are always given by the OpiDriver.
-        // OpiLogic sets action back to null once instruction is carried out. (does not block)
-        //if (driver.action != null) System.out.println(driver.action);
-        if (driver.getAction() == null) 
+        // OpiLogic tells it when each is carried out so the command that posted it can reply. (does not block)
+        scheduler.tick(OpiClock.now());
+        OpiJovp.Action action = driver.getAction();
+        if (action == null) 
             checkAction();
-        else switch(driver.getAction()) {
+        else switch(action) {
             case SHOW -> show(psychoEngine);
             case SETUP -> setup();
-            case PRESENT -> present();
+            case PRESENT, PRESENT_BATCH -> present();
+            case DEFINE_PROGRAM -> defineProgram();
             case CLOSE -> {
               psychoEngine.finish();
               System.exit(0);
             }
         }
+        sendResponses();
+    }
+
+    /** Complete the presentations whose responses have their eye positions (or are overdue), in order. Does not block. */
+    private void sendResponses() {
+        long now = OpiClock.now();
+        while (!pendingResponses.isEmpty() && pendingResponses.peek().ready(now))
+            pendingResponses.poll().complete();
     }
 
     /** Show psychoEngine */
     private void show(PsychoEngine psychoEngine) {
       psychoEngine.show();
-      driver.setActionToNull();   // TODO use a Condition
+      driver.actionDone();
     }
 
     /** Change background and/or fixation markers 
@@ -226,30 +281,123 @@ public class OpiLogic implements PsychoLogic {
                 fixations[i].rotation(input_bg.fixRotation());
             }
         }
-        driver.setActionToNull();  // TODO use a Condition
+        driver.actionDone();
     }
 
     /** Present stimulus upon request */
     private void present() {
+        driver.presentStarted();
+        plannedOnsetFrame = scheduler.frame();
+        startPresentation();
+        driver.actionDone();
+    }
+
+    /**
+     * Build the Items for each template of the program in the driver, hidden until a template is presented.
+     * The Items of a program of the same name are taken off it and reused.
+     */
+    private void defineProgram() {
+        try {
+            CommandDecoder.Program program = driver.getDefining();
+            Prepared[] old = programs.remove(program.name());
+            if (old != null)
+                for (Prepared p : old)
+                    for (Item i : p.items()) {
+                        i.show(ViewEye.NONE);
+                        spareItems.add(i);
+                    }
+
+            Stimulus[][] templates = program.templates();
+            Prepared[] prepared = new Prepared[templates.length];
+            for (int i = 0 ; i < templates.length ; i++) {
+                Item[] items = new Item[templates[i].length];
+                double[] lum = new double[items.length];
+                for (int j = 0 ; j < items.length ; j++) {
+                    Stimulus stim = templates[i][j];
+                    items[j] = spareItems.poll();
+                    if (items[j] == null)
+                        items[j] = createStimItem(stim);
+                    else {
+                        items[j].update(createModel(stim));
+                        items[j].update(createTexture(stim));
+                    }
+                    applyStimulus(items[j], stim);
+                    lum[j] = stim.lum();
+                }
+                prepared[i] = new Prepared(items, lum);
+            }
+            programs.put(program.name(), prepared);
+        } finally {
+            driver.actionDone();
+        }
+    }
+
+    /** Show the first part of the stimuli that are in the driver now */
+    private void startPresentation() {
         if (currentStims == null || currentItems == null) {
             currentStims = new ArrayList<Stimulus>();
             currentItems = new ArrayList<Item>();
         } 
+        CommandDecoder.Template t = driver.getTemplate();
+        template = t == null ? null : programs.get(t.program())[t.index()];
         stimIndex = 0;        // The first element in the stimulus list
         updateStimuli();      // Create first stimulus
-        startStimTimeStamp = System.currentTimeMillis();
-        driver.requestEyePosition(currentStims.get(0).eye(), startStimTimeStamp); // get the eye position at the start of presentation
-        presentationTime = 0;
-        buttonPressTimeStamp = -1;
+        onsetFrame = scheduler.frame();
+        startStimTimeStamp = scheduler.frameTime();
+        startEye = driver.requestEyePosition(driver.getStimulus(0).eye(), startStimTimeStamp); // get the eye position at the start of presentation
+
+            // Lock the ends of each part, the whole stimulus and the response window to frames from the onset
+        presentationTime = driver.getStimulus(stimIndex).t();
+        partEndFrame = onsetFrame + scheduler.frames(presentationTime);
+        double total = 0;
+        for (int i = 0 ; i < driver.getStimuliLength() ; i++)
+            total += driver.getStimulus(i).t();
+        plannedOffsetFrame = onsetFrame + scheduler.frames(total);
+        windowEndFrame = onsetFrame + scheduler.frames(driver.getStimulus(stimIndex).w());
+        offsetFrame = -1;
+        offsetTimeStamp = FrameScheduler.UNSET;
+
+        buttonPressTimeStamp = FrameScheduler.UNSET;
+        endEye = null;
         presenting = PresentingState.PRESENTING;
+    }
+
+    /** Take the stimulus off the screen (from this frame) and note when */
+    private void stopPresentation() {
+        for (Item s : currentItems)
+            s.show(ViewEye.NONE);
+        if (template != null)
+            for (Item s : template.items())
+                s.show(ViewEye.NONE);
+        offsetFrame = scheduler.frame();
+        offsetTimeStamp = scheduler.frameTime();
+    }
 
-        driver.setActionToNull(); // TODO use a Condition
+    /** @return When the current presentation started and stopped, planned and actual */
+    private FrameScheduler.Timing timing() {
+        return new FrameScheduler.Timing(plannedOnsetFrame, onsetFrame, plannedOffsetFrame, offsetFrame,
+            scheduler.plannedMillis(plannedOnsetFrame), scheduler.millis(startStimTimeStamp),
+            scheduler.plannedMillis(plannedOffsetFrame), scheduler.millis(offsetTimeStamp));
+    }
+
+    /** 
+     * After a response, if the driver is running a batch with more to come, 
+     * wait out the isi and then start the next presentation (see checkAction()).
+     */
+    private void nextInBatch() {
+        double isi = driver.nextInBatch();
+        if (isi < 0)
+            return;
+        nextOnsetFrame = scheduler.frame() + scheduler.frames(isi);
+        presenting = PresentingState.ISI;
     }
 
     /** Checks if something must be updated.
      *  There are two main states:
      *     (1) Stimulus are being presented; or
      *     (2) Stimulus are finished and we are waiting for a user response.
+     * During a batch there is a third: waiting out the isi before the next presentation.
+     * All of the changes happen on frame boundaries planned by the {@link FrameScheduler}.
      * 
      * BE CAREFUL with this function. You need to return from it quickly
      * if you make a change to a stimulus so that psychoEngine can update.
@@ -258,59 +406,116 @@ public class OpiLogic implements PsychoLogic {
     private void checkAction() {
         if (presenting == PresentingState.NOT) return;
 
-        long elapsed = System.currentTimeMillis() - startStimTimeStamp;
+        long frame = scheduler.frame();
+
+        if (presenting == PresentingState.ISI) {
+            if (frame >= nextOnsetFrame) {
+                plannedOnsetFrame = nextOnsetFrame;
+                startPresentation();
+            }
+            return;
+        }
 
         if (presenting == PresentingState.RESPONDED) { // A yes response
+            if (offsetFrame < 0)   // pressed while the stimulus was still on
+                stopPresentation();
             presenting = PresentingState.NOT;
-            driver.buildResponse(true, startStimTimeStamp, buttonPressTimeStamp);
-        } else if (currentItems.get(0).showing()) {  // increment stim or turn it off
-            double t = currentStims.get(currentStims.size() - 1).t();
-            if (elapsed >= presentationTime + t) {
-                presentationTime += t;
+            pendingResponses.add(driver.buildResponse(true, startStimTimeStamp, buttonPressTimeStamp, startEye, endEye, timing()));
+            nextInBatch();
+        } else if (offsetFrame < 0) {  // increment stim or turn it off
+            if (frame >= partEndFrame) {
                 // If presentation time is over for the last element of the array, then hide stimulus
                 // otherwise move along to next part of the stimulus
                 if (stimIndex == driver.getStimuliLength() - 1) {
-                    for (Item s : currentItems)
-                        s.show(ViewEye.NONE);
+                    stopPresentation();
                     presenting = PresentingState.AWAITING;
                 } else {
                     stimIndex++;
                     updateStimuli();
+                    presentationTime += driver.getStimulus(stimIndex).t();
+                    partEndFrame = onsetFrame + scheduler.frames(presentationTime);
                 }
             }
-        } else if (elapsed > currentStims.get(currentStims.size() - 1).w()) { // A no response.
+        } else if (frame >= windowEndFrame) { // A no response.
             presenting = PresentingState.NOT;
-            driver.buildResponse(false, startStimTimeStamp, -1);
+            pendingResponses.add(driver.buildResponse(false, startStimTimeStamp, FrameScheduler.UNSET, startEye, null, timing()));
+            nextInBatch();
         }
     }
 
     /** Create a new item from Stimulus stim */
     private Item createStimItem(Stimulus stim) {
-        Model m;
-        if (stim.shape() == ModelType.OPTOTYPE)
-            m = new Model(stim.optotype());  // give it the optotype
-        else
-            m = new Model(stim.shape());
-
-        Texture t;
-        if (stim.type() == TextureType.IMAGE)
-            t = new Texture(stim.imageFilename());  // give it the string filename
-        else
-            t = new Texture(stim.type());  
-
             // units is always in ANGLES for now
-        Item i = new Item(m, t, Units.ANGLES);
+        Item i = new Item(createModel(stim), createTexture(stim), Units.ANGLES);
         i.show(ViewEye.NONE);
         view.add(i);
         return(i);
     }
 
+    /** @return A new Model for the shape of stim */
+    private static Model createModel(Stimulus stim) {
+        if (stim.shape() == ModelType.OPTOTYPE)
+            return new Model(stim.optotype());  // give it the optotype
+        return new Model(stim.shape());
+    }
+
+    /** @return A new Texture for the type of stim */
+    private static Texture createTexture(Stimulus stim) {
+        if (stim.type() == TextureType.IMAGE)
+            return new Texture(stim.imageFilename());  // give it the string filename
+        return new Texture(stim.type());  
+    }
+
+    /** Set everything but the Model, Texture and eye of item from stim */
+    private void applyStimulus(Item item, Stimulus stim) {
+        item.position(stim.x(), stim.y());
+        if (stim.fullFoV() != 0) {
+            item.size(this.fov[0], this.fov[1]);
+        } else {
+            item.size(stim.sx(), stim.sy());
+        }
+        item.rotation(stim.rotation());
+        item.contrast(stim.contrast());
+        item.frequency(stim.phase(), stim.frequency());
+        item.defocus(stim.defocus());
+        item.texRotation(stim.texRotation());
+        item.envelope(stim.envType(), stim.envSdx(), stim.envSdy(), stim.envRotation());
+        item.setColors(gammaLumToColor(stim.lum(), stim.color1()), gammaLumToColor(stim.lum(), stim.color2()));
+        item.depth(STIM_DEPTH);
+    }
+
+    /** 
+     * Show the Items of the template for the next section of driver.getStimulus(stimIndex), as
+     * updateStimuli() does with currentItems. They are ready but for colours if lum has changed.
+     */
+    private void showTemplate() {
+        Item[] items = template.items();
+        for (int i = 0 ; i < stimIndex ; i++)   // the part before this one
+            items[i].show(ViewEye.NONE);
+        for(;;) {
+            Stimulus stim = driver.getStimulus(stimIndex);
+            if (stim.lum() != template.lum()[stimIndex]) {
+                items[stimIndex].setColors(gammaLumToColor(stim.lum(), stim.color1()), gammaLumToColor(stim.lum(), stim.color2()));
+                template.lum()[stimIndex] = stim.lum();
+            }
+            items[stimIndex].show(stim.eye());
+            if (stim.t() == 0)
+                stimIndex++;
+            else
+                break;
+        }
+    }
+
     /** Update currentItems to match the next section of driver.getStimulus(index).
       * Try and reuse existing Items as much as possible.
       * Only create new Items if the stim has new components (ie t == 0)
       * Only create new Models or Textures in existing Items if really needed
     */
     private void updateStimuli() {
+        if (template != null) {
+            showTemplate();
+            return;
+        }
             // Check each driver.getStimulus(stimIndex) against currentStims[itemIndex] to see if
             //   (a) It exists (ie new stim has more items than currentStims)
             //   (a) OR it should not exist (ie is first or pre t == 0)
@@ -342,16 +547,10 @@ public class OpiLogic implements PsychoLogic {
                 }
 
                 if (newModel)
-                    if (stim.shape() == ModelType.OPTOTYPE)
-                        currentItems.get(itemIndex).update(new Model(stim.optotype()));  // give it the optotype
-                    else
-                        currentItems.get(itemIndex).update(new Model(stim.shape()));
+                    currentItems.get(itemIndex).update(createModel(stim));
 
                 if (newTexture == 1) {
-                    if (stim.type() == TextureType.IMAGE) 
-                        currentItems.get(itemIndex).update(new Texture(stim.imageFilename()));  // new, string filename
-                    else
-                        currentItems.get(itemIndex).update(new Texture(stim.type()));  
+                    currentItems.get(itemIndex).update(createTexture(stim));
                 } else if (newTexture == 2) {
                     Texture t = currentItems.get(itemIndex).getTexture();
                     t.updateImage(stim.imageFilename());     // update the texture
@@ -360,20 +559,7 @@ public class OpiLogic implements PsychoLogic {
             }
 
                 // Update all the other bits
-            currentItems.get(itemIndex).position(stim.x(), stim.y());
-            if (stim.fullFoV() != 0) {
-                currentItems.get(itemIndex).size(this.fov[0], this.fov[1]);
-            } else {
-                currentItems.get(itemIndex).size(stim.sx(), stim.sy());
-            }
-            currentItems.get(itemIndex).rotation(stim.rotation());
-            currentItems.get(itemIndex).contrast(stim.contrast());
-            currentItems.get(itemIndex).frequency(stim.phase(), stim.frequency());
-            currentItems.get(itemIndex).defocus(stim.defocus());
-            currentItems.get(itemIndex).texRotation(stim.texRotation());
-            currentItems.get(itemIndex).envelope(stim.envType(), stim.envSdx(), stim.envSdy(), stim.envRotation());
-            currentItems.get(itemIndex).setColors(gammaLumToColor(stim.lum(), stim.color1()), gammaLumToColor(stim.lum(), stim.color2()));
-            currentItems.get(itemIndex).depth(STIM_DEPTH);
+            applyStimulus(currentItems.get(itemIndex), stim);
             currentItems.get(itemIndex).show(stim.eye());
 
                 // record the new currentStims
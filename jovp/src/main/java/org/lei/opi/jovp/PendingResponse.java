@@ -0,0 +1,129 @@
+package org.lei.opi.jovp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.lei.opi.core.OpiClock;
+import org.lei.opi.core.definitions.PupilResponse;
+
+/**
+ * A {@link Response} waiting for the eye positions asked of the cameras at the start of a
+ * presentation and (if seen) at the button press.
+ *
+ * OpiLogic checks it once per frame with {@link #ready(long)}, which never blocks, and builds
+ * the Response when both eye positions have arrived or the deadline has passed, whichever is first.
+ * Eye positions that have not arrived by then are left out of the Response.
+ * It holds the future of the presentation it is the response to, taken when it was made,
+ * so {@link #complete()} answers that PRESENT (or element of a batch) and no other.
+ *
+ * @since 0.3.0
+ */
+final class PendingResponse {
+
+    /** Longest time (ms) to wait for the cameras after the response is known: {@value DEADLINE} */
+    static final long DEADLINE = 5000;
+
+    /** The response without eye positions */
+    private final Response response;
+    /** Time the stimulus was presented (ns, from OpiClock; eye times are relative to this) */
+    private final long startTime;
+    /** Eye position at the start of the presentation (null if there are no cameras) */
+    private final CompletableFuture<PupilResponse> start;
+    /** Eye position at the button press (null if not seen or there are no cameras) */
+    private final CompletableFuture<PupilResponse> end;
+    /** Build the Response by this time (ns) even if the eye positions have not arrived */
+    private final long deadline;
+    /** Completed with the Response by {@link #complete()} (null if it is not for a presentation, eg QUERY) */
+    private final CompletableFuture<Response> target;
+
+    /**
+     * @param response The response without eye positions
+     * @param startTime Time the stimulus was presented (ns, from OpiClock)
+     * @param start Eye position at the start of the presentation (or null)
+     * @param end Eye position at the button press (or null)
+     * @param now The time now (ns), from which the deadline is counted
+     * @param target The presentation it is the response to (or null)
+     *
+     * @since 0.3.0
+     */
+    PendingResponse(Response response, long startTime, CompletableFuture<PupilResponse> start, CompletableFuture<PupilResponse> end,
+                    long now, CompletableFuture<Response> target) {
+        this.response = response;
+        this.startTime = startTime;
+        this.start = start;
+        this.end = end;
+        this.deadline = now + OpiClock.fromMillis(DEADLINE);
+        this.target = target;
+    }
+
+    /**
+     * @param now The time now (ns, from OpiClock)
+     * @return true if the Response can be built: both eye positions are in or the deadline has passed
+     *
+     * @since 0.3.0
+     */
+    boolean ready(long now) {
+        return (arrived(start) && arrived(end)) || now >= deadline;
+    }
+
+    /**
+     * Wait (up to the deadline) for the eye positions then build the Response.
+     * For callers that may block, eg QUERY on an OpiListener thread; OpiLogic uses {@link #ready(long)}.
+     *
+     * @return The Response
+     *
+     * @since 0.3.0
+     */
+    Response await() {
+        CompletableFuture<Void> both = CompletableFuture.allOf(
+            start == null ? CompletableFuture.completedFuture(null) : start,
+            end == null ? CompletableFuture.completedFuture(null) : end);
+        try {
+            both.get(Math.max(0, deadline - OpiClock.now()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) { ; }
+        return build();
+    }
+
+    /**
+     * Fill in the eye positions that have arrived.
+     *
+     * @return The Response
+     *
+     * @since 0.3.0
+     */
+    Response build() {
+        if (!arrived(start) || !arrived(end))
+            System.out.println(String.format("No response from camera queue after %s seconds", DEADLINE / 1000));
+        updateEye(true, start);
+        updateEye(false, end);
+        return response;
+    }
+
+    /**
+     * Build the Response and complete the presentation it is for (which has no effect if that
+     * PRESENT has given up waiting).
+     *
+     * @since 0.3.0
+     */
+    void complete() {
+        Response r = build();
+        if (target != null)
+            target.complete(r);
+    }
+
+    /** @return true if there is no request or it has been answered */
+    private static boolean arrived(CompletableFuture<PupilResponse> f) {
+        return f == null || f.isDone();
+    }
+
+    /** Copy an answered request into the start or end eye fields of the response */
+    private void updateEye(boolean isStart, CompletableFuture<PupilResponse> f) {
+        PupilResponse resp = f == null ? null : f.getNow(null);
+        if (resp != null)
+            response.updateEye(isStart, resp.x(), resp.y(), resp.diameter(), OpiClock.toMillis(resp.acquisitionTimeStamp() - startTime));
+    }
+}
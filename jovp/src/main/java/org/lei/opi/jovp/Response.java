@@ -10,7 +10,7 @@ import com.google.gson.stream.JsonWriter;
  * Presentation results to report back to OPI monitor from OpiLogic (used for present and query to get eye position)
  * 
  * @param seen whether stimulus was seen
- * @param time response time in ms if stimulus was seen or -1 otherwise
+ * @param time response time in ms (to a fraction of a ms) if stimulus was seen or -1 otherwise
  * @param eyexStart x coordinate of eye fixation at the time of presentation (pixels)
  * @param eyeyStart y coordinate of eye fixation at the time of presentation (pixels)
  * @param eyedStart eye diameter (pixels)
@@ -19,26 +19,29 @@ import com.google.gson.stream.JsonWriter;
  * @param eyeyEnd y coordinate of eye fixation at button press of response window expiry (pixels)
  * @param eyedEnd eye diameter at button press of response window expiry (pixels)
  * @param eyetEnd time of the recording of eye fixation and diameter relative to stimulus onset in ms
+ * @param frames planned and actual onset and offset frames and times of the stimulus (see {@link FrameScheduler.Timing})
  *
  * @since 0.0.1
  */
 public class Response extends TypeAdapter<Response> {
     boolean seen; 
-    long time;
+    double time;
 
     double eyexStart; 
     double eyeyStart;
     double eyedStart;
-    int eyetStart;
+    double eyetStart;
 
     double eyexEnd; 
     double eyeyEnd;
     double eyedEnd;
-    int eyetEnd;
+    double eyetEnd;
+
+    FrameScheduler.Timing frames = FrameScheduler.Timing.NONE;
     
-    Response(boolean seen, long time,
-            double eyexStart, double eyeyStart, double eyedStart, int eyetStart,
-            double eyexEnd, double eyeyEnd, double eyedEnd, int eyetEnd) {
+    Response(boolean seen, double time,
+            double eyexStart, double eyeyStart, double eyedStart, double eyetStart,
+            double eyexEnd, double eyeyEnd, double eyedEnd, double eyetEnd) {
         this.seen = seen;
         this.time = time;
         this.eyexStart = eyexStart;
@@ -62,10 +65,11 @@ public class Response extends TypeAdapter<Response> {
         this.eyeyEnd = r.eyeyEnd;
         this.eyedEnd = r.eyedEnd;
         this.eyetEnd = r.eyetEnd;
+        this.frames = r.frames;
     }
 
     public Response() { this(false, -1, 0, 0, 0, 0, 0, 0, 0, 0); }  // need this for gsonbuilder.registerTypeAdapter
-    public Response(boolean seen, long time) { this(seen, time, 0, 0, 0, 0, 0, 0, 0, 0); }  // need this for gsonbuilder.registerTypeAdapter
+    public Response(boolean seen, double time) { this(seen, time, 0, 0, 0, 0, 0, 0, 0, 0); }  // need this for gsonbuilder.registerTypeAdapter
 
     /**
      * 
@@ -75,7 +79,7 @@ public class Response extends TypeAdapter<Response> {
      * @param d Value for eyedStart or eyedEnd
      * @param t Value for eyetStart or eyetEnd
      */
-    public void updateEye(boolean isStart, double x, double y, double d, int t) {
+    public void updateEye(boolean isStart, double x, double y, double d, double t) {
         if (isStart) {
             eyexStart = x;
             eyeyStart = y;
@@ -88,6 +92,14 @@ public class Response extends TypeAdapter<Response> {
             eyetEnd = t;
         }
     }
+
+    /**
+     * @param frames When the stimulus came on and went off, and when it should have
+     *
+     * @since 0.3.0
+     */
+    public void setFrames(FrameScheduler.Timing frames) { this.frames = frames; }
+
     public void write(JsonWriter out, Response value) throws IOException {
         out.beginObject();
         out.name("seen").value(value.seen);
@@ -100,6 +112,14 @@ public class Response extends TypeAdapter<Response> {
         out.name("eyeyEnd").value(value.eyeyEnd);
         out.name("eyedEnd").value(value.eyedEnd);
         out.name("eyetEnd").value(value.eyetEnd);
+        out.name("plannedOnsetFrame").value(value.frames.plannedOnsetFrame());
+        out.name("onsetFrame").value(value.frames.onsetFrame());
+        out.name("plannedOffsetFrame").value(value.frames.plannedOffsetFrame());
+        out.name("offsetFrame").value(value.frames.offsetFrame());
+        out.name("plannedOnsetTime").value(value.frames.plannedOnsetTime());
+        out.name("onsetTime").value(value.frames.onsetTime());
+        out.name("plannedOffsetTime").value(value.frames.plannedOffsetTime());
+        out.name("offsetTime").value(value.frames.offsetTime());
         out.endObject();
     }
 
@@ -107,21 +127,23 @@ public class Response extends TypeAdapter<Response> {
     public Response read(JsonReader in) throws IOException {
         in.beginObject();
         boolean seen = false;
-        long time = -1;
+        double time = -1;
         double eyexStart = 0;
         double eyeyStart = 0;
         double eyedStart = 0;
-        int eyetStart = 0;
+        double eyetStart = 0;
         double eyexEnd = 0;
         double eyeyEnd = 0;
         double eyedEnd = 0;
-        int eyetEnd = 0;
+        double eyetEnd = 0;
+        long[] frameNumbers = {-1, -1, -1, -1};     // planned onset, onset, planned offset, offset
+        double[] frameTimes = {-1, -1, -1, -1};
         while (in.hasNext()) {
             String name = in.nextName();
             if (name.equals("seen")) {
                 seen = in.nextBoolean();
             } else if (name.equals("time")) {
-                time = in.nextLong();
+                time = in.nextDouble();
             } else if (name.equals("eyexStart")) {
                 eyexStart = in.nextDouble();
             } else if (name.equals("eyeyStart")) {
@@ -129,7 +151,7 @@ public class Response extends TypeAdapter<Response> {
             } else if (name.equals("eyedStart")) {
                 eyedStart = in.nextDouble();
             } else if (name.equals("eyetStart")) {
-                eyetStart = in.nextInt();
+                eyetStart = in.nextDouble();
             } else if (name.equals("eyexEnd")) {
                 eyexEnd = in.nextDouble();
             } else if (name.equals("eyeyEnd")) {
@@ -137,12 +159,31 @@ public class Response extends TypeAdapter<Response> {
             } else if (name.equals("eyedEnd")) {
                 eyedEnd = in.nextDouble();
             } else if (name.equals("eyetEnd")) {
-                eyetEnd = in.nextInt();
+                eyetEnd = in.nextDouble();
+            } else if (name.equals("plannedOnsetFrame")) {
+                frameNumbers[0] = in.nextLong();
+            } else if (name.equals("onsetFrame")) {
+                frameNumbers[1] = in.nextLong();
+            } else if (name.equals("plannedOffsetFrame")) {
+                frameNumbers[2] = in.nextLong();
+            } else if (name.equals("offsetFrame")) {
+                frameNumbers[3] = in.nextLong();
+            } else if (name.equals("plannedOnsetTime")) {
+                frameTimes[0] = in.nextDouble();
+            } else if (name.equals("onsetTime")) {
+                frameTimes[1] = in.nextDouble();
+            } else if (name.equals("plannedOffsetTime")) {
+                frameTimes[2] = in.nextDouble();
+            } else if (name.equals("offsetTime")) {
+                frameTimes[3] = in.nextDouble();
             } else {
                 throw new IOException("Unexpected field in converting Json to Response: " + name);
             }
         }
         in.endObject();
-        return new Response(seen, time, eyexStart, eyeyStart, eyedStart, eyetStart, eyexEnd, eyeyEnd, eyedEnd, eyetEnd);
+        Response r = new Response(seen, time, eyexStart, eyeyStart, eyedStart, eyetStart, eyexEnd, eyeyEnd, eyedEnd, eyetEnd);
+        r.setFrames(new FrameScheduler.Timing(frameNumbers[0], frameNumbers[1], frameNumbers[2], frameNumbers[3],
+                                            frameTimes[0], frameTimes[1], frameTimes[2], frameTimes[3]));
+        return r;
     }
 }
\ No newline at end of file
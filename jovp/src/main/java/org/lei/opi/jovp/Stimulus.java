@@ -109,4 +109,22 @@ public record Stimulus(ViewEye eye, ModelType shape, TextureType type,
         }
         return stimuli;
     }
+
+    /**
+     * This stimulus with a different luminance and response window, eg for a PRESENT of a template
+     *
+     * @param lum cd/m^2 for stimulus
+     * @param w response window in ms
+     *
+     * @return This if nothing changes, otherwise a new stimulus
+     *
+     * @since 0.3.0
+     */
+    public Stimulus with(double lum, double w) {
+        if (lum == this.lum && w == this.w)
+            return this;
+        return new Stimulus(eye, shape, type, x, y, sx, sy, lum, color1, color2, rotation, contrast,
+            phase, frequency, defocus, texRotation, t, w, imageFilename, fullFoV, optotype,
+            envType, envSdx, envSdy, envRotation);
+    }
 } 
\ No newline at end of file
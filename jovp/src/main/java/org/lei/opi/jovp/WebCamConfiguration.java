@@ -27,9 +27,21 @@ public class WebCamConfiguration {
     /** Folder name of images for fake right device. */
     public String srcFolderRight;
 
-    /** CameraStreamer for left and right eyes. null if {@link use} is false */
+    /** CameraStreamer for left and right eyes. null if there are no cameras */
     public CameraStreamer<? extends FrameInfo> cameraStreamer;
 
+    /**
+     * No cameras: {@link cameraStreamer} is null, so neither the cameras nor OpenCV are started.
+     *
+     * @param port The port number that would have served images
+     */
+    private WebCamConfiguration(int port) {
+        this.port = port;
+        this.srcDeviceLeft = -1;
+        this.srcDeviceRight = -1;
+        System.out.println(this.toString());
+    }
+
     /**
      * Set up a cameraStreamers {@link leftCS} and {@link rightCS} and set {@link use}.
      *
@@ -84,7 +96,8 @@ public class WebCamConfiguration {
         
     /**
      * Create WebCamConfiguration object from a map of parameters.
-     * If any of the params are missing, just return a non-functioning WebCamConfiguration object.
+     * If any of the params are missing, or nothing would use the cameras (no eyeStreamPort and 
+     * tracking is false), just return a WebCamConfiguration object with no cameras.
      * 
      * @param args OpiJovp key-value pairs for web cam configuration
      * @return new WebCamConfiguration object
@@ -94,7 +107,10 @@ public class WebCamConfiguration {
         ||  !args.containsKey("deviceNumberCameraLeft")
         ||  !args.containsKey("deviceNumberCameraRight")
         ||  !args.containsKey("machine"))
-            return new WebCamConfiguration(-1, 0, 0, null);
+            return new WebCamConfiguration(-1);
+
+        if (((Double) args.get("eyeStreamPort")).intValue() == -1 && !Boolean.TRUE.equals(args.get("tracking")))
+            return new WebCamConfiguration(-1);
 
         try {
             return new WebCamConfiguration(
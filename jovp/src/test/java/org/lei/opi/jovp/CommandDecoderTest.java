@@ -0,0 +1,208 @@
+package org.lei.opi.jovp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.lei.opi.core.OpiListener;
+import org.lei.opi.core.OpiListener.Command;
+
+import es.optocom.jovp.definitions.ModelType;
+import es.optocom.jovp.definitions.ViewEye;
+
+/**
+ * Check the streaming CommandDecoder gives the same records as the HashMap path
+ *
+ * @since 0.3.0
+ */
+public class CommandDecoderTest {
+
+    /**
+     * A PRESENT command with n stimuli as the Monitor would send it (all defaults filled in).
+     * @param n Number of stimuli
+     * @param commandFirst If true 'command' is the first field
+     */
+    static String presentJson(int n, boolean commandFirst) {
+        StringBuilder sb = new StringBuilder("{");
+        if (commandFirst)
+            sb.append("\"command\":\"present\",");
+        sb.append("\"stim.length\":").append(n).append(",\"w\":1500.0");
+        String[][] lists = {
+            {"eye", "\"left\""}, {"shape", "\"circle\""}, {"type", "\"flat\""},
+            {"x", "3.5"}, {"y", "-2.25"}, {"sx", "0.43"}, {"sy", "0.43"}, {"lum", "100.0"},
+            {"color1", "[1.0,1.0,1.0]"}, {"color2", "[0.0,0.0,0.0]"},
+            {"rotation", "0.0"}, {"contrast", "1.0"}, {"phase", "0.0"}, {"frequency", "0.0"}, {"defocus", "0.0"},
+            {"texRotation", "0.0"}, {"t", "200.0"}, {"imageFilename", "\"\""}, {"fullFoV", "0.0"},
+            {"optotype", "\"e\""}, {"envType", "\"none\""}, {"envSdx", "1.0"}, {"envSdy", "1.0"}, {"envRotation", "0.0"}
+        };
+        for (String[] l : lists) {
+            sb.append(",\"").append(l[0]).append("\":[");
+            for (int i = 0 ; i < n ; i++)
+                sb.append(i == 0 ? "" : ",").append(l[1]);
+            sb.append("]");
+        }
+        if (!commandFirst)
+            sb.append(",\"command\":\"present\"");
+        return sb.append("}").toString();
+    }
+
+    /** Check two Stimulus records hold the same values */
+    static void assertSame(Stimulus a, Stimulus b) {
+        Assertions.assertEquals(a.eye(), b.eye());
+        Assertions.assertEquals(a.shape(), b.shape());
+        Assertions.assertEquals(a.type(), b.type());
+        Assertions.assertEquals(a.x(), b.x());
+        Assertions.assertEquals(a.y(), b.y());
+        Assertions.assertEquals(a.sx(), b.sx());
+        Assertions.assertEquals(a.lum(), b.lum());
+        Assertions.assertArrayEquals(a.color1(), b.color1());
+        Assertions.assertArrayEquals(a.color2(), b.color2());
+        Assertions.assertEquals(a.t(), b.t());
+        Assertions.assertEquals(a.w(), b.w());
+        Assertions.assertEquals(a.imageFilename(), b.imageFilename());
+        Assertions.assertEquals(a.optotype(), b.optotype());
+        Assertions.assertEquals(a.envType(), b.envType());
+        Assertions.assertEquals(a.envSdy(), b.envSdy());
+    }
+
+    @Test
+    public void presentMatchesHashMapPath() throws Exception {
+        for (boolean commandFirst : new boolean[] {true, false}) {
+            String json = presentJson(3, commandFirst);
+            Stimulus[] expected = Stimulus.create(OpiListener.jsonToPairs(json));
+            CommandDecoder.Decoded d = new CommandDecoder().decode(json);
+
+            Assertions.assertEquals(Command.PRESENT, d.command());
+            Assertions.assertEquals(3, d.stimuli().length);
+            for (int i = 0 ; i < 3 ; i++)
+                assertSame(expected[i], d.stimuli()[i]);
+            System.out.println("[presentMatchesHashMapPath] commandFirst " + commandFirst + ": " + d.stimuli()[0]);
+        }
+    }
+
+    @Test
+    public void setup() throws IOException {
+        String json = "{\"command\":\"setup\",\"eye\":\"both\",\"bgLum\":0.1,\"bgCol\":[1,1,1],\"fixShape\":\"maltese\",\"fixType\":\"flat\","
+            + "\"fixLum\":0.8,\"fixCol\":[0,1,0],\"fixCx\":0,\"fixCy\":0,\"fixSx\":5,\"fixSy\":5,\"fixRotation\":45,\"tracking\":1,"
+            + "\"fixImageFilename\":\"\",\"bgImageFilename\":\"\",\"deviceNumberCameraLeft\":\"1\"}";
+        Setup expected = Setup.create2(OpiListener.jsonToPairs(json));
+        Setup s = new CommandDecoder().decode(json).setup();
+
+        Assertions.assertEquals(ViewEye.BOTH, s.eye());
+        Assertions.assertEquals(ModelType.MALTESE, s.fixShape());
+        Assertions.assertArrayEquals(expected.bgCol(), s.bgCol());
+        Assertions.assertArrayEquals(expected.fixCol(), s.fixCol());
+        Assertions.assertEquals(expected.fixRotation(), s.fixRotation());
+        Assertions.assertEquals(expected.tracking(), s.tracking());
+    }
+
+    @Test
+    public void presentBatch() throws Exception {
+        String one = presentJson(1, true).replace("\"command\":\"present\",", "");
+        String two = presentJson(2, true).replace("\"command\":\"present\",", "");
+        String json = "{\"command\":\"PRESENT_BATCH\",\"isi\":[100,250],\"stream\":1,\"presentations\":[" + one + "," + two + "," + one + "]}";
+        CommandDecoder.Decoded d = new CommandDecoder().decode(json);
+
+        Assertions.assertEquals(Command.PRESENT_BATCH, d.command());
+        CommandDecoder.Batch b = d.batch();
+        Assertions.assertEquals(3, b.presentations().length);
+        Assertions.assertEquals(1, b.presentations()[0].length);
+        Assertions.assertEquals(2, b.presentations()[1].length);
+        Assertions.assertTrue(b.stream());
+        Assertions.assertEquals(100, b.isiAfter(0));
+        Assertions.assertEquals(250, b.isiAfter(1));
+        Assertions.assertEquals(250, b.isiAfter(2));  // last isi is reused
+
+        Stimulus[] expected = Stimulus.create(OpiListener.jsonToPairs(presentJson(2, true)));
+        for (int i = 0 ; i < 2 ; i++)
+            assertSame(expected[i], b.presentations()[1][i]);
+
+            // command last, no isi and no stream
+        d = new CommandDecoder().decode("{\"presentations\":[" + one + "],\"command\":\"present_batch\"}");
+        Assertions.assertEquals(1, d.batch().presentations().length);
+        Assertions.assertFalse(d.batch().stream());
+        Assertions.assertEquals(0, d.batch().isiAfter(0));
+        System.out.println("[presentBatch] " + d.batch().presentations()[0][0]);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new CommandDecoder().decode("{\"command\":\"present_batch\"}"));
+    }
+
+    @Test
+    public void programAndTemplate() throws Exception {
+        String one = presentJson(1, true).replace("\"command\":\"present\",", "");
+        String two = presentJson(2, true).replace("\"command\":\"present\",", "");
+        CommandDecoder decoder = new CommandDecoder();
+        CommandDecoder.Decoded d = decoder.decode("{\"command\":\"define_program\",\"program\":\"24-2\",\"templates\":[" + one + "," + two + "]}");
+
+        Assertions.assertEquals(Command.DEFINE_PROGRAM, d.command());
+        CommandDecoder.Program p = d.program();
+        Assertions.assertEquals("24-2", p.name());
+        Assertions.assertEquals(2, p.templates().length);
+        Assertions.assertEquals(2, p.templates()[1].length);
+        Stimulus[] expected = Stimulus.create(OpiListener.jsonToPairs(presentJson(2, true)));
+        for (int i = 0 ; i < 2 ; i++)
+            assertSame(expected[i], p.templates()[1][i]);
+
+            // a PRESENT of a template reads only the template and the values that change
+        d = decoder.decode("{\"command\":\"present\",\"program\":\"24-2\",\"template\":1,\"lum\":[31.5,20],\"w\":1200,\"x\":[9]}");
+        System.out.println("[programAndTemplate] " + d.template());
+        Assertions.assertEquals(Command.PRESENT, d.command());
+        Assertions.assertNull(d.stimuli());
+        Assertions.assertEquals("24-2", d.template().program());
+        Assertions.assertEquals(1, d.template().index());
+        Assertions.assertArrayEquals(new double[] {31.5, 20}, d.template().lum());
+        Assertions.assertEquals(1200, d.template().w());
+
+        d = decoder.decode("{\"command\":\"present\",\"program\":\"24-2\",\"template\":0}");
+        Assertions.assertNull(d.template().lum());
+        Assertions.assertTrue(Double.isNaN(d.template().w()));
+
+        Stimulus s = p.templates()[0][0];
+        Assertions.assertSame(s, s.with(s.lum(), s.w()));
+        Assertions.assertEquals(31.5, s.with(31.5, s.w()).lum());
+        Assertions.assertEquals(s.x(), s.with(31.5, 900).x());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new CommandDecoder().decode("{\"command\":\"define_program\",\"program\":\"a\"}"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new CommandDecoder().decode("{\"command\":\"define_program\",\"templates\":[]}"));
+    }
+
+    @Test
+    public void otherCommandsGivePairs() throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        CommandDecoder.Decoded d = decoder.decode("{\"command\":\"initialize\",\"screen\":1,\"physicalSize\":[121,68],\"tracking\":false}");
+        Assertions.assertEquals(Command.INITIALIZE, d.command());
+        Assertions.assertEquals(1.0, d.pairs().get("screen"));
+        Assertions.assertEquals(List.of(121.0, 68.0), d.pairs().get("physicalSize"));
+        Assertions.assertEquals(OpiListener.jsonToPairs("{\"tracking\":false}").get("tracking"), d.pairs().get("tracking"));
+
+        Assertions.assertNull(decoder.decode("{\"command\":\"fly\"}").command());
+        Assertions.assertNull(decoder.decode("{\"eye\":\"left\"}").name());
+    }
+
+    @Test
+    public void badValues() {
+        CommandDecoder decoder = new CommandDecoder();
+        String json = presentJson(1, true);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> decoder.decode(json.replace("\"circle\"", "\"blob\"")));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> decoder.decode(json.replace("\"w\"", "\"notw\"")));
+        Assertions.assertThrows(IOException.class, () -> decoder.decode("[1, 2]"));
+
+        HashMap<String, Object> pairs = new HashMap<String, Object>();
+        pairs.put("command", "present");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> decoder.decode(OpiListener.gson.toJson(pairs)));
+    }
+
+    /** PRESENT waits for its stimuli and w, whichever is longer, and then the grace */
+    @Test
+    public void responseTimeout() throws IOException {
+        CommandDecoder decoder = new CommandDecoder();
+        Stimulus[] stimuli = decoder.decode(presentJson(3, true)).stimuli();   // t = 200 each, w = 1500
+        Assertions.assertEquals(1500 + 250, OpiJovp.responseTimeout(stimuli, 250));
+
+        stimuli = decoder.decode(presentJson(3, true).replace("200.0", "800.0")).stimuli();
+        Assertions.assertEquals(3 * 800 + Configuration.DEFAULT_PRESENT_GRACE, OpiJovp.responseTimeout(stimuli, Configuration.DEFAULT_PRESENT_GRACE));
+        System.out.println("Timeout for 3 x 800 ms stimuli: " + OpiJovp.responseTimeout(stimuli, Configuration.DEFAULT_PRESENT_GRACE) + " ms");
+    }
+}
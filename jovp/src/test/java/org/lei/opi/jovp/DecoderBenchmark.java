@@ -0,0 +1,67 @@
+package org.lei.opi.jovp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.lei.opi.core.OpiListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH comparison of decoding a PRESENT command via HashMap pairs + Stimulus.create()
+ * against the streaming {@link CommandDecoder}.
+ *
+ * Run with main() (or the JMH runner) to get time per decode and, from the GC profiler,
+ * gc.alloc.rate.norm which is the bytes allocated per decode.
+ *
+ * @since 0.3.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+
+    /** Number of stimuli in the PRESENT */
+    @Param({"1", "10"})
+    public int n;
+
+    private String json;
+    private final CommandDecoder decoder = new CommandDecoder();
+
+    @org.openjdk.jmh.annotations.Setup
+    public void setup() {
+        json = CommandDecoderTest.presentJson(n, true);
+    }
+
+    @Benchmark
+    public Stimulus[] hashMapPath() throws Exception {
+        return Stimulus.create(OpiListener.jsonToPairs(json));
+    }
+
+    @Benchmark
+    public Stimulus[] streamingDecoder() throws IOException {
+        return decoder.decode(json).stimuli();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(DecoderBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
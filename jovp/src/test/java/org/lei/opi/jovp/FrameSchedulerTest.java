@@ -0,0 +1,86 @@
+package org.lei.opi.jovp;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.lei.opi.core.OpiClock;
+
+/**
+ * Check the FrameScheduler turns times into frames and numbers frames by when they were drawn
+ *
+ * @since 0.3.0
+ */
+public class FrameSchedulerTest {
+
+    /** Stimulus times round to the nearest frame at common refresh rates */
+    @Test
+    public void framesForTimes() {
+        for (double hz : new double[] {60, 75, 90, 120, 144}) {
+            FrameScheduler s = new FrameScheduler(hz);
+            System.out.println(String.format("%5.0f Hz: frame %6.3f ms, 200 ms = %d frames, 1500 ms = %d frames",
+                hz, s.frameMillis(), s.frames(200), s.frames(1500)));
+            Assertions.assertEquals(Math.round(0.2 * hz), s.frames(200));
+            Assertions.assertEquals(Math.round(1.5 * hz), s.frames(1500));
+            Assertions.assertEquals(0, s.frames(0));
+        }
+        Assertions.assertEquals(12, new FrameScheduler(0).frames(200));   // unknown rate is taken as 60 Hz
+    }
+
+    /** Ticks a frame apart count up by one; a late tick skips the frames it missed */
+    @Test
+    public void tickCountsFrames() {
+        FrameScheduler s = new FrameScheduler(100);   // 10 ms frames
+        long t0 = OpiClock.fromMillis(123456.789);
+        Assertions.assertEquals(-1, s.frame());
+
+        Assertions.assertEquals(0, s.tick(t0));
+        Assertions.assertEquals(1, s.tick(t0 + OpiClock.fromMillis(10.2)));   // a little late is the same frame
+        Assertions.assertEquals(2, s.tick(t0 + OpiClock.fromMillis(19.7)));   // a little early too
+        Assertions.assertEquals(5, s.tick(t0 + OpiClock.fromMillis(50.1)));   // missed frames 3 and 4
+        Assertions.assertEquals(6, s.tick(t0 + OpiClock.fromMillis(52)));     // never goes backwards or repeats
+
+        Assertions.assertEquals(t0 + OpiClock.fromMillis(52), s.frameTime());
+        Assertions.assertEquals(52.0, s.millis(s.frameTime()), 1e-6);
+        Assertions.assertEquals(60.0, s.plannedMillis(6), 1e-6);
+        Assertions.assertEquals(-1, s.plannedMillis(-1));
+    }
+
+    /** OpiClock times can be negative (nanoTime has an arbitrary origin), so they are not taken as unset */
+    @Test
+    public void negativeTimes() {
+        FrameScheduler s = new FrameScheduler(100);
+        long t0 = -OpiClock.fromMillis(123456.789);
+        Assertions.assertEquals(-1, s.millis(t0));   // no tick yet
+        Assertions.assertEquals(FrameScheduler.UNSET, s.frameTime());
+
+        Assertions.assertEquals(0, s.tick(t0));
+        Assertions.assertEquals(1, s.tick(t0 + OpiClock.fromMillis(10.2)));
+        Assertions.assertEquals(3, s.tick(t0 + OpiClock.fromMillis(30)));
+        System.out.println(String.format("frame %d at %.3f ms", s.frame(), s.millis(s.frameTime())));
+        Assertions.assertEquals(30.0, s.millis(s.frameTime()), 1e-6);
+        Assertions.assertEquals(-1, s.millis(FrameScheduler.UNSET));
+    }
+
+    /** A 200 ms stimulus at 60 Hz goes off 12 frames after it came on, however the ticks jitter */
+    @Test
+    public void stimulusEndsOnItsFrame() {
+        FrameScheduler s = new FrameScheduler(60);
+        long t0 = 0;
+        s.tick(t0);
+        long onset = s.frame();
+        long offset = onset + s.frames(200);
+
+        Random random = new Random(1);
+        long off = -1;
+        for (int k = 1 ; off < 0 ; k++) {
+            long t = t0 + OpiClock.fromMillis(k * 1000.0 / 60 + random.nextGaussian() * 0.5);   // ticks jitter about each refresh
+            if (s.tick(t) >= offset)
+                off = s.frame();
+        }
+        double duration = OpiClock.toMillis(s.frameTime() - t0);
+        System.out.println(String.format("onset frame %d, offset frame %d, on for %.3f ms", onset, off, duration));
+        Assertions.assertEquals(offset, off);
+        Assertions.assertEquals(200, duration, 2);
+    }
+}
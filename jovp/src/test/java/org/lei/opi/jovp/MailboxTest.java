@@ -0,0 +1,127 @@
+package org.lei.opi.jovp;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Check the Mailbox between the OpiListener threads and the render thread
+ *
+ * @since 0.3.0
+ */
+public class MailboxTest {
+
+    /** Run a fake render loop that polls the box once per 'frame' and records what it carried out */
+    private static Thread renderLoop(Mailbox<Integer> box, ArrayList<Integer> applied, AtomicBoolean running) {
+        Thread t = new Thread(() -> {
+            while (running.get()) {
+                Integer i = box.peek();
+                if (i != null) {
+                    applied.add(i);
+                    box.done();
+                }
+                Thread.onSpinWait();
+            }
+        }, "render");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /** post() returns only once the receiver has called done(), and commands are not lost or reordered */
+    @Test
+    public void postWaitsUntilDone() throws InterruptedException {
+        Mailbox<Integer> box = new Mailbox<Integer>();
+        ArrayList<Integer> applied = new ArrayList<Integer>();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread render = renderLoop(box, applied, running);
+
+        int n = 10000;
+        long t0 = System.nanoTime();
+        for (int i = 0 ; i < n ; i++) {
+            box.post(i);    // the receiver's writes are visible as soon as post returns
+            Assertions.assertEquals(i + 1, applied.size());
+            Assertions.assertEquals(i, (int) applied.get(i));
+        }
+        long t1 = System.nanoTime();
+        System.out.println(String.format("%d posts: mean %.1f us each", n, (t1 - t0) / 1e3 / n));
+
+        running.set(false);
+        render.join();
+        Assertions.assertNull(box.peek());
+    }
+
+    /** The box holds one command: a second send waits until the first is done */
+    @Test
+    public void sendWaitsForEmptyBox() throws InterruptedException {
+        Mailbox<String> box = new Mailbox<String>();
+        box.send("first");
+        Assertions.assertEquals("first", box.peek());
+        Assertions.assertEquals("first", box.peek());   // stays until done
+
+        AtomicBoolean sent = new AtomicBoolean(false);
+        Thread second = new Thread(() -> {
+            try {
+                box.send("second");
+                sent.set(true);
+            } catch (InterruptedException e) {
+                ;
+            }
+        });
+        second.start();
+        Thread.sleep(100);
+        Assertions.assertFalse(sent.get());
+        Assertions.assertEquals("first", box.peek());
+
+        box.done();
+        second.join(1000);
+        Assertions.assertTrue(sent.get());
+        Assertions.assertEquals("second", box.take());
+        box.done();
+        Assertions.assertNull(box.peek());
+    }
+
+    /** take() parks the receiver until something is sent, as startPsychoEngine() waits for SHOW */
+    @Test
+    public void takeWaitsForSend() throws InterruptedException {
+        Mailbox<OpiJovp.Action> box = new Mailbox<OpiJovp.Action>();
+        Thread listener = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                box.post(OpiJovp.Action.SHOW);
+            } catch (InterruptedException e) {
+                ;
+            }
+        });
+        listener.start();
+        long t0 = System.nanoTime();
+        Assertions.assertEquals(OpiJovp.Action.SHOW, box.take());
+        System.out.println(String.format("take() woke after %.1f ms", (System.nanoTime() - t0) / 1e6));
+        Assertions.assertTrue(listener.isAlive());   // still waiting for done()
+        box.done();
+        listener.join(1000);
+        Assertions.assertFalse(listener.isAlive());
+    }
+
+    /** An interrupted sender stops waiting */
+    @Test
+    public void interruptedPost() throws InterruptedException {
+        Mailbox<Integer> box = new Mailbox<Integer>();
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        Thread sender = new Thread(() -> {
+            try {
+                box.post(1);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        sender.start();
+        while (box.peek() == null)
+            Thread.onSpinWait();
+        sender.interrupt();
+        sender.join(1000);
+        Assertions.assertTrue(interrupted.get());
+    }
+}
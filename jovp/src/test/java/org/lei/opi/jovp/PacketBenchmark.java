@@ -0,0 +1,89 @@
+package org.lei.opi.jovp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.lei.opi.core.Framing;
+import org.lei.opi.core.OpiListener;
+import org.lei.opi.core.OpiSession;
+import org.lei.opi.core.definitions.Packet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * JMH comparison of encoding a typical PRESENT reply (a Response with eye positions, with an id)
+ * the old way, msg to a string that is parsed back into the Packet's JSON, then the whole thing to a
+ * string, newlines stripped and turned into bytes, against {@link OpiSession.PacketEncoder}.
+ *
+ * Run with main() to get time per reply and, from the GC profiler, gc.alloc.rate.norm
+ * which is the bytes allocated per reply. Both give the same bytes on the wire.
+ *
+ * @since 0.3.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+    private Response response;
+    private final JsonPrimitive id = new JsonPrimitive("42");
+    private final OpiSession.PacketEncoder encoder = new OpiSession.PacketEncoder(StandardCharsets.UTF_8);
+
+    @org.openjdk.jmh.annotations.Setup
+    public void setup() {
+        OpiListener.gsonBuilder.registerTypeAdapter(Response.class, new Response());
+        OpiListener.gson = OpiListener.gsonBuilder.create();
+        response = new Response(true, 312, 1.52, -0.25, 4.1, 3, 1.71, -0.3, 4.05, 290);
+    }
+
+    /** The path before Packet.writeTo: msg encoded, parsed and encoded again inside the Packet */
+    @Benchmark
+    public byte[] twoPass() {
+        String msg = OpiListener.gson.toJson(response);
+        JsonObject o = new JsonObject();
+        o.add("id", id);
+        o.addProperty("error", false);
+        o.addProperty("close", false);
+        o.add("msg", JsonParser.parseString(msg));
+        String line = OpiListener.gson.toJson(o);
+        return (line.replace("\n", "") + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer singlePass() throws IOException {
+        return encoder.encode(new Packet(response).withId(id), false, Framing.NO_FLAGS);
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        PacketBenchmark b = new PacketBenchmark();
+        b.setup();
+        ByteBuffer single = b.singlePass();
+        System.out.println("twoPass    " + b.twoPass().length + " bytes: " + new String(b.twoPass(), StandardCharsets.UTF_8).trim());
+        System.out.println("singlePass " + single.remaining() + " bytes: " + StandardCharsets.UTF_8.decode(single).toString().trim());
+
+        new Runner(new OptionsBuilder()
+            .include(PacketBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+}
@@ -0,0 +1,108 @@
+package org.lei.opi.jovp;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.lei.opi.core.OpiClock;
+import org.lei.opi.core.definitions.PupilResponse;
+
+/**
+ * Check that a PendingResponse is built when the camera answers or the deadline passes, without blocking
+ *
+ * @since 0.3.0
+ */
+public class PendingResponseTest {
+
+    /** ms to ns */
+    private static long ms(double t) { return OpiClock.fromMillis(t); }
+
+    /** Ready only once both eye positions are in, then they are copied into the Response */
+    @Test
+    public void readyWhenEyesArrive() {
+        long start = ms(1000);
+        CompletableFuture<PupilResponse> startEye = new CompletableFuture<PupilResponse>();
+        CompletableFuture<PupilResponse> endEye = new CompletableFuture<PupilResponse>();
+        PendingResponse p = new PendingResponse(new Response(true, 350.25), start, startEye, endEye, start + ms(350), null);
+
+        Assertions.assertFalse(p.ready(start + ms(351)));
+        startEye.complete(new PupilResponse(start, start + ms(12.5), 1.5, -2.0, 4.0));   // as the CameraStreamer does
+        Assertions.assertFalse(p.ready(start + ms(352)));
+        endEye.complete(new PupilResponse(start + ms(350), start + ms(340), 0.5, 0.25, 3.5));
+        Assertions.assertTrue(p.ready(start + ms(353)));
+
+        Response r = p.build();
+        System.out.println(String.format("start (%s, %s) d=%s t=%s  end (%s, %s) d=%s t=%s",
+            r.eyexStart, r.eyeyStart, r.eyedStart, r.eyetStart, r.eyexEnd, r.eyeyEnd, r.eyedEnd, r.eyetEnd));
+        Assertions.assertTrue(r.seen);
+        Assertions.assertEquals(350.25, r.time);
+        Assertions.assertEquals(1.5, r.eyexStart);
+        Assertions.assertEquals(-2.0, r.eyeyStart);
+        Assertions.assertEquals(4.0, r.eyedStart);
+        Assertions.assertEquals(12.5, r.eyetStart);   // sub-millisecond times survive
+        Assertions.assertEquals(0.5, r.eyexEnd);
+        Assertions.assertEquals(3.5, r.eyedEnd);
+        Assertions.assertEquals(340, r.eyetEnd);
+    }
+
+    /** Past the deadline the Response is built with what has arrived (time driven by a fake clock) */
+    @Test
+    public void deadlinePassed() {
+        long now = ms(5000);
+        CompletableFuture<PupilResponse> startEye = new CompletableFuture<PupilResponse>();
+        PendingResponse p = new PendingResponse(new Response(false, 0), now - ms(1500), startEye, null, now, null);
+
+        Assertions.assertFalse(p.ready(now + ms(PendingResponse.DEADLINE) - 1));
+        Assertions.assertTrue(p.ready(now + ms(PendingResponse.DEADLINE)));
+
+        OpiClock.set(() -> now + ms(PendingResponse.DEADLINE));
+        try {
+            long t0 = System.nanoTime();
+            Response r = p.await();   // the clock says the deadline has passed, so no waiting
+            System.out.println(String.format("await() past the deadline took %.3f ms", (System.nanoTime() - t0) / 1e6));
+            Assertions.assertTrue(System.nanoTime() - t0 < ms(1000));
+            Assertions.assertFalse(r.seen);
+            Assertions.assertEquals(0, r.eyedStart);
+            Assertions.assertEquals(0, r.eyetStart);
+
+            startEye.complete(new PupilResponse(now - ms(1500), now - ms(1490), 1, 1, 4));   // too late
+            Assertions.assertEquals(0, r.eyedStart);
+        } finally {
+            OpiClock.set(null);
+        }
+    }
+
+    /** With no cameras (or a request the camera cannot answer) the Response is ready straight away */
+    @Test
+    public void noCameras() {
+        long now = OpiClock.now();
+        PendingResponse p = new PendingResponse(new Response(true, 200), now - ms(200), null, null, now, null);
+        Assertions.assertTrue(p.ready(now));
+
+        PendingResponse q = new PendingResponse(new Response(true, 200), now - ms(200),
+            CompletableFuture.completedFuture(null), null, now, null);
+        Assertions.assertTrue(q.ready(now));
+        long t0 = System.nanoTime();
+        Response r = q.await();
+        System.out.println(String.format("await() with nothing to wait for took %.3f ms", (System.nanoTime() - t0) / 1e6));
+        Assertions.assertEquals(200, r.time);
+        Assertions.assertEquals(0, r.eyedStart);
+    }
+
+    /** A response completes the presentation it was made for, even if a later PRESENT is waiting by then */
+    @Test
+    public void completesItsPresentation() {
+        long now = OpiClock.now();
+        CompletableFuture<Response> given = new CompletableFuture<Response>();   // a PRESENT that timed out
+        CompletableFuture<Response> next = new CompletableFuture<Response>();
+        PendingResponse late = new PendingResponse(new Response(true, 200), now - ms(200), null, null, now, given);
+        PendingResponse p = new PendingResponse(new Response(false, 0), now, null, null, now, next);
+
+        late.complete();
+        System.out.println(String.format("late response done=%s, next PRESENT done=%s", given.isDone(), next.isDone()));
+        Assertions.assertTrue(given.getNow(null).seen);
+        Assertions.assertFalse(next.isDone());
+        p.complete();
+        Assertions.assertFalse(next.getNow(null).seen);
+    }
+}
@@ -0,0 +1,5 @@
+@echo off
+
+:: Training run: start up OpiJovp, exit, and save the classes it loaded in opiJovp.jsa 
+:: for run_opiJovp.bat to use. Run it again after installing new jars or a new JDK.
+java -XX:ArchiveClassesAtExit=opiJovp.jsa @..\jopts.txt org.lei.opi.jovp.OpiJovp --train 51234
@@ -33,6 +33,8 @@ mkdir %input%
 ::COPY "C:\Users\imo vifa\.m2\repository\org\bytedeco\openblas\0.3.13-1.5.5\openblas-0.3.13-1.5.5.jar" %input%
 ::COPY "C:\Users\imo vifa\.m2\repository\org\bytedeco\openblas\0.3.13-1.5.5\openblas-0.3.13-1.5.5-windows-x86_64.jar" %input%
 ::COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\monitor\0.2.0\monitor-0.2.0.jar" %input%
+COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\protocol\0.2.0\protocol-0.2.0.jar" %input%
+COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\vision\0.2.0\vision-0.2.0.jar" %input%
 COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\core\0.2.0\core-0.2.0.jar" %input%
 COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\opiJovp\0.2.0\opiJovp-0.2.0.jar" %input%
 COPY "C:\Users\imo vifa\.m2\repository\es\optocom\jovp\jovp\0.1.0-SNAPSHOT\jovp-0.1.0-SNAPSHOT.jar" %input%
@@ -73,6 +75,8 @@ if exist OpiMonitor\ (
 rmdir %input% /S /Q
 mkdir %input%
 
+COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\protocol\0.2.0\protocol-0.2.0.jar" %input%
+COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\vision\0.2.0\vision-0.2.0.jar" %input%
 COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\core\0.2.0\core-0.2.0.jar" %input%
 ::COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\opiJovp\0.2.0\opiJovp-0.2.0.jar" %input%
 COPY "C:\Users\imo vifa\.m2\repository\org\lei\opi\monitor\0.2.0\monitor-0.2.0.jar" %input%
@@ -1,3 +1,7 @@
 :: @echo off
 
-java @..\jopts.txt org.lei.opi.monitor.Monitor --cli 50001 ImoVifa
+:: Use the class data sharing archive made by train_monitor.bat if there is one (starts faster)
+set CDS=
+if exist monitor.jsa set CDS=-XX:SharedArchiveFile=monitor.jsa
+
+java %CDS% @..\jopts.txt org.lei.opi.monitor.Monitor --cli 50001 ImoVifa
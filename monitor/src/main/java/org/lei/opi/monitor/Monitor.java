@@ -2,6 +2,9 @@ package org.lei.opi.monitor;
 
 import org.lei.opi.core.OpiMachine;
 import org.lei.opi.core.OpiListener;
+import org.lei.opi.core.SettingsCache;
+import org.lei.opi.core.Startup;
+import org.lei.opi.core.MachineMetadata;
 
 import java.util.List;
 import java.util.ArrayList;
@@ -53,6 +56,7 @@ import javafx.scene.layout.AnchorPane;
  *   1) With no arguments, it opens the interactive GUI.
  *   2) With --cli <port number> <machine name> it runs in command line mode with no GUI.
  *   3) With --mGUI <machine name> it clicks the 'Connect' button on the interactive GUI page (using 'this' port in settings file).
+ * With --train it starts up without a GUI and exits, for making a class data sharing archive (see {@link Startup}).
  * See usage().
  */
 public class Monitor extends Application {
@@ -366,7 +370,8 @@ public class Monitor extends Application {
                 fillSettingsData(newValue, true);
             }
         });
-        listMachines.getSelectionModel().select(0);
+            // (select the machine of --mGUI straight away so only its classes are loaded)
+        listMachines.getSelectionModel().select(skipFrontPageToThisMachine >= 0 ? skipFrontPageToThisMachine : 0);
 
             // (3) Get myPort from settings file if it exists
         HashMap<String, Object> settings;
@@ -396,6 +401,12 @@ public class Monitor extends Application {
             }
         });
 
+            // 3.2) Show changes that other programs make to the settings file, unless that would lose edits here
+        SettingsCache.shared().addListener((SettingsCache.Snapshot snapshot) -> Platform.runLater(() -> {
+            if (this.currentMachineChoice != null && !this.settingsHaveBeenEdited && !this.myPortHasBeenEdited)
+                fillSettingsData(this.currentMachineChoice, true);
+        }));
+
         this.myIpAddress = OpiListener.obtainPublicAddress().getHostAddress(); // set to localhost as assumed
         this.fieldMyIP.setText(this.myIpAddress);
 
@@ -513,6 +524,8 @@ public class Monitor extends Application {
             });
 
             stage.show();
+            Startup.mark("GUI shown");
+            System.out.print(Startup.report());
         } catch (Throwable e) {
             e.printStackTrace();
             throw e;
@@ -531,11 +544,12 @@ public class Monitor extends Application {
     }
 
     private static void usage() {
-        System.err.println("Usage: Monitor [--cli <port number> <machine name> | --mGUI <machine name>] [--setting <name> <value> ...]");
+        System.err.println("Usage: Monitor [--cli <port number> <machine name> | --mGUI <machine name> | " + Startup.TRAIN + "] [--setting <name> <value> ...]");
         System.err.println("       eg java ... Monitor --cli 50001 Echo --setting port 50002 ip localhost");
         System.err.println("       With no arguments, opens interactive GUI.");
         System.err.println("       --cli runs in command line mode with no GUI.");
         System.err.println("       --mGUI clicks the 'Connect' button on the interactive GUI page (using 'this' port in settings file).");
+        System.err.println("       " + Startup.TRAIN + " starts up without a GUI and exits (a training run for a class data sharing archive).");
         System.exit(-1);
     }
 
@@ -592,7 +606,9 @@ public class Monitor extends Application {
             // Finally kick off a thread that will listen for commands from the client
             // and wait for it to finish
         OpiListener listener = new OpiListener(Integer.parseInt(port), opiMachine);
+        Startup.mark("listener open");
         System.out.println("Ready for OPI commands for " + machine + " on port " + port + " at " + ip);
+        System.out.print(Startup.report());
         try {
             listener.join();
         } catch (InterruptedException e) {
@@ -630,11 +646,39 @@ public class Monitor extends Application {
         launch();
     }
 
+    /**
+     * A training run for a class data sharing archive: load what the Monitor loads on the way to 
+     * being ready for each machine (settings file, machine classes and their Settings and command
+     * metadata, a listener) without a GUI, then exit.
+     */
+    private static void runTraining() {
+        System.out.println("Training run");
+        SettingsCache.shared();
+        Startup.mark("settings read");
+        for (String machine : OpiMachine.MACHINES) {
+            try {
+                OpiMachine.fillSettings(machine);
+                MachineMetadata.of(Class.forName("org.lei.opi.core." + machine));
+            } catch (ClassNotFoundException | RuntimeException e) {
+                System.out.println("Training run could not load " + machine + ": " + e);
+            }
+        }
+        Startup.mark("machine classes loaded");
+        OpiListener listener = new OpiListener(0, (OpiMachine) null);
+        listener.closeListener();
+        Startup.mark("listener opened and closed");
+        System.out.print(Startup.report());
+        System.exit(0);
+    }
+
     // Should not be executed directly from command line. (JavaFx has a fit)
     // See Main.main
+    // OpenCV is loaded when eye images are first streamed (see Startup), not here
     public static void main(String[] args) {
-        nu.pattern.OpenCV.loadLocally();
-        if (Arrays.asList(args).contains("--cli")) {
+        Startup.mark("main");
+        if (Arrays.asList(args).contains(Startup.TRAIN)) {
+            runTraining();
+        } else if (Arrays.asList(args).contains("--cli")) {
             runCommandLineMode(args);
         } else if (Arrays.asList(args).contains("--mGUI")) {
             runMGuiMode(args);
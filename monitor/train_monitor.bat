@@ -0,0 +1,5 @@
+@echo off
+
+:: Training run: start up the Monitor without a GUI, exit, and save the classes it loaded 
+:: in monitor.jsa for run_monitor.bat to use. Run it again after installing new jars or a new JDK.
+java -XX:ArchiveClassesAtExit=monitor.jsa @..\jopts.txt org.lei.opi.monitor.Monitor --train
@@ -0,0 +1,658 @@
+package org.lei.opi.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reading, writing and checking of single parameters for the argument records that the
+ * annotation processor of the apt module generates from @Parameter annotations
+ * (eg JovpPresentArgs for {@code Jovp.present}).
+ *
+ * Values are read straight from a {@link JsonReader} into primitives, arrays and enum constants,
+ * and checked as they are read. The rules for a single element ({@link #allowed}, {@link #check(double, Spec)}
+ * and {@link #constant}) and their messages are also the ones core's ValidationPlan uses for
+ * {@code OpiMachine.validateArgs}, so the two cannot drift apart.
+ * It is in protocol, with the records generated for JOVP, so that the JOVP server can read its
+ * commands without core.
+ * As R can send a list of one as a scalar, a scalar is accepted where a list is expected
+ * (a list of one), a list of one where a scalar is expected and a single list where a
+ * list of lists is expected. Errors are IllegalArgumentExceptions.
+ *
+ * @since 0.3.0
+ */
+public final class ArgsCodec {
+
+    /** {@value MISSING_PARAMETER} */
+    public static final String MISSING_PARAMETER = "Parameter '%s' is missing for function '%s' in %s.";
+    /** {@value NOT_LIST} */
+    public static final String NOT_LIST = "Parameter '%s' should be a non-empty list but it is not for function '%s' in %s.";
+    /** {@value NOT_LIST_OF_LIST} */
+    public static final String NOT_LIST_OF_LIST = "Parameter '%s' should be a non-empty list of non-empty lists but it is not for function '%s' in %s.";
+    /** {@value YES_LIST} */
+    public static final String YES_LIST = "Parameter '%s' should not be a list but it is for function '%s' in %s.";
+    /** {@value NOT_IN_ENUM} */
+    public static final String NOT_IN_ENUM = "I cannot find the value you gave for '%s' in enum type '%s' in function '%s' in %s.";
+    /** {@value NOT_A_DOUBLE} */
+    public static final String NOT_A_DOUBLE = "Parameter '%s' in function '%s' of '%s' is not double.";
+    /** {@value NOT_AN_INTEGER} */
+    public static final String NOT_AN_INTEGER = "Parameter '%s' in function '%s' of '%s' is not integer.";
+    /** {@value NOT_A_STRING} */
+    public static final String NOT_A_STRING = "Parameter '%s' in function '%s' of '%s' should be a String.";
+    /** {@value OUT_OF_RANGE} */
+    public static final String OUT_OF_RANGE = "Parameter '%s' in function '%s' of '%s' is not in range [%s, %s]. It is %s.";
+
+    /** What each element of a parameter must be */
+    public enum Kind { DOUBLE, INTEGER, STRING, ENUM, ANY }
+
+    /**
+     * What is needed to check one parameter and report errors about it.
+     *
+     * @param name The parameter name
+     * @param function The method it is for
+     * @param machine The class of the method as it is printed (eg "class org.lei.opi.core.Jovp"), not
+     *                the Class itself so that reading arguments does not load the machine (and JavaFX)
+     * @param kind What its elements must be
+     * @param type Its className (the enum for ENUM)
+     * @param min Smallest allowed number (rounded to 1e-10 to avoid weird rounding problems)
+     * @param max Largest allowed number (rounded to 1e-10)
+     *
+     * @since 0.3.0
+     */
+    public record Spec(String name, String function, String machine, Kind kind, Class<?> type, double min, double max) {
+        public Spec {
+            min = Math.round(1e10 * min) / 1e10;
+            max = Math.round(1e10 * max) / 1e10;
+        }
+
+        /** @return This parameter as named in the errors of another function or machine */
+        public Spec of(String function, String machine) {
+            return new Spec(name, function, machine, kind, type, min, max);
+        }
+    }
+
+    /**
+     * An argument record generated from @Parameters, which can write itself as a command.
+     *
+     * @since 0.3.0
+     */
+    public interface Args {
+        /**
+         * Write the arguments as a JSON object.
+         *
+         * @param out Where to write
+         * @param id If not null, written after 'command' as the value of 'id'
+         * @param command If not null, written first as the value of 'command' (as the JOVP decoder wants)
+         * @throws IOException If out cannot be written
+         */
+        void write(JsonWriter out, String id, String command) throws IOException;
+    }
+
+    /** Enum class : its constants (not copied for every lookup as values() is) */
+    private static final ClassValue<Enum<?>[]> CONSTANTS = new ClassValue<Enum<?>[]>() {
+        @Override
+        protected Enum<?>[] computeValue(Class<?> c) { return (Enum<?>[]) c.getEnumConstants(); }
+    };
+
+    private ArgsCodec() { ; }
+
+    /** @return The kind of the elements of a parameter of className c */
+    public static Kind kind(Class<?> c) {
+        if (c.isEnum())
+            return Kind.ENUM;
+        if (c == Double.class)
+            return Kind.DOUBLE;
+        if (c == Integer.class)
+            return Kind.INTEGER;
+        if (c == Object.class)
+            return Kind.ANY;
+        return Kind.STRING;
+    }
+
+    // ------------------------------------------------------------------ elements
+
+    /**
+     * The one check of a single element, for values that have been parsed already (eg by ValidationPlan).
+     *
+     * @param o The element
+     * @param s Its parameter
+     * @return True if o is a number in range (DOUBLE or INTEGER), a String (STRING), a constant or the
+     *         name of one ignoring case (ENUM), or anything (ANY)
+     */
+    public static boolean allowed(Object o, Spec s) {
+        return switch (s.kind) {
+            case DOUBLE, INTEGER -> o instanceof Number n && n.doubleValue() >= s.min && n.doubleValue() <= s.max;
+            case STRING -> o instanceof String;
+            case ENUM -> o instanceof Enum || (o instanceof String name && constant(name, s) != null);
+            default -> true;
+        };
+    }
+
+    /** @return The exception for an element o of s that is not {@link #allowed} */
+    public static IllegalArgumentException notAllowed(Object o, Spec s) {
+        if ((s.kind == Kind.DOUBLE || s.kind == Kind.INTEGER) && o instanceof Number n)
+            return outOfRange(n.doubleValue(), s);
+        return wrongType(s);
+    }
+
+    /** @return The constant of the enum of s named name, ignoring case, or null if there is none */
+    public static Enum<?> constant(String name, Spec s) {
+        for (Enum<?> e : CONSTANTS.get(s.type))
+            if (e.name().equalsIgnoreCase(name))
+                return e;
+        return null;
+    }
+
+    /** @return The exception for a value that is not of the kind of s */
+    private static IllegalArgumentException wrongType(Spec s) {
+        return switch (s.kind) {
+            case ENUM -> new IllegalArgumentException(String.format(NOT_IN_ENUM, s.name, s.type, s.function, s.machine));
+            case DOUBLE -> wrong(NOT_A_DOUBLE, s);
+            case INTEGER -> wrong(NOT_AN_INTEGER, s);
+            default -> wrong(NOT_A_STRING, s);
+        };
+    }
+
+    /** @return The exception for a number out of the range of s */
+    private static IllegalArgumentException outOfRange(double v, Spec s) {
+        return new IllegalArgumentException(String.format(OUT_OF_RANGE, s.name, s.function, s.machine, s.min, s.max, v));
+    }
+
+    /** @return The exception for a mandatory parameter that is missing */
+    public static IllegalArgumentException missing(Spec s) {
+        return new IllegalArgumentException(String.format(MISSING_PARAMETER, s.name, s.function, s.machine));
+    }
+
+    /** @return The exception for a value of the wrong type (message as validateArgs for the kind of parameter) */
+    private static IllegalArgumentException wrong(String format, Spec s) {
+        return new IllegalArgumentException(String.format(format, s.name, s.function, s.machine));
+    }
+
+    // ------------------------------------------------------------------ scalars
+
+    /** @return v if it is in the range of s */
+    public static double check(double v, Spec s) {
+        if (v < s.min || v > s.max)
+            throw outOfRange(v, s);
+        return v;
+    }
+
+    /** @return v if it is in the range of s */
+    public static int check(int v, Spec s) {
+        check((double) v, s);
+        return v;
+    }
+
+    /** @return o if it is not null */
+    public static <T> T need(T o, Spec s) {
+        if (o == null)
+            throw missing(s);
+        return o;
+    }
+
+    /** Step into a list of one given for a scalar. @return True if the caller must call {@link #endOne} */
+    private static boolean beginOne(JsonReader in, Spec s) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY)
+            return false;
+        in.beginArray();
+        if (!in.hasNext())
+            throw wrong(YES_LIST, s);
+        return true;
+    }
+
+    /** Step out of a list of one given for a scalar */
+    private static void endOne(JsonReader in, Spec s) throws IOException {
+        if (in.hasNext())
+            throw wrong(YES_LIST, s);
+        in.endArray();
+    }
+
+    /** @return A number in range */
+    public static double readDouble(JsonReader in, Spec s) throws IOException {
+        boolean one = beginOne(in, s);
+        double v = nextDouble(in, s);
+        if (one)
+            endOne(in, s);
+        return v;
+    }
+
+    /** @return A number in range, rounded to an int */
+    public static int readInt(JsonReader in, Spec s) throws IOException {
+        boolean one = beginOne(in, s);
+        double v = nextDouble(in, s);
+        if (one)
+            endOne(in, s);
+        return (int) Math.round(v);
+    }
+
+    /** @return A string */
+    public static String readString(JsonReader in, Spec s) throws IOException {
+        boolean one = beginOne(in, s);
+        String v = nextString(in, s);
+        if (one)
+            endOne(in, s);
+        return v;
+    }
+
+    /** @return The constant of values named by a string, ignoring case */
+    public static <E extends Enum<E>> E readEnum(JsonReader in, Spec s, E[] values) throws IOException {
+        boolean one = beginOne(in, s);
+        E v = nextEnum(in, s);
+        if (one)
+            endOne(in, s);
+        return v;
+    }
+
+    /** @return Any JSON value (a list is the value, not a list of one) */
+    public static JsonElement readJson(JsonReader in, Spec s) throws IOException {
+        return JsonParser.parseReader(in);
+    }
+
+    private static double nextDouble(JsonReader in, Spec s) throws IOException {
+        if (in.peek() != JsonToken.NUMBER)
+            throw wrongType(s);
+        return check(in.nextDouble(), s);
+    }
+
+    private static String nextString(JsonReader in, Spec s) throws IOException {
+        if (in.peek() != JsonToken.STRING)
+            throw wrongType(s);
+        return in.nextString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Enum<E>> E nextEnum(JsonReader in, Spec s) throws IOException {
+        Enum<?> e = in.peek() == JsonToken.STRING ? constant(in.nextString(), s) : null;
+        if (e == null)
+            throw wrongType(s);
+        return (E) e;
+    }
+
+    // ------------------------------------------------------------------ lists
+
+    /** Step into a list, or not if a scalar is given for it. @return True if the caller must call in.endArray() */
+    private static boolean beginList(JsonReader in, Spec s) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY)
+            return false;
+        in.beginArray();
+        if (!in.hasNext())
+            throw wrong(NOT_LIST, s);
+        return true;
+    }
+
+    /** @return A non-empty list of numbers in range */
+    public static double[] readDoubles(JsonReader in, Spec s) throws IOException {
+        if (!beginList(in, s))
+            return new double[] {nextDouble(in, s)};
+        double[] a = new double[8];
+        int n = 0;
+        while (in.hasNext()) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, 2 * n);
+            a[n++] = nextDouble(in, s);
+        }
+        in.endArray();
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    /** @return A non-empty list of numbers in range, rounded to ints */
+    public static int[] readInts(JsonReader in, Spec s) throws IOException {
+        if (!beginList(in, s))
+            return new int[] {(int) Math.round(nextDouble(in, s))};
+        int[] a = new int[8];
+        int n = 0;
+        while (in.hasNext()) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, 2 * n);
+            a[n++] = (int) Math.round(nextDouble(in, s));
+        }
+        in.endArray();
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    /** @return A non-empty list of strings */
+    public static String[] readStrings(JsonReader in, Spec s) throws IOException {
+        if (!beginList(in, s))
+            return new String[] {nextString(in, s)};
+        String[] a = new String[8];
+        int n = 0;
+        while (in.hasNext()) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, 2 * n);
+            a[n++] = nextString(in, s);
+        }
+        in.endArray();
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    /** @return A non-empty list of constants of values named by strings, ignoring case */
+    public static <E extends Enum<E>> E[] readEnums(JsonReader in, Spec s, E[] values) throws IOException {
+        if (!beginList(in, s)) {
+            E[] one = Arrays.copyOf(values, 1);
+            one[0] = nextEnum(in, s);
+            return one;
+        }
+        E[] a = Arrays.copyOf(values, 8);
+        int n = 0;
+        while (in.hasNext()) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, 2 * n);
+            a[n++] = nextEnum(in, s);
+        }
+        in.endArray();
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    /** @return A non-empty list of JSON values */
+    public static JsonElement[] readJsons(JsonReader in, Spec s) throws IOException {
+        if (!beginList(in, s))
+            return new JsonElement[] {JsonParser.parseReader(in)};
+        JsonElement[] a = new JsonElement[8];
+        int n = 0;
+        while (in.hasNext()) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, 2 * n);
+            a[n++] = JsonParser.parseReader(in);
+        }
+        in.endArray();
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    /** @return A non-empty list of non-empty lists of numbers in range (a single list is a list of one list) */
+    public static double[][] readDoubleLists(JsonReader in, Spec s) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY)
+            throw wrong(NOT_LIST_OF_LIST, s);
+        in.beginArray();
+        if (!in.hasNext())
+            throw wrong(NOT_LIST_OF_LIST, s);
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {   // a single list
+            double[] row = new double[8];
+            int n = 0;
+            while (in.hasNext()) {
+                if (n == row.length)
+                    row = Arrays.copyOf(row, 2 * n);
+                row[n++] = nextDouble(in, s);
+            }
+            in.endArray();
+            return new double[][] {Arrays.copyOf(row, n)};
+        }
+        double[][] a = new double[4][];
+        int n = 0;
+        while (in.hasNext()) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, 2 * n);
+            if (in.peek() != JsonToken.BEGIN_ARRAY)
+                throw wrong(NOT_LIST_OF_LIST, s);
+            a[n++] = readDoubles(in, s);
+        }
+        in.endArray();
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    /** @return A non-empty list of non-empty lists of numbers in range, rounded to ints */
+    public static int[][] readIntLists(JsonReader in, Spec s) throws IOException {
+        double[][] d = readDoubleLists(in, s);
+        int[][] a = new int[d.length][];
+        for (int i = 0 ; i < d.length ; i++) {
+            a[i] = new int[d[i].length];
+            for (int j = 0 ; j < d[i].length ; j++)
+                a[i][j] = (int) Math.round(d[i][j]);
+        }
+        return a;
+    }
+
+    /** @return A non-empty list of non-empty lists of strings (a single list is a list of one list) */
+    public static String[][] readStringLists(JsonReader in, Spec s) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_ARRAY)
+            throw wrong(NOT_LIST_OF_LIST, s);
+        in.beginArray();
+        if (!in.hasNext())
+            throw wrong(NOT_LIST_OF_LIST, s);
+        if (in.peek() != JsonToken.BEGIN_ARRAY) {   // a single list
+            String[] row = new String[8];
+            int n = 0;
+            while (in.hasNext()) {
+                if (n == row.length)
+                    row = Arrays.copyOf(row, 2 * n);
+                row[n++] = nextString(in, s);
+            }
+            in.endArray();
+            return new String[][] {Arrays.copyOf(row, n)};
+        }
+        String[][] a = new String[4][];
+        int n = 0;
+        while (in.hasNext()) {
+            if (n == a.length)
+                a = Arrays.copyOf(a, 2 * n);
+            if (in.peek() != JsonToken.BEGIN_ARRAY)
+                throw wrong(NOT_LIST_OF_LIST, s);
+            a[n++] = readStrings(in, s);
+        }
+        in.endArray();
+        return n == a.length ? a : Arrays.copyOf(a, n);
+    }
+
+    // ------------------------------------------------------------------ checking lists
+
+    /** @return a if it is a non-empty list in range */
+    public static double[] check(double[] a, Spec s) {
+        if (a == null || a.length == 0)
+            throw wrong(NOT_LIST, s);
+        for (double v : a)
+            check(v, s);
+        return a;
+    }
+
+    /** @return a if it is a non-empty list in range */
+    public static int[] check(int[] a, Spec s) {
+        if (a == null || a.length == 0)
+            throw wrong(NOT_LIST, s);
+        for (int v : a)
+            check(v, s);
+        return a;
+    }
+
+    /** @return a if it is a non-empty list without nulls */
+    public static <T> T[] check(T[] a, Spec s) {
+        if (a == null || a.length == 0)
+            throw wrong(NOT_LIST, s);
+        for (T v : a)
+            need(v, s);
+        return a;
+    }
+
+    /** @return a if it is a non-empty list of non-empty lists in range */
+    public static double[][] check(double[][] a, Spec s) {
+        if (a == null || a.length == 0)
+            throw wrong(NOT_LIST_OF_LIST, s);
+        for (double[] row : a)
+            if (row == null || row.length == 0)
+                throw wrong(NOT_LIST_OF_LIST, s);
+            else
+                check(row, s);
+        return a;
+    }
+
+    /** @return a if it is a non-empty list of non-empty lists in range */
+    public static int[][] check(int[][] a, Spec s) {
+        if (a == null || a.length == 0)
+            throw wrong(NOT_LIST_OF_LIST, s);
+        for (int[] row : a)
+            if (row == null || row.length == 0)
+                throw wrong(NOT_LIST_OF_LIST, s);
+            else
+                check(row, s);
+        return a;
+    }
+
+    /** @return a if it is a non-empty list of non-empty lists without nulls */
+    public static <T> T[][] check(T[][] a, Spec s) {
+        if (a == null || a.length == 0)
+            throw wrong(NOT_LIST_OF_LIST, s);
+        for (T[] row : a)
+            if (row == null || row.length == 0)
+                throw wrong(NOT_LIST_OF_LIST, s);
+            else
+                check(row, s);
+        return a;
+    }
+
+    // ------------------------------------------------------------------ defaults
+
+    /** @return A copy of template, with template[0] repeated up to length (as {@link DefaultValue#build}) */
+    public static double[] fill(double[] template, int length) {
+        double[] a = Arrays.copyOf(template, Math.max(length, template.length));
+        Arrays.fill(a, template.length, a.length, template[0]);
+        return a;
+    }
+
+    /** @return A copy of template, with template[0] repeated up to length (as {@link DefaultValue#build}) */
+    public static int[] fill(int[] template, int length) {
+        int[] a = Arrays.copyOf(template, Math.max(length, template.length));
+        Arrays.fill(a, template.length, a.length, template[0]);
+        return a;
+    }
+
+    /** @return A copy of template, with template[0] repeated up to length (as {@link DefaultValue#build}) */
+    public static <T> T[] fill(T[] template, int length) {
+        T[] a = Arrays.copyOf(template, Math.max(length, template.length));
+        Arrays.fill(a, template.length, a.length, template[0]);
+        return a;
+    }
+
+    /** @return A deep copy of template, with copies of template[0] added up to length (as {@link DefaultValue#build}) */
+    public static double[][] fill(double[][] template, int length) {
+        double[][] a = new double[Math.max(length, template.length)][];
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = template[i < template.length ? i : 0].clone();
+        return a;
+    }
+
+    /** @return A deep copy of template, with copies of template[0] added up to length (as {@link DefaultValue#build}) */
+    public static int[][] fill(int[][] template, int length) {
+        int[][] a = new int[Math.max(length, template.length)][];
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = template[i < template.length ? i : 0].clone();
+        return a;
+    }
+
+    /** @return A deep copy of template, with copies of template[0] added up to length (as {@link DefaultValue#build}) */
+    public static <T> T[][] fill(T[][] template, int length) {
+        T[][] a = Arrays.copyOf(template, Math.max(length, template.length));
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = template[i < template.length ? i : 0].clone();
+        return a;
+    }
+
+    // ------------------------------------------------------------------ writing
+
+    /**
+     * Pairs (eg checked by {@code OpiMachine.validateArgs}) as JSON, to be read into an argument record.
+     *
+     * @param pairs Parameter names and values
+     * @return A reader positioned at the start of the object
+     */
+    public static JsonReader reader(Map<String, Object> pairs) {
+        return new JsonReader(new StringReader(OpiListener.gson.toJson(pairs)));
+    }
+
+    /**
+     * Encode an argument record as a command, with 'command' and the id first, straight into the bytes to send
+     * (as {@link ValidArgs#encode}).
+     *
+     * @param args The arguments
+     * @param id If not null, the id of the command
+     * @param command The command name
+     * @return The encoded command
+     */
+    public static byte[] encode(Args args, String id, String command) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(1024);
+        try {
+            JsonWriter out = OpiListener.gson.newJsonWriter(new OutputStreamWriter(b, StandardCharsets.UTF_8));
+            args.write(out, id, command);
+            out.flush();
+        } catch (IOException e) {       // cannot happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return b.toByteArray();
+    }
+
+    public static void write(JsonWriter out, String name, double v) throws IOException { out.name(name).value(v); }
+    public static void write(JsonWriter out, String name, int v) throws IOException { out.name(name).value(v); }
+    public static void write(JsonWriter out, String name, String v) throws IOException { out.name(name).value(v); }
+    public static void write(JsonWriter out, String name, Enum<?> v) throws IOException { out.name(name).value(v == null ? null : v.name()); }
+    public static void write(JsonWriter out, String name, JsonElement v) throws IOException { out.name(name); OpiListener.gson.toJson(v, out); }
+
+    public static void write(JsonWriter out, String name, double[] a) throws IOException {
+        out.name(name);
+        writeList(out, a);
+    }
+
+    public static void write(JsonWriter out, String name, int[] a) throws IOException {
+        out.name(name);
+        writeList(out, a);
+    }
+
+    public static void write(JsonWriter out, String name, Object[] a) throws IOException {
+        out.name(name);
+        writeList(out, a);
+    }
+
+    public static void write(JsonWriter out, String name, double[][] a) throws IOException {
+        out.name(name).beginArray();
+        for (double[] row : a)
+            writeList(out, row);
+        out.endArray();
+    }
+
+    public static void write(JsonWriter out, String name, int[][] a) throws IOException {
+        out.name(name).beginArray();
+        for (int[] row : a)
+            writeList(out, row);
+        out.endArray();
+    }
+
+    public static void write(JsonWriter out, String name, Object[][] a) throws IOException {
+        out.name(name).beginArray();
+        for (Object[] row : a)
+            writeList(out, row);
+        out.endArray();
+    }
+
+    private static void writeList(JsonWriter out, double[] a) throws IOException {
+        out.beginArray();
+        for (double v : a)
+            out.value(v);
+        out.endArray();
+    }
+
+    private static void writeList(JsonWriter out, int[] a) throws IOException {
+        out.beginArray();
+        for (int v : a)
+            out.value(v);
+        out.endArray();
+    }
+
+    /** Write a list of strings, enum constants (by name) or JSON values */
+    private static void writeList(JsonWriter out, Object[] a) throws IOException {
+        out.beginArray();
+        for (Object v : a)
+            if (v instanceof Enum<?> e)
+                out.value(e.name());
+            else if (v instanceof JsonElement j)
+                OpiListener.gson.toJson(j, out);
+            else
+                out.value((String) v);
+        out.endArray();
+    }
+}
@@ -0,0 +1,231 @@
+package org.lei.opi.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lei.opi.core.definitions.Parameter;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * The defaultValue of a {@link Parameter}, parsed from JSON once.
+ *
+ * The parsed value is kept as a template of immutable elements (Double, Integer, String or an
+ * enum constant): the value itself for a scalar, an array for a list and an array of arrays for a
+ * list of lists. {@link #build(int)} then makes the value for a call without parsing JSON again:
+ * scalars are returned as is and lists are new ArrayLists, filled to the length asked for with
+ * copies of the first element, so the caller is free to change them.
+ *
+ * The text is parsed by {@link #tree}, the one parse of defaults: here the elements are then converted
+ * to the parameter's class by Gson, and the annotation processor of the apt module turns them into
+ * the constants of the argument records it generates. So a default means the same to ValidationPlan
+ * (which compiles the default of each optional parameter when a machine class is first used) and to
+ * the generated records, and a bad one is a compile error.
+ *
+ * @since 0.3.0
+ */
+public final class DefaultValue {
+
+    /** {@value BAD_DEFAULT} */
+    static final String BAD_DEFAULT = "Default value '%s' for parameter '%s' is not valid JSON for a %s%s.";
+    /** {@value NOT_A_LIST} */
+    static final String NOT_A_LIST = "It should be a non-empty list without nulls.";
+    /** {@value NOT_A_VALUE} */
+    static final String NOT_A_VALUE = "It should be a single value, not a list or object.";
+
+    /** Parameter : its parsed default, for {@link OpiMachine#buildDefault} */
+    private static final ConcurrentHashMap<Parameter, DefaultValue> CACHE = new ConcurrentHashMap<Parameter, DefaultValue>();
+
+    /** The value of a scalar */
+    private final Object scalar;
+    /** The elements of a list */
+    private final Object[] list;
+    /** The elements of each list in a list of lists */
+    private final Object[][] listList;
+
+    private DefaultValue(Object scalar, Object[] list, Object[][] listList) {
+        this.scalar = scalar;
+        this.list = list;
+        this.listList = listList;
+    }
+
+    /**
+     * Parse a defaultValue as leniently as Gson reads JSON (names need not be quoted and strings can be
+     * in single quotes) and check its list shape. This is the only parse of defaults (see above).
+     *
+     * @param defaultValue The text of the default
+     * @param isList True for a list
+     * @param isListList True for a list of lists (whatever isList is)
+     * @param any True if the elements can be any JSON (className Object), so are not checked
+     * @return For a scalar the value (JsonNull if the text is empty or null), for a list a non-empty JsonArray of values,
+     *         for a list of lists a non-empty JsonArray of those
+     * @throws JsonParseException If it is not JSON, or not of that shape (the message says why)
+     *
+     * @since 0.3.0
+     */
+    public static JsonElement tree(String defaultValue, boolean isList, boolean isListList, boolean any) {
+        JsonElement v = JsonParser.parseString(defaultValue);
+        if (isListList)
+            for (JsonElement row : list(v))
+                for (JsonElement e : list(row))
+                    value(e, any);
+        else if (isList)
+            for (JsonElement e : list(v))
+                value(e, any);
+        else
+            value(v, any);
+        return v;
+    }
+
+    /** @return v as a non-empty array without nulls */
+    private static JsonArray list(JsonElement v) {
+        if (!v.isJsonArray() || v.getAsJsonArray().size() == 0)
+            throw new JsonParseException(NOT_A_LIST);
+        for (JsonElement e : v.getAsJsonArray())
+            if (e.isJsonNull())
+                throw new JsonParseException(NOT_A_LIST);
+        return v.getAsJsonArray();
+    }
+
+    /** Check v is a single value (or null), unless it can be any JSON */
+    private static void value(JsonElement v, boolean any) {
+        if (!any && !v.isJsonPrimitive() && !v.isJsonNull())
+            throw new JsonParseException(NOT_A_VALUE);
+    }
+
+    /**
+     * Parse the defaultValue of p.
+     *
+     * @param p The parameter
+     * @return Its default, ready to build
+     * @throws JsonSyntaxException If defaultValue is not JSON for the type of p (or is an empty list, or a list with nulls)
+     *
+     * @since 0.3.0
+     */
+    public static DefaultValue parse(Parameter p) {
+        if (p.className() == String.class && !p.isList() && !p.isListList() && p.defaultValue().length() == 0)
+            return new DefaultValue("", null, null);   // allow empty string as a default
+
+        JsonElement v;
+        try {
+            v = tree(p.defaultValue(), p.isList(), p.isListList(), p.className() == Object.class);
+        } catch (RuntimeException e) {
+            throw new JsonSyntaxException(message(p), e);
+        }
+
+        if (p.isListList()) {
+            JsonArray a = v.getAsJsonArray();
+            Object[][] rows = new Object[a.size()][];
+            for (int i = 0 ; i < rows.length ; i++)
+                rows[i] = elements(a.get(i).getAsJsonArray(), p);
+            return new DefaultValue(null, null, rows);
+        } else if (p.isList())
+            return new DefaultValue(null, elements(v.getAsJsonArray(), p), null);
+        else
+            return new DefaultValue(element(v, p), null, null);
+    }
+
+    /** @return The elements of a as the class of p, none of which may be null (eg from enum names that are not in the enum) */
+    private static Object[] elements(JsonArray a, Parameter p) {
+        Object[] elements = new Object[a.size()];
+        for (int i = 0 ; i < elements.length ; i++)
+            if ((elements[i] = element(a.get(i), p)) == null)
+                throw new JsonSyntaxException(message(p));
+        return elements;
+    }
+
+    /** @return e as the class of p (as Gson reads it) */
+    private static Object element(JsonElement e, Parameter p) {
+        try {
+            return OpiListener.gson.fromJson(e, p.className());
+        } catch (RuntimeException x) {
+            throw new JsonSyntaxException(message(p), x);
+        }
+    }
+
+    /**
+     * The default of an optional parameter, which must have a value: a null scalar
+     * (eg defaultValue not given, or an enum name that is not in the enum) is rejected.
+     *
+     * @param p The parameter
+     * @return Its default
+     * @throws JsonSyntaxException If defaultValue is not JSON for the type of p, or is null
+     *
+     * @since 0.3.0
+     */
+    public static DefaultValue required(Parameter p) {
+        DefaultValue d = parse(p);
+        if (d.list == null && d.listList == null && d.scalar == null)
+            throw new JsonSyntaxException(message(p));
+        return d;
+    }
+
+    /**
+     * The default of p, parsed on first use and cached.
+     *
+     * @param p The parameter
+     * @return Its default
+     * @throws JsonSyntaxException If defaultValue is not JSON for the type of p
+     *
+     * @since 0.3.0
+     */
+    public static DefaultValue of(Parameter p) {
+        DefaultValue d = CACHE.get(p);
+        if (d == null) {
+            d = parse(p);
+            CACHE.putIfAbsent(p, d);
+        }
+        return d;
+    }
+
+    /** @return The error message for a bad default of p */
+    static String message(Parameter p) {
+        return String.format(BAD_DEFAULT, p.defaultValue(), p.name(), p.className().getSimpleName(),
+            p.isListList() ? " list of lists" : p.isList() ? " list" : "");
+    }
+
+    /**
+     * Make the value for a call.
+     * If it is a list shorter than length, the first element is repeated until it is long enough.
+     *
+     * @param length The length of a list (or list of lists) to make
+     * @return The value: the scalar itself, or a new ArrayList (of new ArrayLists)
+     *
+     * @since 0.3.0
+     */
+    public Object build(int length) {
+        if (list != null)
+            return filled(list, length);
+        if (listList != null) {
+            ArrayList<Object> a = new ArrayList<Object>(Math.max(length, listList.length));
+            for (Object[] row : listList)
+                a.add(new ArrayList<Object>(Arrays.asList(row)));
+            for (int i = listList.length ; i < length ; i++)
+                a.add(new ArrayList<Object>(Arrays.asList(listList[0])));
+            return a;
+        }
+        return scalar;
+    }
+
+    /** @return A new ArrayList of template, with template[0] repeated up to length */
+    private static ArrayList<Object> filled(Object[] template, int length) {
+        if (length <= template.length)
+            return new ArrayList<Object>(Arrays.asList(template));
+        Object[] a = Arrays.copyOf(template, length);
+        Arrays.fill(a, template.length, length, template[0]);
+        return new ArrayList<Object>(Arrays.asList(a));
+    }
+
+    public String toString() {
+        if (list != null)
+            return Arrays.toString(list);
+        if (listList != null)
+            return Arrays.deepToString(listList);
+        return String.valueOf(scalar);
+    }
+}
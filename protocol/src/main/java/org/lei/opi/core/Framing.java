@@ -0,0 +1,161 @@
+package org.lei.opi.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Length-prefixed framing for the OPI command socket.
+ *
+ * By default messages are JSON strings terminated by \n. A client can ask for frames
+ * instead by sending the line {@value PREAMBLE} as the very first message on a connection.
+ * A listener that understands frames replies with the same line and from then on both
+ * sides send frames. (An older listener replies with an error Packet, so the client
+ * knows to stay with lines.)
+ *
+ * Each frame is a {@value HEADER_SIZE} byte big-endian header followed by the payload.
+ * <pre>
+ *    int   length   number of bytes in the payload
+ *    short type     what the payload is, eg {@link #TYPE_JSON}
+ *    short flags    bit flags, eg {@link #FLAG_CLOSE}
+ * </pre>
+ * The payload is not altered, so it may contain \n.
+ *
+ * @since 0.3.0
+ */
+public final class Framing {
+
+    /** Line sent by the client, and echoed by the listener, to switch to frames: {@value PREAMBLE} */
+    public static final String PREAMBLE = "OPI-FRAMES/1";
+    /** Bytes in a frame header: {@value HEADER_SIZE} */
+    public static final int HEADER_SIZE = 8;
+    /** Largest payload accepted: {@value MAX_LENGTH} bytes */
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+    /** Payload is a UTF-8 JSON object (a command or a Packet): {@value TYPE_JSON} */
+    public static final short TYPE_JSON = 1;
+    /** No flags: {@value NO_FLAGS} */
+    public static final short NO_FLAGS = 0;
+    /** Set on a reply after which the sender closes the connection: {@value FLAG_CLOSE} */
+    public static final short FLAG_CLOSE = 0x1;
+    /** {@value BAD_LENGTH} */
+    private static final String BAD_LENGTH = "Frame length %s is not in [0, %s].";
+    /** {@value BAD_TYPE} */
+    public static final String BAD_TYPE = "Frame type %s is not known, only %s (JSON) is accepted.";
+
+    private Framing() { ; }
+
+    /**
+     * Build a complete frame ready to be written to a channel.
+     *
+     * @param payload The bytes to send
+     * @param type Type of the payload
+     * @param flags Flags for the frame
+     * @return A buffer in read mode holding header and payload
+     */
+    public static ByteBuffer encode(byte[] payload, short type, short flags) {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        b.putInt(payload.length).putShort(type).putShort(flags).put(payload);
+        return b.flip();
+    }
+
+    /**
+     * Write a frame to a stream and flush it.
+     *
+     * @param out Stream to write to
+     * @param payload The bytes to send
+     * @param length Number of bytes of payload to send
+     * @param type Type of the payload
+     * @param flags Flags for the frame
+     * @throws IOException If the stream cannot be written
+     */
+    public static void write(DataOutputStream out, byte[] payload, int length, short type, short flags) throws IOException {
+        out.writeInt(length);
+        out.writeShort(type);
+        out.writeShort(flags);
+        out.write(payload, 0, length);
+        out.flush();
+    }
+
+    /**
+     * A frame being read. The payload array is reused from frame to frame
+     * and only grows when a bigger frame arrives.
+     *
+     * @since 0.3.0
+     */
+    public static class Frame {
+        /** Partial header when reading from a channel */
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        /** Payload bytes, only the first length are valid */
+        private byte[] payload = new byte[4096];
+        /** Payload length, or -1 if the header has not yet been read */
+        private int length = -1;
+        /** Number of payload bytes received so far */
+        private int filled = 0;
+        private short type;
+        private short flags;
+
+        public short type() { return type; }
+        public short flags() { return flags; }
+        public int length() { return length; }
+        public byte[] payload() { return payload; }
+
+        /** @return The payload decoded as text */
+        public String text(Charset charset) { return new String(payload, 0, length, charset); }
+
+        /** Get ready for the next frame */
+        public void reset() {
+            header.clear();
+            length = -1;
+            filled = 0;
+        }
+
+        /** Take the header values and make sure payload can hold length bytes */
+        private void setHeader(int length, short type, short flags) throws IOException {
+            if (length < 0 || length > MAX_LENGTH)
+                throw new IOException(String.format(BAD_LENGTH, length, MAX_LENGTH));
+            if (payload.length < length)
+                payload = new byte[Math.max(length, 2 * payload.length)];
+            this.length = length;
+            this.type = type;
+            this.flags = flags;
+            this.filled = 0;
+        }
+
+        /**
+         * Consume bytes from src until this frame is complete or src is empty.
+         * Call {@link #reset()} after using a complete frame.
+         *
+         * @param src Bytes read from a channel, in read mode
+         * @return true if the frame is complete
+         * @throws IOException If the header has an impossible length
+         */
+        public boolean feed(ByteBuffer src) throws IOException {
+            if (length < 0) {
+                while (header.hasRemaining() && src.hasRemaining())
+                    header.put(src.get());
+                if (header.hasRemaining())
+                    return false;
+                header.flip();
+                setHeader(header.getInt(), header.getShort(), header.getShort());
+            }
+            int n = Math.min(length - filled, src.remaining());
+            src.get(payload, filled, n);
+            filled += n;
+            return filled == length;
+        }
+
+        /**
+         * Read one whole frame from a blocking stream.
+         *
+         * @param in Stream to read from
+         * @throws IOException If the stream fails or the header has an impossible length
+         */
+        public void read(DataInputStream in) throws IOException {
+            setHeader(in.readInt(), in.readShort(), in.readShort());
+            in.readFully(payload, 0, length);
+            filled = length;
+        }
+    }
+}
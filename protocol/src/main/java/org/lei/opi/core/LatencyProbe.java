@@ -0,0 +1,97 @@
+package org.lei.opi.core;
+
+import java.util.ArrayDeque;
+
+/**
+ * A rolling estimate of the round trip time (RTT) and clock offset of one hop
+ * (eg Monitor to OPI-JOVP server) from the timestamps of PING commands.
+ *
+ * Each PING gives the four {@link System#nanoTime()} stamps of NTP:
+ * t0 the client sent it, t1 the server received it, t2 the server replied, t3 the client
+ * received the reply. Then
+ *     rtt    = (t3 - t0) - (t2 - t1)          (time on the wire, not in the server)
+ *     offset = ((t1 - t0) + (t2 - t3)) / 2    (add to a client time to get a server time)
+ *
+ * The last {@value WINDOW} samples are kept. The offset reported is that of the sample with the
+ * smallest RTT as it has the least queueing to make it asymmetric.
+ * Methods are synchronized as samples arrive on the reply reader and are read on other threads.
+ *
+ * @since 0.3.0
+ */
+public class LatencyProbe {
+
+    /** Number of samples in the rolling window: {@value WINDOW} */
+    public static final int WINDOW = 16;
+
+    /**
+     * One PING
+     *
+     * @param rtt Round trip time minus the time in the server (ns)
+     * @param offset Server clock minus client clock (ns)
+     *
+     * @since 0.3.0
+     */
+    public record Sample(long rtt, long offset) { ; }
+
+    /**
+     * The estimate over the window
+     *
+     * @param samples Number of samples it is based on (0 if none yet)
+     * @param minRtt Smallest RTT (ns)
+     * @param meanRtt Mean RTT (ns)
+     * @param lastRtt RTT of the most recent sample (ns)
+     * @param offset Clock offset (ns) from the sample with the smallest RTT
+     *
+     * @since 0.3.0
+     */
+    public record Estimate(int samples, long minRtt, double meanRtt, long lastRtt, long offset) { ; }
+
+    /** The most recent samples, oldest first */
+    private final ArrayDeque<Sample> window = new ArrayDeque<Sample>(WINDOW);
+
+    /**
+     * Add the stamps of one PING to the window.
+     *
+     * @param t0 Client sent (client ns)
+     * @param t1 Server received (server ns)
+     * @param t2 Server replied (server ns)
+     * @param t3 Client received the reply (client ns)
+     * @return The new sample
+     *
+     * @since 0.3.0
+     */
+    public synchronized Sample add(long t0, long t1, long t2, long t3) {
+        Sample s = new Sample((t3 - t0) - (t2 - t1), ((t1 - t0) + (t2 - t3)) / 2);
+        if (window.size() == WINDOW)
+            window.removeFirst();
+        window.addLast(s);
+        return s;
+    }
+
+    /**
+     * @return The estimate over the current window (all zero if there are no samples)
+     *
+     * @since 0.3.0
+     */
+    public synchronized Estimate estimate() {
+        if (window.isEmpty())
+            return new Estimate(0, 0, 0, 0, 0);
+        Sample best = window.peekFirst();
+        double sum = 0;
+        for (Sample s : window) {
+            sum += s.rtt();
+            if (s.rtt() < best.rtt())
+                best = s;
+        }
+        return new Estimate(window.size(), best.rtt(), sum / window.size(), window.peekLast().rtt(), best.offset());
+    }
+
+    /** Forget all samples (eg after reconnecting to a different server) */
+    public synchronized void clear() { window.clear(); }
+
+    public String toString() {
+        Estimate e = estimate();
+        return String.format("LatencyProbe: %d samples, rtt min %.3f mean %.3f last %.3f ms, offset %.3f ms",
+            e.samples(), e.minRtt() / 1e6, e.meanRtt() / 1e6, e.lastRtt() / 1e6, e.offset() / 1e6);
+    }
+}
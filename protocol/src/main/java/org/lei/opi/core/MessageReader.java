@@ -0,0 +1,126 @@
+package org.lei.opi.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads \n terminated lines, or {@link Framing} frames, from a channel through one buffer.
+ *
+ * Bytes are read {@value BUFFER_SIZE} at a time (so a reply takes a read or two, not a read per byte),
+ * a line is gathered in a byte array that is reused for every line, and only the complete line is
+ * decoded, so multi-byte UTF-8 characters are decoded properly even if they are split across reads.
+ * Lines and frames come from the same buffer, so a connection can switch from lines to frames
+ * without losing bytes that were read ahead.
+ *
+ * Not thread safe: each connection has one reader thread.
+ *
+ * @since 0.3.0
+ */
+public final class MessageReader implements AutoCloseable {
+
+    /** Bytes asked for in each read: {@value BUFFER_SIZE} */
+    public static final int BUFFER_SIZE = 8192;
+
+    /** Where the bytes come from */
+    private final ReadableByteChannel channel;
+    /** Bytes read but not yet used (kept in read mode between calls) */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /** The line being gathered */
+    private byte[] line = new byte[BUFFER_SIZE];
+    /** Charset of lines (and frames, unless told otherwise) */
+    private final Charset charset;
+
+    /**
+     * @param channel The channel to read from
+     * @param charset Charset of the text
+     */
+    public MessageReader(ReadableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.charset = charset;
+        buffer.flip();   // empty, in read mode
+    }
+
+    /**
+     * Read UTF-8 text from a stream (eg of a Socket made without a channel).
+     *
+     * @param in The stream to read from
+     */
+    public MessageReader(InputStream in) {
+        this(Channels.newChannel(in), StandardCharsets.UTF_8);
+    }
+
+    /** Refill buffer if it is empty. @throws EOFException if the channel has ended */
+    private void fill() throws IOException {
+        if (buffer.hasRemaining())
+            return;
+        buffer.clear();
+        int n;
+        do {
+            n = channel.read(buffer);
+        } while (n == 0);
+        buffer.flip();
+        if (n < 0)
+            throw new EOFException();
+    }
+
+    /**
+     * Read the next line.
+     *
+     * @return The line without its \n (or \r\n)
+     * @throws EOFException If the channel ends before a \n
+     * @throws IOException If the channel cannot be read
+     */
+    public String readLine() throws IOException {
+        int n = 0;
+        for (;;) {
+            fill();
+            byte[] b = buffer.array();
+            int start = buffer.position();
+            int end = buffer.limit();
+            int i = start;
+            while (i < end && b[i] != '\n')
+                i++;
+            int count = i - start;
+            if (n + count > line.length)
+                line = Arrays.copyOf(line, Math.max(line.length * 2, n + count));
+            System.arraycopy(b, start, line, n, count);
+            n += count;
+            if (i < end) {               // found the \n
+                buffer.position(i + 1);
+                if (n > 0 && line[n - 1] == '\r')
+                    n--;
+                return new String(line, 0, n, charset);
+            }
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * Read the next frame into frame (which is reset first).
+     *
+     * @param frame Where to put the frame
+     * @throws EOFException If the channel ends part way through a frame
+     * @throws IOException If the channel cannot be read, the header is bad or the frame is not
+     *                     {@link Framing#TYPE_JSON} (the frame is consumed, so the next read is still in step)
+     */
+    public void readFrame(Framing.Frame frame) throws IOException {
+        frame.reset();
+        do {
+            fill();
+        } while (!frame.feed(buffer));
+        if (frame.type() != Framing.TYPE_JSON)
+            throw new IOException(String.format(Framing.BAD_TYPE, frame.type(), Framing.TYPE_JSON));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
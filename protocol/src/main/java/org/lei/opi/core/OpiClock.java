@@ -0,0 +1,46 @@
+package org.lei.opi.core;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The clock for timing stimuli, button presses and camera frames.
+ *
+ * Times are nanoseconds from {@link System#nanoTime()}, which does not jump when the wall clock is
+ * set (eg by NTP) and has much finer resolution than {@link System#currentTimeMillis()}. The origin
+ * is arbitrary, so only differences between times mean anything; convert those to milliseconds
+ * with {@link #toMillis(long)} for reporting.
+ *
+ * Tests can drive time themselves with {@link #set(LongSupplier)}.
+ *
+ * @since 0.3.0
+ */
+public final class OpiClock {
+
+    /** Nanoseconds in a millisecond: {@value NANOS_PER_MILLI} */
+    public static final long NANOS_PER_MILLI = 1_000_000L;
+
+    /** Where the time comes from */
+    private static volatile LongSupplier source = System::nanoTime;
+
+    private OpiClock() { ; }
+
+    /** @return The time now (ns) */
+    public static long now() { return source.getAsLong(); }
+
+    /**
+     * Replace the source of time, eg with a counter in a test.
+     *
+     * @param nanos Gives the time in nanoseconds, or null to go back to System.nanoTime()
+     *
+     * @since 0.3.0
+     */
+    public static void set(LongSupplier nanos) {
+        source = nanos == null ? System::nanoTime : nanos;
+    }
+
+    /** @return nanos (eg a difference of two times) in milliseconds, keeping the fraction */
+    public static double toMillis(long nanos) { return (double) nanos / NANOS_PER_MILLI; }
+
+    /** @return ms in nanoseconds (to the nearest) */
+    public static long fromMillis(double ms) { return Math.round(ms * NANOS_PER_MILLI); }
+}
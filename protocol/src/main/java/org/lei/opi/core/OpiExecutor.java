@@ -0,0 +1,182 @@
+package org.lei.opi.core;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background work of the OPI: the commands of {@link OpiListener} sessions,
+ * reading replies and eye images in an OpiMachine, and CameraStreamer loops.
+ *
+ * Tasks run on virtual threads if the JVM has them (Java 21 and later), so many mostly idle
+ * connections and loops cost almost nothing. Otherwise they run on a bounded pool of
+ * {@value MAX_PLATFORM_THREADS} daemon platform threads that time out when idle.
+ * (The build targets Java 17, so virtual threads are found by reflection.)
+ *
+ * Every task is tracked until it finishes. {@link #cancelAll()} interrupts whatever is still
+ * running and {@link #close()} also stops the executor, waiting up to {@value CLOSE_WAIT} ms
+ * for the tasks to end, so an owner can tear down all of its background work in one call.
+ *
+ * @since 0.3.0
+ */
+public class OpiExecutor implements AutoCloseable {
+
+    /** Most platform threads of one executor when there are no virtual threads: {@value MAX_PLATFORM_THREADS} */
+    public static final int MAX_PLATFORM_THREADS = 64;
+    /** How long close() waits for cancelled tasks to finish: {@value CLOSE_WAIT} ms */
+    public static final long CLOSE_WAIT = 1000;
+    /** How long an idle platform thread lives: {@value IDLE_SECONDS} s */
+    private static final long IDLE_SECONDS = 30;
+    /** {@value CLOSED} */
+    private static final String CLOSED = "OpiExecutor %s is closed.";
+
+    /** Executor for work with no other owner (eg CameraStreamers) */
+    private static volatile OpiExecutor shared = null;
+
+    /** Name prefix of the threads */
+    private final String name;
+    /** Where tasks run */
+    private final ExecutorService executor;
+    /** True if executor uses virtual threads */
+    private final boolean virtual;
+    /** Tasks submitted but not yet finished */
+    private final Set<Future<?>> tasks = ConcurrentHashMap.newKeySet();
+    /** Set by close() */
+    private volatile boolean closed = false;
+
+    /**
+     * Create an executor on virtual threads if possible, otherwise on a bounded platform pool.
+     *
+     * @param name Name prefix for the threads, eg "OpiListener-50001"
+     *
+     * @since 0.3.0
+     */
+    public OpiExecutor(String name) {
+        this.name = name;
+        ExecutorService v = newVirtualExecutor(name);
+        this.virtual = v != null;
+        this.executor = v != null ? v : newPlatformExecutor(name);
+    }
+
+    /**
+     * The executor for background work that has no other owner. It is never closed;
+     * its owners cancel their own tasks.
+     *
+     * @return The shared executor
+     *
+     * @since 0.3.0
+     */
+    public static OpiExecutor shared() {
+        if (shared == null)
+            synchronized (OpiExecutor.class) {
+                if (shared == null)
+                    shared = new OpiExecutor("opi");
+            }
+        return shared;
+    }
+
+    /** @return A thread-per-task executor of virtual threads, or null if this JVM does not have them */
+    private static ExecutorService newVirtualExecutor(String name) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object b = ofVirtual.invoke(null);
+            b = builder.getMethod("name", String.class, long.class).invoke(b, name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(b);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;  // before Java 21 (or preview not enabled)
+        }
+    }
+
+    /** @return A pool of at most {@value MAX_PLATFORM_THREADS} daemon threads that die when idle */
+    private static ExecutorService newPlatformExecutor(String name) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_PLATFORM_THREADS, MAX_PLATFORM_THREADS,
+            IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            r -> {
+                Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** @return true if tasks run on virtual threads */
+    public boolean isVirtual() { return virtual; }
+
+    /** @return The number of tasks submitted but not yet finished */
+    public int running() { return tasks.size(); }
+
+    /**
+     * Run task in the background. Cancel it with the returned Future, {@link #cancelAll()}
+     * or {@link #close()}; long running tasks should stop when interrupted.
+     *
+     * @param task The work to do
+     * @return A Future for cancelling the task or waiting for it
+     * @throws RejectedExecutionException If this executor is closed
+     *
+     * @since 0.3.0
+     */
+    public Future<?> submit(Runnable task) {
+        if (closed)
+            throw new RejectedExecutionException(String.format(CLOSED, name));
+        FutureTask<Void> f = new FutureTask<Void>(task, null) {
+            @Override
+            protected void done() { tasks.remove(this); }
+        };
+        tasks.add(f);
+        try {
+            executor.execute(f);
+        } catch (RejectedExecutionException e) {
+            tasks.remove(f);
+            throw e;
+        }
+        return f;
+    }
+
+    /**
+     * Cancel (and interrupt) every task that is still running. New tasks can still be submitted.
+     *
+     * @since 0.3.0
+     */
+    public void cancelAll() {
+        for (Future<?> f : tasks)
+            f.cancel(true);
+    }
+
+    /**
+     * Cancel every task, stop accepting new ones and wait up to {@value CLOSE_WAIT} ms
+     * for the cancelled tasks to finish.
+     *
+     * @since 0.3.0
+     */
+    @Override
+    public void close() {
+        closed = true;
+        cancelAll();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_WAIT, TimeUnit.MILLISECONDS))
+                executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String toString() {
+        return "OpiExecutor " + name + (virtual ? " (virtual)" : " (platform)") + " with " + tasks.size() + " tasks";
+    }
+}
@@ -0,0 +1,733 @@
+package org.lei.opi.core;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+import org.lei.opi.core.definitions.Packet;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ *
+ * An instance of this runs a non-blocking socket server in a separate thread that applies 
+ * this.process() to any incoming messages. It assumes that the messages are 
+ * JSON objects terminated with a \n (or length-prefixed {@link Framing} frames
+ * if the client asks for them when it connects) that at least contain a name:value pair 
+ * "command":"x" where x is one of the 5 OPI commands. If the JSON string 
+ * does match this pattern it is parsed into name:value pairs and these are passed onto 
+ * the {@link Handler} (an OpiMachine in the core module) with processPairs().
+ *
+ * One Selector thread accepts connections and reads/writes all of the clients' channels.
+ * Complete lines are processed as tasks of an {@link OpiExecutor} (virtual threads where the
+ * JVM has them), one line at a time per {@link OpiSession}, so a slow command from one client 
+ * does not hold up the others and idle clients cost no threads at all.
+ * By default only one client is served and the listener dies when it disconnects
+ * (the original behaviour). In multi-client mode any number of clients can be connected
+ * on the one port, each with its own buffers and Handler.
+ *
+ * A command may carry an optional 'id' (any JSON value). The reply carries the same id, and 
+ * commands with ids from one client are processed concurrently so their replies can arrive
+ * out of order (eg a QUERY answered while a PRESENT waits out its response window).
+ * Commands without an id keep the strict one-at-a-time request and reply order.
+ * A reply whose client has disconnected is given to {@link #undelivered} (which a server that
+ * supports RESUME overrides to keep it for the client when it reconnects).
+ *
+ * @since 0.2.0
+ */
+public class OpiListener extends Thread {
+
+  /**
+   * Command. In JSON files they will appear as:
+   *    name:value pair where name == "command"
+   *
+   * @since 0.0.1
+   */
+    public enum Command {
+      /** Query device constants */
+      QUERY,
+      /** Setup OPI */
+      SETUP,
+      /** Initialize OPI connection */
+      INITIALIZE,
+      /** Present OPI static, kinetic, or temporal stimulus */
+      PRESENT,
+      /** Close OPI connection */
+      CLOSE,
+      /** Present a list of OPI stimuli back to back with inter-stimulus intervals */
+      PRESENT_BATCH,
+      /** Measure latency: answered at once with the times the command was received and replied to */
+      PING,
+      /** Reattach a new connection to a server initialised by an earlier one (with the token INITIALIZE gave) */
+      RESUME,
+      /** Keep a named list of PRESENT templates so later PRESENTs need only give a template and a few values */
+      DEFINE_PROGRAM;
+
+      /**
+       * The OpiMachine method that implements this command: the name in lower camel case, 
+       * eg present for PRESENT and presentBatch for PRESENT_BATCH.
+       *
+       * @return The method name
+       *
+       * @since 0.3.0
+       */
+      public String methodName() {
+          StringBuilder sb = new StringBuilder();
+          for (String part : name().toLowerCase().split("_"))
+              sb.append(sb.length() == 0 ? part : Character.toUpperCase(part.charAt(0)) + part.substring(1));
+          return sb.toString();
+      }
+
+      /**
+       * The Command that matches a command name, ignoring case.
+       *
+       * @param name The value of 'command' as sent, eg "present" or "present_batch"
+       * @return The Command or null if there is no match
+       *
+       * @since 0.3.0
+       */
+      public static Command find(String name) {
+          for (Command c : values())
+              if (c.name().equalsIgnoreCase(name))
+                  return c;
+          return null;
+      }
+    }
+
+    /**
+     * Whatever the decoded commands are passed to: an OpiMachine, or a server's own handler.
+     * The listener needs nothing else of it, so it can be used without the machines,
+     * JavaFX or OpenCV on the classpath.
+     *
+     * @since 0.3.0
+     */
+    public interface Handler {
+        /**
+         * Carry out one command.
+         *
+         * @param pairs The name:value pairs of the command, including "command"
+         * @return The reply to send back
+         *
+         * @since 0.3.0
+         */
+        Packet processPairs(HashMap<String, Object> pairs);
+    }
+
+    /** Name in the msg of a streamed batch result that holds the index of the presentation: {@value BATCH_INDEX} */
+    public static final String BATCH_INDEX = "index";
+    /** Name in the msg of a streamed batch result that holds the present() result: {@value BATCH_RESULT} */
+    public static final String BATCH_RESULT = "result";
+    /** Name in the msg of the final presentBatch() reply that holds the list of present() results: {@value BATCH_RESULTS} */
+    public static final String BATCH_RESULTS = "results";
+    /** Name in the msg of a ping() reply that holds System.nanoTime() when the PING was read: {@value PING_RECEIVED} */
+    public static final String PING_RECEIVED = "received";
+    /** Name in the msg of a ping() reply that holds System.nanoTime() when the reply was made: {@value PING_SENT} */
+    public static final String PING_SENT = "sent";
+    /** Name in the msg of a ping() reply that holds the estimate for the next hop (machines with a server only): {@value PING_SERVER} */
+    public static final String PING_SERVER = "server";
+    /** Name in the msg of an INITIALIZE or RESUME reply (from a server that supports RESUME) that holds the session token: {@value SESSION_TOKEN} */
+    public static final String SESSION_TOKEN = "token";
+    /** Name in a RESUME command of the list of ids still waiting for replies: {@value RESUME_PENDING} */
+    public static final String RESUME_PENDING = "pending";
+    /** Name in the msg of a RESUME reply of the ids in pending that the server never received: {@value RESUME_UNKNOWN} */
+    public static final String RESUME_UNKNOWN = "unknown";
+    /** Name in a DEFINE_PROGRAM command, and in a PRESENT of one of its templates, of the program: {@value PROGRAM} */
+    public static final String PROGRAM = "program";
+    /** Name in a DEFINE_PROGRAM command of its list of PRESENT templates, and in its reply of how many there are: {@value TEMPLATES} */
+    public static final String TEMPLATES = "templates";
+    /** Name in a PRESENT of the index (from 0) of the template of the program to present: {@value TEMPLATE} */
+    public static final String TEMPLATE = "template";
+    /** Number of names at the start of a command that are looked at for its 'id' (see {@link #commandId}): {@value ID_NAMES} */
+    public static final int ID_NAMES = 2;
+  
+    /** For exception messages: {@value NO_COMMAND_FIELD} */
+    public static final String NO_COMMAND_FIELD = "Json message does not contain field 'command'.";
+    /** For exception messages: {@value BAD_COMMAND_FIELD} {@link Command} */
+    public static final String BAD_COMMAND_FIELD = "value of 'command' name in Json message is not one of Command'.";
+    /** For exception messages: {@value NO_OPI_MACHINE} */
+    public static final String NO_OPI_MACHINE = "null OpiMachine passed to OpiClient.";
+    /** Charset is {@value CHARSET_NAME} */
+    private static final String CHARSET_NAME = "UTF8";
+    /** {@value LISTENER_FAILED} */
+    private static final String LISTENER_FAILED = "Listener failed.";
+    /** {@value CLOSE_FAILED} */
+    private static final String CLOSE_FAILED = "Cannot close the socket.";
+    /** {@value CLOSE_FAILED} */
+    private static final String CANNOT_OBTAIN_ADDRESS = "Cannot obtain public address.";
+    /** {@value PROCESS_FAILED} */
+    private static final String PROCESS_FAILED = "Listener could not process the message.";
+    /** How long the selector waits before checking whether it should stop: {@value SELECT_TIMEOUT} ms */
+    private static final long SELECT_TIMEOUT = 250;
+    /** How long to wait for commands in progress to finish after closeListener(): {@value CLOSE_GRACE} ms */
+    private static final long CLOSE_GRACE = 2000;
+    /** Most commands with an 'id' of one session that can be processed at once: {@value MAX_IN_FLIGHT} */
+    private static final int MAX_IN_FLIGHT = 8;
+
+    /** to parse JSONs with fromJson method */
+    public static final GsonBuilder gsonBuilder = new GsonBuilder();
+
+    public static Gson gson = new Gson();
+
+    /** Given a JSON string, return name:value pairs */
+    public static HashMap<String, Object> jsonToPairs(String jsonStr) throws JsonSyntaxException {
+        return gson.fromJson(jsonStr, new TypeToken<HashMap<String, Object>>() {}.getType());
+    }
+
+    /**
+     * Find the optional 'id' field of a command without decoding the rest of it.
+     * A command with an id gets a reply carrying the same id, which may come back 
+     * out of order with respect to other commands with ids.
+     * Only the first {@value ID_NAMES} names are looked at, and only past values that are not 
+     * lists or objects, so the 'id' must come first or straight after 'command' (as OpiMachine sends it).
+     *
+     * @param jsonStr A JSON object
+     * @return The value of the top level name 'id', or null if there is none where it is looked for (or jsonStr is not a JSON object)
+     *
+     * @since 0.3.0
+     */
+    public static JsonElement commandId(String jsonStr) {
+        try {
+            JsonReader in = new JsonReader(new StringReader(jsonStr));
+            if (in.peek() != JsonToken.BEGIN_OBJECT)
+                return null;
+            in.beginObject();
+            for (int i = 0 ; i < ID_NAMES && in.hasNext() ; i++) {
+                if (in.nextName().equals("id")) {
+                    JsonElement id = JsonParser.parseReader(in);
+                    return id.isJsonNull() ? null : id;
+                }
+                JsonToken t = in.peek();
+                if (t == JsonToken.BEGIN_ARRAY || t == JsonToken.BEGIN_OBJECT)
+                    return null;
+                in.skipValue();
+            }
+        } catch (IOException | RuntimeException e) {
+            ;  // not a JSON object: process() will report it
+        }
+        return null;
+    }
+
+    /**
+     * The msg of one streamed presentBatch() result.
+     *
+     * @param index Index of the presentation in the batch
+     * @param result The result of that presentation
+     * @return {"{@value #BATCH_INDEX}": index, "{@value #BATCH_RESULT}": result}
+     *
+     * @since 0.3.0
+     */
+    public static HashMap<String, Object> streamedResult(int index, Object result) {
+        HashMap<String, Object> msg = new HashMap<String, Object>();
+        msg.put(BATCH_INDEX, index);
+        msg.put(BATCH_RESULT, result);
+        return msg;
+    }
+
+    /**
+     * The msg of a reply to PING, stamped with the time now as {@value #PING_SENT}.
+     *
+     * @param received System.nanoTime() when the PING was read
+     * @return {"{@value #PING_RECEIVED}": received, "{@value #PING_SENT}": now}
+     *
+     * @since 0.3.0
+     */
+    public static HashMap<String, Object> pingStamps(long received) {
+        HashMap<String, Object> msg = new HashMap<String, Object>();
+        msg.put(PING_RECEIVED, received);
+        msg.put(PING_SENT, System.nanoTime());
+        return msg;
+    }
+
+    /** Connection address */
+    private InetAddress address;
+    /** Connection port */
+    protected int port;
+    /** Server channel that accepts connections */
+    private ServerSocketChannel server;
+    /** Selector for the server and all client channels */
+    private Selector selector;
+    /** Whether it is connected to a client */
+    protected volatile boolean connected;
+    /** Creates the Handler for each new session (can be null) */
+    private final Supplier<? extends Handler> machineFactory;
+    /** The Handler for commands that come without a session, made by machineFactory on first use (see {@link #sessionlessMachine()}) */
+    private volatile Handler sessionless = null;
+    /** Held while making sessionless */
+    private final Object sessionlessLock = new Object();
+    /** If false, serve one client and then die. If true, serve any number of clients until closeListener(). */
+    private final boolean multiClient;
+    /** Charset of messages */
+    private final Charset charset = Charset.forName(CHARSET_NAME);
+    /** False once the listener has been asked to stop */
+    private volatile boolean running = true;
+    /** The connected clients */
+    private final Set<OpiSession> sessions = ConcurrentHashMap.newKeySet();
+    /** Number of sessions accepted, used for session ids */
+    private int sessionCount = 0;
+    /** Jobs for the selector thread queued by other threads (eg change interest ops) */
+    private final ConcurrentLinkedQueue<Runnable> selectorJobs = new ConcurrentLinkedQueue<>();
+    /** Runs process() for the sessions (on virtual threads if available) */
+    private final OpiExecutor workers;
+
+    /**
+     * Start the OPI manager with an opiMachine (or other Handler) that is already chosen/constructed.
+     * Serves one client and then dies.
+     *
+     * @since 0.2.0
+     */
+    public OpiListener(int port, Handler machine) {
+        this(port, () -> machine, false);
+    }
+
+    /**
+     * Start the OPI manager.
+     *
+     * @param port Port to listen on (0 for any free port; see {@link #getPort()})
+     * @param machineFactory Called once for each new client to give the Handler (eg OpiMachine) for its session.
+     *                       Can be null if process() is overridden and does not need a machine.
+     * @param multiClient If true, serve any number of concurrent clients until closeListener() is called.
+     *                    If false, serve the first client only and stop when it disconnects or closes.
+     *
+     * @since 0.3.0
+     */
+    public OpiListener(int port, Supplier<? extends Handler> machineFactory, boolean multiClient) {
+        gson = gsonBuilder.create();   // Packets bring their own PacketAdapter
+
+        this.machineFactory = machineFactory;
+        this.multiClient = multiClient;
+        this.address = obtainPublicAddress(); // run on localhost
+        this.connected = false; // true when connection established
+
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port)); //, 0, this.address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            this.port = server.socket().getLocalPort(); 
+        } catch (IOException e) {
+            throw new RuntimeException(LISTENER_FAILED, e);
+        }
+
+        workers = new OpiExecutor("OpiListener-" + this.port + "-worker");
+        this.setName("OpiListener-" + this.port);
+        this.start(); // kick off this thread
+    }
+
+    /** @return true if this listener serves many clients at once */
+    public boolean isMultiClient() { return multiClient; }
+
+    /** @return The clients currently connected */
+    public Set<OpiSession> getSessions() { return Collections.unmodifiableSet(sessions); }
+
+    /** @return The charset used for messages */
+    Charset charset() { return charset; }
+  
+    /**
+     * Process a message from a client session.
+     * The default binds the session to the current thread and calls {@link #process(String)}
+     * so that subclasses that only override process(String) work unchanged.
+     *
+     * @param session The client that sent jsonStr
+     * @param jsonStr A JSON object that at least contains the name 'command'.
+     * 
+     * @return Packet with JSON string inside
+     * 
+     * @since 0.3.0
+     */
+    public Packet process(OpiSession session, String jsonStr) {
+        return process(jsonStr);
+    }
+
+    /**
+     * Process incoming Json commands. If it is a 'choose' command, then
+     * set the private field machine to a new instance of that machine.
+     * If it is another command, then process it using the machine object
+     * of the current session (or one from the machine factory if there is no session).
+     *
+     * @param jsonStr A JSON object that at least contains the name 'command'.
+     * 
+     * @return Packet with JSON string inside
+     * 
+     * @since 0.1.0
+     */
+      public Packet process(String jsonStr) {
+              // Parse JSON to hashmap with pairs of name:values
+          HashMap<String, Object> pairs;
+          try {
+              pairs = jsonToPairs(jsonStr);
+          }  catch (JsonSyntaxException e) {
+              return Packet.error("Cannot get hashmap of pairs from JSON in process()", e);
+          }
+   
+              // Get command
+          if (pairs == null || !pairs.containsKey("command")) // needs a command
+              return Packet.error(NO_COMMAND_FIELD);
+          String cmd;
+          try {
+              cmd = (String) pairs.get("command");
+          } catch (ClassCastException e) {
+              return Packet.error(BAD_COMMAND_FIELD);
+          }
+   
+              // Check it is a valid command
+          if (Command.find(cmd) == null)
+              return Packet.error(BAD_COMMAND_FIELD);
+   
+          OpiSession session = OpiSession.current();
+          Handler m = session != null ? session.getMachine() : sessionlessMachine();
+          if (m != null)
+              return m.processPairs(pairs);
+          else
+              return Packet.error(NO_OPI_MACHINE);
+      }
+
+
+    /** @return The one Handler for commands that come without a session (null if there is no machineFactory) */
+    private Handler sessionlessMachine() {
+        Handler m = sessionless;
+        if (m == null && machineFactory != null)
+            synchronized (sessionlessLock) {
+                if (sessionless == null)
+                    sessionless = machineFactory.get();
+                m = sessionless;
+            }
+        return m;
+    }
+
+    /** 
+     * Run the selector loop: accept clients, read their lines and hand them to the workers,
+     * and write replies back. Applies process() to every incoming message, sending the result 
+     * back on the same connection. A session ends when process() returns a Packet with close == true
+     * or the client disconnects.
+     * 
+     * In single client mode no more connections are accepted after the first and the loop 
+     * ends with that session. Otherwise it runs until closeListener().
+     *
+     * Runs in its own thread */
+    @Override
+    public void run() {
+        long deadline = Long.MAX_VALUE;
+        try {
+            while (running || (busy() && System.currentTimeMillis() < deadline)) {
+                if (!running && server.isOpen()) {
+                    server.close();  // stop accepting, let commands in progress finish
+                    deadline = System.currentTimeMillis() + CLOSE_GRACE;
+                }
+                selector.select(SELECT_TIMEOUT);
+
+                Runnable job;
+                while ((job = selectorJobs.poll()) != null)
+                    job.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    OpiSession session = (OpiSession) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            read(key, session);
+                        if (key.isValid() && key.isWritable())
+                            write(key, session);
+                    } catch (IOException e) {
+                        closeSession(session);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+          ;
+        } catch (IOException e) {
+          throw new RuntimeException(LISTENER_FAILED, e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    /** @return true if any session has a command being processed */
+    private boolean busy() {
+        for (OpiSession s : sessions)
+            if (s.inFlight > 0) return true;
+        return false;
+    }
+
+    /** Accept a new client and give it a session */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        OpiSession session = new OpiSession(++sessionCount, channel, machineFactory == null ? null : machineFactory.get(), this);
+        sessions.add(session);
+        channel.register(selector, SelectionKey.OP_READ, session);
+        this.connected = true;
+
+        if (!multiClient)
+            server.close();  // only accepts one connection
+    }
+
+    /** Read what is available from the client and dispatch any complete lines */
+    private void read(SelectionKey key, OpiSession session) throws IOException {
+        int n = session.channel.read(session.readBuffer);
+        if (n < 0) { // client has gone
+            closeSession(session);
+            return;
+        }
+        session.readBuffer.flip();
+        session.splitLines(charset);
+        session.readBuffer.clear();
+        dispatch(session);
+    }
+
+    /** Write as much of the queued replies as the channel will take */
+    private void write(SelectionKey key, OpiSession session) throws IOException {
+        ByteBuffer b;
+        while ((b = session.writes.peek()) != null) {
+            session.channel.write(b);
+            if (b.hasRemaining())
+                return;  // channel is full, try again when it is writable
+            session.writes.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        if (session.closing && session.inFlight == 0)
+            closeSession(session);
+    }
+
+    /** 
+     * Hand the waiting lines of a session to workers. 
+     * A line without an 'id' waits until nothing else of the session is running and then runs alone,
+     * so clients that do not use ids get strict request, reply order. Lines with an 'id' run
+     * as soon as a slot is free (up to {@value MAX_IN_FLIGHT}), alongside each other.
+     * Called on the selector thread only.
+     */
+    private void dispatch(OpiSession session) {
+        if (session.closing) {
+            if (session.inFlight == 0 && session.writes.isEmpty())
+                closeSession(session);
+            return;
+        }
+        while (!session.exclusive && session.inFlight < MAX_IN_FLIGHT && !session.lines.isEmpty()) {
+            OpiSession.Line line = session.lines.peek();
+            JsonElement id = line.id();
+            if (id == null && session.inFlight > 0)
+                return;
+            session.lines.poll();
+            session.inFlight++;
+            session.exclusive = id == null;
+            workers.submit(() -> serve(session, line, id));
+        }
+    }
+
+    /** Run process() on a line of a session and queue the reply, tagged with id. Runs on a worker. */
+    private void serve(OpiSession session, OpiSession.Line line, JsonElement id) {
+        OpiSession.setCurrent(session, id, line.received());
+        try {
+            Packet pack = process(session, line.text()).withId(id);
+            if (!session.isOpen() && !pack.getClose()) {
+                undelivered(session, pack);
+                return;
+            }
+            session.send(pack);
+            if (pack.getClose()) 
+                session.close(); // if close requested, end this session
+        } catch (RuntimeException e) {
+            session.send(Packet.error(PROCESS_FAILED, e).withId(id));
+        } finally {
+            OpiSession.setCurrent(null, null, 0);
+            onSelector(() -> {
+                session.inFlight--;
+                if (id == null)
+                    session.exclusive = false;
+                dispatch(session);
+            });
+        }
+    }
+
+    /**
+     * Called on a worker with a reply to a command from a client that disconnected
+     * while the command was being processed. This default drops it.
+     *
+     * @param session The closed session
+     * @param reply The reply (with the command's id, if any)
+     *
+     * @since 0.3.0
+     */
+    protected void undelivered(OpiSession session, Packet reply) { ; }
+
+    /** Ask the selector thread to also watch for the session's channel being writable */
+    void wantWrite(OpiSession session) {
+        onSelector(() -> {
+            SelectionKey key = session.channel.keyFor(selector);
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        });
+    }
+
+    /** Run job on the selector thread */
+    private void onSelector(Runnable job) {
+        selectorJobs.add(job);
+        selector.wakeup();
+    }
+
+    /** Close a client's channel and forget the session. Single client listeners stop. */
+    private void closeSession(OpiSession session) {
+        session.closing = true;
+        SelectionKey key = session.channel.keyFor(selector);
+        if (key != null)
+            key.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException ignored) { ; }
+        sessions.remove(session);
+        this.connected = !sessions.isEmpty();
+        if (!multiClient)
+            running = false;
+    }
+
+    /** Flush what replies we can and close everything. Runs on the selector thread at the end of run(). */
+    private void shutdown() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException ignored) { ; }
+        for (OpiSession session : sessions) {
+            try {
+                session.channel.configureBlocking(true);
+                ByteBuffer b;
+                while ((b = session.writes.poll()) != null)
+                    session.channel.write(b);
+            } catch (IOException | IllegalStateException ignored) { ; }
+            closeSession(session);
+        }
+        try {
+            server.close();
+        } catch (IOException ignored) { ; }
+        workers.close();   // cancel anything still running after CLOSE_GRACE
+        this.connected = false;
+    }
+  
+    /**
+     *
+     * Send message to the client of the current session, or to all clients
+     * if not called while processing a command.
+     * Strip any internal newlines as \n terminates a message.
+     *
+     * @param message  The message to deliver
+     *
+     * @since 0.0.1
+     */
+    public void send(String message) {
+      OpiSession session = OpiSession.current();
+      if (session != null)
+          session.send(message);
+      else
+          for (OpiSession s : sessions)
+              s.send(message);
+    }
+  
+    /**
+     * Signal stop listening and wait.
+     * If called while processing a command (eg a CLOSE) the listener stops 
+     * once that reply has been sent and this returns immediately.
+     *
+     * @since 0.0.1
+     */
+    public void closeListener() {
+      running = false;
+      selector.wakeup();
+
+      if (Thread.currentThread() == this || OpiSession.current() != null)
+          return;  // cannot wait for ourselves
+
+      try {
+        this.join();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(CLOSE_FAILED, e);
+      }
+    }
+  
+    public String toString() {
+      return "OpiListener server listening at " + getIP() + ":" + getPort();
+    }
+  
+    /**
+     * Get local address
+     *
+     * @return the local address
+     *
+     * @since 0.0.1
+     */
+    public InetAddress getAddress() { return address; }
+  
+    /**
+     * Get local IP address
+     *
+     * @return the local IP address
+     *
+     * @since 0.0.1
+     */
+    public String getIP() { return address.getHostAddress(); }
+  
+    /**
+     * Get local port
+     *
+     * @return the local port
+     *
+     * @since 0.0.1
+     */
+    public int getPort() { return port; }
+  
+    /** get network address for public access */
+    public static InetAddress obtainPublicAddress() {
+      try {
+        for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements();) {
+          NetworkInterface networkInterface = en.nextElement();
+          for (Enumeration<InetAddress> address = networkInterface.getInetAddresses(); address.hasMoreElements();) {
+            InetAddress inetAddress = address.nextElement();
+            if (!inetAddress.isLoopbackAddress() && inetAddress instanceof Inet4Address) {
+              return inetAddress;
+            }
+          }
+        }
+      } catch (SocketException e) {
+        throw new RuntimeException(CANNOT_OBTAIN_ADDRESS, e);
+      }
+      return null;
+    }
+  
+}
\ No newline at end of file
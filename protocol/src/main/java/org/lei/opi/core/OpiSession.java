@@ -0,0 +1,298 @@
+package org.lei.opi.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.lei.opi.core.definitions.Packet;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The state of one client connected to an {@link OpiListener}.
+ * Each session owns its channel, its read and write buffers and the
+ * {@link OpiListener.Handler} (eg OpiMachine) that its commands are passed on to.
+ *
+ * Bytes are appended by the listener's selector thread as they arrive, complete
+ * lines (or frames if the client asked for {@link Framing}) are handed to a worker 
+ * one at a time (so commands from one client are processed in order) and 
+ * replies are queued here until the selector thread can write them to the channel.
+ * The exception is commands that carry an 'id': they may run alongside each other
+ * and their replies, tagged with the same id, can come back out of order.
+ *
+ * @since 0.3.0
+ */
+public class OpiSession {
+
+    /** Initial size of the read and line buffers */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The session bound to the current worker thread, if any */
+    private static final ThreadLocal<OpiSession> CURRENT = new ThreadLocal<>();
+    /** The 'id' of the command being processed by the current worker thread, if any */
+    private static final ThreadLocal<JsonElement> CURRENT_ID = new ThreadLocal<>();
+    /** When the command being processed by the current worker thread was read (System.nanoTime()) */
+    private static final ThreadLocal<Long> CURRENT_RECEIVED = new ThreadLocal<>();
+
+    /**
+     * A complete message from the client
+     * @param text The message
+     * @param received System.nanoTime() when its last bytes were read off the channel
+     * @param id Its 'id' (see {@link OpiListener#commandId}), or null if it has none
+     */
+    record Line(String text, long received, JsonElement id) { 
+        /** A message with the id found in text */
+        Line(String text, long received) { this(text, received, OpiListener.commandId(text)); }
+    }
+
+    /** Identifier for printing, unique within a listener */
+    private final int id;
+    /** The client connection */
+    final SocketChannel channel;
+    /** The Handler that commands from this client are passed to (can be null) */
+    private final OpiListener.Handler machine;
+    /** Bytes read off the channel but not yet parsed */
+    final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /** Bytes of the line currently being assembled */
+    private byte[] line = new byte[BUFFER_SIZE];
+    /** Number of bytes used in line */
+    private int lineLength = 0;
+    /** Complete lines waiting to be processed */
+    final ConcurrentLinkedQueue<Line> lines = new ConcurrentLinkedQueue<>();
+    /** Encoded replies waiting to be written */
+    final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+    /** True once the client has switched to length-prefixed frames */
+    volatile boolean framed = false;
+    /** True until the first line has been read (only the first line can ask for frames) */
+    private boolean firstLine = true;
+    /** The frame being read when framed */
+    private final Framing.Frame frame = new Framing.Frame();
+    /** Number of lines of this session being processed by workers (only changed on the selector thread) */
+    volatile int inFlight = 0;
+    /** True while a line without an 'id' is being processed, as nothing else of this session may run then */
+    volatile boolean exclusive = false;
+    /** True once the session should close after its pending writes */
+    volatile boolean closing = false;
+    /** The listener that owns this session */
+    private final OpiListener listener;
+    /** Encodes Packets for this client into one reused buffer */
+    private final PacketEncoder encoder;
+
+    OpiSession(int id, SocketChannel channel, OpiListener.Handler machine, OpiListener listener) {
+        this.id = id;
+        this.channel = channel;
+        this.machine = machine;
+        this.listener = listener;
+        this.encoder = new PacketEncoder(listener.charset());
+    }
+
+    /**
+     * Writes Packets as JSON through one JsonWriter into a buffer that grows as needed and is
+     * reused for every reply, leaving room at the front for a frame header. Each reply then costs
+     * one copy of its bytes into the ByteBuffer that is queued, rather than a JSON string of msg, 
+     * a JSON string of the Packet with msg escaped inside it, a copy without newlines and its bytes.
+     */
+    public static final class PacketEncoder extends ByteArrayOutputStream {
+        private final JsonWriter json;
+
+        public PacketEncoder(Charset charset) {
+            super(BUFFER_SIZE);
+            json = new JsonWriter(new OutputStreamWriter(this, charset));
+            json.setLenient(true);   // allows one top-level value after another
+        }
+
+        /**
+         * @param p The Packet to encode
+         * @param frame If true make a {@link Framing#TYPE_JSON} frame, otherwise a \n terminated line
+         * @param flags Frame flags (ignored for lines)
+         * @return The bytes ready to write, in read mode
+         * @throws IOException If p cannot be encoded
+         */
+        public synchronized ByteBuffer encode(Packet p, boolean frame, short flags) throws IOException {
+            reset();
+            if (frame)
+                write(new byte[Framing.HEADER_SIZE], 0, Framing.HEADER_SIZE);  // filled in below
+            p.writeTo(json);
+            json.flush();     // JsonWriter never writes a raw \n (only pretty printing would)
+            if (!frame)
+                write('\n');
+            ByteBuffer b = ByteBuffer.allocate(count).put(buf, 0, count).flip();
+            if (frame)
+                b.putInt(0, count - Framing.HEADER_SIZE).putShort(4, Framing.TYPE_JSON).putShort(6, flags);
+            return b;
+        }
+    }
+
+    /**
+     * The session being served by the calling thread.
+     *
+     * @return The session or null if this thread is not processing a command for a session
+     *
+     * @since 0.3.0
+     */
+    public static OpiSession current() { return CURRENT.get(); }
+
+    /**
+     * The 'id' of the command being processed by the calling thread.
+     * Anything sent early for that command (eg streamed results) should carry it too.
+     *
+     * @return The id or null if the command has none or this thread is not processing a command
+     *
+     * @since 0.3.0
+     */
+    public static JsonElement currentId() { return CURRENT_ID.get(); }
+
+    /**
+     * When the command being processed by the calling thread was read off the channel,
+     * which is earlier than it started being processed if it had to wait its turn.
+     *
+     * @return System.nanoTime() when it was read, or now if this thread is not processing a command
+     *
+     * @since 0.3.0
+     */
+    public static long receivedAt() { 
+        Long t = CURRENT_RECEIVED.get();
+        return t == null ? System.nanoTime() : t;
+    }
+
+    /** Bind (or unbind with null) the session, and the id and received time of the line, served by the calling thread */
+    static void setCurrent(OpiSession session, JsonElement id, long received) {
+        if (session == null) {
+            CURRENT.remove();
+            CURRENT_ID.remove();
+            CURRENT_RECEIVED.remove();
+        } else {
+            CURRENT.set(session);
+            CURRENT_RECEIVED.set(received);
+            if (id == null)
+                CURRENT_ID.remove();
+            else
+                CURRENT_ID.set(id);
+        }
+    }
+
+    public int getId() { return id; }
+    public OpiListener.Handler getMachine() { return machine; }
+    public boolean isOpen() { return channel.isOpen() && !closing; }
+    public boolean isFramed() { return framed; }
+
+    /** @return The remote address of the client, or null if it is no longer connected */
+    public SocketAddress getRemoteAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Split the bytes in readBuffer (which should be in read mode) into complete messages,
+     * adding them to the lines queue. Any trailing partial line or frame is kept for next time.
+     * In line mode '\r' before '\n' is dropped, and if the first line is {@link Framing#PREAMBLE}
+     * it is echoed back and the session switches to frames.
+     * A frame that is not {@link Framing#TYPE_JSON} is skipped and answered with an error Packet.
+     *
+     * @param charset The charset used to decode each message
+     * @throws IOException If a frame header is not valid
+     */
+    void splitLines(Charset charset) throws IOException {
+        long received = System.nanoTime();
+        while (readBuffer.hasRemaining()) {
+            if (framed) {
+                if (frame.feed(readBuffer)) {
+                    if (frame.type() == Framing.TYPE_JSON)
+                        lines.add(new Line(frame.text(charset), received));
+                    else   // skip it, the next frame is still in step
+                        send(Packet.error(String.format(Framing.BAD_TYPE, frame.type(), Framing.TYPE_JSON)));
+                    frame.reset();
+                }
+                continue;
+            }
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                int n = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                String s = new String(line, 0, n, charset);
+                lineLength = 0;
+                if (firstLine && s.equals(Framing.PREAMBLE)) {
+                    writes.add(ByteBuffer.wrap((Framing.PREAMBLE + "\n").getBytes(charset)));  // acknowledge as a line
+                    framed = true;
+                    listener.wantWrite(this);
+                } else
+                    lines.add(new Line(s, received));
+                firstLine = false;
+            } else {
+                if (lineLength == line.length)
+                    line = Arrays.copyOf(line, line.length * 2);
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Queue a message for this client.
+     * Strip any internal newlines as \n terminates a message.
+     *
+     * @param message The message to deliver
+     *
+     * @since 0.3.0
+     */
+    public void send(String message) {
+        send(message, Framing.NO_FLAGS);
+    }
+
+    /**
+     * Queue a message for this client as a {@link Framing#TYPE_JSON} frame with flags,
+     * or as a line (with internal newlines stripped) if the client has not asked for frames.
+     *
+     * @param message The message to deliver
+     * @param flags Frame flags, eg {@link Framing#FLAG_CLOSE} (ignored for lines)
+     *
+     * @since 0.3.0
+     */
+    public void send(String message, short flags) {
+        if (framed)
+            writes.add(Framing.encode(message.getBytes(listener.charset()), Framing.TYPE_JSON, flags));
+        else
+            writes.add(ByteBuffer.wrap((message.replace("\n", "") + "\n").getBytes(listener.charset())));
+        listener.wantWrite(this);
+    }
+
+    /**
+     * Queue a Packet for this client, encoded in one pass (see {@link PacketEncoder}).
+     * Sent as a frame (with {@link Framing#FLAG_CLOSE} if p closes) if the client asked for frames.
+     *
+     * @param p The Packet to deliver
+     *
+     * @since 0.3.0
+     */
+    public void send(Packet p) {
+        try {
+            writes.add(encoder.encode(p, framed, p.getClose() ? Framing.FLAG_CLOSE : Framing.NO_FLAGS));
+        } catch (IOException e) {   // cannot happen writing to memory, but fall back to a String
+            send(OpiListener.gson.toJson(p), p.getClose() ? Framing.FLAG_CLOSE : Framing.NO_FLAGS);
+            return;
+        }
+        listener.wantWrite(this);
+    }
+
+    /**
+     * Close this session once all queued replies have been written.
+     *
+     * @since 0.3.0
+     */
+    public void close() {
+        closing = true;
+        listener.wantWrite(this);
+    }
+
+    public String toString() {
+        return "OpiSession " + id + " from " + getRemoteAddress();
+    }
+}
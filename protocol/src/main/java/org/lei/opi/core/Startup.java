@@ -0,0 +1,75 @@
+package org.lei.opi.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Starting up OpiJovp and the Monitor quickly.
+ *
+ * Keeps a timeline of the phases of startup ({@link #mark}, {@link #report}) so time-to-ready
+ * can be seen on each launch. Subsystems that not every launch needs are loaded only when they
+ * are first used and mark the timeline when they are (eg the OpenCV natives in the vision module,
+ * which are only needed for eye tracking and take a good part of a second to unpack and load).
+ *
+ * A launch with {@value TRAIN} goes through startup and then exits, so that it can be run with
+ * -XX:ArchiveClassesAtExit to make a class data sharing (AppCDS) archive for later launches to use
+ * with -XX:SharedArchiveFile (see the run scripts).
+ *
+ * @since 0.3.0
+ */
+public final class Startup {
+
+    /** Command line argument for a training run that starts up and then exits: {@value TRAIN} */
+    public static final String TRAIN = "--train";
+
+    /**
+     * One phase of startup
+     * @param name What was done
+     * @param at System.nanoTime() when it was done
+     */
+    public record Phase(String name, long at) { ; }
+
+    /** When this class was first used (the first phase starts here) */
+    private static final long ORIGIN = System.nanoTime();
+    /** Phases marked so far, in order */
+    private static final ConcurrentLinkedQueue<Phase> phases = new ConcurrentLinkedQueue<Phase>();
+
+    private Startup() { ; }
+
+    /**
+     * Record that a phase of startup has finished.
+     *
+     * @param phase Name of the phase, eg "listener open"
+     *
+     * @since 0.3.0
+     */
+    public static void mark(String phase) {
+        phases.add(new Phase(phase, System.nanoTime()));
+    }
+
+    /** @return The phases marked so far, in order */
+    public static List<Phase> phases() { return new ArrayList<Phase>(phases); }
+
+    /**
+     * The timeline so far: time from the start of the JVM to the first use of this class, then
+     * for each phase the time since that start and since the phase before.
+     *
+     * @return One line per phase
+     *
+     * @since 0.3.0
+     */
+    public static String report() {
+        long now = System.nanoTime();
+        double jvm = ManagementFactory.getRuntimeMXBean().getUptime() - (now - ORIGIN) / 1e6;
+        StringBuilder sb = new StringBuilder("Startup timeline (ms since JVM start)\n");
+        sb.append(String.format("  %-32s %8.1f\n", "JVM", jvm));
+        long last = ORIGIN;
+        for (Phase p : phases) {
+            sb.append(String.format("  %-32s %8.1f  (+%.1f)\n", p.name(), jvm + (p.at() - ORIGIN) / 1e6, (p.at() - last) / 1e6));
+            last = p.at();
+        }
+        return sb.toString();
+    }
+}
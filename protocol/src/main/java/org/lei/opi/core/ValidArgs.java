@@ -0,0 +1,177 @@
+package org.lei.opi.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The arguments of a command once OpiMachine.validateArgs() has passed them:
+ * every @Parameter present (defaults added) and of the right type and range.
+ *
+ * It is the msg of the Packet that validateArgs returns, and it can be written straight onto a
+ * connection ({@link #encode}) with 'command' first, which is what the streaming decoder of
+ * OPI-JOVP wants, rather than being turned into a JSON string, parsed back into a HashMap and
+ * turned into a string again before it is sent.
+ *
+ * Values are as the caller gave them, plus defaults (which can be Integers or enum constants);
+ * {@link #toJsonValues()} makes them what they would be after a trip through JSON.
+ *
+ * @since 0.3.0
+ */
+@JsonAdapter(ValidArgs.Adapter.class)
+public final class ValidArgs {
+
+    /** Name of the command field: {@value COMMAND} */
+    public static final String COMMAND = "command";
+
+    /** The validated name:value pairs (the map given to validateArgs) */
+    private final HashMap<String, Object> pairs;
+
+    /**
+     * @param pairs The validated pairs (kept, not copied)
+     */
+    public ValidArgs(HashMap<String, Object> pairs) {
+        this.pairs = pairs;
+    }
+
+    /** @return The validated pairs (the same map that was validated) */
+    public HashMap<String, Object> pairs() { return pairs; }
+
+    /** @return The value of 'command', or null if there is none */
+    public String command() { return pairs.get(COMMAND) instanceof String s ? s : null; }
+
+    /**
+     * Change values in pairs to what Gson would give for them after writing and reading them as
+     * JSON: numbers become Doubles and enum constants their names, inside lists and maps too.
+     * Lists and maps are copied only if something in them changes, so lists of the caller are not altered.
+     *
+     * @return pairs, changed in place
+     *
+     * @since 0.3.0
+     */
+    public HashMap<String, Object> toJsonValues() {
+        for (Map.Entry<String, Object> e : pairs.entrySet()) {
+            Object v = e.getValue();
+            Object j = jsonValue(v);
+            if (j != v)
+                e.setValue(j);
+        }
+        return pairs;
+    }
+
+    /** @return o as Gson would read it back, or o itself if that would be the same */
+    static Object jsonValue(Object o) {
+        if (o == null || o instanceof Double || o instanceof String || o instanceof Boolean)
+            return o;
+        if (o instanceof Number n)
+            return n.doubleValue();
+        if (o instanceof Enum<?> e)
+            return OpiListener.gson.toJsonTree(e).getAsString();   // honours @SerializedName
+        if (o instanceof List<?> list) {
+            ArrayList<Object> copy = null;
+            for (int i = 0 ; i < list.size() ; i++) {
+                Object v = list.get(i);
+                Object j = jsonValue(v);
+                if (j != v && copy == null)
+                    copy = new ArrayList<Object>(list);
+                if (copy != null)
+                    copy.set(i, j);
+            }
+            return copy != null ? copy : o;
+        }
+        if (o instanceof Map<?, ?> map) {
+            HashMap<Object, Object> copy = null;
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                Object v = e.getValue();
+                Object j = jsonValue(v);
+                if (j != v && copy == null)
+                    copy = new HashMap<Object, Object>(map);
+                if (copy != null)
+                    copy.put(e.getKey(), j);
+            }
+            return copy != null ? copy : o;
+        }
+        return o;
+    }
+
+    /**
+     * Write the pairs as one JSON object, 'command' first, then the id, and then the rest.
+     * The id comes early so the listener can find it without reading the rest (see {@link OpiListener#commandId}).
+     *
+     * @param out Where to write
+     * @param id If not null, added as an "id" field (after 'command')
+     * @throws IOException If out cannot be written
+     *
+     * @since 0.3.0
+     */
+    public void writeTo(JsonWriter out, String id) throws IOException {
+        out.beginObject();
+        Object command = pairs.get(COMMAND);
+        if (command != null) {
+            out.name(COMMAND);
+            OpiListener.gson.toJson(command, command.getClass(), out);
+        }
+        if (id != null)
+            out.name("id").value(id);
+        for (Map.Entry<String, Object> e : pairs.entrySet()) {
+            if (e.getKey().equals(COMMAND))
+                continue;
+            Object v = e.getValue();
+            if (v == null)      // as Gson leaves out null values of a map
+                continue;
+            out.name(e.getKey());
+            OpiListener.gson.toJson(v, v.getClass(), out);
+        }
+        out.endObject();
+    }
+
+    /**
+     * The bytes to send: the JSON object of {@link #writeTo}, in UTF-8, with no newlines.
+     *
+     * @param id If not null, added as an "id" field
+     * @return The encoded command
+     *
+     * @since 0.3.0
+     */
+    public byte[] encode(String id) {
+        ByteArrayOutputStream b = new ByteArrayOutputStream(1024);
+        try {
+            JsonWriter out = OpiListener.gson.newJsonWriter(new OutputStreamWriter(b, StandardCharsets.UTF_8));
+            writeTo(out, id);
+            out.flush();
+        } catch (IOException e) {       // cannot happen writing to memory
+            throw new IllegalStateException(e);
+        }
+        return b.toByteArray();
+    }
+
+    public String toString() { return new String(encode(null), StandardCharsets.UTF_8); }
+
+    /** Writes ValidArgs as its JSON object (eg as the msg of a Packet). Read back as plain JSON. */
+    static class Adapter extends TypeAdapter<ValidArgs> {
+        @Override
+        public void write(JsonWriter out, ValidArgs args) throws IOException {
+            if (args == null)
+                out.nullValue();
+            else
+                args.writeTo(out, null);
+        }
+
+        @Override
+        public ValidArgs read(JsonReader in) throws IOException {
+            @SuppressWarnings("unchecked")
+            HashMap<String, Object> pairs = OpiListener.gson.fromJson(in, HashMap.class);
+            return pairs == null ? null : new ValidArgs(pairs);
+        }
+    }
+}
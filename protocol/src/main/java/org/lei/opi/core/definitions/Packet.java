@@ -0,0 +1,156 @@
+package org.lei.opi.core.definitions;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonWriter;
+
+import org.lei.opi.core.OpiListener;
+
+/**
+ * A class to hold string messages with attributes attached.
+ *
+ * The msg is kept as the object it was made from and only turned into a JSON string if 
+ * {@link #getMsg()} is called. {@link #writeTo} writes the whole Packet, msg included, in one
+ * pass so a reply is encoded once rather than to a string that is then escaped inside another.
+ * So do not change the object given to the constructor once it is in a Packet.
+ * (De)serialized with {@link PacketAdapter}.
+ */
+@JsonAdapter(PacketAdapter.class)
+public class Packet {
+    /** true if the socket should be closed that receives this message */
+    private boolean close;
+    /** true if this message packet contains an error msg */
+    private boolean error;
+    /** What msg is made from (any object Gson can serialize, including a JsonElement) */
+    private final Object payload;
+    /** payload as a JSON string, made when first needed */
+    private String msg;
+    /** The 'id' of the command this is a reply to (null if the command had none) */
+    private JsonElement id;
+
+    public Packet(boolean error, boolean close, Object o) { 
+        this.error = error; 
+        this.close = close; 
+        this.payload = o;
+    }
+
+    public Packet(Object obj) { this(false, false, obj);}
+    public Packet(boolean close, Object obj) { this(false, close, obj);}
+
+    public boolean getClose() { return this.close; }
+    public boolean getError() { return this.error; }
+    /** @return msg as a valid JSON string */
+    public String getMsg() {
+        String m = msg;
+        if (m == null)
+            msg = m = OpiListener.gson.toJson(payload);
+        return m;
+    }
+
+    /**
+     * The object msg is made from, eg the {@link org.lei.opi.core.ValidArgs} of a successful 
+     * OpiMachine.validateArgs() or a JsonElement of a received Packet.
+     *
+     * @return The payload (do not change it)
+     *
+     * @since 0.3.0
+     */
+    public Object getPayload() { return payload; }
+
+    /**
+     * msg as a JsonElement without a round trip through a string when the Packet was 
+     * received (its payload is then already a JsonElement).
+     *
+     * @return msg as a tree
+     *
+     * @since 0.3.0
+     */
+    public JsonElement getMsgTree() {
+        if (payload instanceof JsonElement je)
+            return je;
+        if (msg != null)
+            return JsonParser.parseString(msg);
+        return OpiListener.gson.toJsonTree(payload);
+    }
+
+    /**
+     * Write this Packet as one JSON object {"id":..., "error":..., "close":..., "msg":...}
+     * ("id" only if set), serializing msg straight into out.
+     *
+     * @param out Where to write
+     * @throws IOException If out cannot be written
+     *
+     * @since 0.3.0
+     */
+    public void writeTo(JsonWriter out) throws IOException {
+        out.beginObject();
+        if (id != null) {
+            out.name("id");
+            OpiListener.gson.toJson(id, out);
+        }
+        out.name("error").value(error);
+        out.name("close").value(close);
+        out.name("msg");
+        if (msg != null)
+            out.jsonValue(msg);
+        else if (payload == null)
+            out.nullValue();
+        else
+            OpiListener.gson.toJson(payload, payload.getClass(), out);
+        out.endObject();
+    }
+    public JsonElement getId() { return this.id; }
+
+    /**
+     * Tag this Packet as the reply to the command with `id` so that a client
+     * that has several commands in flight can match replies to commands.
+     *
+     * @param id The value of the command's 'id' field (or null for none)
+     *
+     * @return This Packet
+     *
+     * @since 0.3.0
+     */
+    public Packet withId(JsonElement id) {
+        this.id = id;
+        return this;
+    }
+
+    public String toString() { return String.format("Packet\n\tError: %s\n\tClose: %s\n\tMsg: %s\n", error, close, getMsg()) + (id == null ? "" : "\tId: " + id + "\n"); }
+
+    /**
+     * Create a Packet with error=true
+     * 
+     * @param description String error description (no extra quotes - so not JSON)
+     * 
+     * @return Packet 
+     * 
+     * @since 0.2.0
+     */
+    public static Packet error(String description) { return new Packet(true, false, description); }
+   
+    /**
+     * Create a Packet with error=true that includes both a description and an exception.
+     * 
+     * @param description String error description (no quotes) to add to Json return name 'description'
+     * @param exception An exception to print to stderr and add to Json return object name 'exception'
+     * 
+     * @return Packet
+     * 
+     * @since 0.1.0
+     */
+    public static Packet error(String description, Exception exception) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        exception.printStackTrace(pw);
+        String s = sw.toString(); // stack trace as a string
+        pw.close();
+
+        return error(description + "\n\n" + s);
+    }
+}
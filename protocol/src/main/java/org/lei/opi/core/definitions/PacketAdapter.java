@@ -0,0 +1,57 @@
+package org.lei.opi.core.definitions;
+
+import java.io.IOException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streams a {@link Packet} to and from {"id":..., "error":..., "close":..., "msg":...}.
+ *
+ * Writing serializes msg straight into the output (see {@link Packet#writeTo}) rather
+ * than as a JSON string that is parsed and serialized again.
+ * Reading keeps msg as a JsonElement, so it only becomes a string if someone asks for one.
+ *
+ * @since 0.3.0
+ */
+public class PacketAdapter extends TypeAdapter<Packet> {
+
+    @Override
+    public void write(JsonWriter out, Packet p) throws IOException {
+        if (p == null)
+            out.nullValue();
+        else
+            p.writeTo(out);
+    }
+
+    @Override
+    public Packet read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        boolean error = false;
+        boolean close = false;
+        JsonElement msg = JsonNull.INSTANCE;
+        JsonElement id = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "error" -> error = in.nextBoolean();
+                case "close" -> close = in.nextBoolean();
+                case "msg" -> msg = JsonParser.parseReader(in);
+                case "id" -> id = JsonParser.parseReader(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+
+        return new Packet(error, close, msg).withId(id == null || id.isJsonNull() ? null : id);
+    }
+}
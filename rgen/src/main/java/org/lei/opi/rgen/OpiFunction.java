@@ -3,8 +3,6 @@ package org.lei.opi.rgen;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 
-import java.lang.reflect.Method;
-
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.function.Function;
@@ -15,6 +13,7 @@ import java.util.ArrayList;
 
 import com.google.gson.JsonSyntaxException;
 
+import org.lei.opi.core.MachineMetadata;
 import org.lei.opi.core.OpiMachine;
 import org.lei.opi.core.definitions.Parameter;
 import org.lei.opi.core.definitions.ReturnMsg;
@@ -108,24 +107,16 @@ public class OpiFunction {
         this.machine = machine;
 
             // get @Parameter and @ReturnMsg annotations for this function (ie name == this.opiCoreName)
-            // Get any annotations from super classes if they don't conflict (ie keep the subclass ahead of parent for duplicates)
+            // from the registry shared with the machines (annotations are unique by name with the subclass ahead of parent)
         this.methodData = new MethodData(new HashMap<String, Parameter>(), new HashMap<String, ReturnMsg>());
-        Class<?> c = machine.getClass();
-        while (c != null) {
-            for (Method m : c.getMethods()) {
-                if (m.getName() == this.opiCoreName) {
-                    this.methodData.addU(m.getAnnotationsByType(Parameter.class));  
-                    this.methodData.addU(m.getAnnotationsByType(ReturnMsg.class));
-                }
-            }
-
-            c = c.getSuperclass();  // go up to parent
-        }
-
-        if (this.methodData == null) {
+        OpiMachine.MethodData md = MachineMetadata.of(machine.getClass()).methods().get(this.opiCoreName);
+        if (md == null) {
             System.err.print(String.format("Cannot generate R code for function %s in machine %s", 
                 this.opiCoreName, machine));
-        } 
+        } else {
+            this.methodData.addU(md.parameters().toArray(new Parameter[0]));
+            this.methodData.addU(md.returnMsgs().toArray(new ReturnMsg[0]));
+        }
 
         this.callingExample = makeCallingExample();
     }
@@ -6,7 +6,9 @@
 echo Starting OpiJovp
 cd jovp
 ::: START /B run_OpiJovp.bat
-START /B java @..\jopts.txt org.lei.opi.jovp.OpiJovp 51234
+set CDS=
+if exist opiJovp.jsa set CDS=-XX:SharedArchiveFile=opiJovp.jsa
+START /B java %CDS% @..\jopts.txt org.lei.opi.jovp.OpiJovp 51234
 cd ..
 
 ::FOR /L %%i IN (1,1,15) DO (
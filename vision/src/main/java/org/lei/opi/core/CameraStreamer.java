@@ -20,19 +20,25 @@ import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * Create a thread that serves/streams raw images from one or more "webcams" on a TCP port.
+ * A task (on {@link OpiExecutor#shared()}) that serves/streams raw images from one or more "webcams" on a TCP port.
  * In addition, checks the `requestQueue` for any requests for pupil position and diameter
- * and puts responses back on the `responseQueue` as required.
+ * (made with {@link #request(ViewEye, long)}) and completes each request's future with its response.
  * This should be subclassed for each specific device, as should the FrameInfo for that device.
+ * Stop it with {@link #close()}.
  *
  * @author Andrew Turpin
  * @date 5 June 2024 
  */
-public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
+public abstract class CameraStreamer<FT extends FrameInfo> implements Runnable {
+    static {
+        FrameInfo.loadOpenCV();   // only when cameras are first used
+    }
+
     /** Whether this streamer is connected to a client */
     public boolean connected;
 
@@ -41,8 +47,6 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
 
     /** Queue of requests for image processing */
     public LinkedBlockingDeque<PupilRequest> requestQueue;
-    /** Queue of results from image processing */
-    public LinkedBlockingQueue<PupilResponse> responseQueue;
 
     /** The device numbers of the one or two cameras to stream on the machine on which this is running. 
      * If ony one camera, then just use "Left".
@@ -61,6 +65,9 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
     /** The socket on which frames will be sent. */
     private Socket socket;
 
+    /** The running {@link #run()} loop (null for the junk instance) */
+    private Future<?> task;
+
     /** Accesor for buffers  - used in tests */
     public CircularBuffer<FT> getBuffer(ViewEye eye) { return frameBuffer.get(eye);} 
 
@@ -86,9 +93,8 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
             this.deviceNumber.put(ViewEye.RIGHT, Integer.valueOf(deviceNumberRight));
 
         requestQueue = new LinkedBlockingDeque<PupilRequest>(10);
-        responseQueue = new LinkedBlockingQueue<PupilResponse>(10);
 
-        this.start();
+        task = OpiExecutor.shared().submit(this);
     }
 
     /**
@@ -112,11 +118,40 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
         }
 
         requestQueue = new LinkedBlockingDeque<PupilRequest>(10);
-        responseQueue = new LinkedBlockingQueue<PupilResponse>(10);
 
-        this.start();
+        task = OpiExecutor.shared().submit(this);
+    }
+
+    /**
+     * Stop grabbing and streaming frames (interrupts the {@link #run()} loop, which closes the server socket).
+     *
+     * @since 0.3.0
+     */
+    public void close() {
+        if (task != null)
+            task.cancel(true);
     }
     
+    /**
+     * Ask for the pupil position and diameter in the frame for eye closest in time to timeStamp.
+     * Does not block: the returned future is completed by the streamer's thread once the request is processed.
+     *
+     * @param eye Eye whose camera to use
+     * @param timeStamp Time of interest from {@link OpiClock#now()}, copied to the response's requestTimeStamp
+     * @return Completed with the response (which has no pupil if none was found near timeStamp), 
+     *         or with null if the request cannot be answered (queue full, no camera for eye, or streamer closed)
+     *
+     * @since 0.3.0
+     */
+    public CompletableFuture<PupilResponse> request(ViewEye eye, long timeStamp) {
+        PupilRequest req = new PupilRequest(timeStamp, eye);
+        if (!requestQueue.offer(req)) {
+            System.out.println("CameraStreamer request queue is full. Dropping request.");
+            req.complete(null);
+        }
+        return req.response();
+    }
+
     /*
      * @param folder 
      */
@@ -145,14 +180,14 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
             } 
         }
 
+        ServerSocket server = null;
         try {
-            ServerSocket server = null;
             if (port != -1) {
                 server = new ServerSocket(this.port);
                 server.setSoTimeout(10);
             }
 
-            while (!isInterrupted()) {
+            while (!Thread.currentThread().isInterrupted()) {
                     // See if someone wants to connect and stream...
                 if (port != -1 && !connected)
                     try {
@@ -183,12 +218,23 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
                 else
                     Thread.sleep(50);
             }
-            server.close();
         } catch (InterruptedException e) {
-            this.connected = false;
+            ;
         } catch (Exception e) {
             e.printStackTrace();
         }
+        this.connected = false;
+
+        try {
+            if (server != null)
+                server.close();
+            if (socket != null)
+                socket.close();
+        } catch (IOException e) { ; }
+
+            // Nobody will answer these now
+        for (PupilRequest r = requestQueue.poll() ; r != null ; r = requestQueue.poll())
+            r.complete(null);
 
         try {
             for (ViewEye e : grabber.keySet())
@@ -200,15 +246,15 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
      * Process a request from the client by finding the centre and diameter of the 
      * pupil in the frame in `buffer` that has closest timestamp to request.
      *              
-     *  WARNING: make sure 1 request only generates 1 response
+     *  The request is completed here unless it is put back to try again on the next frame.
      * 
      * @param request Contains timeStamp of request
-     * @param frame Image frame to process
-     * @param timestamp Timestamp that the image was acquired
+     * @param buffer Frames for the request's eye
      */
     private void processRequest(PupilRequest request, CircularBuffer<FT> buffer) {
         if (buffer == null) {
             System.out.println("Cannot satisfy camera requests for eye " + request.eye());
+            request.complete(null);
             return;
         }
 
@@ -221,27 +267,18 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
         }
 
         if (workingFrameInfo.hasPupil()) {
-            try {
-                responseQueue.add(new PupilResponse(
-                    request.timeStamp(),
-                    workingFrameInfo.timeStamp(),
-                    workingFrameInfo.pupilX(),
-                    workingFrameInfo.pupilY(),
-                    workingFrameInfo.pupilDiameter()
-                ));
-            } catch (IllegalStateException e) {
-                System.out.println("Response queue is full, apparently!");
-            }
+            request.complete(new PupilResponse(
+                request.timeStamp(),
+                workingFrameInfo.timeStamp(),
+                workingFrameInfo.pupilX(),
+                workingFrameInfo.pupilY(),
+                workingFrameInfo.pupilDiameter()
+            ));
         } else {
             if (request.incTries())
                 requestQueue.addFirst(request); // put it back for a go at another frame
-            else {
-                try {
-                    responseQueue.add(new PupilResponse(request.timeStamp(), workingFrameInfo.timeStamp()));
-                } catch (IllegalStateException e) {
-                    System.out.println("Response queue is full, apparently!");
-                }
-            }
+            else
+                request.complete(new PupilResponse(request.timeStamp(), workingFrameInfo.timeStamp()));
         }
     }
             
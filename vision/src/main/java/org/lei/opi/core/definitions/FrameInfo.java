@@ -1,5 +1,7 @@
 package org.lei.opi.core.definitions;
 
+import org.lei.opi.core.OpiClock;
+import org.lei.opi.core.Startup;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.videoio.VideoCapture;
@@ -19,7 +21,38 @@ import javax.imageio.ImageIO;
  * @date 5 June 2024 
  */
 public abstract class FrameInfo {
-    protected long timeStamp;
+    static {
+        loadOpenCV();   // only when frames are first used
+    }
+
+    /** {@value OPENCV_LOADED} */
+    static final String OPENCV_LOADED = "OpenCV natives loaded";
+    /** True once the OpenCV natives are loaded */
+    private static volatile boolean openCvLoaded = false;
+
+    /**
+     * Load the OpenCV natives if they are not loaded yet. Classes that use OpenCV
+     * ({@link org.lei.opi.core.CameraStreamer} and FrameInfo) call this when they
+     * are first used, so a launch that never tracks eyes never loads them.
+     *
+     * @since 0.3.0
+     */
+    public static void loadOpenCV() {
+        if (openCvLoaded)
+            return;
+        synchronized (FrameInfo.class) {
+            if (!openCvLoaded) {
+                nu.pattern.OpenCV.loadLocally();
+                openCvLoaded = true;
+                Startup.mark(OPENCV_LOADED);
+            }
+        }
+    }
+
+    /** @return True if the OpenCV natives have been loaded */
+    public static boolean isOpenCVLoaded() { return openCvLoaded; }
+
+    protected long timeStamp;   // time of grab from OpiClock.now() (ns), -1 if none
     protected Mat mat;
     protected boolean hasPupil;
     protected double pupilDiameter;     // diameter of pupil in mm
@@ -62,7 +95,7 @@ public abstract class FrameInfo {
      * @param grabber
      */
     public void grab(VideoCapture grabber) throws IOException {
-        this.timeStamp = System.currentTimeMillis(); 
+        this.timeStamp = OpiClock.now(); 
         this.hasPupil = false;
         if (!grabber.read(this.mat)) {
             this.timeStamp = -1;
@@ -86,7 +119,7 @@ public abstract class FrameInfo {
         final byte[] im_array = ((DataBufferByte) im.getRaster().getDataBuffer()).getData();
         this.mat.put(0, 0, im_array);
 
-        this.timeStamp = System.currentTimeMillis(); 
+        this.timeStamp = OpiClock.now(); 
     }
 
         // Used for test files within package
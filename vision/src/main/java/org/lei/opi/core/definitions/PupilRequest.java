@@ -1,13 +1,20 @@
 package org.lei.opi.core.definitions;
 
+import java.util.concurrent.CompletableFuture;
+
+import org.lei.opi.core.OpiClock;
+
 import es.optocom.jovp.definitions.ViewEye;
 
 /** The data holding a request to the camera for a pupil position */
 public class PupilRequest {
-    long timeStamp;           // some timestamp of the request (used to match responses, perhaps)
+    long timeStamp;           // time of interest from OpiClock.now() (ns), copied to the response
     ViewEye eye;              // eye for which to get the response
     int numberOfTries;        // The number of times this request has been attempted to be completed
 
+    /** Completed by the CameraStreamer with the response to this request (null if it cannot be answered) */
+    private final CompletableFuture<PupilResponse> response = new CompletableFuture<PupilResponse>();
+
     /** The maximum number of times/frames to try and find pupil to satisfy request */
     static final int MAX_TRIES_FOR_REQUEST = 10;
     /** The maximum number of milliseconds to allow a frame to answer a request (should be a 2^x + 1) */
@@ -21,6 +28,18 @@ public class PupilRequest {
 
     public ViewEye eye() { return eye; }
     public long timeStamp() { return timeStamp; }
+    /** @since 0.3.0 */
+    public CompletableFuture<PupilResponse> response() { return response; }
+
+    /**
+     * Answer this request, waking anything waiting on {@link #response()}.
+     * Only the first answer counts.
+     *
+     * @param resp The response, or null if the request cannot be answered
+     *
+     * @since 0.3.0
+     */
+    public void complete(PupilResponse resp) { response.complete(resp); }
 
     /*
     * @return true If we can increment the number of tries, false if we have hit the limit.
@@ -32,11 +51,11 @@ public class PupilRequest {
     }
 
     /*
-    * @param otherTimeStamp A time stamp to which to compare this.timeStamp
-    * @param tol The tolerance for the comparison
+    * @param otherTimeStamp A time stamp (ns, from OpiClock.now()) to which to compare this.timeStamp
+    * @param tol The tolerance for the comparison (ms)
     * @return true if the difference between this.timeStamp and otherTimeStamp is less than tol, false otherwise
     */
     public boolean closeEnough(long otherTimeStamp, int tol) {
-        return Math.abs(this.timeStamp - otherTimeStamp) < tol;
+        return Math.abs(this.timeStamp - otherTimeStamp) < tol * OpiClock.NANOS_PER_MILLI;
     }
 }
\ No newline at end of file
@@ -2,8 +2,8 @@ package org.lei.opi.core.definitions;
 
 /** Data returned in response to a request for a pupil position */
 public record PupilResponse(
-    long requestTimeStamp,       // timestamp of request object that initiated this response
-    long acquisitionTimeStamp,   // timestamp of frame acquisition (approximate)
+    long requestTimeStamp,       // timestamp of request object that initiated this response (ns, OpiClock)
+    long acquisitionTimeStamp,   // timestamp of frame acquisition, approximate (ns, OpiClock)
     double x,                    // pupil position with (0,0) at centre of image (degrees)
     double y,                    // pupil position with (0,0) at centre of image (degrees)
     double diameter              // pupil diameter in mm (-1 indicates no pupil found)